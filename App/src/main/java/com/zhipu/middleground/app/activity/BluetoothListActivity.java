@@ -122,7 +122,7 @@ public class BluetoothListActivity extends AppCompatActivity {
         if (connectHelper.isConnected()) {
             connectHelper.write("dfadfadfa".getBytes());
         } else {
-            connectHelper.connect(device.getAddress(), true);
+            connectHelper.connect(device.getAddress());
         }
         connectHelper.setOnConnectListener(new OnConnectListener() {
             @Override
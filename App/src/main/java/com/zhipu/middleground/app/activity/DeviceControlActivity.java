@@ -2,6 +2,7 @@ package com.zhipu.middleground.app.activity;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
@@ -22,10 +23,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.zhipu.middle.common.SampleGattAttributes;
+import com.zhipu.middle.common.callback.OnConnectListener;
+import com.zhipu.middle.common.callback.OnSyncListener;
 import com.zhipu.middle.common.connect.ConnectHelper;
+import com.zhipu.middle.common.connect.FrameDecoder;
+import com.zhipu.middle.common.connect.RpcEndpoint;
+import com.zhipu.middle.common.message.MessageCodec;
+import com.zhipu.middle.common.message.WeatherMessage;
+import com.zhipu.middle.common.sync.SyncEngine;
+import com.zhipu.middle.common.sync.SyncStore;
 import com.zhipu.middleground.app.R;
 import com.zhipu.middleground.app.connect.ble.BluetoothLeService;
 
+import java.net.ProtocolException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -53,6 +63,53 @@ public class DeviceControlActivity extends Activity {
     private BluetoothGattCharacteristic mNotifyCharacteristic;
 
     private ConnectHelper mConnectHelper = new ConnectHelper();
+    private RpcEndpoint mRpcEndpoint;
+    private SyncEngine mSyncEngine;
+
+    private final OnConnectListener mOnConnectListener = new OnConnectListener() {
+        @Override
+        public void onConnect(BluetoothDevice device) {
+            // The watch answers with only what changed since the last pull
+            mSyncEngine.sync();
+        }
+
+        @Override
+        public void onDisconnect(BluetoothDevice device, String error) {
+            mRpcEndpoint.failPending(error);
+        }
+
+        @Override
+        public void onReceiveData(byte[] data) {
+            mRpcEndpoint.onFrame(data, 0, data.length);
+        }
+    };
+
+    /**
+     * Mirror of the watch's synced state, the phone itself has nothing to offer yet
+     */
+    private final OnSyncListener mOnSyncListener = new OnSyncListener() {
+        @Override
+        public void onRemoteChanged(String key, byte[] value) {
+            if (!WeatherMessage.SYNC_KEY.equals(key) || value == null) {
+                return;
+            }
+            try {
+                final String weather = MessageCodec.decode(value).toString();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        displayData(weather);
+                    }
+                });
+            } catch (ProtocolException e) {
+                Log.w(TAG, "malformed weather from the watch", e);
+            }
+        }
+
+        @Override
+        public void onRemoteReset() {
+        }
+    };
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -167,7 +224,15 @@ public class DeviceControlActivity extends Activity {
         final Intent intent = getIntent();
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
 
-        mConnectHelper.connect(mDeviceAddress, false);
+        mRpcEndpoint = new RpcEndpoint(mConnectHelper, new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                Log.d(TAG, "data: " + new String(buffer, offset, length));
+            }
+        });
+        mSyncEngine = new SyncEngine(mRpcEndpoint, new SyncStore(), mOnSyncListener);
+        mConnectHelper.setOnConnectListener(mOnConnectListener);
+        mConnectHelper.connect(mDeviceAddress);
 
         // Sets up UI references.
         final TextView textAddress = findViewById(R.id.device_address);
@@ -229,6 +294,7 @@ public class DeviceControlActivity extends Activity {
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
         mConnectHelper.stop();
+        mRpcEndpoint.failPending("activity destroyed");
         mGattCharacteristics.clear();
     }
 
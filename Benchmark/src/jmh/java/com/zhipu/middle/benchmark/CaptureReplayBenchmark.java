@@ -0,0 +1,76 @@
+package com.zhipu.middle.benchmark;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.capture.CaptureReader;
+import com.zhipu.middle.common.capture.TrafficRecorder;
+import com.zhipu.middle.common.capture.TrafficReplayer;
+import com.zhipu.middle.common.connect.FrameDecoder;
+import com.zhipu.middle.common.connect.FrameWriter;
+import com.zhipu.middle.common.connect.RpcEndpoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Replays a capture as fast as possible through the receive path of the watch: framing and an
+ * RpcEndpoint passing data through. Point the {@code capture} param at a file written by
+ * TrafficRecorder to replay a real session; without one a synthetic session of
+ * {@value #SYNTHETIC_FRAMES} status and SMS sized frames is used.
+ */
+@State(Scope.Thread)
+public class CaptureReplayBenchmark {
+    private static final int SYNTHETIC_FRAMES = 1000;
+
+    @Param({""})
+    public String capture;
+
+    private byte[] mCapture;
+    private TrafficReplayer mReplayer;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) throws IOException {
+        mCapture = capture.isEmpty() ? synthesize() : Files.readAllBytes(new File(capture).toPath());
+        RpcEndpoint rpcEndpoint = new RpcEndpoint(new NullWriter(), new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                blackhole.consume(buffer[offset]);
+            }
+        });
+        mReplayer = new TrafficReplayer(rpcEndpoint, null);
+        mReplayer.setSpeed(TrafficReplayer.SPEED_UNLIMITED);
+    }
+
+    @Benchmark
+    public TrafficReplayer.Report replay() throws IOException, InterruptedException {
+        return mReplayer.replay(new CaptureReader(new ByteArrayInputStream(mCapture)));
+    }
+
+    private static byte[] synthesize() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        TrafficRecorder recorder = new TrafficRecorder(stream);
+        for (int i = 0; i < SYNTHETIC_FRAMES; i++) {
+            byte[] frame = (i % 4 == 0 ? "SMS from 10086: your data plan is at 80% for this month " + i
+                    : "status " + i).getBytes();
+            recorder.record(TrafficRecorder.LINK_RFCOMM, TrafficRecorder.DIRECTION_IN, frame);
+        }
+        recorder.close();
+        return stream.toByteArray();
+    }
+
+    private static class NullWriter implements FrameWriter {
+        @Override
+        public boolean write(byte[] data, OnWriteListener listener) {
+            return true;
+        }
+    }
+}
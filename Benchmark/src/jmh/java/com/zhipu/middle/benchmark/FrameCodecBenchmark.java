@@ -0,0 +1,69 @@
+package com.zhipu.middle.benchmark;
+
+import com.zhipu.middle.common.connect.FrameCodec;
+import com.zhipu.middle.common.connect.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encoding a payload into a frame and decoding a stream of frames arriving in socket sized chunks.
+ */
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+    private static final int FRAMES = 64;
+
+    @Param({"16", "512", "8192"})
+    public int payloadSize;
+
+    private byte[] mPayload;
+    private byte[] mFrameBuffer;
+    private byte[] mStream;
+    private FrameDecoder mFrameDecoder;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        mBlackhole = blackhole;
+        mPayload = new byte[payloadSize];
+        mFrameBuffer = new byte[FrameCodec.encodedLength(payloadSize)];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            stream.write(FrameCodec.encode(mPayload));
+        }
+        mStream = stream.toByteArray();
+        mFrameDecoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mBlackhole.consume(length);
+            }
+        });
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return FrameCodec.encode(mPayload);
+    }
+
+    @Benchmark
+    public int encodeIntoBuffer() {
+        return FrameCodec.encode(mPayload, 0, mPayload.length, mFrameBuffer, 0);
+    }
+
+    /**
+     * Decode {@value #FRAMES} frames fed in 990 byte chunks, so frames straddle chunk boundaries.
+     */
+    @Benchmark
+    public void decodeChunked() throws IOException {
+        for (int offset = 0; offset < mStream.length; offset += 990) {
+            mFrameDecoder.feed(mStream, offset, Math.min(990, mStream.length - offset));
+        }
+    }
+}
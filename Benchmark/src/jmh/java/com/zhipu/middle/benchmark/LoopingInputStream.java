@@ -0,0 +1,33 @@
+package com.zhipu.middle.benchmark;
+
+import java.io.InputStream;
+
+/**
+ * Replays the same bytes forever in reads of at most readSize bytes, standing in for a socket
+ * without allocating.
+ */
+class LoopingInputStream extends InputStream {
+    private final byte[] mData;
+    private final int mReadSize;
+    private int mPosition;
+
+    LoopingInputStream(byte[] data, int readSize) {
+        mData = data;
+        mReadSize = readSize;
+    }
+
+    @Override
+    public int read() {
+        int b = mData[mPosition] & 0xFF;
+        mPosition = (mPosition + 1) % mData.length;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int count = Math.min(Math.min(len, mReadSize), mData.length - mPosition);
+        System.arraycopy(mData, mPosition, b, off, count);
+        mPosition = (mPosition + count) % mData.length;
+        return count;
+    }
+}
@@ -0,0 +1,119 @@
+package com.zhipu.middle.benchmark;
+
+import com.zhipu.middle.common.message.MessageCodec;
+import com.zhipu.middle.common.message.MessageWriter;
+import com.zhipu.middle.common.message.SmsMessage;
+import com.zhipu.middle.common.message.StatusMessage;
+import com.zhipu.middle.common.message.WeatherMessage;
+import com.zhipu.middle.common.message.WireMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+
+/**
+ * The text encoding messages use today, String.getBytes() on the sender and new String(byte[])
+ * on the receiver (see MiddleGroundService.sendMessage and BleConnectHelper.write(String)),
+ * against the typed {@link MessageCodec} encoding of the same content.
+ * <p>
+ * Encoded sizes of the payloads below, text vs binary: SMS 101 vs 83 bytes, weather 74 vs 22
+ * bytes, status 20 vs 5 bytes. The text decoders split fields and parse numbers the way a
+ * receiver of the text format has to.
+ */
+@State(Scope.Thread)
+public class MessageSerializationBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private String mStatusMessage;
+    private String mSmsMessage;
+    private String mWeatherMessage;
+    private byte[] mEncodedSms;
+    private byte[] mEncodedWeatherText;
+
+    private WireMessage mStatus;
+    private WireMessage mSms;
+    private WireMessage mWeather;
+    private byte[] mEncodedSmsBinary;
+    private byte[] mEncodedWeatherBinary;
+    private MessageWriter mWriter;
+
+    @Setup
+    public void setUp() {
+        mStatusMessage = "connected;battery=85";
+        mSmsMessage = "from=13800138000;time=1587708147000;body=晚上七点在公司楼下见，记得带上手表充电器";
+        mWeatherMessage = "city=北京;temperature=-3.5;condition=snow;humidity=40;time=1587708147000";
+        mEncodedSms = mSmsMessage.getBytes(UTF_8);
+        mEncodedWeatherText = mWeatherMessage.getBytes(UTF_8);
+
+        mStatus = new StatusMessage(StatusMessage.STATE_CONNECTED, 85, false);
+        mSms = new SmsMessage("13800138000", 1587708147000L, "晚上七点在公司楼下见，记得带上手表充电器");
+        mWeather = new WeatherMessage("北京", -35, WeatherMessage.CONDITION_SNOW, 40, 1587708147000L);
+        mEncodedSmsBinary = MessageCodec.encode(mSms);
+        mEncodedWeatherBinary = MessageCodec.encode(mWeather);
+        mWriter = new MessageWriter();
+    }
+
+    @Benchmark
+    public byte[] encodeStatusText() {
+        return mStatusMessage.getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeSmsText() {
+        return mSmsMessage.getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public String decodeSmsText() {
+        return new String(mEncodedSms, UTF_8);
+    }
+
+    @Benchmark
+    public String[] decodeSmsTextFields() {
+        String[] fields = new String(mEncodedSms, UTF_8).split(";", 3);
+        Long.parseLong(fields[1].substring("time=".length()));
+        return fields;
+    }
+
+    @Benchmark
+    public String[] decodeWeatherTextFields() {
+        String[] fields = new String(mEncodedWeatherText, UTF_8).split(";");
+        Double.parseDouble(fields[1].substring("temperature=".length()));
+        Integer.parseInt(fields[3].substring("humidity=".length()));
+        Long.parseLong(fields[4].substring("time=".length()));
+        return fields;
+    }
+
+    @Benchmark
+    public byte[] encodeStatusBinary() {
+        return MessageCodec.encode(mStatus);
+    }
+
+    @Benchmark
+    public byte[] encodeSmsBinary() {
+        return MessageCodec.encode(mSms);
+    }
+
+    /**
+     * A sender that keeps its writer allocates nothing per message.
+     */
+    @Benchmark
+    public int encodeSmsBinaryReusedWriter() {
+        MessageCodec.encode(mSms, mWriter);
+        return mWriter.getLength();
+    }
+
+    @Benchmark
+    public WireMessage decodeSmsBinary() throws ProtocolException {
+        return MessageCodec.decode(mEncodedSmsBinary);
+    }
+
+    @Benchmark
+    public WireMessage decodeWeatherBinary() throws ProtocolException {
+        return MessageCodec.decode(mEncodedWeatherBinary);
+    }
+}
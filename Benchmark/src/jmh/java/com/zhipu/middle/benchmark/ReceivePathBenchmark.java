@@ -0,0 +1,93 @@
+package com.zhipu.middle.benchmark;
+
+import com.zhipu.middle.common.callback.OnReceiveBufferListener;
+import com.zhipu.middle.common.connect.BufferPool;
+import com.zhipu.middle.common.connect.FrameCodec;
+import com.zhipu.middle.common.connect.FrameDecoder;
+import com.zhipu.middle.common.connect.PooledBuffer;
+import com.zhipu.middle.common.connect.PooledFrameReceiver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The receive loop of ConnectHelper.CommunicateThread: the original copy per read, the framed
+ * copy per message and the pooled buffer mode. Each invocation handles {@value #READS} reads.
+ */
+@State(Scope.Thread)
+public class ReceivePathBenchmark {
+    private static final int READS = 100;
+
+    @Param({"64", "1000"})
+    public int messageSize;
+
+    private InputStream mInputStream;
+    private byte[] mReadBuffer;
+    private FrameDecoder mCopyingDecoder;
+    private FrameDecoder mPooledDecoder;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        mBlackhole = blackhole;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 256; i++) {
+            stream.write(FrameCodec.encode(new byte[messageSize]));
+        }
+        mInputStream = new LoopingInputStream(stream.toByteArray(), 2 * 1024);
+        mReadBuffer = new byte[2 * 1024];
+        mCopyingDecoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                byte[] data = new byte[length];
+                System.arraycopy(buffer, offset, data, 0, length);
+                mBlackhole.consume(data);
+            }
+        });
+        mPooledDecoder = new FrameDecoder(new PooledFrameReceiver(new BufferPool(), new OnReceiveBufferListener() {
+            @Override
+            public void onReceiveBuffer(PooledBuffer buffer) {
+                mBlackhole.consume(buffer.length());
+                buffer.release();
+            }
+        }));
+    }
+
+    /**
+     * What CommunicateThread did before framing: a fresh array for every read.
+     */
+    @Benchmark
+    @OperationsPerInvocation(READS)
+    public void unframedCopyPerRead() throws IOException {
+        for (int i = 0; i < READS; i++) {
+            byte[] data = new byte[mInputStream.read(mReadBuffer)];
+            System.arraycopy(mReadBuffer, 0, data, 0, data.length);
+            mBlackhole.consume(data);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READS)
+    public void framedCopyPerMessage() throws IOException {
+        for (int i = 0; i < READS; i++) {
+            mCopyingDecoder.readFrom(mInputStream);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(READS)
+    public void framedPooled() throws IOException {
+        for (int i = 0; i < READS; i++) {
+            mPooledDecoder.readFrom(mInputStream);
+        }
+    }
+}
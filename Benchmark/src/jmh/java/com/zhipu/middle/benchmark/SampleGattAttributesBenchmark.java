@@ -0,0 +1,27 @@
+package com.zhipu.middle.benchmark;
+
+import com.zhipu.middle.common.SampleGattAttributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Characteristic name lookup as done for every row of the GATT service list.
+ */
+@State(Scope.Thread)
+public class SampleGattAttributesBenchmark {
+    // Built at runtime so the lookup cannot hit the interned constant by identity
+    private final String mKnownUuid = new String(SampleGattAttributes.CHAR_WRITE_SMS.toCharArray());
+    private final String mUnknownUuid = "00002a00-0000-1000-8000-00805f9b34fb";
+
+    @Benchmark
+    public String lookupKnown() {
+        return SampleGattAttributes.lookup(mKnownUuid, "unknown");
+    }
+
+    @Benchmark
+    public String lookupUnknown() {
+        return SampleGattAttributes.lookup(mUnknownUuid, "unknown");
+    }
+}
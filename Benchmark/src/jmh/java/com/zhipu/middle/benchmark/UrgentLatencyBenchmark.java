@@ -0,0 +1,122 @@
+package com.zhipu.middle.benchmark;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.connect.EventLoop;
+import com.zhipu.middle.common.connect.Session;
+import com.zhipu.middle.common.connect.WriteQueue;
+import com.zhipu.middle.common.transport.LoopbackTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time from writing a small message until the peer has it, while a bulk transfer keeps the
+ * sender's queue full over a slow loopback link. With {@code urgent} false the small message waits
+ * in the same FIFO class as the bulk data; with true it goes in the urgent class and overtakes it.
+ * Compare the p0.99 of the two sample time results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UrgentLatencyBenchmark {
+    private static final byte TAG_URGENT = 'U';
+    private static final byte TAG_BULK = 'B';
+
+    @Param({"false", "true"})
+    public boolean urgent;
+
+    /**
+     * Time the receiver spends on each bulk message, 500 makes a link of about 4 MB/s.
+     */
+    @Param({"500"})
+    public int bulkCostMicros;
+
+    private EventLoop mEventLoop;
+    private Session mSender;
+    private Session mReceiver;
+    private Thread mBulkThread;
+    private volatile boolean mRunning;
+    private final Semaphore mReceived = new Semaphore(0);
+    private final byte[] mUrgent = {TAG_URGENT};
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mEventLoop = new EventLoop("benchmark");
+        LoopbackTransport[] pair = LoopbackTransport.createPair(8 * 1024);
+        mReceiver = new Session(pair[1], new SessionAdapter() {
+            @Override
+            public void onSessionData(Session session, byte[] data) {
+                if (data[0] == TAG_URGENT) {
+                    mReceived.release();
+                } else {
+                    LockSupport.parkNanos(bulkCostMicros * 1000L);
+                }
+            }
+        }, mEventLoop);
+        mSender = new Session(pair[0], new SessionAdapter(), mEventLoop);
+        mReceiver.open();
+        mSender.open();
+
+        final int bulkPriority = urgent ? WriteQueue.PRIORITY_BULK : WriteQueue.PRIORITY_NORMAL;
+        final byte[] bulk = new byte[2048];
+        bulk[0] = TAG_BULK;
+        mRunning = true;
+        mBulkThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    while (mSender.write(bulk, bulkPriority, null)) {
+                        // Keep the bulk class full
+                    }
+                    LockSupport.parkNanos(100000);
+                }
+            }
+        }, "bulk");
+        mBulkThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mRunning = false;
+        mBulkThread.join();
+        mSender.close("done");
+        mReceiver.close("done");
+        mEventLoop.shutdown();
+    }
+
+    @Benchmark
+    public void sendUnderBulkLoad() throws InterruptedException {
+        int priority = urgent ? WriteQueue.PRIORITY_URGENT : WriteQueue.PRIORITY_NORMAL;
+        // A full FIFO class refuses the message too, that wait is part of its latency
+        while (!mSender.write(mUrgent, priority, null)) {
+            LockSupport.parkNanos(100000);
+        }
+        mReceived.acquire();
+    }
+
+    private static class SessionAdapter implements OnSessionListener {
+        @Override
+        public void onSessionOpened(Session session) {
+        }
+
+        @Override
+        public void onSessionClosed(Session session, String reason) {
+        }
+
+        @Override
+        public void onSessionData(Session session, byte[] data) {
+        }
+    }
+}
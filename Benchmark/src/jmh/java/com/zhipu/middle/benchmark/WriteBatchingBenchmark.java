@@ -0,0 +1,136 @@
+package com.zhipu.middle.benchmark;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.connect.FrameCodec;
+import com.zhipu.middle.common.connect.WriteQueue;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second through a {@link WriteQueue} with and without batching, when an app writes
+ * small status strings over a link that charges a fixed cost per write, like the per packet radio
+ * overhead of RFCOMM. The socketWrites and messages counters show how many link writes the
+ * messages took.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WriteBatchingBenchmark {
+    private static final int MESSAGES = 200;
+
+    @Param({"false", "true"})
+    public boolean batching;
+
+    /**
+     * Simulated cost of one socket write in microseconds.
+     */
+    @Param({"50"})
+    public int perWriteCostMicros;
+
+    /**
+     * Time the app spends between two messages: 2 saturates the link, 100 leaves it mostly idle.
+     */
+    @Param({"2", "100"})
+    public int messageIntervalMicros;
+
+    private WriteQueue mWriteQueue;
+    private byte[] mFrame;
+    private final Semaphore mCompleted = new Semaphore(0);
+
+    private final OnWriteListener mOnWriteListener = new OnWriteListener() {
+        @Override
+        public void onWriteComplete(int length) {
+            mCompleted.release();
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            mCompleted.release();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mWriteQueue = new WriteQueue(new SlowLinkOutputStream(perWriteCostMicros), 2 * MESSAGES,
+                WriteQueue.DEFAULT_COALESCE_LIMIT);
+        if (batching) {
+            mWriteQueue.setBatching(5, 1024);
+        }
+        mWriteQueue.start();
+        mFrame = FrameCodec.encode("battery=87;steps=10342;hr=72".getBytes());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mWriteQueue.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void burstOfSmallWrites(LinkCounters counters) throws InterruptedException {
+        long socketWritesBefore = mWriteQueue.getSocketWriteCount();
+        long intervalNanos = TimeUnit.MICROSECONDS.toNanos(messageIntervalMicros);
+        for (int i = 0; i < MESSAGES; i++) {
+            mWriteQueue.enqueue(mFrame, mOnWriteListener);
+            busyWait(intervalNanos);
+        }
+        mWriteQueue.flush();
+        mCompleted.acquire(MESSAGES);
+        counters.socketWrites += mWriteQueue.getSocketWriteCount() - socketWritesBefore;
+        counters.messages += MESSAGES;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class LinkCounters {
+        public long socketWrites;
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            socketWrites = 0;
+            messages = 0;
+        }
+    }
+
+    private static void busyWait(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // spin
+        }
+    }
+
+    private static class SlowLinkOutputStream extends OutputStream {
+        private final long mPerWriteCostNanos;
+
+        SlowLinkOutputStream(int perWriteCostMicros) {
+            mPerWriteCostNanos = TimeUnit.MICROSECONDS.toNanos(perWriteCostMicros);
+        }
+
+        @Override
+        public void write(int b) {
+            busyWait(mPerWriteCostNanos);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            busyWait(mPerWriteCostNanos);
+        }
+    }
+}
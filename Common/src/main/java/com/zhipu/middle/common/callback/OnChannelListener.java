@@ -0,0 +1,12 @@
+package com.zhipu.middle.common.callback;
+
+public interface OnChannelListener {
+
+    /**
+     * 逻辑通道收到一条完整消息的回调，在连接的读线程中调用
+     *
+     * @param channelId 通道号
+     * @param data      消息内容
+     */
+    void onChannelData(int channelId, byte[] data);
+}
@@ -9,7 +9,7 @@ public interface OnConnectListener {
     void onDisconnect(BluetoothDevice device, String error);
 
     /**
-     * 接收到服务端返回数据的回调，在方法在子线程中调用
+     * 接收到服务端返回数据的回调，在方法在子线程中调用，每次回调对应对端一次write的完整数据
      *
      * @param data 接收到数据的回调
      */
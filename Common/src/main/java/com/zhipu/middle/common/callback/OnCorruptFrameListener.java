@@ -0,0 +1,11 @@
+package com.zhipu.middle.common.callback;
+
+public interface OnCorruptFrameListener {
+
+    /**
+     * 收到无法解析的帧的回调，该帧已被丢弃，在连接的读线程中调用，可在此断开连接
+     *
+     * @param reason 无法解析的原因
+     */
+    void onCorruptFrame(String reason);
+}
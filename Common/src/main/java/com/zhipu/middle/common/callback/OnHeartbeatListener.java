@@ -0,0 +1,11 @@
+package com.zhipu.middle.common.callback;
+
+public interface OnHeartbeatListener {
+
+    /**
+     * 连续多次心跳未收到回应，判定对端已失联，在心跳定时器线程中调用
+     *
+     * @param missedPings 连续未回应的心跳次数
+     */
+    void onPeerDead(int missedPings);
+}
@@ -0,0 +1,14 @@
+package com.zhipu.middle.common.callback;
+
+import com.zhipu.middle.common.connect.PooledBuffer;
+
+public interface OnReceiveBufferListener {
+
+    /**
+     * 接收到完整数据帧的回调，在读线程中调用。数据位于借出的缓冲区中，使用完毕后必须调用
+     * {@link PooledBuffer#release()} 归还，否则读线程会在缓冲池耗尽后阻塞
+     *
+     * @param buffer 借出的缓冲区
+     */
+    void onReceiveBuffer(PooledBuffer buffer);
+}
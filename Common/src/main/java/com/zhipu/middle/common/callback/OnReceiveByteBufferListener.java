@@ -0,0 +1,15 @@
+package com.zhipu.middle.common.callback;
+
+import java.nio.ByteBuffer;
+
+public interface OnReceiveByteBufferListener {
+
+    /**
+     * 接收到完整数据帧的回调，在读线程中调用。数据不经复制，直接以只读视图的形式指向读缓冲区，
+     * 有效内容为 position 到 limit 之间的字节（position 不一定为 0）。视图及其内容只在回调期间
+     * 有效，回调返回后会被下一帧覆盖，需要保留的数据必须在回调内自行复制
+     *
+     * @param data 只读视图
+     */
+    void onReceiveData(ByteBuffer data);
+}
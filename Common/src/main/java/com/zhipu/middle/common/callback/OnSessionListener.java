@@ -0,0 +1,18 @@
+package com.zhipu.middle.common.callback;
+
+import com.zhipu.middle.common.connect.Session;
+
+public interface OnSessionListener {
+
+    void onSessionOpened(Session session);
+
+    void onSessionClosed(Session session, String reason);
+
+    /**
+     * 接收到某个会话的完整数据帧的回调，在该会话的读线程中调用
+     *
+     * @param session 数据所属的会话
+     * @param data    接收到的数据
+     */
+    void onSessionData(Session session, byte[] data);
+}
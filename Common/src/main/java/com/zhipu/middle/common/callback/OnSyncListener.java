@@ -0,0 +1,17 @@
+package com.zhipu.middle.common.callback;
+
+public interface OnSyncListener {
+
+    /**
+     * 对端的一条同步数据新增、修改或删除的回调，在连接的读线程中调用
+     *
+     * @param key   数据的键
+     * @param value 新的值，删除时为null
+     */
+    void onRemoteChanged(String key, byte[] value);
+
+    /**
+     * 对端数据整体重建的回调，例如对端重启或本端落后太多，之后会对每条数据回调onRemoteChanged
+     */
+    void onRemoteReset();
+}
@@ -0,0 +1,34 @@
+package com.zhipu.middle.common.callback;
+
+import java.io.File;
+
+public interface OnTransferListener {
+
+    /**
+     * 文件传输进度的回调，发送端在收到确认时调用，接收端在写入分块后调用，都在连接的读线程中调用
+     *
+     * @param transferId  传输编号，发送和接收的编号各自独立，需和direction一起区分
+     * @param direction   传输方向，FileTransfer.DIRECTION_IN或FileTransfer.DIRECTION_OUT
+     * @param transferred 已确认（或已写入）的字节数
+     * @param total       文件总字节数
+     */
+    void onTransferProgress(int transferId, int direction, long transferred, long total);
+
+    /**
+     * 文件传输完成的回调
+     *
+     * @param transferId 传输编号
+     * @param direction  传输方向
+     * @param file       发送端为发送的文件，接收端为接收完成的文件
+     */
+    void onTransferComplete(int transferId, int direction, File file);
+
+    /**
+     * 文件传输失败的回调，接收端的未完成文件会保留，以便之后续传，也可能在超时重试的定时器线程中调用
+     *
+     * @param transferId 传输编号
+     * @param direction  传输方向
+     * @param reason     失败原因
+     */
+    void onTransferFailed(int transferId, int direction, String reason);
+}
@@ -0,0 +1,15 @@
+package com.zhipu.middle.common.callback;
+
+import com.zhipu.middle.common.transport.Transport;
+
+public interface OnTransportStateListener {
+
+    /**
+     * 传输层状态变化的回调，在引起变化的线程中调用
+     *
+     * @param transport 状态变化的传输层
+     * @param state     {@link Transport#STATE_CLOSED}, {@link Transport#STATE_OPENING} 或 {@link Transport#STATE_OPEN}
+     * @param reason    关闭原因，其它状态为null
+     */
+    void onStateChanged(Transport transport, int state, String reason);
+}
@@ -0,0 +1,18 @@
+package com.zhipu.middle.common.callback;
+
+import java.io.IOException;
+
+public interface OnWriteListener {
+
+    /**
+     * 数据已写入socket，在写线程中调用
+     *
+     * @param length 写入的字节数
+     */
+    void onWriteComplete(int length);
+
+    /**
+     * 数据写入失败，在写线程中调用
+     */
+    void onWriteFailed(IOException e);
+}
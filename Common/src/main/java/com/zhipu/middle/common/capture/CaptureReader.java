@@ -0,0 +1,144 @@
+package com.zhipu.middle.common.capture;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Reads a capture written by {@link TrafficRecorder} one record at a time. A capture cut short,
+ * e.g. by a crash of the recording process, simply ends before its torn last record.
+ */
+public class CaptureReader implements Closeable {
+    private final InputStream mInputStream;
+    private byte[] mData = new byte[1024];
+    private int mLength;
+    private long mTimeMicros;
+    private int mLink;
+    private int mDirection;
+
+    public CaptureReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public CaptureReader(InputStream inputStream) throws IOException {
+        mInputStream = new BufferedInputStream(inputStream);
+        for (byte magic : TrafficRecorder.MAGIC) {
+            if (mInputStream.read() != magic) {
+                throw new ProtocolException("not a traffic capture");
+            }
+        }
+        int version = mInputStream.read();
+        if (version != TrafficRecorder.VERSION) {
+            throw new ProtocolException("unsupported capture version: " + version);
+        }
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false at the end of the capture
+     */
+    public boolean next() throws IOException {
+        try {
+            long deltaMicros = this.readVarLong(true);
+            if (deltaMicros < 0) {
+                return false;
+            }
+            int flags = this.readByte();
+            long length = this.readVarLong(false);
+            if (length > Integer.MAX_VALUE) {
+                throw new ProtocolException("bad record length: " + length);
+            }
+            if (mData.length < length) {
+                mData = new byte[(int) Math.max(length, mData.length * 2L)];
+            }
+            int read = 0;
+            while (read < length) {
+                int count = mInputStream.read(mData, read, (int) length - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+            mTimeMicros += deltaMicros;
+            mLink = flags >>> 1;
+            mDirection = flags & 1;
+            mLength = (int) length;
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return microseconds from the start of the recording to this record
+     */
+    public long getTimeMicros() {
+        return mTimeMicros;
+    }
+
+    /**
+     * @return one of the LINK constants of {@link TrafficRecorder}
+     */
+    public int getLink() {
+        return mLink;
+    }
+
+    /**
+     * @return {@link TrafficRecorder#DIRECTION_IN} or {@link TrafficRecorder#DIRECTION_OUT}
+     */
+    public int getDirection() {
+        return mDirection;
+    }
+
+    /**
+     * @return array holding the payload from offset 0, valid until the next call to {@link #next()}
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInputStream.close();
+    }
+
+    private int readByte() throws IOException {
+        int value = mInputStream.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    /**
+     * @param atRecordStart whether the end of the stream here is the regular end of the capture
+     * @return -1 at the regular end
+     */
+    private long readVarLong(boolean atRecordStart) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mInputStream.read();
+            if (b < 0) {
+                if (atRecordStart && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("varint too long");
+    }
+}
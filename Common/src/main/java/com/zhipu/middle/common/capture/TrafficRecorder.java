@@ -0,0 +1,138 @@
+package com.zhipu.middle.common.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the frames a link sends and receives to a compact binary capture, to be replayed on the
+ * JVM with {@link TrafficReplayer}. Hook it into a link with
+ * {@code ConnectHelper.setTrafficRecorder} or {@code BleConnectHelper.setTrafficRecorder}.
+ * <p>
+ * A capture starts with {@link #MAGIC} and {@link #VERSION}. Every record is a varint of the
+ * microseconds since the previous record, a byte of {@code link << 1 | direction}, a varint
+ * payload length and the payload: a frame without its length prefix for RFCOMM, a characteristic
+ * value for BLE.
+ * <p>
+ * Records go through a buffer, so recording on the loop and reader threads rarely touches the
+ * file. The first I/O error stops the recording rather than the link.
+ */
+public class TrafficRecorder implements Closeable {
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+    public static final int LINK_RFCOMM = 0;
+    public static final int LINK_BLE = 1;
+
+    static final byte[] MAGIC = {'W', 'M', 'C', 'P'};
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream mOutputStream;
+    private final byte[] mHeader = new byte[2 * 10 + 1];
+    private final long mStartNanos;
+    private long mLastMicros;
+    private long mRecordCount;
+    private long mByteCount;
+    private boolean mClosed;
+
+    public TrafficRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    public TrafficRecorder(OutputStream outputStream) throws IOException {
+        mOutputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+        mOutputStream.write(MAGIC);
+        mOutputStream.write(VERSION);
+        mStartNanos = System.nanoTime();
+    }
+
+    public void record(int link, int direction, byte[] data) {
+        this.record(link, direction, data, 0, data.length);
+    }
+
+    public synchronized void record(int link, int direction, byte[] data, int offset, int length) {
+        if (mClosed) {
+            return;
+        }
+        long micros = (System.nanoTime() - mStartNanos) / 1000;
+        int headerLength = writeVarLong(Math.max(0, micros - mLastMicros), mHeader, 0);
+        mHeader[headerLength++] = (byte) (link << 1 | direction);
+        headerLength = writeVarLong(length, mHeader, headerLength);
+        try {
+            mOutputStream.write(mHeader, 0, headerLength);
+            mOutputStream.write(data, offset, length);
+        } catch (IOException e) {
+            this.close();
+            return;
+        }
+        mLastMicros = Math.max(mLastMicros, micros);
+        mRecordCount++;
+        mByteCount += length;
+    }
+
+    /**
+     * Record an encoded frame as its payload, without the length prefix.
+     */
+    public void recordFrame(int link, int direction, byte[] frame) {
+        int offset = 0;
+        while (offset < frame.length && (frame[offset] & 0x80) != 0) {
+            offset++;
+        }
+        offset++;
+        if (offset <= frame.length) {
+            this.record(link, direction, frame, offset, frame.length - offset);
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return payload bytes recorded
+     */
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized void flush() {
+        if (mClosed) {
+            return;
+        }
+        try {
+            mOutputStream.flush();
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mOutputStream.close();
+        } catch (IOException ignored) {
+            // The records written so far stay readable, a torn last one is skipped on replay
+        }
+    }
+
+    static int writeVarLong(long value, byte[] dest, int offset) {
+        while ((value & ~0x7FL) != 0) {
+            dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+}
@@ -0,0 +1,190 @@
+package com.zhipu.middle.common.capture;
+
+import com.zhipu.middle.common.connect.FrameCodec;
+import com.zhipu.middle.common.connect.FrameDecoder;
+import com.zhipu.middle.common.connect.FrameWriter;
+import com.zhipu.middle.common.metrics.LatencyHistogram;
+
+import java.io.IOException;
+
+/**
+ * Feeds a capture through the stack on the JVM. Received RFCOMM frames are framed again and pass
+ * through a {@link FrameDecoder} into the inbound listener, e.g. a Heartbeat or an RpcEndpoint;
+ * received BLE values go to the listener as they are. Sent records are handed to the outbound
+ * writer, if there is one, e.g. to drive the same traffic into a transport.
+ * <p>
+ * At speed 1 every record is delivered at its recorded time, at 2 twice as fast, and so on;
+ * speed 0 replays as fast as possible. The {@link Report} has the throughput, how long the
+ * inbound listener took per frame and, when paced, how late frames were delivered.
+ */
+public class TrafficReplayer {
+    public static final double SPEED_ORIGINAL = 1;
+    public static final double SPEED_UNLIMITED = 0;
+
+    private final FrameDecoder.OnFrameListener mInbound;
+    private final FrameWriter mOutbound;
+    private double mSpeed = SPEED_ORIGINAL;
+    private int mLink = -1;
+
+    /**
+     * @param inbound  optional, receives the frames the recorded link received
+     * @param outbound optional, writes the frames the recorded link sent
+     */
+    public TrafficReplayer(FrameDecoder.OnFrameListener inbound, FrameWriter outbound) {
+        mInbound = inbound;
+        mOutbound = outbound;
+    }
+
+    public void setSpeed(double speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Replay only the records of one link, one of the LINK constants of {@link TrafficRecorder}.
+     * Negative replays all of them.
+     */
+    public void setLink(int link) {
+        mLink = link;
+    }
+
+    public Report replay(CaptureReader reader) throws IOException, InterruptedException {
+        final Report report = new Report();
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                deliver(report, buffer, offset, length);
+            }
+        }, FrameCodec.DEFAULT_MAX_FRAME_LENGTH, 8 * 1024);
+        byte[] frame = new byte[1024];
+        long startNanos = System.nanoTime();
+        long firstMicros = -1;
+        while (reader.next()) {
+            if (mLink >= 0 && reader.getLink() != mLink) {
+                continue;
+            }
+            if (firstMicros < 0) {
+                firstMicros = reader.getTimeMicros();
+            }
+            long dueNanos = 0;
+            if (mSpeed > 0) {
+                dueNanos = startNanos + (long) ((reader.getTimeMicros() - firstMicros) * 1000 / mSpeed);
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+            }
+            report.mCaptureMicros = reader.getTimeMicros() - firstMicros;
+            byte[] data = reader.getData();
+            int length = reader.getLength();
+            if (reader.getDirection() == TrafficRecorder.DIRECTION_OUT) {
+                report.mFramesOut++;
+                report.mBytesOut += length;
+                if (mOutbound != null) {
+                    byte[] copy = new byte[length];
+                    System.arraycopy(data, 0, copy, 0, length);
+                    mOutbound.write(copy, null);
+                }
+                continue;
+            }
+            if (mSpeed > 0) {
+                report.mLag.record(System.nanoTime() - dueNanos);
+            }
+            if (reader.getLink() == TrafficRecorder.LINK_BLE) {
+                this.deliver(report, data, 0, length);
+            } else {
+                if (frame.length < FrameCodec.encodedLength(length)) {
+                    frame = new byte[FrameCodec.encodedLength(length) * 2];
+                }
+                int end = FrameCodec.encode(data, 0, length, frame, 0);
+                decoder.feed(frame, 0, end);
+            }
+        }
+        report.mElapsedNanos = System.nanoTime() - startNanos;
+        return report;
+    }
+
+    private void deliver(Report report, byte[] buffer, int offset, int length) {
+        report.mFramesIn++;
+        report.mBytesIn += length;
+        if (mInbound == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        mInbound.onFrame(buffer, offset, length);
+        report.mProcessing.record(System.nanoTime() - start);
+    }
+
+    public static class Report {
+        private final LatencyHistogram mProcessing = new LatencyHistogram();
+        private final LatencyHistogram mLag = new LatencyHistogram();
+        private long mFramesIn;
+        private long mFramesOut;
+        private long mBytesIn;
+        private long mBytesOut;
+        private long mElapsedNanos;
+        private long mCaptureMicros;
+
+        public long getFramesIn() {
+            return mFramesIn;
+        }
+
+        public long getFramesOut() {
+            return mFramesOut;
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * @return time from the first to the last replayed record as recorded
+         */
+        public long getCaptureMicros() {
+            return mCaptureMicros;
+        }
+
+        /**
+         * @return received and sent payload bytes per second of replay
+         */
+        public double getBytesPerSecond() {
+            return mElapsedNanos == 0 ? 0 : (mBytesIn + mBytesOut) * 1e9 / mElapsedNanos;
+        }
+
+        public double getFramesPerSecond() {
+            return mElapsedNanos == 0 ? 0 : (mFramesIn + mFramesOut) * 1e9 / mElapsedNanos;
+        }
+
+        /**
+         * @return time the inbound listener took per received frame
+         */
+        public LatencyHistogram getProcessingLatency() {
+            return mProcessing;
+        }
+
+        /**
+         * @return how late received frames were delivered against the recorded timing, empty
+         * when replaying as fast as possible
+         */
+        public LatencyHistogram getLag() {
+            return mLag;
+        }
+
+        @Override
+        public String toString() {
+            return "in " + mFramesIn + " frames/" + mBytesIn + "B, out " + mFramesOut + " frames/"
+                    + mBytesOut + "B in " + mElapsedNanos / 1000000 + "ms (recorded "
+                    + mCaptureMicros / 1000 + "ms), " + (long) this.getBytesPerSecond() + " B/s, "
+                    + (long) this.getFramesPerSecond() + " frames/s, processing p99 "
+                    + mProcessing.getPercentileNanos(0.99) / 1000 + "us, lag p99 "
+                    + mLag.getPercentileNanos(0.99) / 1000 + "us";
+        }
+    }
+}
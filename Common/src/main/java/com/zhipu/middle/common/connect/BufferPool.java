@@ -0,0 +1,68 @@
+package com.zhipu.middle.common.connect;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fixed set of equally sized receive buffers carved out of a single slab array. Buffers are
+ * handed out with {@link #acquire()} and come back through {@link PooledBuffer#release()}, so a
+ * warmed up receive path does not allocate per message.
+ * <p>
+ * When every buffer is borrowed {@link #acquire()} blocks, which throttles the reader to the
+ * speed of the slowest consumer instead of growing the heap.
+ */
+public class BufferPool {
+    public static final int DEFAULT_BUFFER_COUNT = 16;
+    public static final int DEFAULT_BUFFER_SIZE = 2 * 1024;
+
+    private final int mBufferSize;
+    private final BlockingQueue<PooledBuffer> mFreeBuffers;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BufferPool(int bufferCount, int bufferSize) {
+        if (bufferCount <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferCount: " + bufferCount + ", bufferSize: " + bufferSize);
+        }
+        mBufferSize = bufferSize;
+        mFreeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        byte[] slab = new byte[bufferCount * bufferSize];
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers.add(new PooledBuffer(this, slab, i * bufferSize, bufferSize));
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public int getAvailableCount() {
+        return mFreeBuffers.size();
+    }
+
+    /**
+     * Borrow a buffer, waiting for one to be released if the pool is exhausted.
+     */
+    public PooledBuffer acquire() throws InterruptedException {
+        PooledBuffer buffer = mFreeBuffers.take();
+        buffer.onAcquire();
+        return buffer;
+    }
+
+    /**
+     * @return a buffer, or null if every buffer is currently borrowed
+     */
+    public PooledBuffer tryAcquire() {
+        PooledBuffer buffer = mFreeBuffers.poll();
+        if (buffer != null) {
+            buffer.onAcquire();
+        }
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        mFreeBuffers.offer(buffer);
+    }
+}
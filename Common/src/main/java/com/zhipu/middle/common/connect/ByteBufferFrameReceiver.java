@@ -0,0 +1,32 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnReceiveByteBufferListener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receive path that hands each decoded frame to an {@link OnReceiveByteBufferListener} as a
+ * read-only view of the decoder's own buffer. Nothing is copied, and the view is reused for every
+ * frame until the decoder grows its buffer, so parsers read straight out of the receive buffer.
+ * The view is only valid during the callback.
+ */
+public class ByteBufferFrameReceiver implements FrameDecoder.OnFrameListener {
+    private final OnReceiveByteBufferListener mOnReceiveByteBufferListener;
+    private byte[] mBuffer;
+    private ByteBuffer mView;
+
+    public ByteBufferFrameReceiver(OnReceiveByteBufferListener onReceiveByteBufferListener) {
+        mOnReceiveByteBufferListener = onReceiveByteBufferListener;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (buffer != mBuffer) {
+            mBuffer = buffer;
+            mView = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+        }
+        mView.limit(offset + length);
+        mView.position(offset);
+        mOnReceiveByteBufferListener.onReceiveData(mView);
+    }
+}
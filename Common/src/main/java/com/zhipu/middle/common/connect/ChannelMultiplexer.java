@@ -0,0 +1,372 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnChannelListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs numbered logical channels over one {@link FrameWriter}. Messages are cut into fragments
+ * of at most {@code fragmentSize} bytes and only a couple of fragments are handed to the writer
+ * at a time, so when a small message is queued on a high priority channel it goes out after at
+ * most those fragments instead of after the whole bulk transfer in front of it.
+ * <p>
+ * Each fragment is one frame: a varint of {@code channelId << 1 | more} followed by the fragment
+ * bytes, {@code more} is set on every fragment but the last of a message. Incoming frames are
+ * fed to {@link #onFrame(byte[], int, int)}, reassembled per channel and delivered to that
+ * channel's listener. A message growing past {@code maxMessageLength} is dropped.
+ * <p>
+ * A fragment the writer refuses is offered again when an earlier one completes or fails, or by a
+ * retry timer with a growing delay if none is in flight. Call {@link #reset()} when the link is
+ * replaced, so neither end goes on with half a message of the old one.
+ */
+public class ChannelMultiplexer implements FrameDecoder.OnFrameListener {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+    public static final int DEFAULT_FRAGMENT_SIZE = 512;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+    private static final long RETRY_MILLIS = 50;
+    private static final long MAX_RETRY_MILLIS = 2000;
+
+    private final FrameWriter mFrameWriter;
+    private final int mFragmentSize;
+    private final int mMaxInFlight;
+    private final int mMaxMessageLength;
+    private final ScheduledExecutorService mScheduler;
+    private final List<Channel> mChannels = new ArrayList<>();
+    private int mNextIndex;
+    private int mInFlight;
+    private boolean mPumping;
+    private boolean mPumpAgain;
+    private long mDroppedFrames;
+    /**
+     * Writes of the current link report here, those still out when it is reset are ignored
+     */
+    private WriteCallback mWriteCallback = new WriteCallback();
+    private ScheduledFuture<?> mRetryTimer;
+    private long mRetryMillis = RETRY_MILLIS;
+
+    public ChannelMultiplexer(FrameWriter frameWriter) {
+        this(frameWriter, DEFAULT_FRAGMENT_SIZE, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public ChannelMultiplexer(FrameWriter frameWriter, int fragmentSize, int maxInFlight) {
+        this(frameWriter, fragmentSize, maxInFlight, DEFAULT_MAX_MESSAGE_LENGTH,
+                EventLoop.getDefault().getScheduler());
+    }
+
+    /**
+     * @param maxMessageLength longest message reassembled from the peer's fragments
+     * @param scheduler        runs the retries of refused fragments
+     */
+    public ChannelMultiplexer(FrameWriter frameWriter, int fragmentSize, int maxInFlight,
+                              int maxMessageLength, ScheduledExecutorService scheduler) {
+        mFrameWriter = frameWriter;
+        mFragmentSize = fragmentSize;
+        mMaxInFlight = maxInFlight;
+        mMaxMessageLength = maxMessageLength;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Register a channel. Both ends must open the same channel ids; frames for a channel that is
+     * not open locally are dropped.
+     *
+     * @param priority higher values are sent first, channels of equal priority take turns
+     */
+    public synchronized void openChannel(int channelId, int priority, OnChannelListener listener) {
+        if (channelId < 0) {
+            throw new IllegalArgumentException("channelId: " + channelId);
+        }
+        if (this.findChannel(channelId) != null) {
+            throw new IllegalStateException("channel " + channelId + " already open");
+        }
+        mChannels.add(new Channel(channelId, priority, listener));
+    }
+
+    public synchronized void closeChannel(int channelId) {
+        Channel channel = this.findChannel(channelId);
+        if (channel != null) {
+            mChannels.remove(channel);
+        }
+    }
+
+    /**
+     * Queue a message on a channel.
+     *
+     * @return false if the channel is not open
+     */
+    public boolean send(int channelId, byte[] data) {
+        synchronized (this) {
+            Channel channel = this.findChannel(channelId);
+            if (channel == null) {
+                return false;
+            }
+            channel.outbound.add(data);
+        }
+        this.pump();
+        return true;
+    }
+
+    /**
+     * Drop the partly received messages of every channel and start partly sent ones over, call
+     * when the link is replaced. Queued messages are kept.
+     */
+    public synchronized void reset() {
+        for (Channel channel : mChannels) {
+            channel.resetInbound();
+            channel.sentOffset = 0;
+        }
+        mInFlight = 0;
+        mWriteCallback = new WriteCallback();
+        if (mRetryTimer != null) {
+            mRetryTimer.cancel(false);
+            mRetryTimer = null;
+        }
+        mRetryMillis = RETRY_MILLIS;
+    }
+
+    public synchronized int getPendingCount(int channelId) {
+        Channel channel = this.findChannel(channelId);
+        return channel == null ? 0 : channel.outbound.size();
+    }
+
+    /**
+     * @return frames for channels not open here, malformed ones, and those of messages that grew
+     * past the maximum length
+     */
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int header = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (offset >= end || shift >= 7 * FrameCodec.MAX_HEADER_LENGTH) {
+                synchronized (this) {
+                    mDroppedFrames++;
+                }
+                return;
+            }
+            b = buffer[offset++];
+            header |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        int channelId = header >>> 1;
+        boolean more = (header & 1) != 0;
+        Channel channel;
+        byte[] message = null;
+        synchronized (this) {
+            channel = this.findChannel(channelId);
+            if (channel == null) {
+                mDroppedFrames++;
+                return;
+            }
+            if (channel.discarding || channel.inbound.size() + end - offset > mMaxMessageLength) {
+                // Drop the whole message, not just its tail
+                mDroppedFrames++;
+                channel.resetInbound();
+                channel.discarding = more;
+                return;
+            }
+            channel.inbound.write(buffer, offset, end - offset);
+            if (!more) {
+                message = channel.inbound.toByteArray();
+                if (message.length > mFragmentSize) {
+                    // Do not keep the buffer of the largest message ever received
+                    channel.resetInbound();
+                } else {
+                    channel.inbound.reset();
+                }
+            }
+        }
+        if (message != null && channel.listener != null) {
+            channel.listener.onChannelData(channelId, message);
+        }
+    }
+
+    /**
+     * Hand fragments to the writer until the in-flight limit is reached or nothing is pending.
+     * Re-entrant calls, e.g. from a writer that completes synchronously, only flag another round.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (mPumping) {
+                mPumpAgain = true;
+                return;
+            }
+            mPumping = true;
+        }
+
+        while (true) {
+            byte[] fragment;
+            Channel channel;
+            WriteCallback callback;
+            synchronized (this) {
+                channel = mInFlight < mMaxInFlight ? this.nextChannel() : null;
+                if (channel == null) {
+                    if (mPumpAgain) {
+                        mPumpAgain = false;
+                        continue;
+                    }
+                    mPumping = false;
+                    return;
+                }
+                fragment = channel.nextFragment(mFragmentSize);
+                callback = mWriteCallback;
+                mInFlight++;
+            }
+
+            if (mFrameWriter.write(fragment, callback)) {
+                synchronized (this) {
+                    if (callback == mWriteCallback) {
+                        channel.advance(mFragmentSize);
+                        mRetryMillis = RETRY_MILLIS;
+                    }
+                }
+            } else {
+                synchronized (this) {
+                    // The writer is full or the link is down, retry on the next completion, or
+                    // on the timer if none is coming
+                    if (callback == mWriteCallback) {
+                        mInFlight--;
+                    }
+                    if (mInFlight == 0) {
+                        this.scheduleRetry();
+                    }
+                    mPumpAgain = false;
+                    mPumping = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void scheduleRetry() {
+        if (mRetryTimer != null) {
+            return;
+        }
+        try {
+            mRetryTimer = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ChannelMultiplexer.this) {
+                        mRetryTimer = null;
+                        mRetryMillis = Math.min(mRetryMillis * 2, MAX_RETRY_MILLIS);
+                    }
+                    pump();
+                }
+            }, mRetryMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the next send tries again
+        }
+    }
+
+    private class WriteCallback implements OnWriteListener {
+
+        @Override
+        public void onWriteComplete(int length) {
+            this.done();
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            // The fragment is lost, the link is going down and a reset starts its message over
+            this.done();
+        }
+
+        private void done() {
+            synchronized (ChannelMultiplexer.this) {
+                if (this != mWriteCallback) {
+                    return;
+                }
+                mInFlight--;
+            }
+            pump();
+        }
+    }
+
+    /**
+     * @return the highest priority channel with pending data, rotating between equal priorities
+     */
+    private Channel nextChannel() {
+        Channel best = null;
+        int size = mChannels.size();
+        for (int i = 0; i < size; i++) {
+            Channel channel = mChannels.get((mNextIndex + i) % size);
+            if (!channel.outbound.isEmpty() && (best == null || channel.priority > best.priority)) {
+                best = channel;
+            }
+        }
+        if (best != null) {
+            mNextIndex = (mChannels.indexOf(best) + 1) % size;
+        }
+        return best;
+    }
+
+    private Channel findChannel(int channelId) {
+        for (Channel channel : mChannels) {
+            if (channel.id == channelId) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    private static class Channel {
+        private final int id;
+        private final int priority;
+        private final OnChannelListener listener;
+        private final ArrayDeque<byte[]> outbound = new ArrayDeque<>();
+        private ByteArrayOutputStream inbound = new ByteArrayOutputStream();
+        private boolean discarding;
+        private int sentOffset;
+
+        Channel(int id, int priority, OnChannelListener listener) {
+            this.id = id;
+            this.priority = priority;
+            this.listener = listener;
+        }
+
+        private void resetInbound() {
+            inbound = new ByteArrayOutputStream();
+            discarding = false;
+        }
+
+        private byte[] nextFragment(int fragmentSize) {
+            byte[] message = outbound.peek();
+            int length = Math.min(fragmentSize, message.length - sentOffset);
+            boolean more = sentOffset + length < message.length;
+            int header = (id << 1) | (more ? 1 : 0);
+            byte[] fragment = new byte[FrameCodec.varIntLength(header) + length];
+            int offset = FrameCodec.writeVarInt(header, fragment, 0);
+            System.arraycopy(message, sentOffset, fragment, offset, length);
+            return fragment;
+        }
+
+        private void advance(int fragmentSize) {
+            byte[] message = outbound.peek();
+            sentOffset += Math.min(fragmentSize, message.length - sentOffset);
+            if (sentOffset >= message.length) {
+                outbound.poll();
+                sentOffset = 0;
+            }
+        }
+    }
+}
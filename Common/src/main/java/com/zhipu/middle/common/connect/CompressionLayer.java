@@ -0,0 +1,295 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnCorruptFrameListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional Deflate compression of payloads on top of a {@link FrameWriter}, negotiated per
+ * connection. {@link #start()} tells the peer whether this end accepts compressed frames;
+ * payloads are only compressed once the peer has said it does, only from {@code threshold} bytes
+ * up, and only if compressing actually made them smaller.
+ * <p>
+ * Every frame starts with a type byte: {@code 0} raw payload, {@code 1} varint original length
+ * followed by raw Deflate data, {@code 2} the peer's capabilities. Both ends of a link must use a
+ * CompressionLayer.
+ * <p>
+ * A compressed frame that does not inflate to its announced length is dropped and reported to
+ * the {@link OnCorruptFrameListener}, which decides whether the link is still to be trusted.
+ * {@link #close()} frees the native zlib memory, later payloads go out raw.
+ */
+public class CompressionLayer implements FrameWriter, FrameDecoder.OnFrameListener {
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    private static final byte TYPE_RAW = 0;
+    private static final byte TYPE_DEFLATE = 1;
+    private static final byte TYPE_HELLO = 2;
+    private static final int CAPABILITY_DEFLATE = 1;
+
+    private final FrameWriter mFrameWriter;
+    private final FrameDecoder.OnFrameListener mOnFrameListener;
+    private final boolean mEnabled;
+    private final int mThreshold;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater mInflater = new Inflater(true);
+    private byte[] mDeflateBuffer = new byte[1024];
+    private byte[] mInflateBuffer = new byte[1024];
+    private volatile boolean mPeerAcceptsDeflate;
+    private volatile OnCorruptFrameListener mOnCorruptFrameListener;
+    private boolean mClosed;
+
+    private long mCompressedMessages;
+    private long mRawMessages;
+    private long mOriginalBytes;
+    private long mCompressedBytes;
+    private long mCompressAttempts;
+    private long mCompressNanos;
+    private long mDecompressedMessages;
+    private long mDecompressNanos;
+    private long mCorruptFrames;
+
+    public CompressionLayer(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener) {
+        this(frameWriter, onFrameListener, true, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param enabled   whether this end offers to receive compressed frames and compresses its own
+     * @param threshold payloads shorter than this are always sent raw
+     */
+    public CompressionLayer(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                            boolean enabled, int threshold) {
+        mFrameWriter = frameWriter;
+        mOnFrameListener = onFrameListener;
+        mEnabled = enabled;
+        mThreshold = threshold;
+    }
+
+    /**
+     * Announce this end's capabilities, call once the link is up. The peer's hello may already
+     * have arrived, it is kept.
+     */
+    public void start() {
+        mFrameWriter.write(new byte[]{TYPE_HELLO, (byte) (mEnabled ? CAPABILITY_DEFLATE : 0)}, null);
+    }
+
+    /**
+     * Forget what the peer announced, call when the link is torn down or replaced, before
+     * {@link #start()} on the new one.
+     */
+    public void reset() {
+        mPeerAcceptsDeflate = false;
+    }
+
+    /**
+     * @param onCorruptFrameListener told about every compressed frame that had to be dropped
+     */
+    public void setOnCorruptFrameListener(OnCorruptFrameListener onCorruptFrameListener) {
+        mOnCorruptFrameListener = onCorruptFrameListener;
+    }
+
+    /**
+     * Free the compressor and decompressor, call once the link is gone for good.
+     */
+    public synchronized void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mDeflater.end();
+            mInflater.end();
+        }
+    }
+
+    public boolean isCompressionActive() {
+        return mEnabled && mPeerAcceptsDeflate;
+    }
+
+    @Override
+    public boolean write(byte[] data, OnWriteListener listener) {
+        byte[] frame = null;
+        if (this.isCompressionActive() && data.length >= mThreshold) {
+            frame = this.compress(data);
+        }
+        if (frame == null) {
+            synchronized (this) {
+                mRawMessages++;
+            }
+            frame = new byte[data.length + 1];
+            frame[0] = TYPE_RAW;
+            System.arraycopy(data, 0, frame, 1, data.length);
+        }
+        return mFrameWriter.write(frame, listener);
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        switch (buffer[offset]) {
+            case TYPE_RAW:
+                mOnFrameListener.onFrame(buffer, offset + 1, length - 1);
+                break;
+            case TYPE_DEFLATE:
+                this.decompress(buffer, offset + 1, length - 1);
+                break;
+            case TYPE_HELLO:
+                mPeerAcceptsDeflate = length > 1 && (buffer[offset + 1] & CAPABILITY_DEFLATE) != 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    public synchronized long getCompressedMessages() {
+        return mCompressedMessages;
+    }
+
+    public synchronized long getRawMessages() {
+        return mRawMessages;
+    }
+
+    /**
+     * @return compressed size divided by original size over every compressed message, 1 if none
+     */
+    public synchronized double getCompressionRatio() {
+        return mOriginalBytes == 0 ? 1 : (double) mCompressedBytes / mOriginalBytes;
+    }
+
+    /**
+     * @return average time spent compressing a payload, including attempts that did not pay off
+     */
+    public synchronized long getAverageCompressNanos() {
+        return mCompressAttempts == 0 ? 0 : mCompressNanos / mCompressAttempts;
+    }
+
+    public synchronized long getAverageDecompressNanos() {
+        return mDecompressedMessages == 0 ? 0 : mDecompressNanos / mDecompressedMessages;
+    }
+
+    /**
+     * @return compressed frames dropped because they could not be inflated
+     */
+    public synchronized long getCorruptFrames() {
+        return mCorruptFrames;
+    }
+
+    /**
+     * @return the frame to send, or null if compression did not make the payload smaller
+     */
+    private synchronized byte[] compress(byte[] data) {
+        if (mClosed) {
+            return null;
+        }
+        long start = System.nanoTime();
+        int headerLength = 1 + FrameCodec.varIntLength(data.length);
+        mDeflater.reset();
+        mDeflater.setInput(data);
+        mDeflater.finish();
+        int count = 0;
+        while (!mDeflater.finished()) {
+            if (count == mDeflateBuffer.length) {
+                if (headerLength + count >= data.length + 1) {
+                    break;
+                }
+                byte[] buffer = new byte[mDeflateBuffer.length * 2];
+                System.arraycopy(mDeflateBuffer, 0, buffer, 0, count);
+                mDeflateBuffer = buffer;
+            }
+            count += mDeflater.deflate(mDeflateBuffer, count, mDeflateBuffer.length - count);
+        }
+        boolean smaller = mDeflater.finished() && headerLength + count < data.length + 1;
+        mCompressAttempts++;
+        mCompressNanos += System.nanoTime() - start;
+        if (!smaller) {
+            return null;
+        }
+
+        byte[] frame = new byte[headerLength + count];
+        frame[0] = TYPE_DEFLATE;
+        FrameCodec.writeVarInt(data.length, frame, 1);
+        System.arraycopy(mDeflateBuffer, 0, frame, headerLength, count);
+        mCompressedMessages++;
+        mOriginalBytes += data.length;
+        mCompressedBytes += frame.length;
+        return frame;
+    }
+
+    private void decompress(byte[] buffer, int offset, int length) {
+        byte[] output;
+        int originalLength;
+        String corruption = null;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            long start = System.nanoTime();
+            int end = offset + length;
+            originalLength = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (offset >= end || shift >= 7 * FrameCodec.MAX_HEADER_LENGTH) {
+                    originalLength = -1;
+                    break;
+                }
+                b = buffer[offset++];
+                originalLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (originalLength < 0 || originalLength > FrameCodec.DEFAULT_MAX_FRAME_LENGTH) {
+                corruption = "bad original length: " + originalLength;
+            } else {
+                corruption = this.inflate(buffer, offset, end - offset, originalLength);
+            }
+            if (corruption != null) {
+                mCorruptFrames++;
+                output = null;
+            } else {
+                mDecompressedMessages++;
+                mDecompressNanos += System.nanoTime() - start;
+                output = mInflateBuffer;
+            }
+        }
+        if (corruption != null) {
+            OnCorruptFrameListener listener = mOnCorruptFrameListener;
+            if (listener != null) {
+                listener.onCorruptFrame(corruption);
+            }
+            return;
+        }
+        // Delivered outside the lock; the buffer is only reused by the reader thread itself
+        mOnFrameListener.onFrame(output, 0, originalLength);
+    }
+
+    /**
+     * Inflate into the start of mInflateBuffer.
+     *
+     * @return why the data is corrupt, null if it inflated to exactly originalLength bytes
+     */
+    private String inflate(byte[] buffer, int offset, int length, int originalLength) {
+        if (mInflateBuffer.length < originalLength) {
+            mInflateBuffer = new byte[Math.max(originalLength, mInflateBuffer.length * 2)];
+        }
+        mInflater.reset();
+        mInflater.setInput(buffer, offset, length);
+        try {
+            int count = 0;
+            while (count < originalLength) {
+                int inflated = mInflater.inflate(mInflateBuffer, count, originalLength - count);
+                if (inflated == 0 && (mInflater.finished() || mInflater.needsInput())) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (count != originalLength) {
+                return "inflated " + count + " of " + originalLength + " bytes";
+            }
+        } catch (DataFormatException e) {
+            return e.toString();
+        }
+        return null;
+    }
+}
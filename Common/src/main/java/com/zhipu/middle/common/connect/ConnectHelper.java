@@ -11,168 +11,747 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.zhipu.middle.common.callback.OnConnectListener;
+import com.zhipu.middle.common.callback.OnHeartbeatListener;
+import com.zhipu.middle.common.callback.OnReceiveBufferListener;
+import com.zhipu.middle.common.callback.OnReceiveByteBufferListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.capture.TrafficRecorder;
+import com.zhipu.middle.common.metrics.Counter;
+import com.zhipu.middle.common.metrics.Gauge;
+import com.zhipu.middle.common.metrics.LatencyHistogram;
+import com.zhipu.middle.common.metrics.MetricGroup;
+import com.zhipu.middle.common.metrics.MetricsRegistry;
+import com.zhipu.middle.common.transport.RfcommTransport;
+import com.zhipu.middle.common.transport.Transport;
+import com.zhipu.middle.common.transport.Transports;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Random;
 import java.util.UUID;
 
-public class ConnectHelper {
+/**
+ * One RFCOMM link to one peer, as server and client at once. Accept, connect, read and write block
+ * and run on the blocking pool of an {@link EventLoop}, everything else, state transitions,
+ * batching, heartbeat and reconnect timers, on its loop thread. Several helpers can share one loop.
+ */
+public class ConnectHelper implements FrameWriter {
     private static final String TAG = "BluetoothHelper";
     private static final int MSG_ON_CONNECT = 1;
     private static final int MSG_ON_DISCONNECT = 2;
 
-    private static final String NAME_SECURE = "BluetoothConnectSecure";
-    private static final String NAME_INSECURE = "BluetoothConnectInsecure";
+    static final String NAME_SECURE = "BluetoothConnectSecure";
+    static final String NAME_INSECURE = "BluetoothConnectInsecure";
 
-    private static final UUID UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    private static final UUID UUID_INSECURE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    static final UUID UUID_SECURE = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    static final UUID UUID_INSECURE = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
-    private static final int STATE_NONE = 0;
-    private static final int STATE_LISTEN = 1;
-    private static final int STATE_CONNECTING = 2;
-    private static final int STATE_CONNECTED = 3;
-    private int mState = STATE_NONE;
+    private static final int STATE_NONE = ConnectionStateMachine.STATE_NONE;
+    private static final int STATE_LISTEN = ConnectionStateMachine.STATE_LISTEN;
+    private static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    private static final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
+    /**
+     * Written under the monitor, read without it by writers and the reader loop
+     */
+    private final ConnectionStateMachine<CommunicateTask> mStateMachine;
 
     private final BluetoothAdapter mBluetoothAdapter;
-    private AcceptThread mSecureAcceptThread;
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private CommunicateThread mCommunicateThread;
+    private final EventLoop mEventLoop;
+    private AcceptTask mSecureAcceptTask;
+    private AcceptTask mInsecureAcceptTask;
+    private ConnectTask mConnectTask;
+    private CommunicateTask mCommunicateTask;
 
     private UiHandler mUiHandler;
     private OnConnectListener mOnConnectListener;
+    private volatile OnReceiveBufferListener mOnReceiveBufferListener;
+    private volatile OnReceiveByteBufferListener mOnReceiveByteBufferListener;
+    private BufferPool mReceiveBufferPool;
     private BluetoothDevice mRemoteDevice;
     private String mDisconnectReason;
 
+    private long mBatchDelayMillis;
+    private int mBatchBytes;
+    private long mHeartbeatIntervalMillis;
+    private int mHeartbeatMaxMissed;
+
+    private ReconnectPolicy mReconnectPolicy;
+    private Reconnector<BluetoothSocket> mReconnector;
+    private String mClientAddress;
+    private boolean mClientSecure;
+    private final ConnectRace<BluetoothSocket> mConnectRace;
+    private boolean mRacing;
+    private volatile Outbox mOutbox;
+    private volatile TrafficRecorder mTrafficRecorder;
+    /**
+     * Replays the outbox at bulk priority, so live writes go first
+     */
+    private final FrameWriter mOutboxLink = new FrameWriter() {
+        @Override
+        public boolean write(byte[] data, OnWriteListener listener) {
+            CommunicateTask communicateTask = mStateMachine.getConnection();
+            return communicateTask != null
+                    && communicateTask.writeData(data, WriteQueue.PRIORITY_BULK, listener);
+        }
+    };
+
     public ConnectHelper() {
+        this(EventLoop.getDefault());
+    }
+
+    public ConnectHelper(EventLoop eventLoop) {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mEventLoop = eventLoop;
         mUiHandler = new UiHandler(this);
+        mConnectRace = new ConnectRace<>(new RfcommRaceFactory(), eventLoop);
+        mStateMachine = new ConnectionStateMachine<>(eventLoop.getScheduler(),
+                new ConnectionStateMachine.Listener<CommunicateTask>() {
+                    @Override
+                    public void onStateChanged(int oldState, int newState, CommunicateTask connection) {
+                        Log.d(TAG, "state " + oldState + " -> " + newState);
+                        Outbox outbox = mOutbox;
+                        if (outbox == null) {
+                            return;
+                        }
+                        if (newState == STATE_CONNECTED) {
+                            outbox.attach(mOutboxLink);
+                        } else if (oldState == STATE_CONNECTED) {
+                            outbox.detach();
+                        }
+                    }
+                });
+    }
+
+    public EventLoop getEventLoop() {
+        return mEventLoop;
     }
 
     public synchronized void start() {
-        if (mState != STATE_NONE) {
+        if (mStateMachine.getState() != STATE_NONE) {
             return;
         }
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        if (mCommunicateThread != null) {
-            mCommunicateThread.cancel();
-            mCommunicateThread = null;
+        if (mCommunicateTask != null) {
+            mCommunicateTask.cancel();
+            mCommunicateTask = null;
         }
 
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "Bluetooth is not supported, not listening");
+            return;
+        }
+        if (mSecureAcceptTask == null) {
+            mSecureAcceptTask = new AcceptTask(true);
+            mEventLoop.executeBlocking(mSecureAcceptTask);
         }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
+        if (mInsecureAcceptTask == null) {
+            mInsecureAcceptTask = new AcceptTask(false);
+            mEventLoop.executeBlocking(mInsecureAcceptTask);
         }
     }
 
     public synchronized void connect(String address, boolean secure) {
+        if (!this.prepareConnect(address, secure)) {
+            return;
+        }
+
+        // Start the task to connect with the given device
+        mConnectTask = new ConnectTask(mRemoteDevice, secure);
+        mEventLoop.executeBlocking(mConnectTask);
+    }
+
+    /**
+     * Connect without guessing the socket type: the variant that won the last race to this device,
+     * secure at first, is dialed right away and the other one after a short stagger. The first
+     * to connect wins, the other is closed. Reconnects use the winner.
+     */
+    public synchronized void connect(final String address) {
+        boolean preferSecure = mConnectRace.isSecurePreferred(address, true);
+        if (!this.prepareConnect(address, preferSecure)) {
+            return;
+        }
+
+        this.enterConnecting();
+        mRacing = true;
+        mConnectRace.start(address, preferSecure, new ConnectRace.Callback<BluetoothSocket>() {
+            @Override
+            public void onConnected(BluetoothSocket socket, boolean secure, long elapsedMillis) {
+                Log.d(TAG, "connect race won by " + (secure ? "secure" : "insecure") + " after " + elapsedMillis + "ms");
+                MetricGroup metricGroup = MetricsRegistry.getDefault().getGroup(address);
+                metricGroup.counter(secure ? MetricGroup.CONNECT_SECURE_WINS : MetricGroup.CONNECT_INSECURE_WINS)
+                        .increment();
+                metricGroup.histogram(MetricGroup.CONNECT_LATENCY).record(elapsedMillis * 1000000L);
+                postRaceConnected(socket, secure);
+            }
+
+            @Override
+            public void onFailed(IOException lastError) {
+                Log.e(TAG, "connect race lost by both socket types", lastError);
+                postRaceFailed();
+            }
+        });
+    }
+
+    /**
+     * @return the socket type that won the last connect race to this device, secure if none did
+     */
+    public boolean isSecurePreferred(String address) {
+        return mConnectRace.isSecurePreferred(address, true);
+    }
+
+    /**
+     * Seed the learned socket type of a device, e.g. from preferences saved by an earlier run.
+     */
+    public void setSecurePreferred(String address, boolean secure) {
+        mConnectRace.setSecurePreferred(address, secure);
+    }
+
+    /**
+     * Tear down whatever is connecting or connected before dialing a new peer.
+     *
+     * @return false if the address is unknown
+     */
+    private boolean prepareConnect(String address, boolean secure) {
         mRemoteDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
         if (mRemoteDevice == null) {
             Log.w(TAG, "RemoteDevice not found or unspecified address. ");
-            return;
+            return false;
         }
 
         Log.d(TAG, "connect to device: " + mRemoteDevice.getName() + ", address: " + mRemoteDevice.getAddress());
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
+        // Remember the peer so a dropped link can be re-dialed
+        mClientAddress = address;
+        mClientSecure = secure;
+        if (mReconnector != null) {
+            mReconnector.cancel();
+        }
+        this.cancelRace();
+
+        // Cancel any task attempting to make a connection
+        if (mStateMachine.getState() == STATE_CONNECTING) {
+            if (mConnectTask != null) {
+                mConnectTask.cancel();
+                mConnectTask = null;
             }
         }
 
-        // Cancel any thread currently running a connection
-        if (mCommunicateThread != null) {
-            mCommunicateThread.cancel();
-            mCommunicateThread = null;
+        // Cancel any task currently running a connection
+        if (mCommunicateTask != null) {
+            mCommunicateTask.cancel();
+            mCommunicateTask = null;
+        }
+        mStateMachine.transition(STATE_CONNECTED, STATE_NONE);
+        return true;
+    }
+
+    private void enterConnecting() {
+        if (!mStateMachine.transition(STATE_LISTEN, STATE_CONNECTING)) {
+            mStateMachine.transition(STATE_NONE, STATE_CONNECTING);
         }
+    }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(mRemoteDevice, secure);
-        mConnectThread.start();
+    private void cancelRace() {
+        if (mRacing) {
+            mRacing = false;
+            mConnectRace.cancel();
+        }
     }
 
     private synchronized void connected(BluetoothSocket socket, String socketType) {
+        Transport transport;
+        try {
+            transport = new RfcommTransport(socket);
+        } catch (IOException e) {
+            Log.e(TAG, "connected socket has no streams, Socket Type:" + socketType, e);
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "close broken socket failed", e2);
+            }
+            this.connectionLost("Device connection was lost");
+            return;
+        }
+        this.connected(transport, socketType);
+    }
+
+    /**
+     * Take over a connected link and start reading and writing on it. Package-private so tests
+     * can drive the state transitions over a {@link com.zhipu.middle.common.transport.LoopbackTransport}.
+     */
+    synchronized void connected(Transport transport, String socketType) {
         Log.d(TAG, "connected, Socket Type:" + socketType);
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mReconnector != null) {
+            mReconnector.cancel();
+        }
+
+        // Cancel the task that completed the connection
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
+        this.cancelRace();
 
-        // Cancel any thread currently running a connection
-        if (mCommunicateThread != null) {
-            mCommunicateThread.cancel();
-            mCommunicateThread = null;
+        // Cancel any task currently running a connection
+        if (mCommunicateTask != null) {
+            mCommunicateTask.cancel();
+            mCommunicateTask = null;
         }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        // Cancel the accept tasks because we only want to connect to one device
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
         }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        mCommunicateThread = new CommunicateThread(socket);
-        mCommunicateThread.start();
+        // Start the task to manage the connection, it reads and writes on pooled threads
+        mCommunicateTask = new CommunicateTask(transport);
+        int state = mStateMachine.getState();
+        if (transport.getState() != Transport.STATE_OPEN) {
+            // Dropped between connect or accept and here
+            Log.w(TAG, "link closed before it was taken over, Socket Type:" + socketType);
+            this.abandon("Device connection was lost");
+            return;
+        }
+        if (!mStateMachine.transitionToConnected(state, mCommunicateTask)) {
+            Log.w(TAG, "state changed to " + mStateMachine.getState() + " while connecting");
+            this.abandon("Connection state changed while connecting");
+            return;
+        }
+        mEventLoop.executeBlocking(mCommunicateTask);
 
         mUiHandler.sendEmptyMessage(MSG_ON_CONNECT);
     }
 
+    /**
+     * Close the link that {@link #connected(Transport, String)} could not take over and report it
+     * as lost instead of connected.
+     */
+    private void abandon(String reason) {
+        mCommunicateTask.cancel();
+        mCommunicateTask = null;
+        this.connectionLost(reason);
+    }
+
     public boolean isConnected() {
-        return (mState == STATE_CONNECTED);
+        return mStateMachine.isConnected();
     }
 
     public synchronized void stop() {
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        // Detached first, so the reader of the closed link does not report it as lost
+        mStateMachine.reset();
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        if (mCommunicateThread != null) {
-            mCommunicateThread.cancel();
-            mCommunicateThread = null;
+        if (mCommunicateTask != null) {
+            mCommunicateTask.cancel();
+            mCommunicateTask = null;
         }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
         }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
         }
 
-        mState = STATE_NONE;
+        if (mReconnector != null) {
+            mReconnector.cancel();
+        }
+        this.cancelRace();
+        mClientAddress = null;
+    }
+
+    /**
+     * Re-dial the peer of the last {@link #connect(String, boolean)} whenever that connection
+     * fails or drops, following the policy. Null turns reconnecting off.
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        if (mReconnector != null) {
+            mReconnector.cancel();
+            mReconnector = null;
+        }
+        mReconnectPolicy = reconnectPolicy;
+        if (reconnectPolicy != null) {
+            // Timers on the loop, the blocking dial on the pool
+            mReconnector = new Reconnector<>(reconnectPolicy, new RfcommSocketFactory(),
+                    mReconnectCallback, mEventLoop.getScheduler(), mEventLoop.getBlockingExecutor(),
+                    new Random());
+        }
+    }
+
+    /**
+     * @return time the last successful reconnect took from link drop to connection, 0 if none
+     */
+    public synchronized long getLastReconnectMillis() {
+        return mReconnector == null ? 0 : mReconnector.getLastReconnectMillis();
+    }
+
+    public synchronized long getReconnectCount() {
+        return mReconnector == null ? 0 : mReconnector.getReconnectCount();
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (mReconnector != null && mClientAddress != null) {
+            Log.d(TAG, "schedule reconnect to " + mClientAddress);
+            mReconnector.start(mClientAddress, mClientSecure);
+        }
+    }
+
+    private final Reconnector.Callback<BluetoothSocket> mReconnectCallback = new Reconnector.Callback<BluetoothSocket>() {
+
+        @Override
+        public void onReconnected(BluetoothSocket socket, int attempts, long elapsedMillis) {
+            Log.d(TAG, "reconnected after " + attempts + " attempts, " + elapsedMillis + "ms");
+            MetricsRegistry.getDefault().getGroup(socket.getRemoteDevice().getAddress())
+                    .counter(MetricGroup.RECONNECTS).increment();
+            synchronized (ConnectHelper.this) {
+                if (isConnected()) {
+                    // The peer connected to us in the meantime
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "close redundant socket failed", e);
+                    }
+                    return;
+                }
+                connected(socket, "Reconnect");
+            }
+        }
+
+        @Override
+        public void onGiveUp(int attempts, IOException lastError) {
+            Log.w(TAG, "give up reconnecting after " + attempts + " attempts", lastError);
+        }
+    };
+
+    private class RfcommRaceFactory implements ConnectRace.SocketFactory<BluetoothSocket> {
+
+        @Override
+        public BluetoothSocket create(String address, boolean secure) throws IOException {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            return secure ? device.createRfcommSocketToServiceRecord(UUID_SECURE)
+                    : device.createInsecureRfcommSocketToServiceRecord(UUID_INSECURE);
+        }
+
+        @Override
+        public void connect(BluetoothSocket socket) throws IOException {
+            mBluetoothAdapter.cancelDiscovery();
+            socket.connect();
+        }
+    }
+
+    private class RfcommSocketFactory implements Reconnector.SocketFactory<BluetoothSocket> {
+
+        @Override
+        public BluetoothSocket connect(String address, boolean secure) throws IOException {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            BluetoothSocket socket = secure ? device.createRfcommSocketToServiceRecord(UUID_SECURE)
+                    : device.createInsecureRfcommSocketToServiceRecord(UUID_INSECURE);
+            mBluetoothAdapter.cancelDiscovery();
+            try {
+                socket.connect();
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    Log.e(TAG, "close failed socket failed", e2);
+                }
+                throw e;
+            }
+            return socket;
+        }
     }
 
     public void write(byte[] data) {
-        CommunicateThread communicateThread;
-        synchronized (this) {
-            if (!this.isConnected()) {
-                return;
+        this.write(data, null);
+    }
+
+    /**
+     * Keep what is written while not connected in a durable outbox instead of refusing it. The
+     * outbox replays it, in order and paced, over the next connection. Null turns it off, the
+     * outbox itself is closed by the caller.
+     */
+    public void setOutbox(Outbox outbox) {
+        Outbox old = mOutbox;
+        mOutbox = outbox;
+        if (old != null) {
+            old.detach();
+        }
+        if (outbox != null && this.isConnected()) {
+            outbox.attach(mOutboxLink);
+        }
+    }
+
+    public Outbox getOutbox() {
+        return mOutbox;
+    }
+
+    /**
+     * Record every frame sent and received, heartbeats included, for replay with
+     * {@link com.zhipu.middle.common.capture.TrafficReplayer}. Received frames are recorded from
+     * the next connection on. Null stops recording, the recorder itself is closed by the caller.
+     */
+    public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+        mTrafficRecorder = trafficRecorder;
+    }
+
+    /**
+     * Queue data for the peer. Never blocks on the link, the data is written from the blocking
+     * pool of the event loop. While not connected it goes to the {@link #setOutbox(Outbox) outbox} if there is one.
+     *
+     * @param listener optional, notified on the writing thread when the data is on the socket or
+     *                 the write failed, must not block
+     * @return false if not connected and without outbox, or the write queue is full
+     */
+    @Override
+    public boolean write(byte[] data, OnWriteListener listener) {
+        return this.write(data, WriteQueue.PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * Queue data in a priority class, e.g. {@link WriteQueue#PRIORITY_URGENT} for an incoming call
+     * that must not wait behind a sync payload in {@link WriteQueue#PRIORITY_BULK}.
+     *
+     * @return false if not connected and without outbox, or the class is full
+     */
+    public boolean write(byte[] data, int priority, OnWriteListener listener) {
+        // No lock: the state machine hands out the connection only while connected
+        CommunicateTask communicateTask = mStateMachine.getConnection();
+        if (communicateTask == null) {
+            Outbox outbox = mOutbox;
+            return outbox != null && outbox.write(data, listener);
+        }
+        return communicateTask.writeData(data, priority, listener);
+    }
+
+    public boolean write(ByteBuffer data, OnWriteListener listener) {
+        return this.write(data, WriteQueue.PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer, e.g. a direct buffer the caller reuses for every
+     * message. The bytes are copied straight into the outgoing frame before this returns, so the
+     * buffer may be refilled right away. On success its position is moved to its limit, on failure
+     * it is left untouched for a retry.
+     *
+     * @return false if not connected and without outbox, or the class is full
+     */
+    public boolean write(ByteBuffer data, int priority, OnWriteListener listener) {
+        // No lock: the state machine hands out the connection only while connected
+        CommunicateTask communicateTask = mStateMachine.getConnection();
+        if (communicateTask == null) {
+            Outbox outbox = mOutbox;
+            if (outbox == null) {
+                return false;
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            if (!outbox.write(bytes, listener)) {
+                return false;
             }
+            data.position(data.limit());
+            return true;
+        }
+        return communicateTask.writeData(data, priority, listener);
+    }
+
+    /**
+     * @return number of writes waiting for the link, 0 if not connected
+     */
+    public int getWriteQueueDepth() {
+        WriteQueue writeQueue = this.getWriteQueue();
+        return writeQueue == null ? 0 : writeQueue.getQueueDepth();
+    }
+
+    /**
+     * @return average enqueue-to-wire latency of the current connection
+     */
+    public long getAverageWriteLatencyNanos() {
+        WriteQueue writeQueue = this.getWriteQueue();
+        return writeQueue == null ? 0 : writeQueue.getAverageLatencyNanos();
+    }
+
+    public long getMaxWriteLatencyNanos() {
+        WriteQueue writeQueue = this.getWriteQueue();
+        return writeQueue == null ? 0 : writeQueue.getMaxLatencyNanos();
+    }
+
+    /**
+     * Opt in to batching small writes: they are held back for up to maxDelayMillis, or until
+     * maxBytes are waiting, and then go out as a single write. 0 turns batching off.
+     */
+    public synchronized void setWriteBatching(long maxDelayMillis, int maxBytes) {
+        mBatchDelayMillis = maxDelayMillis;
+        mBatchBytes = maxBytes;
+        WriteQueue writeQueue = this.getWriteQueue();
+        if (writeQueue != null) {
+            writeQueue.setBatching(maxDelayMillis, maxBytes);
+        }
+    }
+
+    /**
+     * Send writes held back for batching right away, call after a latency critical write.
+     */
+    public void flush() {
+        WriteQueue writeQueue = this.getWriteQueue();
+        if (writeQueue != null) {
+            writeQueue.flush();
+        }
+    }
 
-            communicateThread = mCommunicateThread;
+    /**
+     * Ping the peer every intervalMillis and drop the connection after maxMissed intervals without
+     * hearing from it. Takes effect from the next connection, and only pings if the peer enabled
+     * it too, see {@link FramingNegotiator}. 0 turns the heartbeat off.
+     */
+    public synchronized void setHeartbeat(long intervalMillis, int maxMissed) {
+        mHeartbeatIntervalMillis = intervalMillis;
+        mHeartbeatMaxMissed = maxMissed;
+    }
+
+    /**
+     * @return round trip times of the current connection's heartbeat, null without heartbeat
+     */
+    public synchronized LatencyHistogram getRttHistogram() {
+        if (mCommunicateTask == null || mCommunicateTask.mHeartbeat == null) {
+            return null;
         }
-        communicateThread.write(data);
+        return mCommunicateTask.mHeartbeat.getRttHistogram();
+    }
+
+    /**
+     * @return traffic, latency and reconnect metrics of the current peer in
+     * {@link MetricsRegistry#getDefault()}, null if not connected
+     */
+    public synchronized MetricGroup getMetricGroup() {
+        return mCommunicateTask == null ? null : mCommunicateTask.mMetricGroup;
+    }
+
+    private synchronized WriteQueue getWriteQueue() {
+        return mCommunicateTask == null ? null : mCommunicateTask.mWriteQueue;
+    }
+
+    /**
+     * Hand an accepted socket to the loop, which decides whether to take it.
+     */
+    private void postAccepted(final BluetoothSocket socket, final String socketType) {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectHelper.this) {
+                    switch (mStateMachine.getState()) {
+                        case STATE_LISTEN:
+                        case STATE_CONNECTING:
+                            // Situation normal. Start the connected task.
+                            connected(socket, socketType);
+                            break;
+                        case STATE_NONE:
+                        case STATE_CONNECTED:
+                            // Either not ready or already connected. Terminate new socket.
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "could not close unwanted socket", e);
+                            }
+                            break;
+                    }
+                }
+            }
+        });
+    }
+
+    private void postConnected(final BluetoothSocket socket, final String socketType) {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connected(socket, socketType);
+            }
+        });
+    }
+
+    private void postRaceConnected(final BluetoothSocket socket, final boolean secure) {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectHelper.this) {
+                    if (!mRacing || isConnected()) {
+                        // Cancelled, or the peer connected to us in the meantime
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "close redundant socket failed", e);
+                        }
+                        return;
+                    }
+                    mRacing = false;
+                    mClientSecure = secure;
+                    connected(socket, secure ? "Secure" : "Insecure");
+                }
+            }
+        });
+    }
+
+    private void postRaceFailed() {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectHelper.this) {
+                    if (!mRacing) {
+                        return;
+                    }
+                    mRacing = false;
+                    connectionFailed();
+                }
+            }
+        });
+    }
+
+    private void postConnectionFailed(final ConnectTask connectTask) {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectHelper.this) {
+                    if (mConnectTask != connectTask) {
+                        // Cancelled on purpose, not a failure
+                        return;
+                    }
+                    connectionFailed();
+                }
+            }
+        });
+    }
+
+    private void postConnectionLost(final CommunicateTask communicateTask, final String reason) {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectHelper.this) {
+                    if (mCommunicateTask != communicateTask) {
+                        // Closed on purpose, not a lost connection
+                        return;
+                    }
+                    communicateTask.mMetricGroup.counter(MetricGroup.DISCONNECTS).increment();
+                    connectionLost(reason);
+                }
+            }
+        });
     }
 
     /**
@@ -183,32 +762,34 @@ public class ConnectHelper {
         mDisconnectReason = "Unable to connect device";
         mUiHandler.sendEmptyMessage(MSG_ON_DISCONNECT);
 
-        mState = STATE_NONE;
+        mStateMachine.reset();
 
         //Start the service over to restart listening mode
         this.start();
+        this.scheduleReconnect();
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
+    private void connectionLost(String reason) {
         // Send a failure message back to the Activity
-        mDisconnectReason = "Device connection was lost";
+        mDisconnectReason = reason;
         mUiHandler.sendEmptyMessage(MSG_ON_DISCONNECT);
 
-        mState = STATE_NONE;
+        mStateMachine.reset();
 
         //Start the service over to restart listening mode
         this.start();
+        this.scheduleReconnect();
     }
 
-    private class AcceptThread extends Thread {
-        private final String CLASS_NAME = AcceptThread.class.getSimpleName();
+    private class AcceptTask implements Runnable {
+        private final String CLASS_NAME = AcceptTask.class.getSimpleName();
         private BluetoothServerSocket mBluetoothServerSocket;
         private String mSocketType;
 
-        AcceptThread(boolean secure) {
+        AcceptTask(boolean secure) {
             mSocketType = secure ? "Secure" : "Insecure";
             try {
                 if (secure) {
@@ -221,13 +802,12 @@ public class ConnectHelper {
             } catch (IOException e) {
                 Log.e(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", listen failed", e);
             }
-            mState = STATE_LISTEN;
+            mStateMachine.transition(STATE_NONE, STATE_LISTEN);
         }
 
         @Override
         public void run() {
             Log.d(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", accept begin");
-            setName(CLASS_NAME + mSocketType);
 
             BluetoothSocket bluetoothSocket;
 
@@ -247,25 +827,7 @@ public class ConnectHelper {
                 }
 
                 // If a connection was accepted
-                synchronized (ConnectHelper.this) {
-                    switch (mState) {
-                        case STATE_LISTEN:
-                        case STATE_CONNECTING:
-                            // Situation normal. Start the connected thread.
-                            connected(bluetoothSocket, mSocketType);
-                            break;
-                        case STATE_NONE:
-                        case STATE_CONNECTED:
-                            // Either not ready or already connected. Terminate new socket.
-                            try {
-                                bluetoothSocket.close();
-                            } catch (IOException e) {
-                                Log.e(TAG, CLASS_NAME + " could not close unwanted socket", e);
-                            }
-                            break;
-                    }
-                }
-
+                postAccepted(bluetoothSocket, mSocketType);
             }
             Log.d(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", accept end");
         }
@@ -279,12 +841,12 @@ public class ConnectHelper {
         }
     }
 
-    private class ConnectThread extends Thread {
-        private final String CLASS_NAME = ConnectThread.class.getSimpleName();
+    private class ConnectTask implements Runnable {
+        private final String CLASS_NAME = ConnectTask.class.getSimpleName();
         private BluetoothSocket mBluetoothSocket;
         private String mSocketType;
 
-        ConnectThread(BluetoothDevice device, boolean secure) {
+        ConnectTask(BluetoothDevice device, boolean secure) {
             mSocketType = secure ? "Secure" : "Insecure";
             try {
                 if (secure) {
@@ -292,7 +854,7 @@ public class ConnectHelper {
                 } else {
                     mBluetoothSocket = device.createInsecureRfcommSocketToServiceRecord(UUID_INSECURE);
                 }
-                mState = STATE_CONNECTING;
+                enterConnecting();
             } catch (Exception e) {
                 Log.e(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", create failed", e);
             }
@@ -301,7 +863,6 @@ public class ConnectHelper {
         @Override
         public void run() {
             Log.d(TAG, CLASS_NAME + " SocketType:" + mSocketType + ", connect begin");
-            setName(CLASS_NAME + mSocketType);
 
             // Always cancel discovery because it will slow down a connection
             mBluetoothAdapter.cancelDiscovery();
@@ -318,17 +879,17 @@ public class ConnectHelper {
                     e2.printStackTrace();
                 }
 
-                connectionFailed();
+                postConnectionFailed(this);
                 return;
             }
 
-            // Reset the ConnectThread because we're done
+            // Reset the ConnectTask because we're done
             synchronized (ConnectHelper.this) {
-                mConnectThread = null;
+                mConnectTask = null;
             }
 
-            // Start the connected thread
-            connected(mBluetoothSocket, mSocketType);
+            // Start the connected task
+            postConnected(mBluetoothSocket, mSocketType);
             Log.d(TAG, CLASS_NAME + " SocketType:" + mSocketType + ", connect end");
         }
 
@@ -341,55 +902,196 @@ public class ConnectHelper {
         }
     }
 
-    private class CommunicateThread extends Thread {
-        private final String CLASS_NAME = CommunicateThread.class.getSimpleName();
-        private BluetoothSocket mBluetoothSocket;
-        private InputStream mInputStream;
-        private OutputStream mOutputStream;
-
-        CommunicateThread(BluetoothSocket socket) {
-            mBluetoothSocket = socket;
-            try {
-                mInputStream = socket.getInputStream();
-                mOutputStream = socket.getOutputStream();
-                mState = STATE_CONNECTED;
-            } catch (IOException e) {
-                Log.e(TAG, CLASS_NAME + " BluetoothSocket created failed", e);
+    private class CommunicateTask implements Runnable, FrameWriter {
+        private final String CLASS_NAME = CommunicateTask.class.getSimpleName();
+        private final Transport mTransport;
+        private final InputStream mInputStream;
+        private final WriteQueue mWriteQueue;
+        private FrameDecoder.OnFrameListener mOnFrameListener;
+        private Heartbeat mHeartbeat;
+        private final MetricGroup mMetricGroup;
+        private final Counter mBytesIn;
+        private final Counter mBytesOut;
+        private final Counter mMessagesIn;
+        private final Counter mMessagesOut;
+        private final Counter mWritesDropped;
+
+        CommunicateTask(Transport transport) {
+            mTransport = transport;
+            mMetricGroup = MetricsRegistry.getDefault().getGroup(transport.getAddress());
+            mBytesIn = mMetricGroup.counter(MetricGroup.BYTES_IN);
+            mBytesOut = mMetricGroup.counter(MetricGroup.BYTES_OUT);
+            mMessagesIn = mMetricGroup.counter(MetricGroup.MESSAGES_IN);
+            mMessagesOut = mMetricGroup.counter(MetricGroup.MESSAGES_OUT);
+            mWritesDropped = mMetricGroup.counter(MetricGroup.WRITES_DROPPED);
+            mInputStream = Transports.inputStream(transport);
+            mWriteQueue = new WriteQueue(Transports.outputStream(transport), mEventLoop);
+            if (mBatchDelayMillis > 0) {
+                mWriteQueue.setBatching(mBatchDelayMillis, mBatchBytes);
+            }
+            mWriteQueue.setLatencyHistogram(mMetricGroup.histogram(MetricGroup.WRITE_LATENCY));
+            final WriteQueue writeQueue = mWriteQueue;
+            mMetricGroup.setGauge(MetricGroup.QUEUE_DEPTH, new Gauge() {
+                @Override
+                public long getValue() {
+                    return writeQueue.getQueueDepth();
+                }
+            });
+
+            OnReceiveByteBufferListener onReceiveByteBufferListener = mOnReceiveByteBufferListener;
+            OnReceiveBufferListener onReceiveBufferListener = mOnReceiveBufferListener;
+            if (onReceiveByteBufferListener != null) {
+                // Zero copy mode: the listener reads the frame in place in the decoder's buffer
+                final ByteBufferFrameReceiver byteBufferFrameReceiver =
+                        new ByteBufferFrameReceiver(onReceiveByteBufferListener);
+                mOnFrameListener = new FrameDecoder.OnFrameListener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        mMessagesIn.increment();
+                        byteBufferFrameReceiver.onFrame(buffer, offset, length);
+                    }
+                };
+            } else if (onReceiveBufferListener != null) {
+                // Pooled mode: no per message allocation and no logging on the hot path
+                final PooledFrameReceiver pooledFrameReceiver =
+                        new PooledFrameReceiver(getReceiveBufferPool(), onReceiveBufferListener);
+                mOnFrameListener = new FrameDecoder.OnFrameListener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        mMessagesIn.increment();
+                        pooledFrameReceiver.onFrame(buffer, offset, length);
+                    }
+                };
+            } else {
+                mOnFrameListener = new FrameDecoder.OnFrameListener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        mMessagesIn.increment();
+                        byte[] data = new byte[length];
+                        System.arraycopy(buffer, offset, data, 0, length);
+                        onReceiveDataResponse(data);
+                    }
+                };
+            }
+            if (mHeartbeatIntervalMillis > 0) {
+                mHeartbeat = new Heartbeat(this, mOnFrameListener, mEventLoop.getScheduler(),
+                        mHeartbeatIntervalMillis, mHeartbeatMaxMissed, new OnHeartbeatListener() {
+                    @Override
+                    public void onPeerDead(int missedPings) {
+                        Log.w(TAG, CLASS_NAME + " no heartbeat reply after " + missedPings + " pings");
+                        postConnectionLost(CommunicateTask.this, "Device stopped answering heartbeats");
+                    }
+                });
+                mMetricGroup.setHistogram(MetricGroup.RTT, mHeartbeat.getRttHistogram());
+            }
+            // Starts the heartbeat once the peer turns out to have one too
+            mOnFrameListener = new FramingNegotiator(mHeartbeat, mOnFrameListener);
+            if (mTrafficRecorder != null) {
+                final FrameDecoder.OnFrameListener onFrameListener = mOnFrameListener;
+                mOnFrameListener = new FrameDecoder.OnFrameListener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        TrafficRecorder trafficRecorder = mTrafficRecorder;
+                        if (trafficRecorder != null) {
+                            trafficRecorder.record(TrafficRecorder.LINK_RFCOMM,
+                                    TrafficRecorder.DIRECTION_IN, buffer, offset, length);
+                        }
+                        onFrameListener.onFrame(buffer, offset, length);
+                    }
+                };
+            }
+            if (mHeartbeat != null) {
+                // Urgent and queued before the link is handed out, so nothing gets ahead of it.
+                // Without a heartbeat nothing is announced, peers that do not negotiate never
+                // see a hello.
+                this.write(FramingNegotiator.helloFrame(true), WriteQueue.PRIORITY_URGENT, null);
             }
         }
 
         @Override
         public void run() {
-            byte[] buffer = new byte[2 * 1024];
-            byte[] data;
-            while (isConnected()) {
+            FrameDecoder frameDecoder = new FrameDecoder(mOnFrameListener);
+            mWriteQueue.start();
+            while (mStateMachine.getConnection() == this) {
                 try {
-                    data = new byte[mInputStream.read(buffer)];
-                    Log.d(TAG, "read data len: " + data.length);
-                    System.arraycopy(buffer, 0, data, 0, data.length);
-                    onReceiveDataResponse(data);
+                    int count = frameDecoder.readFrom(mInputStream);
+                    if (count < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    mBytesIn.add(count);
                 } catch (Exception e) {
+                    if (mStateMachine.getConnection() != this) {
+                        // Closed on purpose
+                        break;
+                    }
                     Log.e(TAG, CLASS_NAME + " read data failed", e);
-                    connectionLost();
+                    postConnectionLost(this, "Device connection was lost");
                     break;
                 }
             }
         }
 
-        private void write(byte[] data) {
-            try {
-                mOutputStream.write(data);
-            } catch (IOException e) {
-                Log.e(TAG, CLASS_NAME + " write data failed", e);
+        /**
+         * Write a payload from the app, behind the heartbeat's type byte if there is one.
+         */
+        private boolean writeData(byte[] data, int priority, OnWriteListener listener) {
+            byte[] frame = mHeartbeat != null ? Heartbeat.dataFrame(data) : data;
+            boolean queued = this.write(frame, priority, listener);
+            if (queued) {
+                mMessagesOut.increment();
+                mBytesOut.add(data.length);
+            } else {
+                mWritesDropped.increment();
+            }
+            return queued;
+        }
+
+        /**
+         * Encode the buffer's remaining bytes into the frame in one copy, without an intermediate
+         * array.
+         */
+        private boolean writeData(ByteBuffer data, int priority, OnWriteListener listener) {
+            int length = data.remaining();
+            byte[] frame = mHeartbeat != null ? Heartbeat.encodeDataFrame(data) : FrameCodec.encode(data);
+            boolean queued = this.enqueue(frame, priority, listener);
+            if (queued) {
+                data.position(data.limit());
+                mMessagesOut.increment();
+                mBytesOut.add(length);
+            } else {
+                mWritesDropped.increment();
+            }
+            return queued;
+        }
+
+        @Override
+        public boolean write(byte[] data, OnWriteListener listener) {
+            return this.write(data, WriteQueue.PRIORITY_NORMAL, listener);
+        }
+
+        private boolean write(byte[] data, int priority, OnWriteListener listener) {
+            return this.enqueue(FrameCodec.encode(data), priority, listener);
+        }
+
+        private boolean enqueue(byte[] frame, int priority, OnWriteListener listener) {
+            boolean queued = mWriteQueue.enqueue(frame, priority, listener);
+            if (!queued) {
+                Log.w(TAG, CLASS_NAME + " write queue full, depth: " + mWriteQueue.getQueueDepth());
+                return false;
             }
+            TrafficRecorder trafficRecorder = mTrafficRecorder;
+            if (trafficRecorder != null) {
+                trafficRecorder.recordFrame(TrafficRecorder.LINK_RFCOMM, TrafficRecorder.DIRECTION_OUT, frame);
+            }
+            return true;
         }
 
         private void cancel() {
-            try {
-                mBluetoothSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, CLASS_NAME + " close BluetoothSocket failed", e);
+            if (mHeartbeat != null) {
+                mHeartbeat.stop();
             }
+            mWriteQueue.close();
+            mTransport.close();
         }
     }
 
@@ -415,6 +1117,39 @@ public class ConnectHelper {
         mOnConnectListener = onConnectListener;
     }
 
+    /**
+     * Switch the receive path to pooled buffers: frames are delivered to this listener instead of
+     * {@link OnConnectListener#onReceiveData(byte[])}. Takes effect from the next connection.
+     */
+    public void setOnReceiveBufferListener(OnReceiveBufferListener onReceiveBufferListener) {
+        mOnReceiveBufferListener = onReceiveBufferListener;
+    }
+
+    /**
+     * Switch the receive path to zero copy: frames are delivered to this listener as read-only
+     * views of the read buffer, valid only during the callback. Wins over
+     * {@link #setOnReceiveBufferListener(OnReceiveBufferListener)}. Takes effect from the next
+     * connection.
+     */
+    public void setOnReceiveByteBufferListener(OnReceiveByteBufferListener onReceiveByteBufferListener) {
+        mOnReceiveByteBufferListener = onReceiveByteBufferListener;
+    }
+
+    /**
+     * Replace the default receive pool, e.g. with more or larger buffers for bulk sync traffic.
+     * Takes effect from the next connection.
+     */
+    public synchronized void setReceiveBufferPool(BufferPool bufferPool) {
+        mReceiveBufferPool = bufferPool;
+    }
+
+    private synchronized BufferPool getReceiveBufferPool() {
+        if (mReceiveBufferPool == null) {
+            mReceiveBufferPool = new BufferPool();
+        }
+        return mReceiveBufferPool;
+    }
+
     private static class UiHandler extends Handler {
         private WeakReference<ConnectHelper> mWeakReference;
 
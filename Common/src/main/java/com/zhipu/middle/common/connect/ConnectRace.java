@@ -0,0 +1,305 @@
+package com.zhipu.middle.common.connect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dials a peer over the secure and the insecure RFCOMM channel at once instead of betting on
+ * one of them. The preferred variant starts right away, the other one after a short stagger, or
+ * as soon as the preferred one fails. The first connection wins and the loser is closed, which
+ * aborts its blocking connect.
+ * <p>
+ * The winner is remembered per address and becomes the preferred variant of the next race, so
+ * a device that only answers one of them costs the stagger at most once.
+ *
+ * @param <T> the socket type
+ */
+public class ConnectRace<T extends Closeable> {
+    public static final long DEFAULT_STAGGER_MILLIS = 1500;
+
+    public interface SocketFactory<T> {
+        /**
+         * Create an unconnected socket, called on the dial executor.
+         */
+        T create(String address, boolean secure) throws IOException;
+
+        /**
+         * Blocking connect, called on the dial executor. Closing the socket from another thread
+         * must make it fail.
+         */
+        void connect(T socket) throws IOException;
+    }
+
+    public interface Callback<T> {
+        void onConnected(T socket, boolean secure, long elapsedMillis);
+
+        void onFailed(IOException lastError);
+    }
+
+    private final SocketFactory<T> mSocketFactory;
+    private final ScheduledExecutorService mScheduler;
+    private final Executor mDialExecutor;
+    private final long mStaggerMillis;
+    private final Map<String, Boolean> mPreferSecure = new HashMap<>();
+
+    private Race mRace;
+    private long mSecureWins;
+    private long mInsecureWins;
+
+    public ConnectRace(SocketFactory<T> socketFactory, EventLoop eventLoop) {
+        this(socketFactory, eventLoop.getScheduler(), eventLoop.getBlockingExecutor(), DEFAULT_STAGGER_MILLIS);
+    }
+
+    /**
+     * @param scheduler     times the stagger, may be a shared {@link EventLoop} thread
+     * @param dialExecutor  runs the blocking connects, needs two threads for a real race
+     * @param staggerMillis head start of the preferred variant
+     */
+    public ConnectRace(SocketFactory<T> socketFactory, ScheduledExecutorService scheduler,
+                       Executor dialExecutor, long staggerMillis) {
+        mSocketFactory = socketFactory;
+        mScheduler = scheduler;
+        mDialExecutor = dialExecutor;
+        mStaggerMillis = staggerMillis;
+    }
+
+    /**
+     * Race with the variant that won last time for this address first, secure if none did yet.
+     */
+    public void start(String address, Callback<T> callback) {
+        this.start(address, this.isSecurePreferred(address, true), callback);
+    }
+
+    /**
+     * Start a race, cancelling the one running. The callback is called once, on a dial thread.
+     */
+    public void start(String address, boolean preferSecure, Callback<T> callback) {
+        this.cancel();
+        Race race;
+        Attempt first;
+        synchronized (this) {
+            race = new Race(address, callback);
+            first = new Attempt(race, preferSecure);
+            final Attempt second = new Attempt(race, !preferSecure);
+            race.first = first;
+            race.second = second;
+            mRace = race;
+            try {
+                race.staggered = mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        launchIfIdle(second);
+                    }
+                }, mStaggerMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Without a scheduler the other variant only starts once the first one failed
+            }
+        }
+        this.launch(first);
+    }
+
+    /**
+     * Stop the running race and close whatever it has dialed so far. Its callback is not called.
+     */
+    public void cancel() {
+        Race race;
+        synchronized (this) {
+            race = mRace;
+            mRace = null;
+            if (race == null || race.done) {
+                return;
+            }
+            race.done = true;
+            if (race.staggered != null) {
+                race.staggered.cancel(false);
+            }
+        }
+        closeQuietly(race.first.getSocket());
+        closeQuietly(race.second.getSocket());
+    }
+
+    public synchronized boolean isRunning() {
+        return mRace != null && !mRace.done;
+    }
+
+    /**
+     * @return the variant that won the last race to this address, or the default if none did
+     */
+    public synchronized boolean isSecurePreferred(String address, boolean defaultSecure) {
+        Boolean preferSecure = mPreferSecure.get(address);
+        return preferSecure == null ? defaultSecure : preferSecure;
+    }
+
+    /**
+     * Seed the preference, e.g. from what an earlier run of the app learned.
+     */
+    public synchronized void setSecurePreferred(String address, boolean secure) {
+        mPreferSecure.put(address, secure);
+    }
+
+    public synchronized long getWins(boolean secure) {
+        return secure ? mSecureWins : mInsecureWins;
+    }
+
+    private void launchIfIdle(Attempt attempt) {
+        synchronized (this) {
+            if (attempt.race.done || attempt.launched) {
+                return;
+            }
+        }
+        this.launch(attempt);
+    }
+
+    private void launch(Attempt attempt) {
+        synchronized (this) {
+            if (attempt.launched) {
+                return;
+            }
+            attempt.launched = true;
+        }
+        try {
+            mDialExecutor.execute(attempt);
+        } catch (RejectedExecutionException e) {
+            this.onAttemptFailed(attempt, new IOException("dial executor shut down"));
+        }
+    }
+
+    private void onAttemptConnected(Attempt winner) {
+        Race race = winner.race;
+        Attempt loser = race.other(winner);
+        long elapsedMillis;
+        synchronized (this) {
+            if (race.done) {
+                // Lost the race, or nobody is waiting any more
+                closeQuietly(winner.getSocket());
+                return;
+            }
+            race.done = true;
+            if (mRace == race) {
+                mRace = null;
+            }
+            if (race.staggered != null) {
+                race.staggered.cancel(false);
+            }
+            mPreferSecure.put(race.address, winner.secure);
+            if (winner.secure) {
+                mSecureWins++;
+            } else {
+                mInsecureWins++;
+            }
+            elapsedMillis = System.currentTimeMillis() - race.startMillis;
+        }
+        // Aborts the loser's connect, an attempt that has not created its socket yet sees the
+        // race is over
+        closeQuietly(loser.getSocket());
+        race.callback.onConnected(winner.getSocket(), winner.secure, elapsedMillis);
+    }
+
+    private void onAttemptFailed(Attempt attempt, IOException error) {
+        Race race = attempt.race;
+        boolean lost;
+        synchronized (this) {
+            if (race.done) {
+                return;
+            }
+            race.failures++;
+            lost = race.failures == 2;
+            if (lost) {
+                race.done = true;
+                if (mRace == race) {
+                    mRace = null;
+                }
+            } else if (race.staggered != null) {
+                race.staggered.cancel(false);
+            }
+        }
+        if (lost) {
+            race.callback.onFailed(error);
+        } else {
+            // No point in waiting out the stagger
+            this.launch(race.other(attempt));
+        }
+    }
+
+    private static void closeQuietly(Closeable socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Nothing to do about a socket we are discarding
+        }
+    }
+
+    private class Race {
+        private final String address;
+        private final Callback<T> callback;
+        private final long startMillis = System.currentTimeMillis();
+        private Attempt first;
+        private Attempt second;
+        private ScheduledFuture<?> staggered;
+        private int failures;
+        private boolean done;
+
+        Race(String address, Callback<T> callback) {
+            this.address = address;
+            this.callback = callback;
+        }
+
+        Attempt other(Attempt attempt) {
+            return attempt == first ? second : first;
+        }
+    }
+
+    private class Attempt implements Runnable {
+        private final Race race;
+        private final boolean secure;
+        private boolean launched;
+        private T socket;
+
+        Attempt(Race race, boolean secure) {
+            this.race = race;
+            this.secure = secure;
+        }
+
+        T getSocket() {
+            synchronized (ConnectRace.this) {
+                return socket;
+            }
+        }
+
+        @Override
+        public void run() {
+            T socket;
+            try {
+                socket = mSocketFactory.create(race.address, secure);
+            } catch (IOException e) {
+                onAttemptFailed(this, e);
+                return;
+            }
+            synchronized (ConnectRace.this) {
+                if (race.done) {
+                    closeQuietly(socket);
+                    return;
+                }
+                this.socket = socket;
+            }
+            try {
+                mSocketFactory.connect(socket);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                onAttemptFailed(this, e);
+                return;
+            }
+            onAttemptConnected(this);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.zhipu.middle.common.connect;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.os.Handler;
+import android.util.Log;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.transport.RfcommTransport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps several RFCOMM connections open at once, one {@link Session} per remote device address.
+ * Unlike {@link ConnectHelper} the accept tasks keep running after a connection is made and
+ * only turn peers away once {@code maxSessions} sessions are open. Accept, connect and the
+ * sessions all run on one {@link EventLoop}.
+ * <p>
+ * {@link OnSessionListener#onSessionOpened(Session)} and
+ * {@link OnSessionListener#onSessionClosed(Session, String)} are called on the thread that
+ * created the manager, {@link OnSessionListener#onSessionData(Session, byte[])} on the session's
+ * reader.
+ */
+public class ConnectionManager {
+    private static final String TAG = "ConnectionManager";
+    public static final int DEFAULT_MAX_SESSIONS = 4;
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final int mMaxSessions;
+    private final ConcurrentHashMap<String, Session> mSessions = new ConcurrentHashMap<>();
+    private final Handler mUiHandler = new Handler();
+    private final EventLoop mEventLoop;
+    private AcceptTask mSecureAcceptTask;
+    private AcceptTask mInsecureAcceptTask;
+    private volatile OnSessionListener mOnSessionListener;
+
+    public ConnectionManager() {
+        this(DEFAULT_MAX_SESSIONS);
+    }
+
+    public ConnectionManager(int maxSessions) {
+        this(maxSessions, EventLoop.getDefault());
+    }
+
+    public ConnectionManager(int maxSessions, EventLoop eventLoop) {
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mMaxSessions = maxSessions;
+        mEventLoop = eventLoop;
+    }
+
+    public void setOnSessionListener(OnSessionListener onSessionListener) {
+        mOnSessionListener = onSessionListener;
+    }
+
+    /**
+     * Start listening for incoming connections on both the secure and the insecure service.
+     */
+    public synchronized void start() {
+        if (mSecureAcceptTask == null) {
+            mSecureAcceptTask = new AcceptTask(true);
+            mEventLoop.executeBlocking(mSecureAcceptTask);
+        }
+        if (mInsecureAcceptTask == null) {
+            mInsecureAcceptTask = new AcceptTask(false);
+            mEventLoop.executeBlocking(mInsecureAcceptTask);
+        }
+    }
+
+    /**
+     * Dial a device in the background. Does nothing if a session to it is already open.
+     */
+    public void connect(String address, final boolean secure) {
+        if (mSessions.containsKey(address)) {
+            Log.d(TAG, "already connected to " + address);
+            return;
+        }
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        if (device == null) {
+            Log.w(TAG, "RemoteDevice not found or unspecified address. ");
+            return;
+        }
+
+        mEventLoop.executeBlocking(new Runnable() {
+            @Override
+            public void run() {
+                mBluetoothAdapter.cancelDiscovery();
+                BluetoothSocket socket = null;
+                try {
+                    if (secure) {
+                        socket = device.createRfcommSocketToServiceRecord(ConnectHelper.UUID_SECURE);
+                    } else {
+                        socket = device.createInsecureRfcommSocketToServiceRecord(ConnectHelper.UUID_INSECURE);
+                    }
+                    // This is a blocking call and will only return on a successful connection or an exception
+                    socket.connect();
+                } catch (IOException e) {
+                    Log.e(TAG, "connect to " + device.getAddress() + " failed", e);
+                    closeQuietly(socket);
+                    return;
+                }
+                onSocketConnected(socket);
+            }
+        });
+    }
+
+    public boolean write(String address, byte[] data, OnWriteListener listener) {
+        Session session = mSessions.get(address);
+        return session != null && session.write(data, listener);
+    }
+
+    public void disconnect(String address) {
+        Session session = mSessions.get(address);
+        if (session != null) {
+            session.close("disconnected locally");
+        }
+    }
+
+    /**
+     * Stop listening and close every session.
+     */
+    public synchronized void stop() {
+        if (mSecureAcceptTask != null) {
+            mSecureAcceptTask.cancel();
+            mSecureAcceptTask = null;
+        }
+        if (mInsecureAcceptTask != null) {
+            mInsecureAcceptTask.cancel();
+            mInsecureAcceptTask = null;
+        }
+        for (Session session : mSessions.values()) {
+            session.close("stopped");
+        }
+    }
+
+    public Session getSession(String address) {
+        return mSessions.get(address);
+    }
+
+    public List<Session> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    public int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    private void onSocketConnected(BluetoothSocket socket) {
+        String address = socket.getRemoteDevice().getAddress();
+        Session session;
+        try {
+            session = new Session(new RfcommTransport(socket), mSessionListener, mEventLoop);
+        } catch (IOException e) {
+            Log.e(TAG, "open streams of " + address + " failed", e);
+            closeQuietly(socket);
+            return;
+        }
+
+        synchronized (mSessions) {
+            if (mSessions.size() >= mMaxSessions || mSessions.containsKey(address)) {
+                Log.w(TAG, "reject " + address + ", sessions: " + mSessions.size() + "/" + mMaxSessions);
+                closeQuietly(socket);
+                return;
+            }
+            mSessions.put(address, session);
+        }
+        session.open();
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close socket failed", e);
+        }
+    }
+
+    private final OnSessionListener mSessionListener = new OnSessionListener() {
+
+        @Override
+        public void onSessionOpened(final Session session) {
+            Log.d(TAG, "session opened: " + session.getAddress());
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    OnSessionListener listener = mOnSessionListener;
+                    if (listener != null) {
+                        listener.onSessionOpened(session);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onSessionClosed(final Session session, final String reason) {
+            Log.d(TAG, "session closed: " + session.getAddress() + ", reason: " + reason);
+            mSessions.remove(session.getAddress(), session);
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    OnSessionListener listener = mOnSessionListener;
+                    if (listener != null) {
+                        listener.onSessionClosed(session, reason);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onSessionData(Session session, byte[] data) {
+            OnSessionListener listener = mOnSessionListener;
+            if (listener != null) {
+                listener.onSessionData(session, data);
+            }
+        }
+    };
+
+    private class AcceptTask implements Runnable {
+        private final String CLASS_NAME = AcceptTask.class.getSimpleName();
+        private BluetoothServerSocket mBluetoothServerSocket;
+        private String mSocketType;
+
+        AcceptTask(boolean secure) {
+            mSocketType = secure ? "Secure" : "Insecure";
+            try {
+                if (secure) {
+                    mBluetoothServerSocket = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(
+                            ConnectHelper.NAME_SECURE, ConnectHelper.UUID_SECURE);
+                } else {
+                    mBluetoothServerSocket = mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                            ConnectHelper.NAME_INSECURE, ConnectHelper.UUID_INSECURE);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", listen failed", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mBluetoothServerSocket == null) {
+                return;
+            }
+            Log.d(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", accept begin");
+            while (true) {
+                BluetoothSocket bluetoothSocket;
+                try {
+                    // This is a blocking call and will only return on a successful connection or an exception
+                    bluetoothSocket = mBluetoothServerSocket.accept();
+                } catch (IOException e) {
+                    Log.d(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", accept stopped: " + e.getMessage());
+                    break;
+                }
+                // Full sessions are checked again in onSocketConnected, this just avoids the work
+                if (mSessions.size() >= mMaxSessions) {
+                    Log.w(TAG, CLASS_NAME + " session limit reached, reject incoming connection");
+                    closeQuietly(bluetoothSocket);
+                    continue;
+                }
+                onSocketConnected(bluetoothSocket);
+            }
+            Log.d(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", accept end");
+        }
+
+        private void cancel() {
+            if (mBluetoothServerSocket == null) {
+                return;
+            }
+            try {
+                mBluetoothServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, CLASS_NAME + " Socket Type: " + mSocketType + ", close BluetoothServerSocket failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.zhipu.middle.common.connect;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connection state of a {@link ConnectHelper}, together with the connection it belongs to.
+ * Both live in one immutable snapshot that only changes by compare-and-set, so readers such as
+ * {@code write()} and the reader loop see a consistent pair without taking a lock, and a
+ * transition from a state that no longer holds fails instead of overwriting a newer one.
+ * <p>
+ * Changes are reported to the listener on a single-threaded event queue, in order. A listener
+ * that falls behind sees the latest state once instead of every step in between.
+ *
+ * @param <T> the connection, only attached while {@link #STATE_CONNECTED}
+ */
+public class ConnectionStateMachine<T> {
+    public static final int STATE_NONE = 0;
+    public static final int STATE_LISTEN = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3;
+
+    public interface Listener<T> {
+        void onStateChanged(int oldState, int newState, T connection);
+    }
+
+    private final AtomicReference<Snapshot<T>> mCurrent =
+            new AtomicReference<>(new Snapshot<T>(STATE_NONE, null, 0));
+    private final Executor mEventQueue;
+    private final Listener<T> mListener;
+    private final AtomicBoolean mDispatchPending = new AtomicBoolean();
+    /**
+     * Only touched on the event queue
+     */
+    private Snapshot<T> mReported = mCurrent.get();
+
+    public ConnectionStateMachine() {
+        this(null, null);
+    }
+
+    /**
+     * @param eventQueue a single thread, e.g. {@link EventLoop#getScheduler()}
+     */
+    public ConnectionStateMachine(Executor eventQueue, Listener<T> listener) {
+        mEventQueue = eventQueue;
+        mListener = listener;
+    }
+
+    public int getState() {
+        return mCurrent.get().state;
+    }
+
+    public boolean isConnected() {
+        return mCurrent.get().state == STATE_CONNECTED;
+    }
+
+    /**
+     * @return the connection while connected, null in any other state
+     */
+    public T getConnection() {
+        return mCurrent.get().connection;
+    }
+
+    /**
+     * Move to a state other than connected. Leaving {@link #STATE_CONNECTED} detaches the
+     * connection.
+     *
+     * @return false if the state was no longer {@code from}
+     */
+    public boolean transition(int from, int to) {
+        if (to == STATE_CONNECTED) {
+            throw new IllegalArgumentException("connected needs a connection");
+        }
+        return this.compareAndSet(from, to, null);
+    }
+
+    /**
+     * Attach the connection and move to {@link #STATE_CONNECTED}.
+     *
+     * @return false if the state was no longer {@code from}
+     */
+    public boolean transitionToConnected(int from, T connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection == null");
+        }
+        return this.compareAndSet(from, STATE_CONNECTED, connection);
+    }
+
+    /**
+     * Move to {@link #STATE_NONE} from whatever state, e.g. on stop.
+     *
+     * @return the connection that was attached, if any
+     */
+    public T reset() {
+        while (true) {
+            Snapshot<T> current = mCurrent.get();
+            if (current.state == STATE_NONE) {
+                return null;
+            }
+            if (this.compareAndSet(current, STATE_NONE, null)) {
+                return current.connection;
+            }
+        }
+    }
+
+    private boolean compareAndSet(int from, int to, T connection) {
+        while (true) {
+            Snapshot<T> current = mCurrent.get();
+            if (current.state != from) {
+                return false;
+            }
+            if (this.compareAndSet(current, to, connection)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean compareAndSet(Snapshot<T> current, int to, T connection) {
+        if (!mCurrent.compareAndSet(current, new Snapshot<>(to, connection, current.version + 1))) {
+            return false;
+        }
+        this.postChange();
+        return true;
+    }
+
+    private void postChange() {
+        // At most one dispatch waits in the queue, however fast the state flips
+        if (mListener == null || !mDispatchPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mEventQueue.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchChange();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down, nobody left to tell
+            mDispatchPending.set(false);
+        }
+    }
+
+    /**
+     * Runs on the event queue. Reads the latest snapshot instead of the one that was posted, so
+     * changes made by racing threads still come out in version order.
+     */
+    private void dispatchChange() {
+        // Cleared first, a change after this posts the next dispatch
+        mDispatchPending.set(false);
+        Snapshot<T> current = mCurrent.get();
+        Snapshot<T> reported = mReported;
+        if (current.version == reported.version) {
+            return;
+        }
+        mReported = current;
+        if (current.state != reported.state || current.connection != reported.connection) {
+            mListener.onStateChanged(reported.state, current.state, current.connection);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStateMachine{state=" + this.getState() + "}";
+    }
+
+    private static final class Snapshot<T> {
+        private final int state;
+        private final T connection;
+        private final long version;
+
+        Snapshot(int state, T connection, long version) {
+            this.state = state;
+            this.connection = connection;
+            this.version = version;
+        }
+    }
+}
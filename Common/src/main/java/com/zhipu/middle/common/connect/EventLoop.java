@@ -0,0 +1,150 @@
+package com.zhipu.middle.common.connect;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads every connection shares, instead of a set of threads per connection:
+ * <ul>
+ * <li>one loop thread that runs state transitions and timers of all connections, see
+ * {@link #execute(Runnable)} and {@link #getScheduler()}</li>
+ * <li>a pool for the calls RFCOMM can only do blocking, accept, connect, read and the write
+ * queue drains, see {@link #executeBlocking(Runnable)}. Its threads are reused across
+ * connections.</li>
+ * </ul>
+ * Idle threads of both exit after a keep-alive, so a watch with no link holds no threads.
+ * Loop tasks must never block, they hold up every other connection.
+ */
+public class EventLoop {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static EventLoop sDefault;
+
+    private final ScheduledThreadPoolExecutor mLoop;
+    private final ThreadPoolExecutor mBlockingPool;
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+    private final AtomicLong mThreadsCreated = new AtomicLong();
+    private final AtomicLong mLoopWakeups = new AtomicLong();
+    private final AtomicLong mBlockingTasks = new AtomicLong();
+
+    /**
+     * @return the loop shared by every connection of the process
+     */
+    public static synchronized EventLoop getDefault() {
+        if (sDefault == null) {
+            sDefault = new EventLoop("MiddleGround");
+        }
+        return sDefault;
+    }
+
+    public EventLoop(String name) {
+        mLoop = new ScheduledThreadPoolExecutor(1, new CountingThreadFactory(name + "-loop")) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                mLoopWakeups.incrementAndGet();
+            }
+        };
+        mLoop.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mLoop.allowCoreThreadTimeOut(true);
+        mLoop.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        mBlockingPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new CountingThreadFactory(name + "-io"),
+                new ThreadPoolExecutor.AbortPolicy()) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                mBlockingTasks.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Run a short, non-blocking task on the loop thread.
+     */
+    public void execute(Runnable task) {
+        mLoop.execute(task);
+    }
+
+    /**
+     * Run a task that blocks on a socket, on a pooled thread.
+     */
+    public void executeBlocking(Runnable task) {
+        mBlockingPool.execute(task);
+    }
+
+    /**
+     * @return the loop thread as an executor with timers, for the batching deadlines of
+     * {@link WriteQueue} and {@link Reconnector}
+     */
+    public ScheduledExecutorService getScheduler() {
+        return mLoop;
+    }
+
+    public Executor getBlockingExecutor() {
+        return mBlockingPool;
+    }
+
+    /**
+     * @return threads currently alive, loop and blocking pool together
+     */
+    public int getThreadCount() {
+        return mThreadCount.get();
+    }
+
+    public long getThreadsCreated() {
+        return mThreadsCreated.get();
+    }
+
+    /**
+     * @return number of tasks the loop thread has run, each one a wake-up unless the loop was
+     * already busy
+     */
+    public long getLoopWakeups() {
+        return mLoopWakeups.get();
+    }
+
+    public long getBlockingTaskCount() {
+        return mBlockingTasks.get();
+    }
+
+    /**
+     * Stop accepting tasks. Blocking tasks end when their sockets are closed.
+     */
+    public void shutdown() {
+        mLoop.shutdown();
+        mBlockingPool.shutdown();
+    }
+
+    private class CountingThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mIndex = new AtomicInteger();
+
+        CountingThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        mThreadCount.decrementAndGet();
+                    }
+                }
+            }, mName + "-" + mIndex.incrementAndGet());
+            thread.setDaemon(true);
+            mThreadCount.incrementAndGet();
+            mThreadsCreated.incrementAndGet();
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,744 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnTransferListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Moves files over a {@link FrameWriter} in sequenced chunks, for watch faces, logs and firmware.
+ * The sender keeps at most {@code window} chunks unacknowledged, every chunk carries a CRC32 of
+ * its bytes, and the receiver acknowledges the contiguous offset it has written. A chunk that
+ * fails its CRC or comes after a gap is answered with a NACK, and the sender goes back to the
+ * offset the receiver asks for.
+ * <p>
+ * Files are read and written with positional {@link FileChannel} I/O, so only the chunks in
+ * flight are ever on the heap. The receiver writes into {@code name.part} in its receive
+ * directory and renames it once the last chunk is in. After a reconnect {@link #resume()} offers
+ * every unfinished transfer again and the receiver answers with the length of its part file, so
+ * only the missing chunks are sent, even if the receiving process was restarted in between. The
+ * offer carries the file's length and modification time, kept next to the part file in
+ * {@code name.part.id}; a part file of another version of the file is started over.
+ * <p>
+ * Nothing waits on a frame that never comes: chunks and control frames the writer refuses are
+ * tried again with a growing delay, and a transfer without any acknowledgement for the timeout
+ * is offered again, which recovers lost offers, chunks and acknowledgements alike.
+ * <p>
+ * Every frame starts with a type byte: {@code 0} is followed by an app payload, the others by a
+ * transfer id and an offset, see the TYPE constants. Both ends of a link must use a FileTransfer.
+ * A chunk is a whole frame, give other writes a higher {@link WriteQueue} priority if they must
+ * not wait behind a window of chunks.
+ * <p>
+ * On a {@link ConnectHelper}: pass it as the writer, feed what
+ * {@link com.zhipu.middle.common.callback.OnConnectListener#onReceiveData(byte[])} delivers to
+ * {@link #onFrame(byte[], int, int)}, and call {@link #resume()} from
+ * {@link com.zhipu.middle.common.callback.OnConnectListener#onConnect}.
+ */
+public class FileTransfer implements FrameWriter, FrameDecoder.OnFrameListener {
+    public static final int DEFAULT_CHUNK_SIZE = 2 * 1024;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    private static final byte TYPE_DATA = 0;
+    /**
+     * Sender to receiver: id, offset 0, file length, modification time, chunk size, UTF-8 file name
+     */
+    private static final byte TYPE_OFFER = 1;
+    /**
+     * Receiver to sender: id, offset the receiver already has
+     */
+    private static final byte TYPE_RESUME = 2;
+    /**
+     * Sender to receiver: id, offset, CRC32, chunk bytes
+     */
+    private static final byte TYPE_CHUNK = 3;
+    /**
+     * Receiver to sender: id, contiguous offset written
+     */
+    private static final byte TYPE_ACK = 4;
+    /**
+     * Receiver to sender: id, offset to go back to
+     */
+    private static final byte TYPE_NACK = 5;
+    /**
+     * Receiver to sender: id, the receiver cannot take the file
+     */
+    private static final byte TYPE_REJECT = 6;
+
+    private static final int HEADER_LENGTH = 1 + 4 + 8;
+    private static final int OFFER_LENGTH = 8 + 8 + 4;
+    private static final String PART_SUFFIX = ".part";
+    private static final String IDENTITY_SUFFIX = ".part.id";
+    private static final long RETRY_MILLIS = 100;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final FrameWriter mFrameWriter;
+    private final FrameDecoder.OnFrameListener mOnFrameListener;
+    private final int mChunkSize;
+    private final int mWindow;
+    private final ScheduledExecutorService mScheduler;
+    private final long mTimeoutMillis;
+    private final Map<Integer, Outgoing> mOutgoing = new HashMap<>();
+    private final Map<Integer, Incoming> mIncoming = new HashMap<>();
+    /**
+     * Refused control frames by the peer's transfer id, only the newest one of a transfer counts
+     */
+    private final Map<Integer, byte[]> mRefusedControl = new LinkedHashMap<>();
+    private ScheduledFuture<?> mRetryTimer;
+    private long mRetryMillis = RETRY_MILLIS;
+    private int mNextTransferId = 1;
+    private volatile File mReceiveDirectory;
+    private volatile OnTransferListener mOnTransferListener;
+
+    private long mChunksSent;
+    private long mChunksResent;
+    private long mCrcErrors;
+    private long mTimeouts;
+
+    public FileTransfer(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener) {
+        this(frameWriter, onFrameListener, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param chunkSize bytes per chunk this end sends
+     * @param window    chunks this end sends ahead of the receiver's acknowledgement
+     */
+    public FileTransfer(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                        int chunkSize, int window) {
+        this(frameWriter, onFrameListener, chunkSize, window, EventLoop.getDefault().getScheduler(),
+                DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param scheduler     runs the retries of refused frames and the transfer timeouts
+     * @param timeoutMillis time without any acknowledgement before a transfer is offered again
+     */
+    public FileTransfer(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                        int chunkSize, int window, ScheduledExecutorService scheduler,
+                        long timeoutMillis) {
+        mFrameWriter = frameWriter;
+        mOnFrameListener = onFrameListener;
+        mChunkSize = chunkSize;
+        mWindow = window;
+        mScheduler = scheduler;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Where files from the peer go, offers are rejected while this is not set.
+     */
+    public void setReceiveDirectory(File receiveDirectory) {
+        mReceiveDirectory = receiveDirectory;
+    }
+
+    /**
+     * @param onTransferListener called on the reader thread, or the scheduler for retries, for
+     *                           transfers in both directions, must not block
+     */
+    public void setOnTransferListener(OnTransferListener onTransferListener) {
+        mOnTransferListener = onTransferListener;
+    }
+
+    /**
+     * Offer a file to the peer. Chunks follow once the peer said how much of it it already has.
+     *
+     * @return the transfer id passed to the listener
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized int send(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        Outgoing outgoing = new Outgoing(mNextTransferId++, file, channel, channel.size(),
+                file.lastModified());
+        mOutgoing.put(outgoing.id, outgoing);
+        outgoing.progressNanos = System.nanoTime();
+        this.sendOffer(outgoing);
+        this.armTimeout(outgoing, mTimeoutMillis);
+        return outgoing.id;
+    }
+
+    /**
+     * Offer every unfinished outgoing transfer again, call once the link is back up.
+     */
+    public synchronized void resume() {
+        for (Outgoing outgoing : mOutgoing.values()) {
+            outgoing.started = false;
+            outgoing.progressNanos = System.nanoTime();
+            this.sendOffer(outgoing);
+        }
+    }
+
+    /**
+     * Stop sending a file. The peer keeps its part file and a later {@link #send(File)} of the
+     * same file resumes from it.
+     */
+    public synchronized void cancel(int transferId) {
+        Outgoing outgoing = mOutgoing.get(transferId);
+        if (outgoing != null) {
+            this.removeOutgoing(outgoing);
+        }
+    }
+
+    /**
+     * Forget every transfer in both directions and close their files.
+     */
+    public synchronized void close() {
+        for (Outgoing outgoing : new ArrayList<>(mOutgoing.values())) {
+            this.removeOutgoing(outgoing);
+        }
+        for (Incoming incoming : mIncoming.values()) {
+            closeQuietly(incoming.channel);
+        }
+        mIncoming.clear();
+        mRefusedControl.clear();
+        if (mRetryTimer != null) {
+            mRetryTimer.cancel(false);
+            mRetryTimer = null;
+        }
+    }
+
+    @Override
+    public boolean write(byte[] data, OnWriteListener listener) {
+        byte[] frame = new byte[data.length + 1];
+        frame[0] = TYPE_DATA;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        return mFrameWriter.write(frame, listener);
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (buffer[offset] == TYPE_DATA) {
+            mOnFrameListener.onFrame(buffer, offset + 1, length - 1);
+            return;
+        }
+        if (length < HEADER_LENGTH) {
+            return;
+        }
+        ByteBuffer frame = ByteBuffer.wrap(buffer, offset, length);
+        byte type = frame.get();
+        int transferId = frame.getInt();
+        long position = frame.getLong();
+        synchronized (this) {
+            switch (type) {
+                case TYPE_OFFER:
+                    this.onOffer(transferId, frame);
+                    break;
+                case TYPE_RESUME:
+                    this.onResume(transferId, position);
+                    break;
+                case TYPE_CHUNK:
+                    this.onChunk(transferId, position, frame);
+                    break;
+                case TYPE_ACK:
+                    this.onAck(transferId, position);
+                    break;
+                case TYPE_NACK:
+                    this.onNack(transferId, position);
+                    break;
+                case TYPE_REJECT:
+                    this.onReject(transferId);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    public synchronized int getActiveTransferCount() {
+        return mOutgoing.size() + mIncoming.size();
+    }
+
+    public synchronized long getChunksSent() {
+        return mChunksSent;
+    }
+
+    /**
+     * @return chunks sent again after a NACK or a reconnect
+     */
+    public synchronized long getChunksResent() {
+        return mChunksResent;
+    }
+
+    /**
+     * @return received chunks that failed their CRC
+     */
+    public synchronized long getCrcErrors() {
+        return mCrcErrors;
+    }
+
+    /**
+     * @return times a transfer was offered again after no acknowledgement for the timeout
+     */
+    public synchronized long getTimeouts() {
+        return mTimeouts;
+    }
+
+    private void sendOffer(Outgoing outgoing) {
+        byte[] name = outgoing.file.getName().getBytes(UTF_8);
+        ByteBuffer frame = this.header(TYPE_OFFER, outgoing.id, 0, OFFER_LENGTH + name.length);
+        frame.putLong(outgoing.length).putLong(outgoing.modified).putInt(mChunkSize).put(name);
+        // A refused offer is made again by the timeout
+        mFrameWriter.write(frame.array(), null);
+    }
+
+    private void armTimeout(final Outgoing outgoing, long delayMillis) {
+        try {
+            outgoing.timeout = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout(outgoing);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, nothing is going to be sent anyway
+        }
+    }
+
+    private synchronized void onTimeout(Outgoing outgoing) {
+        if (mOutgoing.get(outgoing.id) != outgoing) {
+            return;
+        }
+        long idleMillis = (System.nanoTime() - outgoing.progressNanos) / 1000000;
+        if (idleMillis < mTimeoutMillis) {
+            this.armTimeout(outgoing, mTimeoutMillis - idleMillis);
+            return;
+        }
+        // The offer, chunks or acknowledgements got lost, the receiver's answer says where to go on
+        mTimeouts++;
+        outgoing.started = false;
+        outgoing.progressNanos = System.nanoTime();
+        this.sendOffer(outgoing);
+        this.armTimeout(outgoing, mTimeoutMillis);
+    }
+
+    private void onResume(int transferId, long offset) {
+        Outgoing outgoing = mOutgoing.get(transferId);
+        if (outgoing == null) {
+            return;
+        }
+        outgoing.started = true;
+        outgoing.progressNanos = System.nanoTime();
+        outgoing.ackedOffset = Math.min(offset, outgoing.length);
+        outgoing.nextOffset = outgoing.ackedOffset;
+        if (outgoing.ackedOffset == outgoing.length) {
+            this.completeOutgoing(outgoing);
+            return;
+        }
+        this.pump(outgoing);
+    }
+
+    private void onAck(int transferId, long offset) {
+        Outgoing outgoing = mOutgoing.get(transferId);
+        if (outgoing == null || offset <= outgoing.ackedOffset) {
+            return;
+        }
+        outgoing.ackedOffset = Math.min(offset, outgoing.length);
+        outgoing.progressNanos = System.nanoTime();
+        if (outgoing.nextOffset < outgoing.ackedOffset) {
+            outgoing.nextOffset = outgoing.ackedOffset;
+        }
+        if (outgoing.ackedOffset == outgoing.length) {
+            this.completeOutgoing(outgoing);
+            return;
+        }
+        OnTransferListener listener = mOnTransferListener;
+        if (listener != null) {
+            listener.onTransferProgress(transferId, DIRECTION_OUT, outgoing.ackedOffset,
+                    outgoing.length);
+        }
+        this.pump(outgoing);
+    }
+
+    private void onNack(int transferId, long offset) {
+        Outgoing outgoing = mOutgoing.get(transferId);
+        if (outgoing == null || offset < outgoing.ackedOffset || offset >= outgoing.nextOffset) {
+            return;
+        }
+        // Go back N: everything after the offset is resent, the receiver dropped it anyway
+        outgoing.ackedOffset = offset;
+        outgoing.nextOffset = offset;
+        outgoing.progressNanos = System.nanoTime();
+        this.pump(outgoing);
+    }
+
+    private void onReject(int transferId) {
+        Outgoing outgoing = mOutgoing.get(transferId);
+        if (outgoing == null) {
+            return;
+        }
+        this.removeOutgoing(outgoing);
+        this.notifyFailed(transferId, DIRECTION_OUT, "rejected by peer");
+    }
+
+    /**
+     * Send chunks while the window has room. Stops when the writer refuses one, the retry timer
+     * carries on from there unless an acknowledgement does first.
+     */
+    private void pump(Outgoing outgoing) {
+        outgoing.stalled = false;
+        long windowBytes = (long) mWindow * mChunkSize;
+        while (outgoing.started && outgoing.nextOffset < outgoing.length
+                && outgoing.nextOffset - outgoing.ackedOffset < windowBytes) {
+            int length = (int) Math.min(mChunkSize, outgoing.length - outgoing.nextOffset);
+            ByteBuffer frame = this.header(TYPE_CHUNK, outgoing.id, outgoing.nextOffset, 4 + length);
+            frame.position(HEADER_LENGTH + 4);
+            try {
+                while (frame.hasRemaining()) {
+                    long position = outgoing.nextOffset + frame.position() - HEADER_LENGTH - 4;
+                    if (outgoing.channel.read(frame, position) < 0) {
+                        throw new EOFException("file shrank while sending: " + outgoing.file);
+                    }
+                }
+            } catch (IOException e) {
+                this.removeOutgoing(outgoing);
+                this.notifyFailed(outgoing.id, DIRECTION_OUT, e.toString());
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(frame.array(), HEADER_LENGTH + 4, length);
+            frame.putInt(HEADER_LENGTH, (int) crc.getValue());
+            if (!mFrameWriter.write(frame.array(), null)) {
+                outgoing.stalled = true;
+                this.scheduleRetry();
+                return;
+            }
+
+            if (outgoing.nextOffset < outgoing.sentOffset) {
+                mChunksResent++;
+            } else {
+                mChunksSent++;
+            }
+            outgoing.nextOffset += length;
+            outgoing.sentOffset = Math.max(outgoing.sentOffset, outgoing.nextOffset);
+        }
+    }
+
+    private void completeOutgoing(Outgoing outgoing) {
+        this.removeOutgoing(outgoing);
+        OnTransferListener listener = mOnTransferListener;
+        if (listener != null) {
+            listener.onTransferComplete(outgoing.id, DIRECTION_OUT, outgoing.file);
+        }
+    }
+
+    private void removeOutgoing(Outgoing outgoing) {
+        mOutgoing.remove(outgoing.id);
+        if (outgoing.timeout != null) {
+            outgoing.timeout.cancel(false);
+        }
+        closeQuietly(outgoing.channel);
+    }
+
+    private void onOffer(int transferId, ByteBuffer frame) {
+        File directory = mReceiveDirectory;
+        if (directory == null || frame.remaining() < OFFER_LENGTH) {
+            this.sendControl(TYPE_REJECT, transferId, 0);
+            return;
+        }
+        long length = frame.getLong();
+        long modified = frame.getLong();
+        int chunkSize = frame.getInt();
+        byte[] nameBytes = new byte[frame.remaining()];
+        frame.get(nameBytes);
+        // Only the last path element, the peer must not write outside the receive directory
+        String name = new File(new String(nameBytes, UTF_8)).getName();
+        if (name.isEmpty() || chunkSize <= 0 || length < 0) {
+            this.sendControl(TYPE_REJECT, transferId, 0);
+            return;
+        }
+
+        File partFile = new File(directory, name + PART_SUFFIX);
+        File identityFile = new File(directory, name + IDENTITY_SUFFIX);
+        // A re-offer after a reconnect, possibly under a new id if the sender restarted
+        Iterator<Incoming> iterator = mIncoming.values().iterator();
+        while (iterator.hasNext()) {
+            Incoming previous = iterator.next();
+            if (previous.id == transferId || previous.partFile.equals(partFile)) {
+                iterator.remove();
+                closeQuietly(previous.channel);
+            }
+        }
+        Incoming incoming;
+        try {
+            FileChannel channel = new RandomAccessFile(partFile, "rw").getChannel();
+            long have;
+            if (isIdentity(identityFile, length, modified)) {
+                // Keep whole chunks only, a torn last write is sent again
+                have = Math.min(channel.size(), length);
+                if (have < length) {
+                    have -= have % chunkSize;
+                }
+                channel.truncate(have);
+            } else {
+                // Left over from another version of the file, or from before identities
+                have = 0;
+                channel.truncate(0);
+                try {
+                    writeIdentity(identityFile, length, modified);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                    throw e;
+                }
+            }
+            incoming = new Incoming(transferId, new File(directory, name), partFile, identityFile,
+                    channel, length, have);
+        } catch (IOException e) {
+            this.sendControl(TYPE_REJECT, transferId, 0);
+            this.notifyFailed(transferId, DIRECTION_IN, e.toString());
+            return;
+        }
+        mIncoming.put(transferId, incoming);
+        this.sendControl(TYPE_RESUME, transferId, incoming.expectedOffset);
+        if (incoming.expectedOffset == length) {
+            this.completeIncoming(incoming);
+        }
+    }
+
+    private void onChunk(int transferId, long offset, ByteBuffer frame) {
+        Incoming incoming = mIncoming.get(transferId);
+        if (incoming == null || frame.remaining() < 4) {
+            return;
+        }
+        if (offset != incoming.expectedOffset) {
+            // A chunk after a gap, or a stale one still in flight from before a NACK
+            if (offset > incoming.expectedOffset) {
+                this.nack(incoming);
+            }
+            return;
+        }
+        int crc = frame.getInt();
+        int length = frame.remaining();
+        if (length == 0 || offset + length > incoming.length) {
+            this.nack(incoming);
+            return;
+        }
+        CRC32 actual = new CRC32();
+        actual.update(frame.array(), frame.position(), length);
+        if ((int) actual.getValue() != crc) {
+            mCrcErrors++;
+            this.nack(incoming);
+            return;
+        }
+
+        try {
+            while (frame.hasRemaining()) {
+                incoming.channel.write(frame, offset + length - frame.remaining());
+            }
+        } catch (IOException e) {
+            mIncoming.remove(transferId);
+            closeQuietly(incoming.channel);
+            this.sendControl(TYPE_REJECT, transferId, 0);
+            this.notifyFailed(transferId, DIRECTION_IN, e.toString());
+            return;
+        }
+        incoming.expectedOffset += length;
+        incoming.nackedOffset = -1;
+        this.sendControl(TYPE_ACK, transferId, incoming.expectedOffset);
+        if (incoming.expectedOffset == incoming.length) {
+            this.completeIncoming(incoming);
+            return;
+        }
+        OnTransferListener listener = mOnTransferListener;
+        if (listener != null) {
+            listener.onTransferProgress(transferId, DIRECTION_IN, incoming.expectedOffset,
+                    incoming.length);
+        }
+    }
+
+    /**
+     * Ask for the expected offset again, once, so the rest of the stale window does not trigger
+     * more go-backs.
+     */
+    private void nack(Incoming incoming) {
+        if (incoming.nackedOffset != incoming.expectedOffset) {
+            incoming.nackedOffset = incoming.expectedOffset;
+            this.sendControl(TYPE_NACK, incoming.id, incoming.expectedOffset);
+        }
+    }
+
+    private void completeIncoming(Incoming incoming) {
+        mIncoming.remove(incoming.id);
+        closeQuietly(incoming.channel);
+        if (incoming.file.exists() && !incoming.file.delete()
+                || !incoming.partFile.renameTo(incoming.file)) {
+            this.notifyFailed(incoming.id, DIRECTION_IN, "cannot rename " + incoming.partFile);
+            return;
+        }
+        incoming.identityFile.delete();
+        OnTransferListener listener = mOnTransferListener;
+        if (listener != null) {
+            listener.onTransferComplete(incoming.id, DIRECTION_IN, incoming.file);
+        }
+    }
+
+    /**
+     * All control frames go from receiver to sender, a refused one is kept for the retry timer
+     * until a newer frame about the same transfer replaces it.
+     */
+    private void sendControl(byte type, int transferId, long offset) {
+        byte[] frame = this.header(type, transferId, offset, 0).array();
+        mRefusedControl.remove(transferId);
+        if (!mFrameWriter.write(frame, null)) {
+            mRefusedControl.put(transferId, frame);
+            this.scheduleRetry();
+        }
+    }
+
+    private void scheduleRetry() {
+        if (mRetryTimer != null) {
+            return;
+        }
+        try {
+            mRetryTimer = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retryRefused();
+                }
+            }, mRetryMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the transfer timeouts cannot run either
+        }
+    }
+
+    /**
+     * Write the refused control frames and carry on with stalled transfers, backing off while the
+     * writer keeps refusing.
+     */
+    private synchronized void retryRefused() {
+        mRetryTimer = null;
+        boolean refused = false;
+        Iterator<byte[]> iterator = mRefusedControl.values().iterator();
+        while (iterator.hasNext()) {
+            if (!mFrameWriter.write(iterator.next(), null)) {
+                refused = true;
+                break;
+            }
+            iterator.remove();
+        }
+        for (Outgoing outgoing : new ArrayList<>(mOutgoing.values())) {
+            if (outgoing.stalled) {
+                this.pump(outgoing);
+                refused |= outgoing.stalled;
+            }
+        }
+        if (refused) {
+            mRetryMillis = Math.min(mRetryMillis * 2, mTimeoutMillis);
+            this.scheduleRetry();
+        } else {
+            mRetryMillis = RETRY_MILLIS;
+        }
+    }
+
+    private ByteBuffer header(byte type, int transferId, long offset, int bodyLength) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        frame.put(type).putInt(transferId).putLong(offset);
+        return frame;
+    }
+
+    private void notifyFailed(int transferId, int direction, String reason) {
+        OnTransferListener listener = mOnTransferListener;
+        if (listener != null) {
+            listener.onTransferFailed(transferId, direction, reason);
+        }
+    }
+
+    private static boolean isIdentity(File identityFile, long length, long modified) {
+        if (!identityFile.isFile()) {
+            return false;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(identityFile, "r");
+            try {
+                return file.readLong() == length && file.readLong() == modified;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void writeIdentity(File identityFile, long length, long modified) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(identityFile, "rw");
+        try {
+            file.setLength(0);
+            file.writeLong(length);
+            file.writeLong(modified);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The transfer is over either way, and a part file stays resumable
+        }
+    }
+
+    private static class Outgoing {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private final long length;
+        private final long modified;
+        private boolean started;
+        private boolean stalled;
+        private long ackedOffset;
+        private long nextOffset;
+        private long sentOffset;
+        private long progressNanos;
+        private ScheduledFuture<?> timeout;
+
+        Outgoing(int id, File file, FileChannel channel, long length, long modified) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+    private static class Incoming {
+        private final int id;
+        private final File file;
+        private final File partFile;
+        private final File identityFile;
+        private final FileChannel channel;
+        private final long length;
+        private long expectedOffset;
+        private long nackedOffset = -1;
+
+        Incoming(int id, File file, File partFile, File identityFile, FileChannel channel, long length,
+                 long expectedOffset) {
+            this.id = id;
+            this.file = file;
+            this.partFile = partFile;
+            this.identityFile = identityFile;
+            this.channel = channel;
+            this.length = length;
+            this.expectedOffset = expectedOffset;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit based flow control on top of a {@link FrameWriter}. The receiving end grants the sender
+ * byte credits; the sender only puts a payload on the link while it has credits for it and queues
+ * it otherwise, so a slow receiver bounds how much data can pile up on its side.
+ * <p>
+ * The receiver owns the window: {@link #start()} grants the peer the whole receive window, and
+ * every time the local listener has consumed half of it the consumed bytes are granted again.
+ * A sender starts without credits and waits for the first grant.
+ * <p>
+ * A grant carries the total bytes granted on the connection so far, not an increment, so a lost
+ * or refused grant is made up by any later one. Nothing waits for an event that may never come:
+ * while payloads are queued, or a grant could not be written, a timer with a growing delay tries
+ * again, and a sender still out of credits probes the receiver, which answers with its current
+ * grant.
+ * <p>
+ * Every frame starts with a type byte: {@code 0} is followed by a data payload, {@code 1} by the
+ * varint total grant in bytes, {@code 2} is a probe for the grant. Both ends of a link must use a
+ * FlowController.
+ */
+public class FlowController implements FrameWriter, FrameDecoder.OnFrameListener {
+    public static final int DEFAULT_RECEIVE_WINDOW = 16 * 1024;
+    public static final int DEFAULT_MAX_PENDING = 256;
+    public static final long DEFAULT_RETRY_MILLIS = 50;
+
+    private static final byte TYPE_DATA = 0;
+    private static final byte TYPE_CREDIT = 1;
+    private static final byte TYPE_PROBE = 2;
+    private static final long MAX_RETRY_MILLIS = 2000;
+
+    private final FrameWriter mFrameWriter;
+    private final FrameDecoder.OnFrameListener mOnFrameListener;
+    private final int mReceiveWindow;
+    private final int mMaxPending;
+    private final ScheduledExecutorService mScheduler;
+    private final long mBaseRetryMillis;
+    private final ArrayDeque<PendingFrame> mPending = new ArrayDeque<>();
+
+    /**
+     * Total bytes the peer granted and this end sent on the connection, their difference is
+     * the credit left
+     */
+    private long mPeerGranted;
+    private long mSentBytes;
+    private long mPeerWindow;
+    /**
+     * Total bytes granted to the peer on the connection
+     */
+    private long mGranted;
+    private boolean mGrantUnsent;
+    private int mConsumedBytes;
+    private ScheduledFuture<?> mRetryTimer;
+    private long mRetryMillis;
+    private long mProbeCount;
+    private long mStallStartNanos;
+    private long mTotalStallNanos;
+    private long mStallCount;
+
+    public FlowController(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener) {
+        this(frameWriter, onFrameListener, DEFAULT_RECEIVE_WINDOW, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * @param receiveWindow bytes the peer may send ahead of what the listener has consumed
+     * @param maxPending    payloads queued locally while out of credits before writes are refused
+     */
+    public FlowController(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                          int receiveWindow, int maxPending) {
+        this(frameWriter, onFrameListener, receiveWindow, maxPending,
+                EventLoop.getDefault().getScheduler(), DEFAULT_RETRY_MILLIS);
+    }
+
+    /**
+     * @param scheduler   runs the retries of refused writes and the probes for lost grants
+     * @param retryMillis first delay of a retry, doubled while nothing gets through
+     */
+    public FlowController(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                          int receiveWindow, int maxPending, ScheduledExecutorService scheduler,
+                          long retryMillis) {
+        mFrameWriter = frameWriter;
+        mOnFrameListener = onFrameListener;
+        mReceiveWindow = receiveWindow;
+        mMaxPending = maxPending;
+        mScheduler = scheduler;
+        mBaseRetryMillis = retryMillis;
+        mRetryMillis = retryMillis;
+    }
+
+    /**
+     * Grant the peer the initial receive window, call once the link is up.
+     */
+    public synchronized void start() {
+        mConsumedBytes = 0;
+        mGranted = mReceiveWindow;
+        this.sendGrant();
+    }
+
+    /**
+     * Forget credits and queued payloads of a previous connection.
+     */
+    public synchronized void reset() {
+        mPeerGranted = 0;
+        mSentBytes = 0;
+        mPeerWindow = 0;
+        mGranted = 0;
+        mGrantUnsent = false;
+        mConsumedBytes = 0;
+        mPending.clear();
+        if (mRetryTimer != null) {
+            mRetryTimer.cancel(false);
+            mRetryTimer = null;
+        }
+        mRetryMillis = mBaseRetryMillis;
+        this.endStall();
+    }
+
+    /**
+     * Send the payload now if there are credits for it, otherwise queue it until the peer grants
+     * more. A payload larger than the peer's whole window overdraws the credits once any are
+     * available.
+     *
+     * @return false if the queue of payloads waiting for credits is full
+     */
+    @Override
+    public synchronized boolean write(byte[] data, OnWriteListener listener) {
+        if (!mPending.isEmpty() || !this.trySend(data, listener)) {
+            if (mPending.size() >= mMaxPending) {
+                return false;
+            }
+            mPending.add(new PendingFrame(data, listener));
+            this.beginStall();
+            this.scheduleRetry();
+        }
+        return true;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (buffer[offset] == TYPE_CREDIT) {
+            this.onCredit(buffer, offset + 1, offset + length);
+            return;
+        }
+        if (buffer[offset] == TYPE_PROBE) {
+            synchronized (this) {
+                this.sendGrant();
+            }
+            return;
+        }
+
+        mOnFrameListener.onFrame(buffer, offset + 1, length - 1);
+        synchronized (this) {
+            mConsumedBytes += length - 1;
+            if (mConsumedBytes >= mReceiveWindow / 2) {
+                mGranted += mConsumedBytes;
+                mConsumedBytes = 0;
+                this.sendGrant();
+            }
+        }
+    }
+
+    public int getReceiveWindow() {
+        return mReceiveWindow;
+    }
+
+    public synchronized long getSendCredits() {
+        return mPeerGranted - mSentBytes;
+    }
+
+    /**
+     * @return the peer's receive window as learned from its first grant, 0 before that
+     */
+    public synchronized long getPeerWindow() {
+        return mPeerWindow;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return total time writes have been held back for lack of credits, including a stall in
+     * progress
+     */
+    public synchronized long getTotalStallNanos() {
+        long total = mTotalStallNanos;
+        if (mStallStartNanos != 0) {
+            total += System.nanoTime() - mStallStartNanos;
+        }
+        return total;
+    }
+
+    public synchronized long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @return probes sent for a grant that did not come
+     */
+    public synchronized long getProbeCount() {
+        return mProbeCount;
+    }
+
+    private void onCredit(byte[] buffer, int offset, int end) {
+        long granted = 0;
+        int shift = 0;
+        while (offset < end && shift < 64) {
+            int b = buffer[offset++];
+            granted |= (long) (b & 0x7F) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        synchronized (this) {
+            if (mPeerWindow == 0) {
+                // The first grant of a connection is the peer's whole window
+                mPeerWindow = granted;
+            }
+            if (granted <= mPeerGranted) {
+                // A repeated grant, or one overtaken by a later one
+                return;
+            }
+            mPeerGranted = granted;
+            mRetryMillis = mBaseRetryMillis;
+            this.drain();
+        }
+    }
+
+    /**
+     * Send queued payloads while credits and the writer allow.
+     */
+    private void drain() {
+        PendingFrame pendingFrame;
+        while ((pendingFrame = mPending.peek()) != null) {
+            if (!this.trySend(pendingFrame.data, pendingFrame.listener)) {
+                this.scheduleRetry();
+                return;
+            }
+            mPending.poll();
+        }
+        this.endStall();
+    }
+
+    private boolean hasCredits(int length) {
+        long credits = mPeerGranted - mSentBytes;
+        // A payload larger than the peer's whole window could never be covered, it may overdraw
+        // the credits instead once at least some are available
+        return credits >= length || (credits > 0 && mPeerWindow > 0 && length > mPeerWindow);
+    }
+
+    private boolean trySend(byte[] data, OnWriteListener listener) {
+        if (!this.hasCredits(data.length)) {
+            return false;
+        }
+        byte[] frame = new byte[data.length + 1];
+        frame[0] = TYPE_DATA;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        if (!mFrameWriter.write(frame, listener)) {
+            return false;
+        }
+        mSentBytes += data.length;
+        return true;
+    }
+
+    /**
+     * Send the total grant. A refused one is sent again by the retry timer, unless a later grant
+     * or a probe gets through first.
+     */
+    private void sendGrant() {
+        int length = 2;
+        for (long value = mGranted; value > 0x7F; value >>>= 7) {
+            length++;
+        }
+        byte[] frame = new byte[length];
+        frame[0] = TYPE_CREDIT;
+        long value = mGranted;
+        int offset = 1;
+        while (value > 0x7F) {
+            frame[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        frame[offset] = (byte) value;
+        mGrantUnsent = !mFrameWriter.write(frame, null);
+        if (mGrantUnsent) {
+            this.scheduleRetry();
+        }
+    }
+
+    private void scheduleRetry() {
+        if (mRetryTimer != null) {
+            return;
+        }
+        try {
+            mRetryTimer = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retry();
+                }
+            }, mRetryMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, nothing is going to be sent anyway
+        }
+    }
+
+    private synchronized void retry() {
+        mRetryTimer = null;
+        // Whatever is still refused below waits longer next time
+        mRetryMillis = Math.min(mRetryMillis * 2, MAX_RETRY_MILLIS);
+        if (mGrantUnsent) {
+            this.sendGrant();
+        }
+        if (!mPending.isEmpty()) {
+            this.drain();
+            PendingFrame pendingFrame = mPending.peek();
+            if (pendingFrame != null && !this.hasCredits(pendingFrame.data.length)
+                    && mFrameWriter.write(new byte[]{TYPE_PROBE}, null)) {
+                // Out of credits for longer than a grant takes, it may have been lost
+                mProbeCount++;
+            }
+        }
+        if (mGrantUnsent || !mPending.isEmpty()) {
+            this.scheduleRetry();
+        } else {
+            mRetryMillis = mBaseRetryMillis;
+        }
+    }
+
+    private void beginStall() {
+        if (mStallStartNanos == 0) {
+            mStallStartNanos = System.nanoTime();
+            mStallCount++;
+        }
+    }
+
+    private void endStall() {
+        if (mStallStartNanos != 0) {
+            mTotalStallNanos += System.nanoTime() - mStallStartNanos;
+            mStallStartNanos = 0;
+        }
+    }
+
+    private static class PendingFrame {
+        private final byte[] data;
+        private final OnWriteListener listener;
+
+        PendingFrame(byte[] data, OnWriteListener listener) {
+            this.data = data;
+            this.listener = listener;
+        }
+    }
+}
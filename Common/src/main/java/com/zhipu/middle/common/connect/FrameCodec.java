@@ -0,0 +1,86 @@
+package com.zhipu.middle.common.connect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing for the byte stream between phone and watch. Every frame is an
+ * unsigned varint (LEB128, 7 bits per byte, least significant group first) holding the payload
+ * length, followed by the payload itself.
+ */
+public final class FrameCodec {
+    /**
+     * A varint of up to 5 bytes covers every non-negative int.
+     */
+    public static final int MAX_HEADER_LENGTH = 5;
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 256 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * @return number of bytes {@link #writeVarInt(int, byte[], int)} needs for the value
+     */
+    public static int varIntLength(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative varint: " + value);
+        }
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @return offset just past the last byte written
+     */
+    public static int writeVarInt(int value, byte[] dest, int offset) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative varint: " + value);
+        }
+        while ((value & ~0x7F) != 0) {
+            dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static int encodedLength(int payloadLength) {
+        return varIntLength(payloadLength) + payloadLength;
+    }
+
+    public static byte[] encode(byte[] payload) {
+        return encode(payload, 0, payload.length);
+    }
+
+    public static byte[] encode(byte[] payload, int offset, int length) {
+        byte[] frame = new byte[encodedLength(length)];
+        encode(payload, offset, length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * Encode the remaining bytes of a buffer, heap or direct, with a single copy. The buffer's
+     * position is left where it was.
+     */
+    public static byte[] encode(ByteBuffer payload) {
+        int length = payload.remaining();
+        byte[] frame = new byte[encodedLength(length)];
+        int position = writeVarInt(length, frame, 0);
+        payload.duplicate().get(frame, position, length);
+        return frame;
+    }
+
+    /**
+     * Encode a frame into a caller supplied array, so writers that keep their own buffer do not
+     * allocate per message.
+     *
+     * @return offset just past the end of the frame in dest
+     */
+    public static int encode(byte[] payload, int offset, int length, byte[] dest, int destOffset) {
+        int position = writeVarInt(length, dest, destOffset);
+        System.arraycopy(payload, offset, dest, position, length);
+        return position + length;
+    }
+}
@@ -0,0 +1,148 @@
+package com.zhipu.middle.common.connect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Incremental decoder for {@link FrameCodec} frames. Bytes may be fed in chunks of any size, as
+ * they come off the socket; the listener is only ever called with complete frames.
+ * <p>
+ * A frame that arrives whole inside one chunk is handed out straight from the caller's array, a
+ * frame split across chunks is assembled in an internal buffer. Either way the array passed to
+ * {@link OnFrameListener#onFrame(byte[], int, int)} is only valid for the duration of the call.
+ * <p>
+ * Not thread safe, one decoder belongs to one reader.
+ */
+public class FrameDecoder {
+    private static final int DEFAULT_READ_BUFFER_SIZE = 2 * 1024;
+
+    public interface OnFrameListener {
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    private final OnFrameListener mOnFrameListener;
+    private final int mMaxFrameLength;
+    private final byte[] mReadBuffer;
+
+    private byte[] mFrameBuffer;
+    private int mFrameCount;
+    private int mFrameLength = -1;
+    private int mHeaderValue;
+    private int mHeaderShift;
+
+    public FrameDecoder(OnFrameListener onFrameListener) {
+        this(onFrameListener, FrameCodec.DEFAULT_MAX_FRAME_LENGTH, DEFAULT_READ_BUFFER_SIZE);
+    }
+
+    public FrameDecoder(OnFrameListener onFrameListener, int maxFrameLength, int readBufferSize) {
+        if (onFrameListener == null) {
+            throw new IllegalArgumentException("onFrameListener == null");
+        }
+        mOnFrameListener = onFrameListener;
+        mMaxFrameLength = maxFrameLength;
+        mReadBuffer = new byte[readBufferSize];
+        mFrameBuffer = new byte[Math.min(readBufferSize, maxFrameLength)];
+    }
+
+    /**
+     * Do one blocking read from the stream and decode whatever it returned.
+     *
+     * @return number of bytes read, -1 at end of stream
+     */
+    public int readFrom(InputStream inputStream) throws IOException {
+        int count = inputStream.read(mReadBuffer);
+        if (count > 0) {
+            this.feed(mReadBuffer, 0, count);
+        }
+        return count;
+    }
+
+    public void feed(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (mFrameLength < 0) {
+                offset = this.readHeader(data, offset, end);
+                continue;
+            }
+
+            int needed = mFrameLength - mFrameCount;
+            int available = end - offset;
+            if (mFrameCount == 0 && available >= needed) {
+                // The whole frame is in this chunk, hand it out without copying
+                int frameLength = mFrameLength;
+                this.resetFrame();
+                mOnFrameListener.onFrame(data, offset, frameLength);
+                offset += frameLength;
+                continue;
+            }
+
+            int count = Math.min(needed, available);
+            System.arraycopy(data, offset, mFrameBuffer, mFrameCount, count);
+            mFrameCount += count;
+            offset += count;
+            if (mFrameCount == mFrameLength) {
+                int frameLength = mFrameLength;
+                this.resetFrame();
+                mOnFrameListener.onFrame(mFrameBuffer, 0, frameLength);
+            }
+        }
+    }
+
+    /**
+     * Drop any partially received frame, e.g. after the connection was re-established.
+     */
+    public void reset() {
+        this.resetFrame();
+    }
+
+    /**
+     * @return true if a frame header or body has been partially received
+     */
+    public boolean hasPartialFrame() {
+        return mFrameLength >= 0 || mHeaderShift > 0;
+    }
+
+    private int readHeader(byte[] data, int offset, int end) throws IOException {
+        while (offset < end) {
+            int b = data[offset++];
+            mHeaderValue |= (b & 0x7F) << mHeaderShift;
+            if ((b & 0x80) == 0) {
+                this.startFrame(mHeaderValue);
+                if (mFrameLength == 0) {
+                    this.resetFrame();
+                    mOnFrameListener.onFrame(data, offset, 0);
+                }
+                return offset;
+            }
+
+            mHeaderShift += 7;
+            if (mHeaderShift >= 7 * FrameCodec.MAX_HEADER_LENGTH) {
+                this.resetFrame();
+                throw new ProtocolException("malformed frame header");
+            }
+        }
+        return offset;
+    }
+
+    private void startFrame(int frameLength) throws ProtocolException {
+        if (frameLength < 0 || frameLength > mMaxFrameLength) {
+            this.resetFrame();
+            throw new ProtocolException("frame length " + frameLength + " exceeds " + mMaxFrameLength);
+        }
+        mFrameLength = frameLength;
+        mFrameCount = 0;
+        mHeaderValue = 0;
+        mHeaderShift = 0;
+        if (mFrameBuffer.length < frameLength) {
+            mFrameBuffer = new byte[Math.min(mMaxFrameLength, Math.max(frameLength, 2 * mFrameBuffer.length))];
+        }
+    }
+
+    private void resetFrame() {
+        mFrameLength = -1;
+        mFrameCount = 0;
+        mHeaderValue = 0;
+        mHeaderShift = 0;
+    }
+}
@@ -0,0 +1,18 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+/**
+ * Anything that takes whole payloads for the peer and writes them as frames without blocking the
+ * caller, e.g. {@link ConnectHelper} or a {@link Session}. Layers such as
+ * {@link ChannelMultiplexer} are written against this so they work on either.
+ */
+public interface FrameWriter {
+
+    /**
+     * @param listener optional, notified once the frame is on the wire or failed
+     * @return false if the frame was not accepted, e.g. not connected or the queue is full; the
+     * listener is not called in that case
+     */
+    boolean write(byte[] data, OnWriteListener listener);
+}
@@ -0,0 +1,93 @@
+package com.zhipu.middle.common.connect;
+
+/**
+ * Agrees on the framing of a link with the peer, so a {@link Heartbeat} on one end only does not
+ * leave stray type bytes in the other end's payloads. An end with a heartbeat sends
+ * {@link #helloFrame(boolean)} as its very first frame to say its frames carry the heartbeat type
+ * byte; an end without one sends nothing, so peers that do not negotiate, like a
+ * {@link Session} or an older build, never see a hello. Received frames are read the way the
+ * peer announced: behind the heartbeat if it has one, with the type byte stripped if only the
+ * peer has one, as they are otherwise. Pings only start once both ends announced a heartbeat, a
+ * peer without one could not answer them.
+ * <p>
+ * A peer whose first frame is no hello is taken for one without type bytes, and that frame is
+ * delivered as payload.
+ */
+public class FramingNegotiator implements FrameDecoder.OnFrameListener {
+    private static final byte[] HELLO_MAGIC = {'W', 'M', 'H', 'B'};
+    private static final int HELLO_LENGTH = HELLO_MAGIC.length + 1;
+    private static final byte FLAG_TYPED = 1;
+
+    private final Heartbeat mHeartbeat;
+    private final FrameDecoder.OnFrameListener mOnFrameListener;
+    private volatile boolean mNegotiated;
+    private volatile boolean mPeerTyped;
+
+    /**
+     * @param heartbeat       this end's heartbeat, null if it has none
+     * @param onFrameListener receives the payloads
+     */
+    public FramingNegotiator(Heartbeat heartbeat, FrameDecoder.OnFrameListener onFrameListener) {
+        mHeartbeat = heartbeat;
+        mOnFrameListener = onFrameListener;
+    }
+
+    /**
+     * @param typed whether this end's frames carry the heartbeat type byte
+     * @return the payload of the first frame to send on a new link, ahead of anything else
+     */
+    public static byte[] helloFrame(boolean typed) {
+        byte[] hello = new byte[HELLO_LENGTH];
+        System.arraycopy(HELLO_MAGIC, 0, hello, 0, HELLO_MAGIC.length);
+        hello[HELLO_MAGIC.length] = typed ? FLAG_TYPED : 0;
+        return hello;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (!mNegotiated) {
+            mNegotiated = true;
+            if (isHello(buffer, offset, length)) {
+                mPeerTyped = (buffer[offset + HELLO_MAGIC.length] & FLAG_TYPED) != 0;
+                if (mPeerTyped && mHeartbeat != null) {
+                    mHeartbeat.start();
+                }
+                return;
+            }
+        }
+        if (!mPeerTyped) {
+            mOnFrameListener.onFrame(buffer, offset, length);
+        } else if (mHeartbeat != null) {
+            mHeartbeat.onFrame(buffer, offset, length);
+        } else if (length > 0 && buffer[offset] == Heartbeat.TYPE_DATA) {
+            // No pings come, this end never announced a heartbeat to answer them
+            mOnFrameListener.onFrame(buffer, offset + 1, length - 1);
+        }
+    }
+
+    /**
+     * @return whether the peer's first frame has arrived
+     */
+    public boolean isNegotiated() {
+        return mNegotiated;
+    }
+
+    /**
+     * @return whether the peer's frames carry the heartbeat type byte
+     */
+    public boolean isPeerTyped() {
+        return mPeerTyped;
+    }
+
+    private static boolean isHello(byte[] buffer, int offset, int length) {
+        if (length != HELLO_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HELLO_MAGIC.length; i++) {
+            if (buffer[offset + i] != HELLO_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,200 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnHeartbeatListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.metrics.LatencyHistogram;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ping/pong heartbeat on top of a {@link FrameWriter}. Every interval a ping goes out carrying
+ * the local send time, the peer echoes it as a pong and the round trip lands in
+ * {@link #getRttHistogram()}. Once {@code maxMissed} intervals in a row pass without a pong or
+ * any other frame from the peer, the link is declared dead, long before a read on a half-open
+ * RFCOMM socket would fail. The timer only queues pings and never waits for the writer, so a
+ * write stuck on a half-open link does not hold it up.
+ * <p>
+ * Every frame starts with a type byte: {@code 0} payload, {@code 1} ping, {@code 2} pong, both
+ * followed by the 8 byte send time. On a link where the peer may not use a Heartbeat, put a
+ * {@link FramingNegotiator} in front of it.
+ */
+public class Heartbeat implements FrameWriter, FrameDecoder.OnFrameListener {
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+    public static final int DEFAULT_MAX_MISSED = 3;
+
+    static final byte TYPE_DATA = 0;
+    private static final byte TYPE_PING = 1;
+    private static final byte TYPE_PONG = 2;
+    private static final int TIME_LENGTH = 8;
+
+    private final FrameWriter mFrameWriter;
+    private final FrameDecoder.OnFrameListener mOnFrameListener;
+    private final ScheduledExecutorService mScheduler;
+    private final long mIntervalMillis;
+    private final int mMaxMissed;
+    private final OnHeartbeatListener mOnHeartbeatListener;
+    private final LatencyHistogram mRttHistogram = new LatencyHistogram();
+
+    private final AtomicInteger mMissed = new AtomicInteger();
+    private volatile long mLastRttNanos;
+    private ScheduledFuture<?> mTick;
+    private boolean mDead;
+
+    public Heartbeat(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                     ScheduledExecutorService scheduler, OnHeartbeatListener onHeartbeatListener) {
+        this(frameWriter, onFrameListener, scheduler, DEFAULT_INTERVAL_MILLIS, DEFAULT_MAX_MISSED,
+                onHeartbeatListener);
+    }
+
+    /**
+     * @param scheduler runs the ping timer, usually {@link EventLoop#getScheduler()}
+     * @param maxMissed intervals without any sign of the peer before it is declared dead
+     */
+    public Heartbeat(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                     ScheduledExecutorService scheduler, long intervalMillis, int maxMissed,
+                     OnHeartbeatListener onHeartbeatListener) {
+        if (intervalMillis <= 0 || maxMissed <= 0) {
+            throw new IllegalArgumentException("intervalMillis and maxMissed must be positive");
+        }
+        mFrameWriter = frameWriter;
+        mOnFrameListener = onFrameListener;
+        mScheduler = scheduler;
+        mIntervalMillis = intervalMillis;
+        mMaxMissed = maxMissed;
+        mOnHeartbeatListener = onHeartbeatListener;
+    }
+
+    /**
+     * Start pinging, call once the link is up.
+     */
+    public synchronized void start() {
+        if (mTick != null) {
+            return;
+        }
+        mMissed.set(0);
+        mDead = false;
+        mTick = mScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mTick != null) {
+            mTick.cancel(false);
+            mTick = null;
+        }
+    }
+
+    @Override
+    public boolean write(byte[] data, OnWriteListener listener) {
+        return mFrameWriter.write(dataFrame(data), listener);
+    }
+
+    /**
+     * @return data behind the data type byte, for callers that queue it themselves
+     */
+    static byte[] dataFrame(byte[] data) {
+        byte[] frame = new byte[data.length + 1];
+        frame[0] = TYPE_DATA;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        return frame;
+    }
+
+    /**
+     * Encode a payload as a whole data frame, length header and type byte included, copying it
+     * once. The buffer's position is left where it was.
+     */
+    static byte[] encodeDataFrame(ByteBuffer data) {
+        int length = data.remaining();
+        byte[] frame = new byte[FrameCodec.encodedLength(length + 1)];
+        int position = FrameCodec.writeVarInt(length + 1, frame, 0);
+        frame[position++] = TYPE_DATA;
+        data.duplicate().get(frame, position, length);
+        return frame;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        // Any frame proves the peer is alive, a pong may be stuck behind bulk data
+        mMissed.set(0);
+        switch (buffer[offset]) {
+            case TYPE_DATA:
+                mOnFrameListener.onFrame(buffer, offset + 1, length - 1);
+                break;
+            case TYPE_PING:
+                byte[] pong = new byte[length];
+                System.arraycopy(buffer, offset, pong, 0, length);
+                pong[0] = TYPE_PONG;
+                mFrameWriter.write(pong, null);
+                break;
+            case TYPE_PONG:
+                if (length == 1 + TIME_LENGTH) {
+                    long rttNanos = System.nanoTime() - readLong(buffer, offset + 1);
+                    mLastRttNanos = rttNanos;
+                    mRttHistogram.record(rttNanos);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public LatencyHistogram getRttHistogram() {
+        return mRttHistogram;
+    }
+
+    public long getLastRttNanos() {
+        return mLastRttNanos;
+    }
+
+    /**
+     * @return intervals since the peer was last heard from
+     */
+    public int getMissed() {
+        return mMissed.get();
+    }
+
+    private void tick() {
+        int missed = mMissed.getAndIncrement();
+        if (missed >= mMaxMissed) {
+            synchronized (this) {
+                if (mDead) {
+                    return;
+                }
+                mDead = true;
+            }
+            this.stop();
+            mOnHeartbeatListener.onPeerDead(missed);
+            return;
+        }
+        byte[] ping = new byte[1 + TIME_LENGTH];
+        ping[0] = TYPE_PING;
+        writeLong(System.nanoTime(), ping, 1);
+        mFrameWriter.write(ping, null);
+    }
+
+    private static void writeLong(long value, byte[] dest, int offset) {
+        for (int i = TIME_LENGTH - 1; i >= 0; i--) {
+            dest[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < TIME_LENGTH; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
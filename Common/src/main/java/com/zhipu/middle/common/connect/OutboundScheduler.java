@@ -0,0 +1,130 @@
+package com.zhipu.middle.common.connect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Picks the next outbound message by priority class: urgent before normal before bulk, first in
+ * first out within a class. A class that has messages waiting but was passed over
+ * {@code starvationLimit} times in a row gets the next turn, so a flood of urgent messages slows
+ * bulk traffic down but never stops it.
+ * <p>
+ * {@link #offer(Object, int)} may be called from any thread, {@link #poll()} only from one consumer
+ * at a time.
+ *
+ * @param <T> the queued message type
+ */
+public class OutboundScheduler<T> {
+    public static final int PRIORITY_URGENT = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BULK = 2;
+    public static final int DEFAULT_STARVATION_LIMIT = 4;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    private final List<ArrayBlockingQueue<T>> mQueues = new ArrayList<>(PRIORITY_COUNT);
+    private final int[] mPassedOver = new int[PRIORITY_COUNT];
+    private volatile int mStarvationLimit = DEFAULT_STARVATION_LIMIT;
+
+    /**
+     * @param capacity per class, so bulk traffic cannot fill up the room urgent messages need
+     */
+    public OutboundScheduler(int capacity) {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues.add(new ArrayBlockingQueue<T>(capacity));
+        }
+    }
+
+    public void setStarvationLimit(int starvationLimit) {
+        mStarvationLimit = Math.max(1, starvationLimit);
+    }
+
+    /**
+     * @return false if the class is full
+     */
+    public boolean offer(T message, int priority) {
+        return mQueues.get(checkPriority(priority)).offer(message);
+    }
+
+    /**
+     * @return the next message by priority and starvation protection, null if none
+     */
+    public T poll() {
+        int priority = this.select();
+        if (priority < 0) {
+            return null;
+        }
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            if (i == priority || mQueues.get(i).isEmpty()) {
+                mPassedOver[i] = 0;
+            } else if (i > priority) {
+                mPassedOver[i]++;
+            }
+        }
+        return mQueues.get(priority).poll();
+    }
+
+    /**
+     * Take the head of one class without counting it as a turn, e.g. to coalesce more messages of
+     * the class that just had its turn.
+     */
+    public T poll(int priority) {
+        return mQueues.get(checkPriority(priority)).poll();
+    }
+
+    /**
+     * @return the head of the given class, null if it is empty
+     */
+    public T peek(int priority) {
+        return mQueues.get(checkPriority(priority)).peek();
+    }
+
+    public boolean isEmpty() {
+        for (ArrayBlockingQueue<T> queue : mQueues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        for (ArrayBlockingQueue<T> queue : mQueues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public int size(int priority) {
+        return mQueues.get(checkPriority(priority)).size();
+    }
+
+    private int select() {
+        int selected = -1;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            if (!mQueues.get(i).isEmpty()) {
+                selected = i;
+                break;
+            }
+        }
+        if (selected < 0) {
+            return -1;
+        }
+        int starvationLimit = mStarvationLimit;
+        for (int i = selected + 1; i < PRIORITY_COUNT; i++) {
+            if (mPassedOver[i] >= starvationLimit && !mQueues.get(i).isEmpty()) {
+                return i;
+            }
+        }
+        return selected;
+    }
+
+    private static int checkPriority(int priority) {
+        if (priority < PRIORITY_URGENT || priority > PRIORITY_BULK) {
+            throw new IllegalArgumentException("unknown priority: " + priority);
+        }
+        return priority;
+    }
+}
@@ -0,0 +1,526 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Store-and-forward queue for messages written while the link is down. Every message is appended
+ * to a journal file before {@link #write(byte[], OnWriteListener)} returns, so it survives the
+ * link and the process going away. Once a link is {@link #attach(FrameWriter) attached} the
+ * messages are replayed in the order they were written, at most {@code maxMessagesPerSecond}
+ * and {@code maxInFlight} unacknowledged at a time, so a long backlog does not flood the write
+ * queue after a reconnect.
+ * <p>
+ * A message is acknowledged when its link write reaches the socket. A write the link refuses or
+ * fails is tried again on the same link after a backoff, which doubles with every failure in a
+ * row up to {@value #MAX_RETRY_MILLIS}ms; only {@link #detach()}, called when the connection
+ * itself reports the link down, gives the link up. The unacknowledged messages then go out again
+ * on the next attach, so the peer sees every message at least once and may see one twice.
+ * Acknowledged messages are dropped from the journal once they take up {@code compactBytes}: the
+ * live records are copied into a new file that replaces the old one, or the file is just
+ * truncated if nothing is left.
+ * <p>
+ * Journal records are a type byte, a sequence number, the payload length and its CRC32, then
+ * the payload. Acknowledgements are records without payload. A record torn by a crash is cut off
+ * when the journal is opened again. Message records are forced to disk, acknowledgements are
+ * not: losing one only means the message is sent again.
+ */
+public class Outbox implements FrameWriter {
+    public static final int DEFAULT_MAX_MESSAGES_PER_SECOND = 50;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final long DEFAULT_COMPACT_BYTES = 64 * 1024;
+    public static final long MAX_RETRY_MILLIS = 30 * 1000;
+
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int HEADER_LENGTH = 1 + 8 + 4 + 4;
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final File mFile;
+    private final ScheduledExecutorService mScheduler;
+    private final int mMaxMessagesPerSecond;
+    private final int mMaxInFlight;
+    private final long mCompactBytes;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(HEADER_LENGTH);
+    /**
+     * Messages not sent on the current link yet, oldest first
+     */
+    private final ArrayDeque<Entry> mUnsent = new ArrayDeque<>();
+    /**
+     * Messages sent on the current link and waiting for their write to complete, oldest first
+     */
+    private final ArrayDeque<Entry> mInFlight = new ArrayDeque<>();
+    private FileChannel mChannel;
+    private long mNextSeq = 1;
+    private long mDeadBytes;
+    private FrameWriter mLink;
+    /**
+     * Bumped on every attach and detach, write callbacks of an older link only acknowledge
+     */
+    private int mGeneration;
+    private double mTokens;
+    private long mLastRefillNanos;
+    private ScheduledFuture<?> mDrainTimer;
+    private long mRetryMillis;
+    private long mRetryAtNanos;
+    private boolean mClosed;
+
+    public Outbox(File file) throws IOException {
+        this(file, EventLoop.getDefault().getScheduler(), DEFAULT_MAX_MESSAGES_PER_SECOND,
+                DEFAULT_MAX_IN_FLIGHT, DEFAULT_COMPACT_BYTES);
+    }
+
+    /**
+     * Open the journal, creating it if needed, and queue the messages it still holds.
+     *
+     * @param scheduler            runs the paced replay
+     * @param maxMessagesPerSecond replay rate, a quarter second's worth may go out at once
+     * @param maxInFlight          messages written to the link and not yet acknowledged
+     * @param compactBytes         acknowledged bytes in the journal that trigger a compaction
+     */
+    public Outbox(File file, ScheduledExecutorService scheduler, int maxMessagesPerSecond,
+                  int maxInFlight, long compactBytes) throws IOException {
+        mFile = file;
+        mScheduler = scheduler;
+        mMaxMessagesPerSecond = maxMessagesPerSecond;
+        mMaxInFlight = maxInFlight;
+        mCompactBytes = compactBytes;
+        mChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            this.load();
+        } catch (IOException e) {
+            closeQuietly(mChannel);
+            throw e;
+        }
+        mTokens = this.getBurst();
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Journal a message and send it as soon as a link and the replay rate allow. The listener
+     * hears about the write that reaches the socket, never about a failed attempt, which is
+     * retried on the next link.
+     *
+     * @return false if the outbox is closed or the journal could not be written
+     */
+    @Override
+    public synchronized boolean write(byte[] data, OnWriteListener listener) {
+        if (mClosed) {
+            return false;
+        }
+        long seq = mNextSeq;
+        long offset;
+        try {
+            offset = this.append(TYPE_MESSAGE, seq, data);
+            mChannel.force(false);
+        } catch (IOException e) {
+            return false;
+        }
+        mNextSeq++;
+        mUnsent.add(new Entry(seq, offset, data.length, listener));
+        this.drain();
+        return true;
+    }
+
+    /**
+     * Start replaying the journal over a link, e.g. from
+     * {@link com.zhipu.middle.common.callback.OnConnectListener#onConnect}.
+     */
+    public synchronized void attach(FrameWriter link) {
+        if (mClosed) {
+            return;
+        }
+        this.requeueInFlight();
+        mLink = link;
+        mRetryMillis = 0;
+        mRetryAtNanos = 0;
+        this.drain();
+    }
+
+    /**
+     * Stop writing to the link, messages it did not complete are sent again on the next attach.
+     */
+    public synchronized void detach() {
+        this.requeueInFlight();
+        mLink = null;
+        this.cancelDrainTimer();
+    }
+
+    public synchronized boolean isAttached() {
+        return mLink != null;
+    }
+
+    /**
+     * @return messages journaled and not acknowledged yet
+     */
+    public synchronized int getPendingCount() {
+        return mUnsent.size() + mInFlight.size();
+    }
+
+    public synchronized long getJournalBytes() {
+        try {
+            return mClosed ? 0 : mChannel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return delay before the replay is tried again, 0 unless the last write failed
+     */
+    public synchronized long getRetryMillis() {
+        return mRetryMillis;
+    }
+
+    /**
+     * Detach and close the journal. Pending messages stay in it for the next Outbox on the file.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        this.detach();
+        mClosed = true;
+        closeQuietly(mChannel);
+    }
+
+    /**
+     * Send what the rate and the in-flight limit allow, and come back later for the rest.
+     */
+    private void drain() {
+        FrameWriter link = mLink;
+        if (link == null) {
+            return;
+        }
+        long backoffNanos = mRetryAtNanos - System.nanoTime();
+        if (mRetryMillis > 0 && backoffNanos > 0) {
+            this.scheduleDrain(TimeUnit.NANOSECONDS.toMillis(backoffNanos) + 1);
+            return;
+        }
+        this.refillTokens();
+        while (!mUnsent.isEmpty() && mInFlight.size() < mMaxInFlight) {
+            if (mTokens < 1) {
+                this.scheduleDrain((long) Math.ceil((1 - mTokens) * 1000 / mMaxMessagesPerSecond));
+                return;
+            }
+            Entry entry = mUnsent.peek();
+            byte[] data;
+            try {
+                data = this.readPayload(entry);
+            } catch (IOException e) {
+                // The record was checked when it was written or loaded, retry it later
+                this.scheduleDrain(1000 / mMaxMessagesPerSecond + 1);
+                return;
+            }
+            mUnsent.poll();
+            mInFlight.add(entry);
+            mTokens--;
+            int generation = mGeneration;
+            long retryAtNanos = mRetryAtNanos;
+            if (!link.write(data, new AckListener(entry, generation))) {
+                // Write queue full or link gone, try again once it had a moment to drain
+                mInFlight.remove(entry);
+                mUnsent.addFirst(entry);
+                this.backOff();
+                return;
+            }
+            if (mGeneration != generation || mRetryAtNanos != retryAtNanos) {
+                // The link failed the write before returning, its backoff holds the rest back
+                return;
+            }
+        }
+    }
+
+    private void scheduleDrain(long delayMillis) {
+        if (mDrainTimer != null) {
+            return;
+        }
+        try {
+            mDrainTimer = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Outbox.this) {
+                        mDrainTimer = null;
+                        drain();
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Scheduler shut down, the next write or attach drains again
+        }
+    }
+
+    /**
+     * Hold the replay back for the next retry delay, doubling it for every failure in a row.
+     */
+    private void backOff() {
+        long baseMillis = 1000 / mMaxMessagesPerSecond + 1;
+        mRetryMillis = mRetryMillis == 0 ? baseMillis : Math.min(MAX_RETRY_MILLIS, mRetryMillis * 2);
+        mRetryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mRetryMillis);
+        this.cancelDrainTimer();
+        this.scheduleDrain(mRetryMillis);
+    }
+
+    private void cancelDrainTimer() {
+        if (mDrainTimer != null) {
+            mDrainTimer.cancel(false);
+            mDrainTimer = null;
+        }
+    }
+
+    private void refillTokens() {
+        long now = System.nanoTime();
+        mTokens = Math.min(this.getBurst(),
+                mTokens + (now - mLastRefillNanos) * mMaxMessagesPerSecond / 1e9);
+        mLastRefillNanos = now;
+    }
+
+    private int getBurst() {
+        return Math.max(1, mMaxMessagesPerSecond / 4);
+    }
+
+    /**
+     * Put the messages of the current link back in front of the unsent ones, in order.
+     */
+    private void requeueInFlight() {
+        mGeneration++;
+        Iterator<Entry> iterator = mInFlight.descendingIterator();
+        while (iterator.hasNext()) {
+            mUnsent.addFirst(iterator.next());
+        }
+        mInFlight.clear();
+    }
+
+    private synchronized void onWriteComplete(Entry entry, int generation, int length) {
+        if (mClosed || entry.acked) {
+            return;
+        }
+        entry.acked = true;
+        mRetryMillis = 0;
+        if (!mInFlight.remove(entry)) {
+            // Completed after its link was dropped, the message must not go out again
+            mUnsent.remove(entry);
+        }
+        try {
+            this.append(TYPE_ACK, entry.seq, null);
+            mDeadBytes += HEADER_LENGTH * 2 + entry.length;
+            this.maybeCompact();
+        } catch (IOException e) {
+            // Without the ack record the message is just sent again after a restart
+        }
+        if (entry.listener != null) {
+            entry.listener.onWriteComplete(length);
+        }
+        if (generation == mGeneration) {
+            this.drain();
+        }
+    }
+
+    private synchronized void onWriteFailed(Entry entry, int generation) {
+        if (mClosed || entry.acked || generation != mGeneration) {
+            return;
+        }
+        // Resend from the failed message on, in order, once the link had time to recover
+        this.requeueInFlight();
+        this.backOff();
+    }
+
+    /**
+     * @return position of the payload
+     */
+    private long append(byte type, long seq, byte[] data) throws IOException {
+        int length = data == null ? 0 : data.length;
+        long position = mChannel.size();
+        mHeader.clear();
+        mHeader.put(type).putLong(seq).putInt(length).putInt(data == null ? 0 : crc(data, 0, length));
+        mHeader.flip();
+        writeFully(mChannel, mHeader, position);
+        if (data != null) {
+            writeFully(mChannel, ByteBuffer.wrap(data), position + HEADER_LENGTH);
+        }
+        return position + HEADER_LENGTH;
+    }
+
+    private byte[] readPayload(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(mChannel, buffer, entry.offset);
+        return buffer.array();
+    }
+
+    /**
+     * Rebuild the pending messages from the journal, dropping a torn or corrupt tail.
+     */
+    private void load() throws IOException {
+        Map<Long, Entry> pending = new LinkedHashMap<>();
+        long size = mChannel.size();
+        long position = 0;
+        while (position + HEADER_LENGTH <= size) {
+            mHeader.clear();
+            readFully(mChannel, mHeader, position);
+            mHeader.flip();
+            byte type = mHeader.get();
+            long seq = mHeader.getLong();
+            int length = mHeader.getInt();
+            int crc = mHeader.getInt();
+            long payload = position + HEADER_LENGTH;
+            if (length < 0 || payload + length > size || (type != TYPE_MESSAGE && type != TYPE_ACK)) {
+                break;
+            }
+            if (type == TYPE_MESSAGE) {
+                ByteBuffer data = ByteBuffer.allocate(length);
+                readFully(mChannel, data, payload);
+                if (crc(data.array(), 0, length) != crc) {
+                    break;
+                }
+                pending.put(seq, new Entry(seq, payload, length, null));
+            } else {
+                pending.remove(seq);
+            }
+            mNextSeq = Math.max(mNextSeq, seq + 1);
+            position = payload + length;
+        }
+        if (position < size) {
+            mChannel.truncate(position);
+            mChannel.force(false);
+        }
+        mDeadBytes = position - this.liveBytes(pending.values());
+        mUnsent.addAll(pending.values());
+        this.maybeCompact();
+    }
+
+    private long liveBytes(Iterable<Entry> entries) {
+        long bytes = 0;
+        for (Entry entry : entries) {
+            bytes += HEADER_LENGTH + entry.length;
+        }
+        return bytes;
+    }
+
+    private void maybeCompact() throws IOException {
+        if (mDeadBytes < mCompactBytes) {
+            return;
+        }
+        if (mUnsent.isEmpty() && mInFlight.isEmpty()) {
+            mChannel.truncate(0);
+            mChannel.force(false);
+            mDeadBytes = 0;
+            return;
+        }
+
+        File compactFile = new File(mFile.getPath() + COMPACT_SUFFIX);
+        FileChannel compact = new RandomAccessFile(compactFile, "rw").getChannel();
+        try {
+            compact.truncate(0);
+            long position = 0;
+            // Keep the journal order: messages of the current link were written first
+            ArrayDeque<Entry> live = new ArrayDeque<>(mInFlight);
+            live.addAll(mUnsent);
+            long[] offsets = new long[live.size()];
+            int i = 0;
+            for (Entry entry : live) {
+                long length = HEADER_LENGTH + entry.length;
+                long copied = 0;
+                while (copied < length) {
+                    copied += mChannel.transferTo(entry.offset - HEADER_LENGTH + copied,
+                            length - copied, compact);
+                }
+                offsets[i++] = position + HEADER_LENGTH;
+                position += length;
+            }
+            compact.force(false);
+            if (!compactFile.renameTo(mFile)) {
+                throw new IOException("rename " + compactFile + " failed");
+            }
+            i = 0;
+            for (Entry entry : live) {
+                entry.offset = offsets[i++];
+            }
+        } catch (IOException e) {
+            closeQuietly(compact);
+            compactFile.delete();
+            throw e;
+        }
+        closeQuietly(mChannel);
+        mChannel = compact;
+        mDeadBytes = 0;
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("journal ends at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Every record that matters was forced already
+        }
+    }
+
+    private static class Entry {
+        private final long seq;
+        private final int length;
+        private final OnWriteListener listener;
+        private long offset;
+        private boolean acked;
+
+        Entry(long seq, long offset, int length, OnWriteListener listener) {
+            this.seq = seq;
+            this.offset = offset;
+            this.length = length;
+            this.listener = listener;
+        }
+    }
+
+    private class AckListener implements OnWriteListener {
+        private final Entry mEntry;
+        private final int mGeneration;
+
+        AckListener(Entry entry, int generation) {
+            mEntry = entry;
+            mGeneration = generation;
+        }
+
+        @Override
+        public void onWriteComplete(int length) {
+            Outbox.this.onWriteComplete(mEntry, mGeneration, length);
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            Outbox.this.onWriteFailed(mEntry, mGeneration);
+        }
+    }
+}
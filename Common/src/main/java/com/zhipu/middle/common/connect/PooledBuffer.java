@@ -0,0 +1,72 @@
+package com.zhipu.middle.common.connect;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A slice of a {@link BufferPool} slab lent to a consumer. The data lives in
+ * {@code array()[offset() .. offset() + length())}; the consumer must call {@link #release()}
+ * exactly once when done with it and must not touch the array afterwards.
+ * <p>
+ * Frames larger than the pool's buffer size are delivered in an unpooled buffer of their own,
+ * whose release is a no-op.
+ */
+public final class PooledBuffer {
+    private final BufferPool mPool;
+    private final byte[] mArray;
+    private final int mOffset;
+    private final int mCapacity;
+    private final AtomicBoolean mReleased = new AtomicBoolean(false);
+    private int mLength;
+
+    PooledBuffer(BufferPool pool, byte[] array, int offset, int capacity) {
+        mPool = pool;
+        mArray = array;
+        mOffset = offset;
+        mCapacity = capacity;
+    }
+
+    static PooledBuffer unpooled(int capacity) {
+        return new PooledBuffer(null, new byte[capacity], 0, capacity);
+    }
+
+    public byte[] array() {
+        return mArray;
+    }
+
+    public int offset() {
+        return mOffset;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Copy the bytes into this buffer, replacing its previous content.
+     */
+    public void put(byte[] data, int offset, int length) {
+        if (length > mCapacity) {
+            throw new IllegalArgumentException("length " + length + " exceeds capacity " + mCapacity);
+        }
+        System.arraycopy(data, offset, mArray, mOffset, length);
+        mLength = length;
+    }
+
+    public void release() {
+        if (!mReleased.compareAndSet(false, true)) {
+            throw new IllegalStateException("buffer released twice");
+        }
+        if (mPool != null) {
+            mPool.recycle(this);
+        }
+    }
+
+    void onAcquire() {
+        mLength = 0;
+        mReleased.set(false);
+    }
+}
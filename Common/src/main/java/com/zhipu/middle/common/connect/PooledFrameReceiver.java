@@ -0,0 +1,35 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnReceiveBufferListener;
+
+/**
+ * Receive path that copies each decoded frame into a buffer borrowed from a {@link BufferPool}
+ * and hands it to an {@link OnReceiveBufferListener}. Once the pool and the decoder are warm,
+ * delivering a frame that fits a pooled buffer allocates nothing.
+ */
+public class PooledFrameReceiver implements FrameDecoder.OnFrameListener {
+    private final BufferPool mBufferPool;
+    private final OnReceiveBufferListener mOnReceiveBufferListener;
+
+    public PooledFrameReceiver(BufferPool bufferPool, OnReceiveBufferListener onReceiveBufferListener) {
+        mBufferPool = bufferPool;
+        mOnReceiveBufferListener = onReceiveBufferListener;
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        PooledBuffer pooledBuffer;
+        if (length > mBufferPool.getBufferSize()) {
+            pooledBuffer = PooledBuffer.unpooled(length);
+        } else {
+            try {
+                pooledBuffer = mBufferPool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        pooledBuffer.put(buffer, offset, length);
+        mOnReceiveBufferListener.onReceiveBuffer(pooledBuffer);
+    }
+}
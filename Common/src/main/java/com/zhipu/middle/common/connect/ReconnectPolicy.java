@@ -0,0 +1,62 @@
+package com.zhipu.middle.common.connect;
+
+import java.util.Random;
+
+/**
+ * When to retry a dropped client connection: a fast first retry, then exponentially growing
+ * delays capped at {@code maxDelayMillis}, each randomised by +/- {@code jitter} so that several
+ * devices losing the same link do not retry in lockstep.
+ */
+public class ReconnectPolicy {
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(200, 1000, 30 * 1000, 2.0, 0.2, 10);
+
+    private final long mFirstDelayMillis;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+
+    /**
+     * @param firstDelayMillis delay before the first attempt, without jitter
+     * @param baseDelayMillis  delay before the second attempt, multiplied for every further one
+     * @param jitter           fraction of the delay, between 0 and 1, added or subtracted at random
+     * @param maxAttempts      attempts before giving up, 0 for no limit
+     */
+    public ReconnectPolicy(long firstDelayMillis, long baseDelayMillis, long maxDelayMillis,
+                           double multiplier, double jitter, int maxAttempts) {
+        if (jitter < 0 || jitter > 1 || multiplier < 1) {
+            throw new IllegalArgumentException("jitter: " + jitter + ", multiplier: " + multiplier);
+        }
+        mFirstDelayMillis = firstDelayMillis;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param attempt 1 for the first attempt
+     * @return delay in milliseconds before that attempt
+     */
+    public long getDelayMillis(int attempt, Random random) {
+        if (attempt <= 1) {
+            return mFirstDelayMillis;
+        }
+        double delay = Math.min(mMaxDelayMillis, mBaseDelayMillis * Math.pow(mMultiplier, attempt - 2));
+        delay += delay * mJitter * (2 * random.nextDouble() - 1);
+        return Math.max(0, Math.min(mMaxDelayMillis, Math.round(delay)));
+    }
+
+    /**
+     * @return true if another attempt may follow the given number of failed ones
+     */
+    public boolean canRetry(int failedAttempts) {
+        return mMaxAttempts == 0 || failedAttempts < mMaxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -0,0 +1,192 @@
+package com.zhipu.middle.common.connect;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-dials the last peer after a client connection dropped, following a {@link ReconnectPolicy}.
+ * Dialing goes through a {@link SocketFactory}, so the whole retry logic runs against a fake
+ * factory on the JVM.
+ *
+ * @param <T> the connected socket type
+ */
+public class Reconnector<T extends Closeable> {
+
+    public interface SocketFactory<T> {
+        /**
+         * Blocking connect, called on the dial executor.
+         */
+        T connect(String address, boolean secure) throws IOException;
+    }
+
+    public interface Callback<T> {
+        void onReconnected(T socket, int attempts, long elapsedMillis);
+
+        void onGiveUp(int attempts, IOException lastError);
+    }
+
+    private final ReconnectPolicy mPolicy;
+    private final SocketFactory<T> mSocketFactory;
+    private final Callback<T> mCallback;
+    private final ScheduledExecutorService mExecutor;
+    private final Executor mDialExecutor;
+    private final Random mRandom;
+
+    private String mAddress;
+    private boolean mSecure;
+    private int mAttempts;
+    private long mStartMillis;
+    private ScheduledFuture<?> mPendingAttempt;
+    private int mGeneration;
+
+    private long mReconnectCount;
+    private long mLastReconnectMillis;
+    private long mTotalReconnectMillis;
+    private long mFailedAttempts;
+
+    public Reconnector(ReconnectPolicy policy, SocketFactory<T> socketFactory, Callback<T> callback,
+                       ScheduledExecutorService executor, Random random) {
+        this(policy, socketFactory, callback, executor, executor, random);
+    }
+
+    /**
+     * @param executor     times the attempts, may be a shared {@link EventLoop} thread
+     * @param dialExecutor runs the blocking connect
+     */
+    public Reconnector(ReconnectPolicy policy, SocketFactory<T> socketFactory, Callback<T> callback,
+                       ScheduledExecutorService executor, Executor dialExecutor, Random random) {
+        mPolicy = policy;
+        mSocketFactory = socketFactory;
+        mCallback = callback;
+        mExecutor = executor;
+        mDialExecutor = dialExecutor;
+        mRandom = random;
+    }
+
+    /**
+     * Start re-dialing the address. Does nothing if already reconnecting to it.
+     */
+    public synchronized void start(String address, boolean secure) {
+        if (this.isRunning() && address.equals(mAddress)) {
+            return;
+        }
+        this.cancel();
+        mAddress = address;
+        mSecure = secure;
+        mAttempts = 0;
+        mStartMillis = System.currentTimeMillis();
+        this.scheduleNext();
+    }
+
+    public synchronized void cancel() {
+        mGeneration++;
+        if (mPendingAttempt != null) {
+            mPendingAttempt.cancel(false);
+            mPendingAttempt = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mPendingAttempt != null;
+    }
+
+    public synchronized long getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * @return time from the start of the last successful reconnect sequence to the connection
+     */
+    public synchronized long getLastReconnectMillis() {
+        return mLastReconnectMillis;
+    }
+
+    public synchronized long getAverageReconnectMillis() {
+        return mReconnectCount == 0 ? 0 : mTotalReconnectMillis / mReconnectCount;
+    }
+
+    public synchronized long getFailedAttempts() {
+        return mFailedAttempts;
+    }
+
+    private void scheduleNext() {
+        final int generation = mGeneration;
+        long delay = mPolicy.getDelayMillis(mAttempts + 1, mRandom);
+        final Runnable attempt = new Runnable() {
+            @Override
+            public void run() {
+                attempt(generation);
+            }
+        };
+        mPendingAttempt = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mDialExecutor == mExecutor) {
+                    attempt.run();
+                } else {
+                    mDialExecutor.execute(attempt);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(int generation) {
+        String address;
+        boolean secure;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mAttempts++;
+            address = mAddress;
+            secure = mSecure;
+        }
+
+        T socket;
+        try {
+            socket = mSocketFactory.connect(address, secure);
+        } catch (IOException e) {
+            int attempts;
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mFailedAttempts++;
+                if (mPolicy.canRetry(mAttempts)) {
+                    this.scheduleNext();
+                    return;
+                }
+                attempts = mAttempts;
+                mPendingAttempt = null;
+            }
+            mCallback.onGiveUp(attempts, e);
+            return;
+        }
+
+        int attempts;
+        long elapsedMillis;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                // Cancelled while dialing, nobody wants this connection any more
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing to do about a socket we are discarding
+                }
+                return;
+            }
+            mPendingAttempt = null;
+            attempts = mAttempts;
+            elapsedMillis = System.currentTimeMillis() - mStartMillis;
+            mReconnectCount++;
+            mLastReconnectMillis = elapsedMillis;
+            mTotalReconnectMillis += elapsedMillis;
+        }
+        mCallback.onReconnected(socket, attempts, elapsedMillis);
+    }
+}
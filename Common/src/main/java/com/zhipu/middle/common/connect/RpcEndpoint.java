@@ -0,0 +1,320 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request/response calls over a {@link FrameWriter}. Every request carries a call id that its
+ * response echoes, so any number of calls can be in flight at once and responses may come back
+ * in any order. Each call has its own timeout.
+ * <p>
+ * Both ends can call and serve: register a {@link Handler} per method name, requests for other
+ * methods are answered with {@link RpcException#STATUS_NO_SUCH_METHOD}. Handlers run on the
+ * reader thread that delivered the request, one at a time.
+ * <p>
+ * A request frame is {@code 1}, the call id, a length-prefixed UTF-8 method name and the
+ * payload; a response frame is {@code 2}, the call id, a status byte and the result or error
+ * message. Plain payloads pass through {@link #write(byte[], OnWriteListener)}: they only get a
+ * {@code 0} type byte in front if they start with a byte that could be mistaken for a call, so a
+ * peer without an RpcEndpoint still receives text unchanged.
+ */
+public class RpcEndpoint implements FrameWriter, FrameDecoder.OnFrameListener {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private static final byte TYPE_DATA = 0;
+    private static final byte TYPE_REQUEST = 1;
+    private static final byte TYPE_RESPONSE = 2;
+    private static final byte STATUS_OK = 0;
+    private static final int CALL_HEADER_LENGTH = 1 + 4;
+    private static final int MAX_METHOD_LENGTH = 255;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface Handler {
+        /**
+         * Serve one request. The return value is the response payload, a thrown exception is
+         * sent to the caller as an {@link RpcException} with its message.
+         */
+        byte[] handle(byte[] request) throws Exception;
+    }
+
+    private final FrameWriter mFrameWriter;
+    private final FrameDecoder.OnFrameListener mOnFrameListener;
+    private final ScheduledExecutorService mScheduler;
+    private final int mMaxInFlight;
+    private final ConcurrentMap<String, Handler> mHandlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, PendingCall> mPending = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextCallId = new AtomicInteger();
+    /**
+     * Slots taken by calls in mPending, reserved before a call is added and freed by whoever
+     * removes it
+     */
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    public RpcEndpoint(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener) {
+        this(frameWriter, onFrameListener, EventLoop.getDefault().getScheduler(), DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param scheduler   runs the call timeouts
+     * @param maxInFlight calls waiting for a response before new calls fail right away
+     */
+    public RpcEndpoint(FrameWriter frameWriter, FrameDecoder.OnFrameListener onFrameListener,
+                       ScheduledExecutorService scheduler, int maxInFlight) {
+        mFrameWriter = frameWriter;
+        mOnFrameListener = onFrameListener;
+        mScheduler = scheduler;
+        mMaxInFlight = maxInFlight;
+    }
+
+    public void registerHandler(String method, Handler handler) {
+        mHandlers.put(method, handler);
+    }
+
+    public void unregisterHandler(String method) {
+        mHandlers.remove(method);
+    }
+
+    public RpcFuture call(String method, byte[] request) {
+        return this.call(method, request, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Send a request without waiting for the response.
+     *
+     * @return completed with the response, or failed on error, timeout or a link failure
+     */
+    public RpcFuture call(String method, byte[] request, long timeoutMillis) {
+        RpcFuture future = new RpcFuture();
+        byte[] methodBytes = method.getBytes(UTF_8);
+        if (methodBytes.length > MAX_METHOD_LENGTH) {
+            future.fail(new IllegalArgumentException("method name too long: " + method));
+            return future;
+        }
+        if (!this.reserveSlot()) {
+            future.fail(new IOException("too many calls in flight: " + mMaxInFlight));
+            return future;
+        }
+
+        final int callId = mNextCallId.incrementAndGet();
+        byte[] frame = new byte[CALL_HEADER_LENGTH + 1 + methodBytes.length + request.length];
+        frame[0] = TYPE_REQUEST;
+        writeInt(callId, frame, 1);
+        frame[CALL_HEADER_LENGTH] = (byte) methodBytes.length;
+        System.arraycopy(methodBytes, 0, frame, CALL_HEADER_LENGTH + 1, methodBytes.length);
+        System.arraycopy(request, 0, frame, CALL_HEADER_LENGTH + 1 + methodBytes.length, request.length);
+
+        final PendingCall pendingCall = new PendingCall(method, future);
+        mPending.put(callId, pendingCall);
+        future.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                if (remove(callId, pendingCall)) {
+                    cancelTimeout(pendingCall);
+                }
+            }
+        });
+        try {
+            pendingCall.timeout = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (remove(callId, pendingCall)) {
+                        pendingCall.future.fail(new TimeoutException(pendingCall.method + " timed out"));
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (this.remove(callId, pendingCall)) {
+                future.fail(new IOException("rpc scheduler shut down"));
+            }
+            return future;
+        }
+        if (!mFrameWriter.write(frame, null)) {
+            this.finish(callId, null, new IOException("request not accepted: " + method));
+        }
+        return future;
+    }
+
+    /**
+     * Fail every call waiting for a response, e.g. when the link went down.
+     */
+    public void failPending(String reason) {
+        List<Integer> callIds = new ArrayList<>(mPending.keySet());
+        for (Integer callId : callIds) {
+            this.finish(callId, null, new IOException(reason));
+        }
+    }
+
+    public int getInFlightCount() {
+        return mInFlight.get();
+    }
+
+    @Override
+    public boolean write(byte[] data, OnWriteListener listener) {
+        if (data.length > 0 && isPlain(data[0])) {
+            return mFrameWriter.write(data, listener);
+        }
+        byte[] frame = new byte[data.length + 1];
+        frame[0] = TYPE_DATA;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        return mFrameWriter.write(frame, listener);
+    }
+
+    @Override
+    public void onFrame(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        byte type = buffer[offset];
+        if (type == TYPE_DATA) {
+            mOnFrameListener.onFrame(buffer, offset + 1, length - 1);
+        } else if (type == TYPE_REQUEST && length > CALL_HEADER_LENGTH) {
+            this.onRequest(readInt(buffer, offset + 1), buffer, offset + CALL_HEADER_LENGTH,
+                    offset + length);
+        } else if (type == TYPE_RESPONSE && length > CALL_HEADER_LENGTH) {
+            this.onResponse(readInt(buffer, offset + 1), buffer, offset + CALL_HEADER_LENGTH,
+                    offset + length);
+        } else if (isPlain(type)) {
+            mOnFrameListener.onFrame(buffer, offset, length);
+        }
+    }
+
+    private void onRequest(int callId, byte[] buffer, int offset, int end) {
+        int methodLength = buffer[offset] & 0xFF;
+        int payloadOffset = offset + 1 + methodLength;
+        if (payloadOffset > end) {
+            return;
+        }
+        String method = new String(buffer, offset + 1, methodLength, UTF_8);
+        byte[] request = new byte[end - payloadOffset];
+        System.arraycopy(buffer, payloadOffset, request, 0, request.length);
+
+        Handler handler = mHandlers.get(method);
+        byte status;
+        byte[] result;
+        if (handler == null) {
+            status = RpcException.STATUS_NO_SUCH_METHOD;
+            result = ("no such method: " + method).getBytes(UTF_8);
+        } else {
+            try {
+                result = handler.handle(request);
+                status = STATUS_OK;
+                if (result == null) {
+                    result = new byte[0];
+                }
+            } catch (Exception e) {
+                status = RpcException.STATUS_HANDLER_FAILED;
+                result = String.valueOf(e.getMessage()).getBytes(UTF_8);
+            }
+        }
+
+        byte[] frame = new byte[CALL_HEADER_LENGTH + 1 + result.length];
+        frame[0] = TYPE_RESPONSE;
+        writeInt(callId, frame, 1);
+        frame[CALL_HEADER_LENGTH] = status;
+        System.arraycopy(result, 0, frame, CALL_HEADER_LENGTH + 1, result.length);
+        mFrameWriter.write(frame, null);
+    }
+
+    private void onResponse(int callId, byte[] buffer, int offset, int end) {
+        byte status = buffer[offset];
+        byte[] result = new byte[end - offset - 1];
+        System.arraycopy(buffer, offset + 1, result, 0, result.length);
+        if (status == STATUS_OK) {
+            this.finish(callId, result, null);
+        } else {
+            this.finish(callId, null, new RpcException(status, new String(result, UTF_8)));
+        }
+    }
+
+    /**
+     * A response that comes after the timeout finds nothing here and is dropped.
+     */
+    private void finish(int callId, byte[] response, Exception error) {
+        PendingCall pendingCall = mPending.get(callId);
+        if (pendingCall == null || !this.remove(callId, pendingCall)) {
+            return;
+        }
+        cancelTimeout(pendingCall);
+        if (error == null) {
+            pendingCall.future.complete(response);
+        } else {
+            pendingCall.future.fail(error);
+        }
+    }
+
+    /**
+     * Take an in-flight slot without ever going over the limit, however many threads call.
+     */
+    private boolean reserveSlot() {
+        while (true) {
+            int inFlight = mInFlight.get();
+            if (inFlight >= mMaxInFlight) {
+                return false;
+            }
+            if (mInFlight.compareAndSet(inFlight, inFlight + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove a call and free its slot, only the one caller that actually removed it gets true.
+     */
+    private boolean remove(int callId, PendingCall pendingCall) {
+        if (!mPending.remove(callId, pendingCall)) {
+            return false;
+        }
+        mInFlight.decrementAndGet();
+        return true;
+    }
+
+    private static void cancelTimeout(PendingCall pendingCall) {
+        ScheduledFuture<?> timeout = pendingCall.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * @return true if a frame starting with this byte is a plain payload without type byte
+     */
+    private static boolean isPlain(byte first) {
+        return (first & 0xFF) > TYPE_RESPONSE;
+    }
+
+    private static void writeInt(int value, byte[] dest, int offset) {
+        dest[offset] = (byte) (value >>> 24);
+        dest[offset + 1] = (byte) (value >>> 16);
+        dest[offset + 2] = (byte) (value >>> 8);
+        dest[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) << 24 | (src[offset + 1] & 0xFF) << 16
+                | (src[offset + 2] & 0xFF) << 8 | src[offset + 3] & 0xFF;
+    }
+
+    private static class PendingCall {
+        private final String method;
+        private final RpcFuture future;
+        private volatile ScheduledFuture<?> timeout;
+
+        PendingCall(String method, RpcFuture future) {
+            this.method = method;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.zhipu.middle.common.connect;
+
+/**
+ * The peer answered a call with an error instead of a result.
+ */
+public class RpcException extends Exception {
+    public static final int STATUS_HANDLER_FAILED = 1;
+    public static final int STATUS_NO_SUCH_METHOD = 2;
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mStatus;
+
+    public RpcException(int status, String message) {
+        super(message);
+        mStatus = status;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+}
@@ -0,0 +1,143 @@
+package com.zhipu.middle.common.connect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an {@link RpcEndpoint#call(String, byte[], long)}. Block on it with {@link #get()} or
+ * register a {@link Callback}, which runs on the thread that completes the call: the reader
+ * thread for a response, the scheduler for a timeout, or the caller if it is already done.
+ * <p>
+ * A call fails with {@link RpcException} if the peer's handler failed or is missing,
+ * {@link TimeoutException} if no response came in time, and {@link java.io.IOException} if the
+ * request could not be sent or the link went down. {@link #cancel(boolean)} frees the call's
+ * in-flight slot right away, a late response is dropped.
+ */
+public class RpcFuture implements Future<byte[]> {
+
+    public interface Callback {
+        void onSuccess(byte[] response);
+
+        void onFailure(Exception e);
+    }
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private List<Callback> mCallbacks = new ArrayList<>();
+    private byte[] mResponse;
+    private Exception mError;
+    private Runnable mOnCancel;
+
+    /**
+     * @param callback called once, right away if the call is already done
+     */
+    public void addCallback(Callback callback) {
+        byte[] response;
+        Exception error;
+        synchronized (this) {
+            if (mCallbacks != null) {
+                mCallbacks.add(callback);
+                return;
+            }
+            response = mResponse;
+            error = mError;
+        }
+        notifyCallback(callback, response, error);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!this.fail(new CancellationException("call cancelled"))) {
+            return false;
+        }
+        Runnable onCancel;
+        synchronized (this) {
+            onCancel = mOnCancel;
+        }
+        if (onCancel != null) {
+            onCancel.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mError instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return this.getResult();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("no response within " + unit.toMillis(timeout) + "ms");
+        }
+        return this.getResult();
+    }
+
+    /**
+     * @param onCancel run once if the caller cancels, to forget the call
+     */
+    synchronized void setOnCancel(Runnable onCancel) {
+        mOnCancel = onCancel;
+    }
+
+    boolean complete(byte[] response) {
+        return this.finish(response, null);
+    }
+
+    boolean fail(Exception error) {
+        return this.finish(null, error);
+    }
+
+    private boolean finish(byte[] response, Exception error) {
+        List<Callback> callbacks;
+        synchronized (this) {
+            if (mCallbacks == null) {
+                return false;
+            }
+            mResponse = response;
+            mError = error;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+        mDone.countDown();
+        for (Callback callback : callbacks) {
+            notifyCallback(callback, response, error);
+        }
+        return true;
+    }
+
+    private synchronized byte[] getResult() throws ExecutionException {
+        if (mError instanceof CancellationException) {
+            throw (CancellationException) mError;
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResponse;
+    }
+
+    private static void notifyCallback(Callback callback, byte[] response, Exception error) {
+        if (error == null) {
+            callback.onSuccess(response);
+        } else {
+            callback.onFailure(error);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.metrics.Gauge;
+import com.zhipu.middle.common.metrics.MetricGroup;
+import com.zhipu.middle.common.metrics.MetricsRegistry;
+import com.zhipu.middle.common.transport.Transport;
+import com.zhipu.middle.common.transport.Transports;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One framed connection to one peer: a blocking reader feeding a {@link FrameDecoder}, a
+ * {@link WriteQueue} for outbound frames, and the session's state and metrics. Knows nothing
+ * about Bluetooth, it runs over any {@link Transport} or plain streams.
+ * <p>
+ * The reader and the writes run on the blocking pool of an {@link EventLoop}, batching timers on
+ * its loop thread, so sessions share threads instead of bringing their own.
+ */
+public class Session implements FrameWriter {
+    public static final int STATE_NEW = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_CLOSED = 2;
+
+    private final String mAddress;
+    private final InputStream mInputStream;
+    private final Closeable mCloseable;
+    private final WriteQueue mWriteQueue;
+    private final OnSessionListener mOnSessionListener;
+    private final EventLoop mEventLoop;
+    private final MetricGroup mMetricGroup;
+    private final SessionMetrics mMetrics;
+    private final AtomicInteger mState = new AtomicInteger(STATE_NEW);
+    private final Gauge mQueueDepthGauge = new Gauge() {
+        @Override
+        public long getValue() {
+            return mWriteQueue.getQueueDepth();
+        }
+    };
+    private volatile String mCloseReason;
+
+    public Session(Transport transport, OnSessionListener onSessionListener) {
+        this(transport, onSessionListener, EventLoop.getDefault());
+    }
+
+    public Session(Transport transport, OnSessionListener onSessionListener, EventLoop eventLoop) {
+        this(transport.getAddress(), Transports.inputStream(transport), Transports.outputStream(transport),
+                transport, onSessionListener, eventLoop);
+    }
+
+    public Session(String address, InputStream inputStream, OutputStream outputStream,
+                   Closeable closeable, OnSessionListener onSessionListener) {
+        this(address, inputStream, outputStream, closeable, onSessionListener, EventLoop.getDefault());
+    }
+
+    public Session(String address, InputStream inputStream, OutputStream outputStream,
+                   Closeable closeable, OnSessionListener onSessionListener, EventLoop eventLoop) {
+        mAddress = address;
+        mInputStream = inputStream;
+        mCloseable = closeable;
+        mEventLoop = eventLoop;
+        mWriteQueue = new WriteQueue(outputStream, eventLoop);
+        mOnSessionListener = onSessionListener;
+        mMetricGroup = MetricsRegistry.getDefault().getGroup(address);
+        mMetrics = new SessionMetrics(mMetricGroup);
+        mWriteQueue.setLatencyHistogram(mMetricGroup.histogram(MetricGroup.WRITE_LATENCY));
+    }
+
+    public void open() {
+        if (!mState.compareAndSet(STATE_NEW, STATE_OPEN)) {
+            return;
+        }
+        // Only an opened session owns the gauge, a rejected duplicate must not replace it
+        mMetricGroup.setGauge(MetricGroup.QUEUE_DEPTH, mQueueDepthGauge);
+        mWriteQueue.start();
+        mEventLoop.executeBlocking(new Reader());
+        mOnSessionListener.onSessionOpened(this);
+    }
+
+    /**
+     * Queue a payload for the peer without blocking.
+     *
+     * @return false if the session is not open or its write queue is full
+     */
+    @Override
+    public boolean write(byte[] data, OnWriteListener listener) {
+        return this.write(data, WriteQueue.PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * Queue a payload in a priority class of the write queue.
+     *
+     * @param priority one of {@link WriteQueue#PRIORITY_URGENT}, {@link WriteQueue#PRIORITY_NORMAL}
+     *                 and {@link WriteQueue#PRIORITY_BULK}
+     */
+    public boolean write(byte[] data, int priority, OnWriteListener listener) {
+        if (mState.get() != STATE_OPEN) {
+            return false;
+        }
+        boolean queued = mWriteQueue.enqueue(FrameCodec.encode(data), priority, listener);
+        if (queued) {
+            mMetrics.onFrameOut(data.length);
+        }
+        return queued;
+    }
+
+    public void close(String reason) {
+        int state = mState.getAndSet(STATE_CLOSED);
+        if (state == STATE_CLOSED) {
+            return;
+        }
+        mCloseReason = reason;
+        mMetricGroup.removeGauge(MetricGroup.QUEUE_DEPTH, mQueueDepthGauge);
+        mWriteQueue.close();
+        try {
+            mCloseable.close();
+        } catch (IOException ignored) {
+            // Closing only fails if the link is already gone
+        }
+        if (state == STATE_OPEN) {
+            mOnSessionListener.onSessionClosed(this, reason);
+        }
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getState() {
+        return mState.get();
+    }
+
+    public boolean isOpen() {
+        return mState.get() == STATE_OPEN;
+    }
+
+    public String getCloseReason() {
+        return mCloseReason;
+    }
+
+    public SessionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return the metrics of this peer in {@link MetricsRegistry#getDefault()}, shared with
+     * earlier sessions to the same address
+     */
+    public MetricGroup getMetricGroup() {
+        return mMetricGroup;
+    }
+
+    public WriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    private class Reader implements Runnable, FrameDecoder.OnFrameListener {
+
+        @Override
+        public void run() {
+            FrameDecoder frameDecoder = new FrameDecoder(this);
+            try {
+                while (isOpen()) {
+                    if (frameDecoder.readFrom(mInputStream) < 0) {
+                        close("end of stream");
+                    }
+                }
+            } catch (IOException e) {
+                close("read failed: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            mMetrics.onFrameIn(length);
+            byte[] data = new byte[length];
+            System.arraycopy(buffer, offset, data, 0, length);
+            mOnSessionListener.onSessionData(Session.this, data);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Session{address=" + mAddress + ", state=" + mState.get() + ", " + mMetrics + "}";
+    }
+}
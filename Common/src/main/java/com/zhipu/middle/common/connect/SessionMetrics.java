@@ -0,0 +1,81 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.metrics.Counter;
+import com.zhipu.middle.common.metrics.MetricGroup;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters of one {@link Session}. Updated from the session's reader and from writing
+ * threads, read from anywhere. The same traffic is also added to the session's
+ * {@link MetricGroup}, which outlives the session.
+ */
+public class SessionMetrics {
+    private final long mOpenedAtMillis = System.currentTimeMillis();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    private final Counter mGroupBytesIn;
+    private final Counter mGroupBytesOut;
+    private final Counter mGroupMessagesIn;
+    private final Counter mGroupMessagesOut;
+
+    SessionMetrics(MetricGroup metricGroup) {
+        mGroupBytesIn = metricGroup.counter(MetricGroup.BYTES_IN);
+        mGroupBytesOut = metricGroup.counter(MetricGroup.BYTES_OUT);
+        mGroupMessagesIn = metricGroup.counter(MetricGroup.MESSAGES_IN);
+        mGroupMessagesOut = metricGroup.counter(MetricGroup.MESSAGES_OUT);
+    }
+
+    void onFrameIn(int length) {
+        mFramesIn.incrementAndGet();
+        mBytesIn.addAndGet(length);
+        mGroupMessagesIn.increment();
+        mGroupBytesIn.add(length);
+    }
+
+    void onFrameOut(int length) {
+        mFramesOut.incrementAndGet();
+        mBytesOut.addAndGet(length);
+        mGroupMessagesOut.increment();
+        mGroupBytesOut.add(length);
+    }
+
+    public long getOpenedAtMillis() {
+        return mOpenedAtMillis;
+    }
+
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    /**
+     * Payload bytes accepted for sending, the session's write queue reports what reached the wire.
+     */
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    public long getFramesIn() {
+        return mFramesIn.get();
+    }
+
+    public long getFramesOut() {
+        return mFramesOut.get();
+    }
+
+    /**
+     * @return average received frames per second since the session opened
+     */
+    public double getFramesInPerSecond() {
+        long elapsedMillis = Math.max(1, System.currentTimeMillis() - mOpenedAtMillis);
+        return mFramesIn.get() * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionMetrics{bytesIn=" + getBytesIn() + ", bytesOut=" + getBytesOut()
+                + ", framesIn=" + getFramesIn() + ", framesOut=" + getFramesOut() + "}";
+    }
+}
@@ -0,0 +1,446 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded outbound queue, so callers never block on a slow link. Small writes that pile up while
+ * the socket is busy are coalesced into one socket write.
+ * <p>
+ * The queue is drained by tasks on an executor, at most one at a time. On an {@link EventLoop}
+ * the drains, which block on the socket, run on its blocking pool and only the batching timers on
+ * the loop thread, so a stalled link never holds up the loop. Without an executor the queue
+ * starts its own writer thread.
+ * <p>
+ * With {@link #setBatching(long, int)} the writer also holds back an idle link, Nagle style: it
+ * waits up to a deadline for more writes to join the first one, and goes early once enough bytes
+ * are queued or {@link #flush()} is called. The wait is a timer, not a parked thread.
+ * <p>
+ * Writes are sent by priority class, see {@link OutboundScheduler}: an urgent write waits for at
+ * most the socket write in progress, not for the bulk writes queued before it, and is never held
+ * back for batching. A large payload is one frame though, to let urgent writes cut in between its
+ * pieces send it through a {@link ChannelMultiplexer}.
+ * <p>
+ * A failed socket write fails every pending write and closes the stream, which makes the reader
+ * of the same socket fail too and so reports the connection as lost.
+ */
+public class WriteQueue {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int DEFAULT_COALESCE_LIMIT = 4 * 1024;
+
+    public static final int PRIORITY_URGENT = OutboundScheduler.PRIORITY_URGENT;
+    public static final int PRIORITY_NORMAL = OutboundScheduler.PRIORITY_NORMAL;
+    public static final int PRIORITY_BULK = OutboundScheduler.PRIORITY_BULK;
+
+    /**
+     * Socket writes one drain task may do before it yields the executor to other queues.
+     */
+    private static final int MAX_WRITES_PER_DRAIN = 8;
+
+    private final OutputStream mOutputStream;
+    private final OutboundScheduler<PendingWrite> mQueue;
+    private final byte[] mCoalesceBuffer;
+    private final List<PendingWrite> mBatch = new ArrayList<>();
+    private final boolean mOwnsExecutor;
+    private volatile ScheduledExecutorService mExecutor;
+    private volatile Executor mWriter;
+    private volatile boolean mClosed;
+
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final AtomicBoolean mDeadlineArmed = new AtomicBoolean();
+    private final AtomicInteger mQueuedBytes = new AtomicInteger();
+    private volatile long mBatchDelayNanos;
+    private volatile int mBatchBytes;
+    private volatile boolean mFlushRequested;
+
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final AtomicLong mSocketWriteCount = new AtomicLong();
+    private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    private volatile long mLastLatencyNanos;
+    private volatile long mMaxLatencyNanos;
+    private volatile LatencyHistogram mLatencyHistogram;
+
+    public WriteQueue(OutputStream outputStream) {
+        this(outputStream, DEFAULT_CAPACITY, DEFAULT_COALESCE_LIMIT);
+    }
+
+    public WriteQueue(OutputStream outputStream, int capacity, int coalesceLimit) {
+        this(outputStream, capacity, coalesceLimit, null);
+    }
+
+    /**
+     * Write on the blocking pool of the loop, with the batching timers on its loop thread.
+     */
+    public WriteQueue(OutputStream outputStream, EventLoop eventLoop) {
+        this(outputStream, DEFAULT_CAPACITY, DEFAULT_COALESCE_LIMIT, eventLoop.getScheduler(),
+                eventLoop.getBlockingExecutor());
+    }
+
+    /**
+     * Drain and time on one shared executor. It runs the socket writes, so it must not be a
+     * thread that other work waits on, unless the stream never blocks.
+     */
+    public WriteQueue(OutputStream outputStream, ScheduledExecutorService executor) {
+        this(outputStream, DEFAULT_CAPACITY, DEFAULT_COALESCE_LIMIT, executor);
+    }
+
+    public WriteQueue(OutputStream outputStream, int capacity, int coalesceLimit,
+                      ScheduledExecutorService executor) {
+        this(outputStream, capacity, coalesceLimit, executor, executor);
+    }
+
+    /**
+     * @param scheduler runs the batching deadlines, never blocks
+     * @param writer    runs the drains that write to the stream, may block on it
+     */
+    public WriteQueue(OutputStream outputStream, int capacity, int coalesceLimit,
+                      ScheduledExecutorService scheduler, Executor writer) {
+        mOutputStream = outputStream;
+        mQueue = new OutboundScheduler<>(capacity);
+        mCoalesceBuffer = new byte[coalesceLimit];
+        mOwnsExecutor = scheduler == null;
+        mExecutor = scheduler;
+        mWriter = writer;
+    }
+
+    /**
+     * Start writing. Writes queued before are sent now.
+     */
+    public void start() {
+        if (mOwnsExecutor && mExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "WriteQueue");
+                }
+            });
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            mExecutor = executor;
+            mWriter = executor;
+        }
+        // Writes from now on schedule their own drain, an idle queue takes no pooled thread
+        if (!mQueue.isEmpty()) {
+            this.scheduleDrain();
+        }
+    }
+
+    /**
+     * Queue data for writing without blocking.
+     *
+     * @param listener optional, called on the writing thread once the data is on the socket or
+     *                 the write failed
+     * @return false if the queue is full or closed, the listener is not called in that case
+     */
+    public boolean enqueue(byte[] data, OnWriteListener listener) {
+        return this.enqueue(data, PRIORITY_NORMAL, listener);
+    }
+
+    /**
+     * Queue data for writing in a priority class.
+     *
+     * @param priority one of {@link #PRIORITY_URGENT}, {@link #PRIORITY_NORMAL} and
+     *                 {@link #PRIORITY_BULK}
+     * @return false if the class is full or the queue closed
+     */
+    public boolean enqueue(byte[] data, int priority, OnWriteListener listener) {
+        if (mClosed) {
+            return false;
+        }
+        if (!mQueue.offer(new PendingWrite(data, priority, listener, System.nanoTime()), priority)) {
+            return false;
+        }
+        int queuedBytes = mQueuedBytes.addAndGet(data.length);
+        if (mBatchDelayNanos > 0 && queuedBytes < mBatchBytes && !mFlushRequested
+                && priority != PRIORITY_URGENT) {
+            // Held back for batching, the deadline timer drains it
+            this.armDeadline(mBatchDelayNanos);
+            return true;
+        }
+        this.scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Hold back writes for up to maxDelayMillis after the first one was queued, or until
+     * maxBytes are queued, and send them as one socket write.
+     *
+     * @param maxDelayMillis 0 turns batching off
+     * @param maxBytes       capped at the coalesce limit
+     */
+    public void setBatching(long maxDelayMillis, int maxBytes) {
+        mBatchBytes = Math.min(maxBytes, mCoalesceBuffer.length);
+        mBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.flush();
+    }
+
+    /**
+     * How many times in a row a waiting class may be passed over for a higher one before it gets
+     * a turn anyway.
+     */
+    public void setStarvationLimit(int starvationLimit) {
+        mQueue.setStarvationLimit(starvationLimit);
+    }
+
+    public boolean isBatching() {
+        return mBatchDelayNanos > 0;
+    }
+
+    /**
+     * Send whatever is held back for batching right away, for latency critical writes.
+     */
+    public void flush() {
+        if (mQueue.isEmpty()) {
+            // Nothing to send, a flag left set would let the next batch skip its deadline
+            return;
+        }
+        mFlushRequested = true;
+        this.scheduleDrain();
+    }
+
+    /**
+     * Stop writing and fail whatever is still queued.
+     */
+    public void close() {
+        mClosed = true;
+        this.scheduleDrain();
+        ScheduledExecutorService executor = mExecutor;
+        if (mOwnsExecutor && executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Also record every enqueue-to-wire latency into this histogram, e.g. one of a
+     * {@link com.zhipu.middle.common.metrics.MetricGroup}.
+     */
+    public void setLatencyHistogram(LatencyHistogram latencyHistogram) {
+        mLatencyHistogram = latencyHistogram;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getQueueDepth(int priority) {
+        return mQueue.size(priority);
+    }
+
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    /**
+     * @return number of socket writes, lower than {@link #getWriteCount()} when writes coalesce
+     */
+    public long getSocketWriteCount() {
+        return mSocketWriteCount.get();
+    }
+
+    /**
+     * Enqueue-to-wire latency of the most recent write.
+     */
+    public long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    public long getAverageLatencyNanos() {
+        long count = mWriteCount.get();
+        return count == 0 ? 0 : mTotalLatencyNanos.get() / count;
+    }
+
+    private void scheduleDrain() {
+        Executor writer = mWriter;
+        if (writer == null || !mDrainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.execute(mDrainTask);
+        } catch (RejectedExecutionException e) {
+            // The executor is shut down, nothing can be written any more
+            mDrainScheduled.set(false);
+            mClosed = true;
+            this.failPending(new IOException("write queue closed"));
+        }
+    }
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Runs on the scheduler and only hands the drain to the writer, the scheduler must not block.
+     */
+    private final Runnable mDeadlineTask = new Runnable() {
+        @Override
+        public void run() {
+            mDeadlineArmed.set(false);
+            scheduleDrain();
+        }
+    };
+
+    /**
+     * Runs with {@link #mDrainScheduled} held, so never twice at once.
+     */
+    private void drain() {
+        try {
+            for (int i = 0; i < MAX_WRITES_PER_DRAIN && !mClosed && !mQueue.isEmpty(); i++) {
+                long waitNanos = this.batchWaitNanos();
+                if (waitNanos > 0) {
+                    this.armDeadline(waitNanos);
+                    break;
+                }
+                this.writeBatch();
+            }
+        } catch (IOException e) {
+            mClosed = true;
+            this.failPending(e);
+            try {
+                mOutputStream.close();
+            } catch (IOException ignored) {
+                // The stream is already broken, nothing more to report
+            }
+        }
+        if (mClosed) {
+            this.failPending(new IOException("write queue closed"));
+        }
+        mDrainScheduled.set(false);
+
+        // Writes that came in while draining found the task scheduled and did not schedule one
+        if (!mQueue.isEmpty() && (mClosed || this.batchWaitNanos() <= 0 || !mDeadlineArmed.get())) {
+            this.scheduleDrain();
+        }
+    }
+
+    private long batchWaitNanos() {
+        if (mBatchDelayNanos <= 0 || mFlushRequested || mQueuedBytes.get() >= mBatchBytes
+                || mQueue.peek(PRIORITY_URGENT) != null) {
+            return 0;
+        }
+        PendingWrite normal = mQueue.peek(PRIORITY_NORMAL);
+        PendingWrite bulk = mQueue.peek(PRIORITY_BULK);
+        PendingWrite first = normal == null || (bulk != null && bulk.enqueueNanos - normal.enqueueNanos < 0)
+                ? bulk : normal;
+        if (first == null) {
+            return 0;
+        }
+        return first.enqueueNanos + mBatchDelayNanos - System.nanoTime();
+    }
+
+    private void armDeadline(long delayNanos) {
+        ScheduledExecutorService executor = mExecutor;
+        if (executor != null && mDeadlineArmed.compareAndSet(false, true)) {
+            try {
+                executor.schedule(mDeadlineTask, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                mDeadlineArmed.set(false);
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        PendingWrite first = mQueue.poll();
+        mQueuedBytes.addAndGet(-first.data.length);
+        mBatch.add(first);
+
+        int total = first.data.length;
+        PendingWrite next;
+        // Only the class that has the turn joins, the others wait for their own turn
+        while (total < mCoalesceBuffer.length && (next = mQueue.peek(first.priority)) != null
+                && total + next.data.length <= mCoalesceBuffer.length) {
+            mBatch.add(mQueue.poll(first.priority));
+            mQueuedBytes.addAndGet(-next.data.length);
+            total += next.data.length;
+        }
+        if (mQueue.isEmpty()) {
+            mFlushRequested = false;
+        }
+
+        if (mBatch.size() == 1) {
+            mOutputStream.write(first.data);
+        } else {
+            int offset = 0;
+            for (PendingWrite pendingWrite : mBatch) {
+                System.arraycopy(pendingWrite.data, 0, mCoalesceBuffer, offset, pendingWrite.data.length);
+                offset += pendingWrite.data.length;
+            }
+            mOutputStream.write(mCoalesceBuffer, 0, offset);
+        }
+        mOutputStream.flush();
+        mSocketWriteCount.incrementAndGet();
+
+        long now = System.nanoTime();
+        for (PendingWrite pendingWrite : mBatch) {
+            this.recordLatency(now - pendingWrite.enqueueNanos);
+            if (pendingWrite.listener != null) {
+                pendingWrite.listener.onWriteComplete(pendingWrite.data.length);
+            }
+        }
+        mBatch.clear();
+    }
+
+    private void recordLatency(long latencyNanos) {
+        mWriteCount.incrementAndGet();
+        mTotalLatencyNanos.addAndGet(latencyNanos);
+        mLastLatencyNanos = latencyNanos;
+        if (latencyNanos > mMaxLatencyNanos) {
+            mMaxLatencyNanos = latencyNanos;
+        }
+        LatencyHistogram latencyHistogram = mLatencyHistogram;
+        if (latencyHistogram != null) {
+            latencyHistogram.record(latencyNanos);
+        }
+    }
+
+    private void failPending(IOException e) {
+        for (PendingWrite pendingWrite : mBatch) {
+            pendingWrite.fail(e);
+        }
+        mBatch.clear();
+        PendingWrite pendingWrite;
+        while ((pendingWrite = mQueue.poll()) != null) {
+            mQueuedBytes.addAndGet(-pendingWrite.data.length);
+            pendingWrite.fail(e);
+        }
+    }
+
+    private static class PendingWrite {
+        private final byte[] data;
+        private final int priority;
+        private final OnWriteListener listener;
+        private final long enqueueNanos;
+
+        PendingWrite(byte[] data, int priority, OnWriteListener listener, long enqueueNanos) {
+            this.data = data;
+            this.priority = priority;
+            this.listener = listener;
+            this.enqueueNanos = enqueueNanos;
+        }
+
+        private void fail(IOException e) {
+            if (listener != null) {
+                listener.onWriteFailed(e);
+            }
+        }
+    }
+}
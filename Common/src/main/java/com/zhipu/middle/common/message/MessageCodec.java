@@ -0,0 +1,71 @@
+package com.zhipu.middle.common.message;
+
+import java.net.ProtocolException;
+
+/**
+ * Compact binary encoding of the typed messages between phone and watch: one type byte followed
+ * by the message's tag/value fields, see {@link MessageWriter}. Decoding reads straight out of the
+ * receive buffer, only the field values themselves are allocated.
+ * <p>
+ * Type bytes start above the ones {@link com.zhipu.middle.common.connect.RpcEndpoint} and
+ * {@link com.zhipu.middle.common.connect.Heartbeat} use, but they are not ASCII, so a peer that
+ * still sends text can be told apart by {@link #isMessage(byte[], int, int)}.
+ */
+public final class MessageCodec {
+    public static final int TYPE_WEATHER = 0x11;
+    public static final int TYPE_SMS = 0x12;
+    public static final int TYPE_STATUS = 0x13;
+
+    private MessageCodec() {
+    }
+
+    public static byte[] encode(WireMessage message) {
+        MessageWriter writer = new MessageWriter();
+        encode(message, writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Encode into a reused writer, so a sender that keeps one writer allocates nothing per
+     * message once the writer has grown to size.
+     */
+    public static void encode(WireMessage message, MessageWriter writer) {
+        writer.reset();
+        writer.writeRawByte(message.getType());
+        message.writeTo(writer);
+    }
+
+    public static WireMessage decode(byte[] buffer) throws ProtocolException {
+        return decode(buffer, 0, buffer.length);
+    }
+
+    /**
+     * @throws ProtocolException if the type is unknown or the message is malformed
+     */
+    public static WireMessage decode(byte[] buffer, int offset, int length) throws ProtocolException {
+        MessageReader reader = new MessageReader(buffer, offset, length);
+        int type = reader.readRawByte();
+        switch (type) {
+            case TYPE_WEATHER:
+                return WeatherMessage.readFrom(reader);
+            case TYPE_SMS:
+                return SmsMessage.readFrom(reader);
+            case TYPE_STATUS:
+                return StatusMessage.readFrom(reader);
+            default:
+                throw new ProtocolException("unknown message type: " + type);
+        }
+    }
+
+    /**
+     * @return true if the payload starts with a known message type, false for text and empty
+     * payloads
+     */
+    public static boolean isMessage(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int type = buffer[offset] & 0xFF;
+        return type == TYPE_WEATHER || type == TYPE_SMS || type == TYPE_STATUS;
+    }
+}
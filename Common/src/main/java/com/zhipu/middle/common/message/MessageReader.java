@@ -0,0 +1,124 @@
+package com.zhipu.middle.common.message;
+
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the tag/value pairs written by {@link MessageWriter} straight out of the receive buffer.
+ * Call {@link #nextField()} until it returns 0, then read or {@link #skipField()} the value of
+ * each field.
+ */
+public class MessageReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mBuffer;
+    private final int mEnd;
+    private int mPosition;
+    private int mWireType;
+
+    public MessageReader(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mEnd = offset + length;
+    }
+
+    /**
+     * @return the number of the next field, or 0 at the end of the message
+     */
+    public int nextField() throws ProtocolException {
+        if (mPosition == mEnd) {
+            return 0;
+        }
+        long tag = this.readRawVarLong();
+        mWireType = (int) (tag & ((1 << MessageWriter.WIRE_TYPE_BITS) - 1));
+        int field = (int) (tag >>> MessageWriter.WIRE_TYPE_BITS);
+        if (field <= 0) {
+            throw new ProtocolException("bad field number: " + field);
+        }
+        return field;
+    }
+
+    public int readInt() throws ProtocolException {
+        return (int) this.readLong();
+    }
+
+    public int readSInt() throws ProtocolException {
+        int value = this.readInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readLong() throws ProtocolException {
+        this.expect(MessageWriter.WIRE_VARINT);
+        return this.readRawVarLong();
+    }
+
+    public boolean readBoolean() throws ProtocolException {
+        return this.readLong() != 0;
+    }
+
+    public String readString() throws ProtocolException {
+        int length = this.readLength();
+        String value = new String(mBuffer, mPosition, length, UTF_8);
+        mPosition += length;
+        return value;
+    }
+
+    public byte[] readBytes() throws ProtocolException {
+        int length = this.readLength();
+        byte[] value = new byte[length];
+        System.arraycopy(mBuffer, mPosition, value, 0, length);
+        mPosition += length;
+        return value;
+    }
+
+    /**
+     * Skip the value of a field this reader does not know, e.g. one added by a newer peer.
+     */
+    public void skipField() throws ProtocolException {
+        if (mWireType == MessageWriter.WIRE_VARINT) {
+            this.readRawVarLong();
+        } else if (mWireType == MessageWriter.WIRE_BYTES) {
+            int length = this.readLength();
+            mPosition += length;
+        } else {
+            throw new ProtocolException("unknown wire type: " + mWireType);
+        }
+    }
+
+    int readRawByte() throws ProtocolException {
+        if (mPosition >= mEnd) {
+            throw new ProtocolException("truncated message");
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    private int readLength() throws ProtocolException {
+        this.expect(MessageWriter.WIRE_BYTES);
+        long length = this.readRawVarLong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new ProtocolException("bad field length: " + length);
+        }
+        if (length > mEnd - mPosition) {
+            throw new ProtocolException("field length " + length + " past the end of the message");
+        }
+        return (int) length;
+    }
+
+    private void expect(int wireType) throws ProtocolException {
+        if (mWireType != wireType) {
+            throw new ProtocolException("wire type " + mWireType + ", expected " + wireType);
+        }
+    }
+
+    private long readRawVarLong() throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = this.readRawByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("varint longer than 10 bytes");
+    }
+}
@@ -0,0 +1,179 @@
+package com.zhipu.middle.common.message;
+
+import java.util.Arrays;
+
+/**
+ * Writes message fields as tag/value pairs into a growable array. A tag is a varint holding the
+ * field number and the wire type, followed by a varint value or a length-prefixed byte string.
+ * Fields holding their default value (0, false or null) are left out, the reader restores them.
+ * <p>
+ * Strings are encoded as UTF-8 straight into the output, without the intermediate array of
+ * {@link String#getBytes()}. A writer can be {@link #reset()} and reused for the next message.
+ */
+public class MessageWriter {
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_BYTES = 2;
+    static final int WIRE_TYPE_BITS = 3;
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    public MessageWriter() {
+        this(64);
+    }
+
+    public MessageWriter(int initialCapacity) {
+        mBuffer = new byte[initialCapacity];
+    }
+
+    public void reset() {
+        mLength = 0;
+    }
+
+    public void writeInt(int field, int value) {
+        if (value != 0) {
+            this.writeTag(field, WIRE_VARINT);
+            // Negative ints are written as 64 bit values, use writeSInt for signed data
+            this.writeRawVarLong(value);
+        }
+    }
+
+    /**
+     * Zigzag encoded, so small negative values stay short, e.g. a temperature.
+     */
+    public void writeSInt(int field, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        if (zigzag != 0) {
+            this.writeTag(field, WIRE_VARINT);
+            this.writeRawVarLong(zigzag & 0xFFFFFFFFL);
+        }
+    }
+
+    public void writeLong(int field, long value) {
+        if (value != 0) {
+            this.writeTag(field, WIRE_VARINT);
+            this.writeRawVarLong(value);
+        }
+    }
+
+    public void writeBoolean(int field, boolean value) {
+        this.writeInt(field, value ? 1 : 0);
+    }
+
+    public void writeString(int field, String value) {
+        if (value == null) {
+            return;
+        }
+        int length = utf8Length(value);
+        this.writeTag(field, WIRE_BYTES);
+        this.writeRawVarLong(length);
+        this.ensureCapacity(length);
+        mLength = encodeUtf8(value, mBuffer, mLength);
+    }
+
+    public void writeBytes(int field, byte[] value) {
+        if (value == null) {
+            return;
+        }
+        this.writeTag(field, WIRE_BYTES);
+        this.writeRawVarLong(value.length);
+        this.ensureCapacity(value.length);
+        System.arraycopy(value, 0, mBuffer, mLength, value.length);
+        mLength += value.length;
+    }
+
+    void writeRawByte(int value) {
+        this.ensureCapacity(1);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    /**
+     * @return the array holding the encoded bytes, valid up to {@link #getLength()} until the next
+     * write
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mLength);
+    }
+
+    private void writeTag(int field, int wireType) {
+        this.writeRawVarLong((field << WIRE_TYPE_BITS) | wireType);
+    }
+
+    private void writeRawVarLong(long value) {
+        this.ensureCapacity(10);
+        byte[] buffer = mBuffer;
+        int position = mLength;
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        mLength = position;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+        }
+    }
+
+    /**
+     * Same byte count as {@link #encodeUtf8(String, byte[], int)}: unpaired surrogates become a
+     * single {@code '?'}, like {@link String#getBytes()} does.
+     */
+    static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    private static int encodeUtf8(String value, byte[] dest, int position) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                dest[position++] = (byte) c;
+            } else if (c < 0x800) {
+                dest[position++] = (byte) (0xC0 | c >> 6);
+                dest[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                dest[position++] = (byte) (0xF0 | codePoint >> 18);
+                dest[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                dest[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                dest[position++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                dest[position++] = '?';
+            } else {
+                dest[position++] = (byte) (0xE0 | c >> 12);
+                dest[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                dest[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return position;
+    }
+}
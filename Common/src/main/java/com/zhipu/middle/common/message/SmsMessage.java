@@ -0,0 +1,75 @@
+package com.zhipu.middle.common.message;
+
+import java.net.ProtocolException;
+
+/**
+ * A text message received on the phone, forwarded to the watch.
+ */
+public class SmsMessage implements WireMessage {
+    private static final int FIELD_FROM = 1;
+    private static final int FIELD_TIME = 2;
+    private static final int FIELD_BODY = 3;
+
+    private final String mFrom;
+    private final long mTimeMillis;
+    private final String mBody;
+
+    public SmsMessage(String from, long timeMillis, String body) {
+        mFrom = from;
+        mTimeMillis = timeMillis;
+        mBody = body;
+    }
+
+    @Override
+    public int getType() {
+        return MessageCodec.TYPE_SMS;
+    }
+
+    @Override
+    public void writeTo(MessageWriter writer) {
+        writer.writeString(FIELD_FROM, mFrom);
+        writer.writeLong(FIELD_TIME, mTimeMillis);
+        writer.writeString(FIELD_BODY, mBody);
+    }
+
+    static SmsMessage readFrom(MessageReader reader) throws ProtocolException {
+        String from = null;
+        long timeMillis = 0;
+        String body = null;
+        int field;
+        while ((field = reader.nextField()) != 0) {
+            switch (field) {
+                case FIELD_FROM:
+                    from = reader.readString();
+                    break;
+                case FIELD_TIME:
+                    timeMillis = reader.readLong();
+                    break;
+                case FIELD_BODY:
+                    body = reader.readString();
+                    break;
+                default:
+                    reader.skipField();
+                    break;
+            }
+        }
+        return new SmsMessage(from, timeMillis, body);
+    }
+
+    public String getFrom() {
+        return mFrom;
+    }
+
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    public String getBody() {
+        return mBody;
+    }
+
+    @Override
+    public String toString() {
+        return "SmsMessage{from=" + mFrom + ", time=" + mTimeMillis + ", body=" + mBody + "}";
+    }
+}
@@ -0,0 +1,82 @@
+package com.zhipu.middle.common.message;
+
+import java.net.ProtocolException;
+
+/**
+ * Device status, e.g. the watch reporting its connection state and battery to the phone.
+ */
+public class StatusMessage implements WireMessage {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTED = 1;
+    public static final int STATE_BUSY = 2;
+
+    private static final int FIELD_STATE = 1;
+    private static final int FIELD_BATTERY = 2;
+    private static final int FIELD_CHARGING = 3;
+
+    private final int mState;
+    private final int mBattery;
+    private final boolean mCharging;
+
+    /**
+     * @param battery level in percent
+     */
+    public StatusMessage(int state, int battery, boolean charging) {
+        mState = state;
+        mBattery = battery;
+        mCharging = charging;
+    }
+
+    @Override
+    public int getType() {
+        return MessageCodec.TYPE_STATUS;
+    }
+
+    @Override
+    public void writeTo(MessageWriter writer) {
+        writer.writeInt(FIELD_STATE, mState);
+        writer.writeInt(FIELD_BATTERY, mBattery);
+        writer.writeBoolean(FIELD_CHARGING, mCharging);
+    }
+
+    static StatusMessage readFrom(MessageReader reader) throws ProtocolException {
+        int state = STATE_DISCONNECTED;
+        int battery = 0;
+        boolean charging = false;
+        int field;
+        while ((field = reader.nextField()) != 0) {
+            switch (field) {
+                case FIELD_STATE:
+                    state = reader.readInt();
+                    break;
+                case FIELD_BATTERY:
+                    battery = reader.readInt();
+                    break;
+                case FIELD_CHARGING:
+                    charging = reader.readBoolean();
+                    break;
+                default:
+                    reader.skipField();
+                    break;
+            }
+        }
+        return new StatusMessage(state, battery, charging);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getBattery() {
+        return mBattery;
+    }
+
+    public boolean isCharging() {
+        return mCharging;
+    }
+
+    @Override
+    public String toString() {
+        return "StatusMessage{state=" + mState + ", battery=" + mBattery + ", charging=" + mCharging + "}";
+    }
+}
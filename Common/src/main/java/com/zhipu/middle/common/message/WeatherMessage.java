@@ -0,0 +1,114 @@
+package com.zhipu.middle.common.message;
+
+import java.net.ProtocolException;
+
+/**
+ * Current weather pushed from the phone to the watch face.
+ */
+public class WeatherMessage implements WireMessage {
+    public static final int CONDITION_UNKNOWN = 0;
+    public static final int CONDITION_SUNNY = 1;
+    public static final int CONDITION_CLOUDY = 2;
+    public static final int CONDITION_RAIN = 3;
+    public static final int CONDITION_SNOW = 4;
+    /**
+     * Key of the current weather in the watch's {@link com.zhipu.middle.common.sync.SyncStore}
+     */
+    public static final String SYNC_KEY = "weather";
+
+    private static final int FIELD_CITY = 1;
+    private static final int FIELD_TEMPERATURE = 2;
+    private static final int FIELD_CONDITION = 3;
+    private static final int FIELD_HUMIDITY = 4;
+    private static final int FIELD_UPDATE_TIME = 5;
+
+    private final String mCity;
+    private final int mTemperature;
+    private final int mCondition;
+    private final int mHumidity;
+    private final long mUpdateTimeMillis;
+
+    /**
+     * @param temperature in tenths of a degree Celsius, e.g. -35 for -3.5°C
+     * @param humidity    relative humidity in percent
+     */
+    public WeatherMessage(String city, int temperature, int condition, int humidity, long updateTimeMillis) {
+        mCity = city;
+        mTemperature = temperature;
+        mCondition = condition;
+        mHumidity = humidity;
+        mUpdateTimeMillis = updateTimeMillis;
+    }
+
+    @Override
+    public int getType() {
+        return MessageCodec.TYPE_WEATHER;
+    }
+
+    @Override
+    public void writeTo(MessageWriter writer) {
+        writer.writeString(FIELD_CITY, mCity);
+        writer.writeSInt(FIELD_TEMPERATURE, mTemperature);
+        writer.writeInt(FIELD_CONDITION, mCondition);
+        writer.writeInt(FIELD_HUMIDITY, mHumidity);
+        writer.writeLong(FIELD_UPDATE_TIME, mUpdateTimeMillis);
+    }
+
+    static WeatherMessage readFrom(MessageReader reader) throws ProtocolException {
+        String city = null;
+        int temperature = 0;
+        int condition = CONDITION_UNKNOWN;
+        int humidity = 0;
+        long updateTimeMillis = 0;
+        int field;
+        while ((field = reader.nextField()) != 0) {
+            switch (field) {
+                case FIELD_CITY:
+                    city = reader.readString();
+                    break;
+                case FIELD_TEMPERATURE:
+                    temperature = reader.readSInt();
+                    break;
+                case FIELD_CONDITION:
+                    condition = reader.readInt();
+                    break;
+                case FIELD_HUMIDITY:
+                    humidity = reader.readInt();
+                    break;
+                case FIELD_UPDATE_TIME:
+                    updateTimeMillis = reader.readLong();
+                    break;
+                default:
+                    reader.skipField();
+                    break;
+            }
+        }
+        return new WeatherMessage(city, temperature, condition, humidity, updateTimeMillis);
+    }
+
+    public String getCity() {
+        return mCity;
+    }
+
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    public int getCondition() {
+        return mCondition;
+    }
+
+    public int getHumidity() {
+        return mHumidity;
+    }
+
+    public long getUpdateTimeMillis() {
+        return mUpdateTimeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "WeatherMessage{city=" + mCity + ", temperature=" + mTemperature + ", condition="
+                + mCondition + ", humidity=" + mHumidity + ", updateTime=" + mUpdateTimeMillis + "}";
+    }
+}
@@ -0,0 +1,16 @@
+package com.zhipu.middle.common.message;
+
+/**
+ * A typed message that {@link MessageCodec} can put on the wire. Each message type writes its
+ * fields as numbered tag/value pairs, so fields can be added later without breaking older peers:
+ * readers skip numbers they do not know.
+ */
+public interface WireMessage {
+
+    /**
+     * @return one of the {@code TYPE_} constants of {@link MessageCodec}
+     */
+    int getType();
+
+    void writeTo(MessageWriter writer);
+}
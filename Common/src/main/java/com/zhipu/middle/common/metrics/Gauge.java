@@ -0,0 +1,9 @@
+package com.zhipu.middle.common.metrics;
+
+/**
+ * A value read when a snapshot is taken, e.g. the depth of a write queue.
+ */
+public interface Gauge {
+
+    long getValue();
+}
@@ -0,0 +1,107 @@
+package com.zhipu.middle.common.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The metrics of one session, e.g. one RFCOMM or GATT link to one device. Counters and
+ * histograms are created on first use and then only updated with atomic operations, so hot paths
+ * look them up once and keep the reference.
+ */
+public class MetricGroup {
+    public static final String BYTES_IN = "bytesIn";
+    public static final String BYTES_OUT = "bytesOut";
+    public static final String MESSAGES_IN = "messagesIn";
+    public static final String MESSAGES_OUT = "messagesOut";
+    public static final String WRITE_LATENCY = "writeLatency";
+    public static final String WRITES_DROPPED = "writesDropped";
+    public static final String QUEUE_DEPTH = "queueDepth";
+    public static final String RECONNECTS = "reconnects";
+    public static final String DISCONNECTS = "disconnects";
+    public static final String RTT = "rtt";
+    public static final String GATT_WRITE = "gattWrite";
+    public static final String GATT_READ = "gattRead";
+    public static final String GATT_FAILURES = "gattFailures";
+    public static final String CONNECT_LATENCY = "connectLatency";
+    public static final String CONNECT_SECURE_WINS = "connectSecureWins";
+    public static final String CONNECT_INSECURE_WINS = "connectInsecureWins";
+
+    private final String mName;
+    private final long mCreatedAtMillis = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> mHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+
+    MetricGroup(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getCreatedAtMillis() {
+        return mCreatedAtMillis;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a histogram owned elsewhere, e.g. a heartbeat's RTTs, replacing any previous one.
+     */
+    public void setHistogram(String name, LatencyHistogram histogram) {
+        mHistograms.put(name, histogram);
+    }
+
+    /**
+     * Register a gauge, replacing any previous one of that name, e.g. for a new connection.
+     */
+    public void setGauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    public void removeGauge(String name) {
+        mGauges.remove(name);
+    }
+
+    /**
+     * Remove the gauge only if it is still the registered one, not a later connection's.
+     */
+    public void removeGauge(String name, Gauge gauge) {
+        mGauges.remove(name, gauge);
+    }
+
+    Map<String, Counter> getCounters() {
+        return mCounters;
+    }
+
+    Map<String, LatencyHistogram> getHistograms() {
+        return mHistograms;
+    }
+
+    Map<String, Gauge> getGauges() {
+        return mGauges;
+    }
+}
@@ -0,0 +1,52 @@
+package com.zhipu.middle.common.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide collection of {@link MetricGroup}s, one per session. Anything can take a
+ * {@link #snapshot()} at any time without slowing down the sessions, e.g. the App to render a
+ * debug screen or a test to assert on traffic.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, MetricGroup> mGroups = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @return the group of that name, created on first use
+     */
+    public MetricGroup getGroup(String name) {
+        MetricGroup group = mGroups.get(name);
+        if (group == null) {
+            MetricGroup created = new MetricGroup(name);
+            group = mGroups.putIfAbsent(name, created);
+            if (group == null) {
+                group = created;
+            }
+        }
+        return group;
+    }
+
+    public void removeGroup(String name) {
+        mGroups.remove(name);
+    }
+
+    public List<String> getGroupNames() {
+        return new ArrayList<>(mGroups.keySet());
+    }
+
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(System.currentTimeMillis(), mGroups.values());
+    }
+
+    Collection<MetricGroup> getGroups() {
+        return mGroups.values();
+    }
+}
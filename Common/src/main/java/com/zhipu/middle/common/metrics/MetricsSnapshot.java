@@ -0,0 +1,137 @@
+package com.zhipu.middle.common.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable copy of every metric at one point in time. Values within one group may be a few
+ * updates apart, each metric is read atomically but not all of them together.
+ */
+public class MetricsSnapshot {
+    private final long mTimeMillis;
+    private final Map<String, Map<String, Long>> mCounters = new TreeMap<>();
+    private final Map<String, Map<String, Long>> mGauges = new TreeMap<>();
+    private final Map<String, Map<String, HistogramSnapshot>> mHistograms = new TreeMap<>();
+
+    MetricsSnapshot(long timeMillis, Collection<MetricGroup> groups) {
+        mTimeMillis = timeMillis;
+        for (MetricGroup group : groups) {
+            Map<String, Long> counters = new TreeMap<>();
+            for (Map.Entry<String, Counter> entry : group.getCounters().entrySet()) {
+                counters.put(entry.getKey(), entry.getValue().get());
+            }
+            Map<String, Long> gauges = new TreeMap<>();
+            for (Map.Entry<String, Gauge> entry : group.getGauges().entrySet()) {
+                gauges.put(entry.getKey(), entry.getValue().getValue());
+            }
+            Map<String, HistogramSnapshot> histograms = new TreeMap<>();
+            for (Map.Entry<String, LatencyHistogram> entry : group.getHistograms().entrySet()) {
+                histograms.put(entry.getKey(), new HistogramSnapshot(entry.getValue()));
+            }
+            mCounters.put(group.getName(), counters);
+            mGauges.put(group.getName(), gauges);
+            mHistograms.put(group.getName(), histograms);
+        }
+    }
+
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    public Collection<String> getGroupNames() {
+        return Collections.unmodifiableSet(mCounters.keySet());
+    }
+
+    /**
+     * @return the counter's value, 0 if the group or counter does not exist
+     */
+    public long getCounter(String group, String name) {
+        return getValue(mCounters, group, name);
+    }
+
+    public long getGauge(String group, String name) {
+        return getValue(mGauges, group, name);
+    }
+
+    /**
+     * @return null if the group or histogram does not exist
+     */
+    public HistogramSnapshot getHistogram(String group, String name) {
+        Map<String, HistogramSnapshot> histograms = mHistograms.get(group);
+        return histograms == null ? null : histograms.get(name);
+    }
+
+    /**
+     * @return how fast the counter grew per second since an earlier snapshot, e.g. messages/sec
+     */
+    public double getRatePerSecond(MetricsSnapshot earlier, String group, String name) {
+        long elapsedMillis = Math.max(1, mTimeMillis - earlier.mTimeMillis);
+        return (this.getCounter(group, name) - earlier.getCounter(group, name)) * 1000.0 / elapsedMillis;
+    }
+
+    private static long getValue(Map<String, Map<String, Long>> values, String group, String name) {
+        Map<String, Long> groupValues = values.get(group);
+        Long value = groupValues == null ? null : groupValues.get(name);
+        return value == null ? 0 : value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (String group : mCounters.keySet()) {
+            builder.append(group).append('\n');
+            Map<String, Object> values = new TreeMap<>();
+            values.putAll(mCounters.get(group));
+            values.putAll(mGauges.get(group));
+            values.putAll(mHistograms.get(group));
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                builder.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    public static class HistogramSnapshot {
+        private final long mCount;
+        private final long mAverageNanos;
+        private final long mP50Nanos;
+        private final long mP99Nanos;
+        private final long mMaxNanos;
+
+        HistogramSnapshot(LatencyHistogram histogram) {
+            mCount = histogram.getCount();
+            mAverageNanos = histogram.getAverageNanos();
+            mP50Nanos = histogram.getPercentileNanos(0.5);
+            mP99Nanos = histogram.getPercentileNanos(0.99);
+            mMaxNanos = histogram.getMaxNanos();
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getAverageNanos() {
+            return mAverageNanos;
+        }
+
+        public long getP50Nanos() {
+            return mP50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return mP99Nanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount + ", avgUs=" + mAverageNanos / 1000 + ", p50Us=" + mP50Nanos / 1000
+                    + ", p99Us=" + mP99Nanos / 1000 + ", maxUs=" + mMaxNanos / 1000;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.zhipu.middle.common.sync;
+
+import com.zhipu.middle.common.callback.OnSyncListener;
+import com.zhipu.middle.common.connect.RpcEndpoint;
+import com.zhipu.middle.common.connect.RpcFuture;
+import com.zhipu.middle.common.message.MessageReader;
+import com.zhipu.middle.common.message.MessageWriter;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a mirror of the peer's {@link SyncStore} in step with it over an {@link RpcEndpoint},
+ * and serves the local store to the peer's engine. Both ends run one, each owning the state it
+ * writes: the watch its weather and status, the phone its settings and contacts.
+ * <p>
+ * The mirror pulls with the epoch and version it last applied and gets back only the entries
+ * changed since, so a reconnect after a short drop costs bytes in proportion to what changed.
+ * After a local change the peer is told the new version and pulls if it is behind. Notifications
+ * and pulls are coalesced: while one is in flight, further requests only mark it to run once
+ * more afterwards. Call {@link #sync()} on connect; a pull lost with the link is simply repeated.
+ */
+public class SyncEngine {
+    public static final String METHOD_PULL = "sync.pull";
+    public static final String METHOD_NOTIFY = "sync.notify";
+
+    private static final int FIELD_EPOCH = 1;
+    private static final int FIELD_VERSION = 2;
+
+    private final RpcEndpoint mRpcEndpoint;
+    private final SyncStore mLocalStore;
+    private final OnSyncListener mOnSyncListener;
+    private final Map<String, byte[]> mRemote = new HashMap<>();
+    private long mRemoteEpoch;
+    private long mRemoteVersion;
+    private boolean mPulling;
+    private boolean mPullAgain;
+    private boolean mNotifying;
+    private boolean mNotifyAgain;
+    private long mDeltaBytes;
+
+    /**
+     * @param onSyncListener optional, told about every change of the mirror
+     */
+    public SyncEngine(RpcEndpoint rpcEndpoint, SyncStore localStore, OnSyncListener onSyncListener) {
+        mRpcEndpoint = rpcEndpoint;
+        mLocalStore = localStore;
+        mOnSyncListener = onSyncListener;
+        rpcEndpoint.registerHandler(METHOD_PULL, new RpcEndpoint.Handler() {
+            @Override
+            public byte[] handle(byte[] request) throws Exception {
+                long[] position = decodePosition(request);
+                return mLocalStore.encodeChangesSince(position[0], position[1]);
+            }
+        });
+        rpcEndpoint.registerHandler(METHOD_NOTIFY, new RpcEndpoint.Handler() {
+            @Override
+            public byte[] handle(byte[] request) throws Exception {
+                long[] position = decodePosition(request);
+                if (isBehind(position[0], position[1])) {
+                    sync();
+                }
+                return null;
+            }
+        });
+    }
+
+    public SyncStore getLocalStore() {
+        return mLocalStore;
+    }
+
+    /**
+     * Change a local entry and let the peer know.
+     */
+    public void put(String key, byte[] value) {
+        long before = mLocalStore.getVersion();
+        if (mLocalStore.put(key, value) != before) {
+            this.notifyPeer();
+        }
+    }
+
+    public void remove(String key) {
+        long before = mLocalStore.getVersion();
+        if (mLocalStore.remove(key) != before) {
+            this.notifyPeer();
+        }
+    }
+
+    /**
+     * @return the peer's value as last synced, null if it has none
+     */
+    public synchronized byte[] getRemote(String key) {
+        byte[] value = mRemote.get(key);
+        return value == null ? null : value.clone();
+    }
+
+    public synchronized int getRemoteSize() {
+        return mRemote.size();
+    }
+
+    /**
+     * @return version of the peer's store the mirror holds
+     */
+    public synchronized long getRemoteVersion() {
+        return mRemoteVersion;
+    }
+
+    /**
+     * @return bytes of pull responses applied so far
+     */
+    public synchronized long getDeltaBytes() {
+        return mDeltaBytes;
+    }
+
+    /**
+     * Pull what changed on the peer since the last pull.
+     */
+    public void sync() {
+        long epoch;
+        long version;
+        synchronized (this) {
+            if (mPulling) {
+                mPullAgain = true;
+                return;
+            }
+            mPulling = true;
+            epoch = mRemoteEpoch;
+            version = mRemoteVersion;
+        }
+        mRpcEndpoint.call(METHOD_PULL, encodePosition(epoch, version)).addCallback(new RpcFuture.Callback() {
+            @Override
+            public void onSuccess(byte[] response) {
+                try {
+                    apply(response);
+                } catch (ProtocolException e) {
+                    // Keep the old mirror, the next pull asks for the same changes again
+                } finally {
+                    // Also after a listener threw, or no pull would ever run again
+                    pullDone();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                pullDone();
+            }
+        });
+    }
+
+    private void pullDone() {
+        synchronized (this) {
+            mPulling = false;
+            if (!mPullAgain) {
+                return;
+            }
+            mPullAgain = false;
+        }
+        this.sync();
+    }
+
+    private void notifyPeer() {
+        synchronized (this) {
+            if (mNotifying) {
+                mNotifyAgain = true;
+                return;
+            }
+            mNotifying = true;
+        }
+        byte[] request = encodePosition(mLocalStore.getEpoch(), mLocalStore.getVersion());
+        mRpcEndpoint.call(METHOD_NOTIFY, request).addCallback(new RpcFuture.Callback() {
+            @Override
+            public void onSuccess(byte[] response) {
+                notifyDone();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                // Not connected, the peer syncs when it connects
+                notifyDone();
+            }
+        });
+    }
+
+    private void notifyDone() {
+        synchronized (this) {
+            mNotifying = false;
+            if (!mNotifyAgain) {
+                return;
+            }
+            mNotifyAgain = false;
+        }
+        this.notifyPeer();
+    }
+
+    private synchronized boolean isBehind(long epoch, long version) {
+        return epoch != mRemoteEpoch || version > mRemoteVersion;
+    }
+
+    private void apply(byte[] response) throws ProtocolException {
+        long epoch = 0;
+        long version = 0;
+        boolean full = false;
+        List<String> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        MessageReader reader = new MessageReader(response, 0, response.length);
+        int field;
+        while ((field = reader.nextField()) != 0) {
+            if (field == SyncStore.FIELD_EPOCH) {
+                epoch = reader.readLong();
+            } else if (field == SyncStore.FIELD_VERSION) {
+                version = reader.readLong();
+            } else if (field == SyncStore.FIELD_FULL) {
+                full = reader.readBoolean();
+            } else if (field == SyncStore.FIELD_ENTRY) {
+                readEntry(reader.readBytes(), keys, values);
+            } else {
+                reader.skipField();
+            }
+        }
+
+        synchronized (this) {
+            if (full) {
+                mRemote.clear();
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                if (values.get(i) == null) {
+                    mRemote.remove(keys.get(i));
+                } else {
+                    mRemote.put(keys.get(i), values.get(i));
+                }
+            }
+            mRemoteEpoch = epoch;
+            mRemoteVersion = version;
+            mDeltaBytes += response.length;
+        }
+        if (mOnSyncListener == null) {
+            return;
+        }
+        if (full) {
+            mOnSyncListener.onRemoteReset();
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            mOnSyncListener.onRemoteChanged(keys.get(i), values.get(i));
+        }
+    }
+
+    private static void readEntry(byte[] entry, List<String> keys, List<byte[]> values)
+            throws ProtocolException {
+        String key = null;
+        byte[] value = new byte[0];
+        boolean deleted = false;
+        MessageReader reader = new MessageReader(entry, 0, entry.length);
+        int field;
+        while ((field = reader.nextField()) != 0) {
+            if (field == SyncStore.FIELD_KEY) {
+                key = reader.readString();
+            } else if (field == SyncStore.FIELD_VALUE) {
+                value = reader.readBytes();
+            } else if (field == SyncStore.FIELD_DELETED) {
+                deleted = reader.readBoolean();
+            } else {
+                reader.skipField();
+            }
+        }
+        if (key == null) {
+            throw new ProtocolException("sync entry without key");
+        }
+        keys.add(key);
+        values.add(deleted ? null : value);
+    }
+
+    private static byte[] encodePosition(long epoch, long version) {
+        MessageWriter writer = new MessageWriter(24);
+        writer.writeLong(FIELD_EPOCH, epoch);
+        writer.writeLong(FIELD_VERSION, version);
+        return writer.toByteArray();
+    }
+
+    private static long[] decodePosition(byte[] request) throws ProtocolException {
+        long[] position = new long[2];
+        MessageReader reader = new MessageReader(request, 0, request.length);
+        int field;
+        while ((field = reader.nextField()) != 0) {
+            if (field == FIELD_EPOCH) {
+                position[0] = reader.readLong();
+            } else if (field == FIELD_VERSION) {
+                position[1] = reader.readLong();
+            } else {
+                reader.skipField();
+            }
+        }
+        return position;
+    }
+}
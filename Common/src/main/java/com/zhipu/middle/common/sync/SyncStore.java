@@ -0,0 +1,160 @@
+package com.zhipu.middle.common.sync;
+
+import com.zhipu.middle.common.message.MessageWriter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Key/value state one end owns and the other end mirrors, e.g. the watch's weather and settings.
+ * Every put or remove stamps the entry with the next version of the store, so the changes a peer
+ * has not seen are the entries above the version it last applied. Removes leave a tombstone
+ * behind for the same reason; only the newest {@code maxTombstones} are kept, a peer older than
+ * the oldest dropped one gets a full snapshot instead.
+ * <p>
+ * The epoch is drawn at random when the store is created. A peer holding versions of another
+ * epoch mirrors a store that no longer exists, e.g. before the watch restarted, and gets a full
+ * snapshot too.
+ */
+public class SyncStore {
+    public static final int DEFAULT_MAX_TOMBSTONES = 256;
+
+    static final int FIELD_EPOCH = 1;
+    static final int FIELD_VERSION = 2;
+    static final int FIELD_FULL = 3;
+    static final int FIELD_ENTRY = 4;
+    static final int FIELD_KEY = 1;
+    static final int FIELD_VALUE = 2;
+    static final int FIELD_DELETED = 3;
+
+    private final long mEpoch;
+    private final int mMaxTombstones;
+    private final Map<String, Entry> mByKey = new HashMap<>();
+    private final TreeMap<Long, Entry> mByVersion = new TreeMap<>();
+    private long mVersion;
+    private int mTombstones;
+    /**
+     * Versions up to here may have lost their tombstone
+     */
+    private long mTombstoneFloor;
+
+    public SyncStore() {
+        this(new Random().nextLong() & Long.MAX_VALUE, DEFAULT_MAX_TOMBSTONES);
+    }
+
+    public SyncStore(long epoch, int maxTombstones) {
+        mEpoch = epoch;
+        mMaxTombstones = maxTombstones;
+    }
+
+    /**
+     * @return the version of the change, the current version if the value did not change
+     */
+    public synchronized long put(String key, byte[] value) {
+        Entry old = mByKey.get(key);
+        if (old != null && old.value != null && Arrays.equals(old.value, value)) {
+            return mVersion;
+        }
+        return this.update(key, value.clone(), old);
+    }
+
+    /**
+     * @return the version of the change, the current version if there was no such key
+     */
+    public synchronized long remove(String key) {
+        Entry old = mByKey.get(key);
+        if (old == null || old.value == null) {
+            return mVersion;
+        }
+        long version = this.update(key, null, old);
+        mTombstones++;
+        this.trimTombstones();
+        return version;
+    }
+
+    public synchronized byte[] get(String key) {
+        Entry entry = mByKey.get(key);
+        return entry == null || entry.value == null ? null : entry.value.clone();
+    }
+
+    public synchronized int size() {
+        return mByKey.size() - mTombstones;
+    }
+
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    public long getEpoch() {
+        return mEpoch;
+    }
+
+    /**
+     * Encode what a peer holding {@code version} of {@code epoch} is missing: the entries changed
+     * after that version, or every entry if the peer's state cannot be patched.
+     */
+    public synchronized byte[] encodeChangesSince(long epoch, long version) {
+        boolean full = epoch != mEpoch || version < mTombstoneFloor || version > mVersion;
+        MessageWriter writer = new MessageWriter();
+        MessageWriter entryWriter = new MessageWriter();
+        writer.writeLong(FIELD_EPOCH, mEpoch);
+        writer.writeLong(FIELD_VERSION, mVersion);
+        writer.writeBoolean(FIELD_FULL, full);
+        for (Entry entry : mByVersion.tailMap(full ? 0 : version, false).values()) {
+            if (full && entry.value == null) {
+                continue;
+            }
+            entryWriter.reset();
+            entryWriter.writeString(FIELD_KEY, entry.key);
+            entryWriter.writeBytes(FIELD_VALUE, entry.value);
+            entryWriter.writeBoolean(FIELD_DELETED, entry.value == null);
+            writer.writeBytes(FIELD_ENTRY, entryWriter.toByteArray());
+        }
+        return writer.toByteArray();
+    }
+
+    private long update(String key, byte[] value, Entry old) {
+        if (old != null) {
+            mByVersion.remove(old.version);
+            if (old.value == null) {
+                mTombstones--;
+            }
+        }
+        Entry entry = new Entry(key, value, ++mVersion);
+        mByKey.put(key, entry);
+        mByVersion.put(entry.version, entry);
+        return entry.version;
+    }
+
+    private void trimTombstones() {
+        Iterator<Entry> iterator = mByVersion.values().iterator();
+        while (mTombstones > mMaxTombstones && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.value == null) {
+                iterator.remove();
+                mByKey.remove(entry.key);
+                mTombstones--;
+                mTombstoneFloor = entry.version;
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        /**
+         * Null for a tombstone
+         */
+        private final byte[] value;
+        private final long version;
+
+        Entry(String key, byte[] value, long version) {
+            this.key = key;
+            this.value = value;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.zhipu.middle.common.transport;
+
+import com.zhipu.middle.common.callback.OnTransportStateListener;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State bookkeeping and listener dispatch shared by the {@link Transport} implementations.
+ */
+public abstract class BaseTransport implements Transport {
+    private final String mAddress;
+    private final AtomicInteger mState;
+    private volatile OnTransportStateListener mOnTransportStateListener;
+
+    protected BaseTransport(String address, int initialState) {
+        mAddress = address;
+        mState = new AtomicInteger(initialState);
+    }
+
+    @Override
+    public int getState() {
+        return mState.get();
+    }
+
+    public boolean isOpen() {
+        return mState.get() == STATE_OPEN;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void setOnTransportStateListener(OnTransportStateListener listener) {
+        mOnTransportStateListener = listener;
+    }
+
+    /**
+     * Move to the new state and notify the listener if the state actually changed.
+     *
+     * @return false if the transport already was in that state
+     */
+    protected boolean setState(int state, String reason) {
+        int previous = mState.getAndSet(state);
+        if (previous == state) {
+            return false;
+        }
+        OnTransportStateListener listener = mOnTransportStateListener;
+        if (listener != null) {
+            listener.onStateChanged(this, state, reason);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package com.zhipu.middle.common.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Bounded single-producer single-consumer byte pipe with blocking reads and writes, used as one
+ * direction of a {@link LoopbackTransport}.
+ */
+class ByteRingBuffer {
+    private final byte[] mBuffer;
+    private int mReadPosition;
+    private int mCount;
+    private boolean mClosed;
+
+    ByteRingBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        while (mCount == 0) {
+            if (mClosed) {
+                return -1;
+            }
+            this.await();
+        }
+        int count = Math.min(length, mCount);
+        int first = Math.min(count, mBuffer.length - mReadPosition);
+        System.arraycopy(mBuffer, mReadPosition, buffer, offset, first);
+        System.arraycopy(mBuffer, 0, buffer, offset + first, count - first);
+        mReadPosition = (mReadPosition + count) % mBuffer.length;
+        mCount -= count;
+        this.notifyAll();
+        return count;
+    }
+
+    synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (mClosed) {
+                throw new IOException("pipe closed");
+            }
+            if (mCount == mBuffer.length) {
+                this.await();
+                continue;
+            }
+            int writePosition = (mReadPosition + mCount) % mBuffer.length;
+            int count = Math.min(length, Math.min(mBuffer.length - mCount, mBuffer.length - writePosition));
+            System.arraycopy(buffer, offset, mBuffer, writePosition, count);
+            mCount += count;
+            offset += count;
+            length -= count;
+            this.notifyAll();
+        }
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        this.notifyAll();
+    }
+
+    synchronized int available() {
+        return mCount;
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.zhipu.middle.common.transport;
+
+import com.zhipu.middle.common.callback.OnTransportStateListener;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Wraps a {@link Transport} and makes its outgoing direction behave like a bad radio link: every
+ * {@link #write(byte[], int, int)} is one packet that may be delayed, dropped, truncated, held
+ * back behind later packets or slowed down to a bandwidth cap. Wrap both ends of a
+ * {@link LoopbackTransport} pair to spoil both directions, and run framing, flow control and
+ * reconnects against field conditions on a plain JVM.
+ * <p>
+ * All faults come from one {@link Random} with the given seed and are drawn in write order, so
+ * the same seed and the same writes give the same faults. Timing still depends on the machine.
+ * <p>
+ * Packets are delivered by a thread of the transport's own. Writes only block when
+ * {@code maxBufferedBytes} are waiting for delivery, like a full socket buffer, which is what
+ * makes a bandwidth cap push back on the writer. Delay, jitter and spikes keep the packet order
+ * of a stream; only {@link #setReordering(double, long)} and loss break it.
+ * <p>
+ * The wrapper takes over the wrapped transport's state listener and closes with it.
+ */
+public class FaultInjectingTransport extends BaseTransport {
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024;
+
+    private final Transport mTransport;
+    private final Random mRandom;
+    private final int mMaxBufferedBytes;
+    private final PriorityQueue<Packet> mPackets = new PriorityQueue<>();
+    private final Thread mDeliveryThread;
+
+    private long mDelayNanos;
+    private long mJitterNanos;
+    private double mSpikeProbability;
+    private long mSpikeNanos;
+    private double mLossProbability;
+    private double mTruncateProbability;
+    private double mReorderProbability;
+    private long mReorderHoldNanos;
+    private int mBytesPerSecond;
+
+    private int mBufferedBytes;
+    private boolean mDelivering;
+    private long mNextSeq;
+    /**
+     * Time the link is done sending the previous packet, for the bandwidth cap
+     */
+    private long mLinkFreeNanos;
+    /**
+     * Due time of the previous packet that kept its place, later packets never overtake it
+     */
+    private long mLastDueNanos;
+    private long mDropped;
+    private long mTruncated;
+    private long mReordered;
+    private long mDeliveredBytes;
+
+    public FaultInjectingTransport(Transport transport, long seed) {
+        this(transport, seed, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    public FaultInjectingTransport(Transport transport, long seed, int maxBufferedBytes) {
+        super(transport.getAddress(), transport.getState());
+        mTransport = transport;
+        mRandom = new Random(seed);
+        mMaxBufferedBytes = maxBufferedBytes;
+        transport.setOnTransportStateListener(new OnTransportStateListener() {
+            @Override
+            public void onStateChanged(Transport transport, int state, String reason) {
+                if (state == STATE_CLOSED) {
+                    close(reason);
+                } else {
+                    setState(state, reason);
+                }
+            }
+        });
+        mDeliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverLoop();
+            }
+        }, "fault-" + transport.getAddress());
+        mDeliveryThread.setDaemon(true);
+        mDeliveryThread.start();
+    }
+
+    /**
+     * Delay every packet by delayMillis plus a random share of jitterMillis.
+     */
+    public synchronized void setDelay(long delayMillis, long jitterMillis) {
+        mDelayNanos = delayMillis * 1000000;
+        mJitterNanos = jitterMillis * 1000000;
+    }
+
+    /**
+     * Stall a packet, and the ones behind it, by spikeMillis with the given probability.
+     */
+    public synchronized void setLatencySpikes(double probability, long spikeMillis) {
+        mSpikeProbability = probability;
+        mSpikeNanos = spikeMillis * 1000000;
+    }
+
+    public synchronized void setLoss(double probability) {
+        mLossProbability = probability;
+    }
+
+    /**
+     * Deliver only a random part from the start of a packet, the rest is lost.
+     */
+    public synchronized void setTruncation(double probability) {
+        mTruncateProbability = probability;
+    }
+
+    /**
+     * Hold a packet back for holdMillis with the given probability, letting later ones overtake.
+     */
+    public synchronized void setReordering(double probability, long holdMillis) {
+        mReorderProbability = probability;
+        mReorderHoldNanos = holdMillis * 1000000;
+    }
+
+    /**
+     * Cap the link at bytesPerSecond, 0 for no cap.
+     */
+    public synchronized void setBandwidth(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public void open() throws IOException {
+        mTransport.open();
+        this.setState(mTransport.getState(), null);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mTransport.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        System.arraycopy(buffer, offset, data, 0, length);
+        synchronized (this) {
+            while (mBufferedBytes > 0 && mBufferedBytes + length > mMaxBufferedBytes
+                    && this.getState() != STATE_CLOSED) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted writing to " + this.getAddress());
+                }
+            }
+            if (this.getState() == STATE_CLOSED) {
+                throw new IOException("transport closed");
+            }
+            this.schedule(data);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.close("closed");
+    }
+
+    /**
+     * @return packets not handed to the wrapped transport yet
+     */
+    public synchronized int getPendingCount() {
+        return mPackets.size() + (mDelivering ? 1 : 0);
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getTruncatedCount() {
+        return mTruncated;
+    }
+
+    public synchronized long getReorderedCount() {
+        return mReordered;
+    }
+
+    /**
+     * @return bytes handed to the wrapped transport
+     */
+    public synchronized long getDeliveredBytes() {
+        return mDeliveredBytes;
+    }
+
+    /**
+     * Draw this packet's faults and queue it for its due time.
+     */
+    private void schedule(byte[] data) {
+        long now = System.nanoTime();
+        // Every draw happens for every packet, so one fault never shifts the others of a seed
+        boolean lost = mRandom.nextDouble() < mLossProbability;
+        boolean truncated = mRandom.nextDouble() < mTruncateProbability;
+        int truncatedLength = data.length > 1 ? 1 + mRandom.nextInt(data.length - 1) : data.length;
+        boolean reordered = mRandom.nextDouble() < mReorderProbability;
+        boolean spike = mRandom.nextDouble() < mSpikeProbability;
+        long jitter = (long) (mRandom.nextDouble() * mJitterNanos);
+
+        long start = Math.max(now, mLinkFreeNanos);
+        if (mBytesPerSecond > 0) {
+            mLinkFreeNanos = start + data.length * 1000000000L / mBytesPerSecond;
+        } else {
+            mLinkFreeNanos = start;
+        }
+        if (lost) {
+            mDropped++;
+            return;
+        }
+        if (truncated && truncatedLength < data.length) {
+            byte[] part = new byte[truncatedLength];
+            System.arraycopy(data, 0, part, 0, truncatedLength);
+            data = part;
+            mTruncated++;
+        }
+        long due = mLinkFreeNanos + mDelayNanos + jitter + (spike ? mSpikeNanos : 0);
+        if (reordered) {
+            due = Math.max(due, mLastDueNanos) + mReorderHoldNanos;
+            mReordered++;
+        } else {
+            due = Math.max(due, mLastDueNanos);
+            mLastDueNanos = due;
+        }
+        mPackets.add(new Packet(data, due, mNextSeq++));
+        mBufferedBytes += data.length;
+        this.notifyAll();
+    }
+
+    private void deliverLoop() {
+        while (true) {
+            Packet packet;
+            synchronized (this) {
+                while (true) {
+                    if (this.getState() == STATE_CLOSED) {
+                        return;
+                    }
+                    packet = mPackets.peek();
+                    long waitNanos = packet == null ? Long.MAX_VALUE : packet.due - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        break;
+                    }
+                    try {
+                        if (packet == null) {
+                            this.wait();
+                        } else {
+                            this.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                mPackets.poll();
+                mDelivering = true;
+            }
+            try {
+                mTransport.write(packet.data, 0, packet.data.length);
+            } catch (IOException e) {
+                this.close("write failed: " + e.getMessage());
+                return;
+            }
+            synchronized (this) {
+                mDelivering = false;
+                mBufferedBytes -= packet.data.length;
+                mDeliveredBytes += packet.data.length;
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void close(String reason) {
+        if (!this.setState(STATE_CLOSED, reason)) {
+            return;
+        }
+        synchronized (this) {
+            mPackets.clear();
+            mBufferedBytes = 0;
+            this.notifyAll();
+        }
+        mTransport.close();
+    }
+
+    private static class Packet implements Comparable<Packet> {
+        private final byte[] data;
+        private final long due;
+        private final long seq;
+
+        Packet(byte[] data, long due, long seq) {
+            this.data = data;
+            this.due = due;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Packet other) {
+            if (due != other.due) {
+                return due < other.due ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+}
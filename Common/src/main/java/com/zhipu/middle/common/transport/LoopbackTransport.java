@@ -0,0 +1,65 @@
+package com.zhipu.middle.common.transport;
+
+import java.io.IOException;
+
+/**
+ * In-process {@link Transport}: two ends joined by a pair of ring buffers, whatever one end
+ * writes the other reads. Lets the data path be load tested on a machine without radios.
+ */
+public class LoopbackTransport extends BaseTransport {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final ByteRingBuffer mInbound;
+    private final ByteRingBuffer mOutbound;
+    private LoopbackTransport mPeer;
+
+    private LoopbackTransport(String address, ByteRingBuffer inbound, ByteRingBuffer outbound) {
+        super(address, STATE_OPEN);
+        mInbound = inbound;
+        mOutbound = outbound;
+    }
+
+    /**
+     * @return two connected ends, each with {@code capacity} bytes of buffer in its direction
+     */
+    public static LoopbackTransport[] createPair(int capacity) {
+        ByteRingBuffer aToB = new ByteRingBuffer(capacity);
+        ByteRingBuffer bToA = new ByteRingBuffer(capacity);
+        LoopbackTransport a = new LoopbackTransport("loopback-a", bToA, aToB);
+        LoopbackTransport b = new LoopbackTransport("loopback-b", aToB, bToA);
+        a.mPeer = b;
+        b.mPeer = a;
+        return new LoopbackTransport[]{a, b};
+    }
+
+    public static LoopbackTransport[] createPair() {
+        return createPair(DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public void open() {
+        // Both ends are connected from the start
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mInbound.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mOutbound.write(buffer, offset, length);
+    }
+
+    /**
+     * Closing either end closes the pair, like a dropped link.
+     */
+    @Override
+    public void close() {
+        mInbound.close();
+        mOutbound.close();
+        if (this.setState(STATE_CLOSED, "closed")) {
+            mPeer.close();
+        }
+    }
+}
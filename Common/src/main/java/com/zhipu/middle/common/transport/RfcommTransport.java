@@ -0,0 +1,113 @@
+package com.zhipu.middle.common.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over a Bluetooth RFCOMM socket, either dialed with {@link #open()} or wrapping
+ * a socket returned by a server socket's accept.
+ */
+public class RfcommTransport extends BaseTransport {
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final UUID mUuid;
+    private final boolean mSecure;
+    private BluetoothSocket mBluetoothSocket;
+    private volatile InputStream mInputStream;
+    private volatile OutputStream mOutputStream;
+
+    /**
+     * Client side transport, call {@link #open()} to connect.
+     */
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter, String address, UUID uuid, boolean secure) {
+        super(address, STATE_CLOSED);
+        mBluetoothAdapter = bluetoothAdapter;
+        mUuid = uuid;
+        mSecure = secure;
+    }
+
+    /**
+     * Transport around an already connected socket, e.g. from BluetoothServerSocket.accept().
+     */
+    public RfcommTransport(BluetoothSocket connectedSocket) throws IOException {
+        super(connectedSocket.getRemoteDevice().getAddress(), STATE_OPEN);
+        mBluetoothAdapter = null;
+        mUuid = null;
+        mSecure = false;
+        this.attach(connectedSocket);
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (mBluetoothAdapter == null || this.getState() != STATE_CLOSED) {
+            return;
+        }
+        this.setState(STATE_OPENING, null);
+        BluetoothSocket socket = null;
+        try {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(this.getAddress());
+            socket = mSecure ? device.createRfcommSocketToServiceRecord(mUuid)
+                    : device.createInsecureRfcommSocketToServiceRecord(mUuid);
+            // Always cancel discovery because it will slow down a connection
+            mBluetoothAdapter.cancelDiscovery();
+            socket.connect();
+            this.attach(socket);
+        } catch (IOException e) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // The connect failure is what gets reported
+                }
+            }
+            this.setState(STATE_CLOSED, "connect failed: " + e.getMessage());
+            throw e;
+        }
+        this.setState(STATE_OPEN, null);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        InputStream inputStream = mInputStream;
+        if (inputStream == null) {
+            throw new IOException("transport not open");
+        }
+        return inputStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        OutputStream outputStream = mOutputStream;
+        if (outputStream == null) {
+            throw new IOException("transport not open");
+        }
+        outputStream.write(buffer, offset, length);
+    }
+
+    @Override
+    public void close() {
+        BluetoothSocket socket;
+        synchronized (this) {
+            socket = mBluetoothSocket;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing only fails if the socket is already gone
+            }
+        }
+        this.setState(STATE_CLOSED, "closed");
+    }
+
+    private synchronized void attach(BluetoothSocket socket) throws IOException {
+        mBluetoothSocket = socket;
+        mInputStream = socket.getInputStream();
+        mOutputStream = socket.getOutputStream();
+    }
+}
@@ -0,0 +1,50 @@
+package com.zhipu.middle.common.transport;
+
+import com.zhipu.middle.common.callback.OnTransportStateListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A bidirectional byte stream to one peer, independent of the radio underneath. The data path
+ * (framing, sessions, flow control, ...) only talks to this interface, so it can run over RFCOMM
+ * on a device or over {@link LoopbackTransport} on a plain JVM.
+ */
+public interface Transport extends Closeable {
+    int STATE_CLOSED = 0;
+    int STATE_OPENING = 1;
+    int STATE_OPEN = 2;
+
+    /**
+     * Establish the connection, blocking until it is open or failed. Transports created around
+     * an already connected socket start out open and ignore this.
+     */
+    void open() throws IOException;
+
+    /**
+     * Blocking read of at least one byte.
+     *
+     * @return number of bytes read, -1 once the peer closed the connection
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Blocking write of all the bytes.
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Close the connection; a blocked read or write fails. Closing twice is harmless.
+     */
+    @Override
+    void close();
+
+    int getState();
+
+    /**
+     * @return address of the peer, e.g. its Bluetooth MAC address
+     */
+    String getAddress();
+
+    void setOnTransportStateListener(OnTransportStateListener listener);
+}
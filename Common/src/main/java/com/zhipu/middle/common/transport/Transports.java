@@ -0,0 +1,55 @@
+package com.zhipu.middle.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream views of a {@link Transport}, for code written against java.io streams.
+ */
+public final class Transports {
+
+    private Transports() {
+    }
+
+    public static InputStream inputStream(final Transport transport) {
+        return new InputStream() {
+            private final byte[] mSingle = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                int count = transport.read(mSingle, 0, 1);
+                return count < 0 ? -1 : mSingle[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : transport.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                transport.close();
+            }
+        };
+    }
+
+    public static OutputStream outputStream(final Transport transport) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                transport.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                transport.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                transport.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package com.zhipu.middle.common.capture;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.connect.FrameCodec;
+import com.zhipu.middle.common.connect.FrameDecoder;
+import com.zhipu.middle.common.connect.FrameWriter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficReplayerTest {
+
+    @Test
+    public void capture_roundTripsRecordsAndSkipsTornTail() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        TrafficRecorder recorder = new TrafficRecorder(stream);
+        recorder.recordFrame(TrafficRecorder.LINK_RFCOMM, TrafficRecorder.DIRECTION_OUT,
+                FrameCodec.encode(new byte[300]));
+        Thread.sleep(20);
+        recorder.record(TrafficRecorder.LINK_BLE, TrafficRecorder.DIRECTION_IN, "weather".getBytes());
+        recorder.close();
+        byte[] capture = Arrays.copyOf(stream.toByteArray(), stream.size() + 3);
+        capture[capture.length - 3] = 5;
+        capture[capture.length - 1] = 10;
+
+        CaptureReader reader = new CaptureReader(new ByteArrayInputStream(capture));
+        assertTrue(reader.next());
+        assertEquals(TrafficRecorder.LINK_RFCOMM, reader.getLink());
+        assertEquals(TrafficRecorder.DIRECTION_OUT, reader.getDirection());
+        assertEquals(300, reader.getLength());
+        assertTrue(reader.next());
+        assertEquals(TrafficRecorder.LINK_BLE, reader.getLink());
+        assertEquals(TrafficRecorder.DIRECTION_IN, reader.getDirection());
+        assertEquals("weather", new String(reader.getData(), 0, reader.getLength()));
+        assertTrue(reader.getTimeMicros() >= 20000);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void replay_deliversFramesAtRecordedPaceOrAsFastAsPossible() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        TrafficRecorder recorder = new TrafficRecorder(stream);
+        for (int i = 0; i < 10; i++) {
+            recorder.record(TrafficRecorder.LINK_RFCOMM, TrafficRecorder.DIRECTION_IN, ("frame " + i).getBytes());
+            recorder.record(TrafficRecorder.LINK_RFCOMM, TrafficRecorder.DIRECTION_OUT, new byte[]{(byte) i});
+            Thread.sleep(20);
+        }
+        recorder.close();
+
+        final List<String> received = new ArrayList<>();
+        final List<byte[]> sent = new ArrayList<>();
+        TrafficReplayer replayer = new TrafficReplayer(new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                received.add(new String(buffer, offset, length));
+            }
+        }, new FrameWriter() {
+            @Override
+            public boolean write(byte[] data, OnWriteListener listener) {
+                sent.add(data);
+                return true;
+            }
+        });
+        TrafficReplayer.Report report = replayer.replay(new CaptureReader(new ByteArrayInputStream(stream.toByteArray())));
+
+        assertEquals(10, report.getFramesIn());
+        assertEquals(10, report.getFramesOut());
+        assertEquals("frame 9", received.get(9));
+        assertEquals(9, sent.get(9)[0]);
+        assertTrue(report.toString(), report.getElapsedNanos() / 1000 >= report.getCaptureMicros());
+        assertEquals(10, report.getLag().getCount());
+
+        replayer.setSpeed(TrafficReplayer.SPEED_UNLIMITED);
+        report = replayer.replay(new CaptureReader(new ByteArrayInputStream(stream.toByteArray())));
+        assertEquals(20, received.size());
+        assertTrue(report.toString(), report.getElapsedNanos() / 1000 < report.getCaptureMicros() / 2);
+        assertEquals(10, report.getProcessingLatency().getCount());
+    }
+}
@@ -0,0 +1,61 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnReceiveByteBufferListener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ByteBufferFrameReceiverTest {
+
+    @Test
+    public void encode_directBufferRoundTripsThroughReadOnlyViews() throws IOException {
+        ByteBuffer message = ByteBuffer.allocateDirect(64);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            message.clear();
+            message.putInt(i).put(("weather" + i).getBytes());
+            message.flip();
+            stream.write(FrameCodec.encode(message));
+            // Encoding leaves the caller's buffer alone
+            assertEquals(0, message.position());
+        }
+
+        final List<String> received = new ArrayList<>();
+        final List<ByteBuffer> views = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(new ByteBufferFrameReceiver(new OnReceiveByteBufferListener() {
+            @Override
+            public void onReceiveData(ByteBuffer data) {
+                assertTrue(data.isReadOnly());
+                try {
+                    data.put(0, (byte) 0);
+                    fail("the view must not let the listener write into the read buffer");
+                } catch (ReadOnlyBufferException expected) {
+                    // The decoder's buffer stays intact
+                }
+                int id = data.getInt();
+                byte[] text = new byte[data.remaining()];
+                data.get(text);
+                received.add(id + ":" + new String(text));
+                views.add(data);
+            }
+        }));
+        byte[] bytes = stream.toByteArray();
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertEquals(3, received.size());
+        assertEquals("0:weather0", received.get(0));
+        assertEquals("2:weather2", received.get(2));
+        assertSame(views.get(0), views.get(2));
+    }
+}
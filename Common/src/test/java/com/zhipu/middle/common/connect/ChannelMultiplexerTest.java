@@ -0,0 +1,269 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnChannelListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelMultiplexerTest {
+    private static final int CHANNEL_BULK = 1;
+    private static final int CHANNEL_SMS = 2;
+
+    @Test
+    public void send_reassemblesFragmentedMessage() {
+        final List<byte[]> received = new ArrayList<>();
+        final ChannelMultiplexer receiver = new ChannelMultiplexer(new ManualWriter());
+        receiver.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, new OnChannelListener() {
+            @Override
+            public void onChannelData(int channelId, byte[] data) {
+                received.add(data);
+            }
+        });
+        ManualWriter wire = new ManualWriter();
+        ChannelMultiplexer sender = new ChannelMultiplexer(wire, 100, 2);
+        sender.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, null);
+
+        byte[] message = new byte[1050];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        sender.send(CHANNEL_BULK, message);
+        sender.send(CHANNEL_BULK, new byte[0]);
+        while (wire.completeNext(receiver)) {
+            // deliver every fragment
+        }
+
+        assertEquals(2, received.size());
+        assertArrayEquals(message, received.get(0));
+        assertEquals(0, received.get(1).length);
+    }
+
+    @Test
+    public void send_highPriorityOvertakesBulkTransfer() {
+        final List<Integer> order = new ArrayList<>();
+        ChannelMultiplexer receiver = new ChannelMultiplexer(new ManualWriter());
+        OnChannelListener listener = new OnChannelListener() {
+            @Override
+            public void onChannelData(int channelId, byte[] data) {
+                order.add(channelId);
+            }
+        };
+        receiver.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, listener);
+        receiver.openChannel(CHANNEL_SMS, ChannelMultiplexer.PRIORITY_HIGH, listener);
+
+        ManualWriter wire = new ManualWriter();
+        ChannelMultiplexer sender = new ChannelMultiplexer(wire, 512, 2);
+        sender.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, null);
+        sender.openChannel(CHANNEL_SMS, ChannelMultiplexer.PRIORITY_HIGH, null);
+
+        sender.send(CHANNEL_BULK, new byte[64 * 1024]);
+        // Let a few bulk fragments through before the urgent message shows up
+        for (int i = 0; i < 3; i++) {
+            wire.completeNext(receiver);
+        }
+        sender.send(CHANNEL_SMS, "incoming call".getBytes());
+
+        int fragmentsUntilSms = 0;
+        while (order.isEmpty() && wire.completeNext(receiver)) {
+            fragmentsUntilSms++;
+        }
+        while (wire.completeNext(receiver)) {
+            // drain the bulk transfer
+        }
+
+        assertEquals(Arrays.asList(CHANNEL_SMS, CHANNEL_BULK), order);
+        assertTrue("sms waited for " + fragmentsUntilSms + " fragments", fragmentsUntilSms <= 3);
+    }
+
+    @Test
+    public void refusedFragment_isRetriedWithNothingInFlight() throws InterruptedException {
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        ChannelMultiplexer receiver = new ChannelMultiplexer(new ManualWriter());
+        receiver.openChannel(CHANNEL_SMS, ChannelMultiplexer.PRIORITY_HIGH, new OnChannelListener() {
+            @Override
+            public void onChannelData(int channelId, byte[] data) {
+                received.add(data);
+            }
+        });
+        EventLoop eventLoop = new EventLoop("test");
+        ManualWriter wire = new ManualWriter();
+        ChannelMultiplexer sender = new ChannelMultiplexer(wire, 512, 2,
+                ChannelMultiplexer.DEFAULT_MAX_MESSAGE_LENGTH, eventLoop.getScheduler());
+        sender.openChannel(CHANNEL_SMS, ChannelMultiplexer.PRIORITY_HIGH, null);
+
+        // The writer is full when the message is queued, and no completion is coming to re-pump
+        wire.refuse(3);
+        sender.send(CHANNEL_SMS, "incoming call".getBytes());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.isEmpty() && System.nanoTime() < deadline) {
+            wire.completeNext(receiver);
+            Thread.sleep(1);
+        }
+        eventLoop.shutdown();
+
+        assertEquals(1, received.size());
+        assertArrayEquals("incoming call".getBytes(), received.get(0));
+    }
+
+    @Test
+    public void failedWrite_pumpsTheNextFragment() {
+        final List<byte[]> received = new ArrayList<>();
+        ChannelMultiplexer receiver = new ChannelMultiplexer(new ManualWriter());
+        receiver.openChannel(CHANNEL_SMS, ChannelMultiplexer.PRIORITY_HIGH, new OnChannelListener() {
+            @Override
+            public void onChannelData(int channelId, byte[] data) {
+                received.add(data);
+            }
+        });
+        ManualWriter wire = new ManualWriter();
+        ChannelMultiplexer sender = new ChannelMultiplexer(wire, 100, 1);
+        sender.openChannel(CHANNEL_SMS, ChannelMultiplexer.PRIORITY_HIGH, null);
+
+        sender.send(CHANNEL_SMS, "lost".getBytes());
+        sender.send(CHANNEL_SMS, "sent".getBytes());
+        assertTrue(wire.failNext());
+        while (wire.completeNext(receiver)) {
+            // deliver the rest
+        }
+
+        assertEquals(1, received.size());
+        assertArrayEquals("sent".getBytes(), received.get(0));
+    }
+
+    @Test
+    public void oversizedMessage_isDroppedWhole() {
+        final List<byte[]> received = new ArrayList<>();
+        ChannelMultiplexer receiver = new ChannelMultiplexer(new ManualWriter(), 100, 2, 1000,
+                EventLoop.getDefault().getScheduler());
+        receiver.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, new OnChannelListener() {
+            @Override
+            public void onChannelData(int channelId, byte[] data) {
+                received.add(data);
+            }
+        });
+        ManualWriter wire = new ManualWriter();
+        ChannelMultiplexer sender = new ChannelMultiplexer(wire, 100, 2);
+        sender.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, null);
+
+        sender.send(CHANNEL_BULK, new byte[2050]);
+        sender.send(CHANNEL_BULK, "after".getBytes());
+        while (wire.completeNext(receiver)) {
+            // deliver every fragment
+        }
+
+        assertEquals(1, received.size());
+        assertArrayEquals("after".getBytes(), received.get(0));
+        assertEquals(11, receiver.getDroppedFrames());
+    }
+
+    @Test
+    public void reset_dropsHalfReceivedAndRestartsHalfSentMessages() {
+        final List<byte[]> received = new ArrayList<>();
+        ChannelMultiplexer receiver = new ChannelMultiplexer(new ManualWriter());
+        receiver.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, new OnChannelListener() {
+            @Override
+            public void onChannelData(int channelId, byte[] data) {
+                received.add(data);
+            }
+        });
+        ManualWriter wire = new ManualWriter();
+        ChannelMultiplexer sender = new ChannelMultiplexer(wire, 100, 1);
+        sender.openChannel(CHANNEL_BULK, ChannelMultiplexer.PRIORITY_LOW, null);
+        byte[] message = new byte[350];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+
+        sender.send(CHANNEL_BULK, message);
+        wire.completeNext(receiver);
+        wire.completeNext(receiver);
+        // The link drops with the third fragment in flight, and a new one takes over
+        wire.clear();
+        sender.reset();
+        receiver.reset();
+        sender.send(CHANNEL_BULK, "next".getBytes());
+        while (wire.completeNext(receiver)) {
+            // deliver every fragment
+        }
+
+        assertEquals(2, received.size());
+        assertArrayEquals(message, received.get(0));
+        assertArrayEquals("next".getBytes(), received.get(1));
+        assertFalse(wire.completeNext(receiver));
+    }
+
+    /**
+     * Holds written frames until the test completes them, like a slow link.
+     */
+    private static class ManualWriter implements FrameWriter {
+        private final List<byte[]> mFrames = new ArrayList<>();
+        private final List<OnWriteListener> mListeners = new ArrayList<>();
+        private int mRefuse;
+
+        @Override
+        public synchronized boolean write(byte[] data, OnWriteListener listener) {
+            if (mRefuse > 0) {
+                mRefuse--;
+                return false;
+            }
+            mFrames.add(data);
+            mListeners.add(listener);
+            return true;
+        }
+
+        boolean completeNext(ChannelMultiplexer receiver) {
+            byte[] frame;
+            OnWriteListener listener;
+            synchronized (this) {
+                if (mFrames.isEmpty()) {
+                    return false;
+                }
+                frame = mFrames.remove(0);
+                listener = mListeners.remove(0);
+            }
+            receiver.onFrame(frame, 0, frame.length);
+            listener.onWriteComplete(frame.length);
+            return true;
+        }
+
+        /**
+         * Fail the oldest write, its frame never arrives.
+         */
+        boolean failNext() {
+            OnWriteListener listener;
+            synchronized (this) {
+                if (mFrames.isEmpty()) {
+                    return false;
+                }
+                mFrames.remove(0);
+                listener = mListeners.remove(0);
+            }
+            listener.onWriteFailed(new IOException("link down"));
+            return true;
+        }
+
+        synchronized void refuse(int writes) {
+            mRefuse = writes;
+        }
+
+        /**
+         * Lose everything in flight, as when the link drops. Its listeners are never called.
+         */
+        synchronized void clear() {
+            mFrames.clear();
+            mListeners.clear();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnCorruptFrameListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionLayerTest {
+    private final List<byte[]> mReceived = new ArrayList<>();
+    private final List<String> mCorrupt = new ArrayList<>();
+    private Wire mToReceiver;
+    private CompressionLayer mSender;
+    private CompressionLayer mReceiver;
+
+    @Before
+    public void setUp() {
+        mToReceiver = new Wire();
+        Wire toSender = new Wire();
+        mSender = new CompressionLayer(mToReceiver, null);
+        mReceiver = new CompressionLayer(toSender, new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mReceived.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        });
+        mReceiver.setOnCorruptFrameListener(new OnCorruptFrameListener() {
+            @Override
+            public void onCorruptFrame(String reason) {
+                mCorrupt.add(reason);
+            }
+        });
+        mReceiver.start();
+        toSender.deliverAll(mSender);
+        assertTrue(mSender.isCompressionActive());
+    }
+
+    @Test
+    public void roundTrip_compressesLargePayloadsOnly() {
+        byte[] large = text(4096);
+        byte[] small = "ok".getBytes();
+        mSender.write(large, null);
+        mSender.write(small, null);
+        mToReceiver.deliverAll(mReceiver);
+
+        assertEquals(2, mReceived.size());
+        assertArrayEquals(large, mReceived.get(0));
+        assertArrayEquals(small, mReceived.get(1));
+        assertEquals(1, mSender.getCompressedMessages());
+        assertEquals(1, mSender.getRawMessages());
+        assertTrue(mSender.getCompressionRatio() < 0.5);
+    }
+
+    @Test
+    public void peerHelloBeforeStart_isKept() {
+        Wire toSender = new Wire();
+        Wire toReceiver = new Wire();
+        CompressionLayer sender = new CompressionLayer(toReceiver, null);
+        CompressionLayer receiver = new CompressionLayer(toSender, new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mReceived.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        });
+        // The peer's reader delivers its hello before this end gets to start
+        receiver.start();
+        toSender.deliverAll(sender);
+        sender.start();
+        assertTrue(sender.isCompressionActive());
+
+        byte[] large = text(4096);
+        sender.write(large, null);
+        toReceiver.deliverAll(receiver);
+        assertArrayEquals(large, mReceived.get(0));
+        assertEquals(1, sender.getCompressedMessages());
+
+        sender.reset();
+        assertFalse(sender.isCompressionActive());
+    }
+
+    @Test
+    public void corruptFrame_isReportedAndLinkStaysUsable() {
+        mSender.write(text(4096), null);
+        byte[] frame = mToReceiver.poll();
+        // Cut the Deflate data short, and garble another copy
+        byte[] truncated = Arrays.copyOf(frame, frame.length / 2);
+        byte[] garbled = frame.clone();
+        for (int i = 4; i < garbled.length; i++) {
+            garbled[i] ^= 0x5A;
+        }
+        mReceiver.onFrame(truncated, 0, truncated.length);
+        mReceiver.onFrame(garbled, 0, garbled.length);
+        mReceiver.onFrame(new byte[]{1, (byte) 0xFF}, 0, 2);
+        assertEquals(0, mReceived.size());
+        assertEquals(3, mCorrupt.size());
+        assertEquals(3, mReceiver.getCorruptFrames());
+
+        byte[] next = text(2048);
+        mSender.write(next, null);
+        mToReceiver.deliverAll(mReceiver);
+        assertEquals(1, mReceived.size());
+        assertArrayEquals(next, mReceived.get(0));
+    }
+
+    @Test
+    public void close_sendsRawAfterwards() {
+        mSender.close();
+        mSender.close();
+        byte[] large = text(4096);
+        mSender.write(large, null);
+        mToReceiver.deliverAll(mReceiver);
+
+        assertArrayEquals(large, mReceived.get(0));
+        assertEquals(0, mSender.getCompressedMessages());
+    }
+
+    private static byte[] text(int length) {
+        byte[] text = new byte[length];
+        byte[] line = "battery 87%, steps 4521, heart rate 72\n".getBytes();
+        for (int i = 0; i < length; i++) {
+            text[i] = line[i % line.length];
+        }
+        return text;
+    }
+}
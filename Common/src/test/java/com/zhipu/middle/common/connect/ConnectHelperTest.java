@@ -0,0 +1,180 @@
+package com.zhipu.middle.common.connect;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.zhipu.middle.common.callback.OnConnectListener;
+import com.zhipu.middle.common.transport.LoopbackTransport;
+import com.zhipu.middle.common.transport.Transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the helper's own transitions over loopback links, Bluetooth itself is stubbed out.
+ */
+public class ConnectHelperTest {
+    private EventLoop mEventLoop;
+    private ConnectHelper mConnectHelper;
+    private final BlockingQueue<byte[]> mReceived = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        mEventLoop = new EventLoop("test");
+        mConnectHelper = new ConnectHelper(mEventLoop);
+        mConnectHelper.setOnConnectListener(new OnConnectListener() {
+            @Override
+            public void onConnect(BluetoothDevice device) {
+            }
+
+            @Override
+            public void onDisconnect(BluetoothDevice device, String error) {
+            }
+
+            @Override
+            public void onReceiveData(byte[] data) {
+                mReceived.add(data);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mConnectHelper.stop();
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void connected_carriesFramesUntilPeerDrops() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        mConnectHelper.connected(pair[0], "Test");
+        assertTrue(mConnectHelper.isConnected());
+        assertNotNull(mConnectHelper.getMetricGroup());
+
+        assertTrue(mConnectHelper.write("ping".getBytes(), null));
+        // No heartbeat, so no hello either: a peer that does not negotiate sees only payloads
+        assertArrayEquals("ping".getBytes(), readFrame(pair[1]));
+        writeFrame(pair[1], "pong".getBytes());
+        assertArrayEquals("pong".getBytes(), mReceived.poll(5, TimeUnit.SECONDS));
+
+        pair[1].close();
+        waitUntilDisconnected();
+        assertFalse(mConnectHelper.write("late".getBytes(), null));
+    }
+
+    @Test
+    public void connected_closedLinkIsReportedLostNotConnected() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        pair[1].close();
+        mConnectHelper.connected(pair[0], "Test");
+
+        assertFalse(mConnectHelper.isConnected());
+        assertNull(mConnectHelper.getMetricGroup());
+        assertEquals(Transport.STATE_CLOSED, pair[0].getState());
+        assertFalse(mConnectHelper.write("data".getBytes(), null));
+
+        // Not stuck, the next link is taken over as usual
+        LoopbackTransport[] next = LoopbackTransport.createPair();
+        mConnectHelper.connected(next[0], "Test");
+        assertTrue(mConnectHelper.isConnected());
+        assertTrue(mConnectHelper.write("data".getBytes(), null));
+        assertArrayEquals("data".getBytes(), readFrame(next[1]));
+    }
+
+    @Test
+    public void connected_replacesPreviousLink() throws Exception {
+        LoopbackTransport[] first = LoopbackTransport.createPair();
+        LoopbackTransport[] second = LoopbackTransport.createPair();
+        mConnectHelper.connected(first[0], "Test");
+        mConnectHelper.connected(second[0], "Test");
+
+        assertTrue(mConnectHelper.isConnected());
+        assertEquals(Transport.STATE_CLOSED, first[0].getState());
+        assertTrue(mConnectHelper.write("second".getBytes(), null));
+        assertArrayEquals("second".getBytes(), readFrame(second[1]));
+        // The old reader's failure is not taken for the new link dropping
+        Thread.sleep(100);
+        assertTrue(mConnectHelper.isConnected());
+    }
+
+    @Test
+    public void heartbeat_onThisEndOnly_leavesPayloadsIntactAndDoesNotPing() throws Exception {
+        mConnectHelper.setHeartbeat(20, 2);
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        mConnectHelper.connected(pair[0], "Test");
+        assertArrayEquals(FramingNegotiator.helloFrame(true), readFrame(pair[1]));
+
+        // A peer without heartbeat announces nothing
+        writeFrame(pair[1], "data".getBytes());
+        assertArrayEquals("data".getBytes(), mReceived.poll(5, TimeUnit.SECONDS));
+        // A peer that cannot answer pings is not declared dead
+        Thread.sleep(150);
+        assertTrue(mConnectHelper.isConnected());
+
+        assertTrue(mConnectHelper.write("out".getBytes(), null));
+        assertArrayEquals(Heartbeat.dataFrame("out".getBytes()), readFrame(pair[1]));
+    }
+
+    @Test
+    public void heartbeat_onBothEnds_dropsSilentPeer() throws Exception {
+        mConnectHelper.setHeartbeat(20, 2);
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        mConnectHelper.connected(pair[0], "Test");
+        writeFrame(pair[1], FramingNegotiator.helloFrame(true));
+        writeFrame(pair[1], Heartbeat.dataFrame("data".getBytes()));
+        assertArrayEquals("data".getBytes(), mReceived.poll(5, TimeUnit.SECONDS));
+
+        // Pings go out but are never answered
+        waitUntilDisconnected();
+        // The state drops first, the old link is closed right after by restarting
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pair[0].getState() != Transport.STATE_CLOSED && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(Transport.STATE_CLOSED, pair[0].getState());
+    }
+
+    private void waitUntilDisconnected() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mConnectHelper.isConnected() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(mConnectHelper.isConnected());
+    }
+
+    private static void writeFrame(Transport transport, byte[] payload) throws IOException {
+        byte[] frame = FrameCodec.encode(payload);
+        transport.write(frame, 0, frame.length);
+    }
+
+    private static byte[] readFrame(Transport transport) throws IOException {
+        final byte[][] frame = new byte[1][];
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                frame[0] = new byte[length];
+                System.arraycopy(buffer, offset, frame[0], 0, length);
+            }
+        });
+        byte[] buffer = new byte[1];
+        while (frame[0] == null) {
+            if (transport.read(buffer, 0, 1) < 0) {
+                throw new IOException("end of stream");
+            }
+            decoder.feed(buffer, 0, 1);
+        }
+        return frame[0];
+    }
+}
@@ -0,0 +1,190 @@
+package com.zhipu.middle.common.connect;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectRaceTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService mDialExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+        mDialExecutor.shutdownNow();
+    }
+
+    @Test
+    public void preferredWinsInsideStagger_otherNeverDials() throws InterruptedException {
+        FakeFactory factory = new FakeFactory(FakeFactory.CONNECT, FakeFactory.HANG);
+        ConnectRace<FakeSocket> race = new ConnectRace<>(factory, mScheduler, mDialExecutor, 500);
+        Result result = new Result();
+
+        race.start(ADDRESS, true, result);
+
+        assertTrue(result.done.await(1, TimeUnit.SECONDS));
+        assertTrue(result.socket.secure);
+        Thread.sleep(700);
+        assertEquals(Collections.singletonList(true), factory.created());
+        assertTrue(race.isSecurePreferred(ADDRESS, false));
+        assertFalse(race.isRunning());
+    }
+
+    @Test
+    public void staggeredVariantWins_loserIsClosedAndPreferenceLearned() throws InterruptedException {
+        FakeFactory factory = new FakeFactory(FakeFactory.HANG, FakeFactory.CONNECT);
+        ConnectRace<FakeSocket> race = new ConnectRace<>(factory, mScheduler, mDialExecutor, 50);
+        Result result = new Result();
+
+        race.start(ADDRESS, result);
+
+        assertTrue(result.done.await(1, TimeUnit.SECONDS));
+        assertFalse(result.socket.secure);
+        assertTrue(result.elapsedMillis >= 50);
+        FakeSocket loser = factory.sockets.get(0);
+        assertTrue(loser.closed.await(1, TimeUnit.SECONDS));
+        assertFalse(race.isSecurePreferred(ADDRESS, true));
+        assertEquals(1, race.getWins(false));
+
+        // The next race leads with the winner, so it no longer waits out the stagger
+        Result again = new Result();
+        race.start(ADDRESS, again);
+        assertTrue(again.done.await(1, TimeUnit.SECONDS));
+        assertFalse(again.socket.secure);
+        assertTrue(again.elapsedMillis < 50);
+    }
+
+    @Test
+    public void preferredFailsFast_otherStartsWithoutStaggerAndBothFailing() throws InterruptedException {
+        FakeFactory factory = new FakeFactory(FakeFactory.FAIL, FakeFactory.FAIL);
+        ConnectRace<FakeSocket> race = new ConnectRace<>(factory, mScheduler, mDialExecutor, 10000);
+        Result result = new Result();
+
+        race.start(ADDRESS, true, result);
+
+        assertTrue(result.done.await(1, TimeUnit.SECONDS));
+        assertNull(result.socket);
+        assertEquals("insecure refused", result.error.getMessage());
+        assertEquals(2, factory.created().size());
+        assertTrue(race.isSecurePreferred(ADDRESS, true));
+    }
+
+    @Test
+    public void cancel_closesDialingSocketsWithoutCallback() throws InterruptedException {
+        FakeFactory factory = new FakeFactory(FakeFactory.HANG, FakeFactory.HANG);
+        ConnectRace<FakeSocket> race = new ConnectRace<>(factory, mScheduler, mDialExecutor, 20);
+        Result result = new Result();
+
+        race.start(ADDRESS, true, result);
+        Thread.sleep(200);
+        race.cancel();
+
+        assertEquals(2, factory.sockets.size());
+        for (FakeSocket socket : factory.sockets) {
+            assertTrue(socket.closed.await(1, TimeUnit.SECONDS));
+        }
+        assertFalse(result.done.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    private static class FakeSocket implements Closeable {
+        private final boolean secure;
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        FakeSocket(boolean secure) {
+            this.secure = secure;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /**
+     * Connects, refuses or hangs until closed, per variant.
+     */
+    private static class FakeFactory implements ConnectRace.SocketFactory<FakeSocket> {
+        static final int CONNECT = 0;
+        static final int FAIL = 1;
+        static final int HANG = 2;
+
+        private final int mSecureBehavior;
+        private final int mInsecureBehavior;
+        private final List<FakeSocket> sockets = Collections.synchronizedList(new ArrayList<FakeSocket>());
+
+        FakeFactory(int secureBehavior, int insecureBehavior) {
+            mSecureBehavior = secureBehavior;
+            mInsecureBehavior = insecureBehavior;
+        }
+
+        @Override
+        public FakeSocket create(String address, boolean secure) {
+            FakeSocket socket = new FakeSocket(secure);
+            sockets.add(socket);
+            return socket;
+        }
+
+        @Override
+        public void connect(FakeSocket socket) throws IOException {
+            int behavior = socket.secure ? mSecureBehavior : mInsecureBehavior;
+            if (behavior == FAIL) {
+                throw new IOException((socket.secure ? "secure" : "insecure") + " refused");
+            }
+            if (behavior == HANG) {
+                try {
+                    socket.closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("socket closed");
+            }
+        }
+
+        List<Boolean> created() {
+            List<Boolean> created = new ArrayList<>();
+            synchronized (sockets) {
+                for (FakeSocket socket : sockets) {
+                    created.add(socket.secure);
+                }
+            }
+            return created;
+        }
+    }
+
+    private static class Result implements ConnectRace.Callback<FakeSocket> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile FakeSocket socket;
+        private volatile long elapsedMillis;
+        private volatile IOException error;
+
+        @Override
+        public void onConnected(FakeSocket socket, boolean secure, long elapsedMillis) {
+            this.socket = socket;
+            this.elapsedMillis = elapsedMillis;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException lastError) {
+            error = lastError;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.zhipu.middle.common.connect;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+    private final ExecutorService mEventQueue = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mEventQueue.shutdownNow();
+    }
+
+    @Test
+    public void transition_onlyFromTheExpectedState() {
+        ConnectionStateMachine<Connection> stateMachine = new ConnectionStateMachine<>();
+        Connection connection = new Connection();
+
+        assertFalse(stateMachine.transitionToConnected(ConnectionStateMachine.STATE_CONNECTING, connection));
+        assertTrue(stateMachine.transition(ConnectionStateMachine.STATE_NONE, ConnectionStateMachine.STATE_LISTEN));
+        assertFalse(stateMachine.transition(ConnectionStateMachine.STATE_NONE, ConnectionStateMachine.STATE_CONNECTING));
+        assertTrue(stateMachine.transitionToConnected(ConnectionStateMachine.STATE_LISTEN, connection));
+        assertEquals(connection, stateMachine.getConnection());
+
+        assertTrue(stateMachine.transition(ConnectionStateMachine.STATE_CONNECTED, ConnectionStateMachine.STATE_LISTEN));
+        assertNull(stateMachine.getConnection());
+        assertNull(stateMachine.reset());
+        assertEquals(ConnectionStateMachine.STATE_NONE, stateMachine.getState());
+    }
+
+    /**
+     * Connect, stop and write from many threads at once. Every connection that was attached must
+     * be detached exactly once, never leaked or closed twice, and the listener must see one
+     * unbroken chain of states.
+     */
+    @Test
+    public void stress_connectStopAndWriteConcurrently() throws InterruptedException {
+        final List<int[]> events = new ArrayList<>();
+        final ConnectionStateMachine<Connection> stateMachine = new ConnectionStateMachine<>(mEventQueue,
+                new ConnectionStateMachine.Listener<Connection>() {
+                    @Override
+                    public void onStateChanged(int oldState, int newState, Connection connection) {
+                        events.add(new int[]{oldState, newState});
+                    }
+                });
+        final List<Connection> attached = new ArrayList<>();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong writes = new AtomicLong();
+        final AtomicInteger errors = new AtomicInteger();
+        int connectors = 4;
+        int stoppers = 2;
+        int writers = 4;
+        final CountDownLatch done = new CountDownLatch(connectors + stoppers + writers);
+        ExecutorService threads = Executors.newFixedThreadPool(connectors + stoppers + writers);
+
+        for (int i = 0; i < connectors; i++) {
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        stateMachine.transition(ConnectionStateMachine.STATE_NONE, ConnectionStateMachine.STATE_CONNECTING);
+                        Connection connection = new Connection();
+                        if (stateMachine.transitionToConnected(ConnectionStateMachine.STATE_CONNECTING, connection)) {
+                            synchronized (attached) {
+                                attached.add(connection);
+                            }
+                        }
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < stoppers; i++) {
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        Connection connection = stateMachine.reset();
+                        if (connection != null) {
+                            connection.close();
+                        }
+                        Thread.yield();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        for (int i = 0; i < writers; i++) {
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        Connection connection = stateMachine.getConnection();
+                        if (connection == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        if (connection.closes.get() > 1) {
+                            errors.incrementAndGet();
+                        }
+                        writes.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        Thread.sleep(500);
+        running.set(false);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        threads.shutdown();
+        Connection last = stateMachine.reset();
+        if (last != null) {
+            last.close();
+        }
+
+        assertEquals(0, errors.get());
+        assertTrue("writes " + writes.get(), writes.get() > 0);
+        assertTrue("attached " + attached.size(), attached.size() > 10);
+        for (Connection connection : attached) {
+            assertEquals(1, connection.closes.get());
+        }
+
+        // Wait for the queue to drain, then the reported states must chain up to NONE
+        final CountDownLatch drained = new CountDownLatch(1);
+        mEventQueue.execute(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        int state = ConnectionStateMachine.STATE_NONE;
+        for (int[] event : events) {
+            assertEquals(state, event[0]);
+            state = event[1];
+        }
+        assertEquals(ConnectionStateMachine.STATE_NONE, state);
+    }
+
+    private static class Connection {
+        private final AtomicInteger closes = new AtomicInteger();
+
+        void close() {
+            closes.incrementAndGet();
+        }
+    }
+}
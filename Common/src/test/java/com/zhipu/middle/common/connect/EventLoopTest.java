@@ -0,0 +1,165 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.transport.LoopbackTransport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoopTest {
+
+    @Test
+    public void writeQueues_shareOneLoopThreadAndKeepOrder() throws InterruptedException {
+        EventLoop eventLoop = new EventLoop("test");
+        int queues = 8;
+        int writes = 500;
+        ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[queues];
+        WriteQueue[] writeQueues = new WriteQueue[queues];
+        final CountDownLatch written = new CountDownLatch(queues * writes);
+        OnWriteListener onWriteListener = new CountingListener(written);
+        for (int i = 0; i < queues; i++) {
+            outputs[i] = new ByteArrayOutputStream();
+            writeQueues[i] = new WriteQueue(outputs[i], writes, WriteQueue.DEFAULT_COALESCE_LIMIT,
+                    eventLoop.getScheduler());
+            writeQueues[i].start();
+        }
+
+        for (int n = 0; n < writes; n++) {
+            for (int i = 0; i < queues; i++) {
+                assertTrue(writeQueues[i].enqueue(new byte[]{(byte) n}, onWriteListener));
+            }
+        }
+
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertEquals(1, eventLoop.getThreadCount());
+        for (int i = 0; i < queues; i++) {
+            byte[] bytes = outputs[i].toByteArray();
+            assertEquals(writes, bytes.length);
+            for (int n = 0; n < writes; n++) {
+                assertEquals((byte) n, bytes[n]);
+            }
+        }
+        eventLoop.shutdown();
+    }
+
+    @Test
+    public void batching_deadlineTimerSendsHeldWrites() throws InterruptedException {
+        EventLoop eventLoop = new EventLoop("test");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WriteQueue writeQueue = new WriteQueue(output, eventLoop.getScheduler());
+        writeQueue.setBatching(20, 1024);
+        writeQueue.start();
+        CountDownLatch written = new CountDownLatch(3);
+        OnWriteListener onWriteListener = new CountingListener(written);
+
+        writeQueue.enqueue(new byte[]{1}, onWriteListener);
+        writeQueue.enqueue(new byte[]{2}, onWriteListener);
+        writeQueue.enqueue(new byte[]{3}, onWriteListener);
+
+        assertTrue(written.await(1, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[]{1, 2, 3}, output.toByteArray());
+        assertEquals(1, writeQueue.getSocketWriteCount());
+        eventLoop.shutdown();
+    }
+
+    @Test
+    public void stalledWrite_doesNotHoldUpTheLoop() throws InterruptedException {
+        EventLoop eventLoop = new EventLoop("test");
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        WriteQueue writeQueue = new WriteQueue(stalled, eventLoop);
+        writeQueue.start();
+        CountDownLatch written = new CountDownLatch(1);
+        writeQueue.enqueue(new byte[]{1}, new CountingListener(written));
+
+        final CountDownLatch looped = new CountDownLatch(1);
+        eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                looped.countDown();
+            }
+        });
+        assertTrue(looped.await(1, TimeUnit.SECONDS));
+        assertEquals(1, written.getCount());
+        release.countDown();
+        assertTrue(written.await(1, TimeUnit.SECONDS));
+        eventLoop.shutdown();
+    }
+
+    @Test
+    public void sessions_useLoopThreadsInsteadOfTheirOwn() throws InterruptedException {
+        EventLoop eventLoop = new EventLoop("test");
+        int pairs = 4;
+        final CountDownLatch received = new CountDownLatch(pairs);
+        OnSessionListener onSessionListener = new OnSessionListener() {
+            @Override
+            public void onSessionOpened(Session session) {
+            }
+
+            @Override
+            public void onSessionClosed(Session session, String reason) {
+            }
+
+            @Override
+            public void onSessionData(Session session, byte[] data) {
+                received.countDown();
+            }
+        };
+        Session[] sessions = new Session[2 * pairs];
+        for (int i = 0; i < pairs; i++) {
+            LoopbackTransport[] pair = LoopbackTransport.createPair();
+            sessions[2 * i] = new Session(pair[0], onSessionListener, eventLoop);
+            sessions[2 * i + 1] = new Session(pair[1], onSessionListener, eventLoop);
+        }
+        for (Session session : sessions) {
+            session.open();
+        }
+        for (int i = 0; i < pairs; i++) {
+            sessions[2 * i].write("ping".getBytes(), null);
+        }
+
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        // One blocking reader per session, the loop thread, and pooled writers only while writing
+        assertTrue(eventLoop.getThreadCount() <= 3 * pairs + 1);
+        for (Session session : sessions) {
+            session.close("done");
+        }
+        eventLoop.shutdown();
+    }
+
+    private static class CountingListener implements OnWriteListener {
+        private final CountDownLatch mLatch;
+
+        CountingListener(CountDownLatch latch) {
+            mLatch = latch;
+        }
+
+        @Override
+        public void onWriteComplete(int length) {
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnTransferListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileTransferTest {
+    private static final int CHUNK_SIZE = 1024;
+    private static final int WINDOW = 4;
+    private static final long TIMEOUT_MILLIS = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private EventLoop mEventLoop;
+    private Wire mToReceiver;
+    private Wire mToSender;
+    private FileTransfer mSender;
+    private FileTransfer mReceiver;
+    private Listener mSenderListener;
+    private Listener mReceiverListener;
+    private File mReceiveDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mToReceiver = new Wire();
+        mToSender = new Wire();
+        mEventLoop = new EventLoop("test");
+        mSender = this.newTransfer(mToReceiver);
+        mReceiver = this.newTransfer(mToSender);
+        mSenderListener = new Listener();
+        mReceiverListener = new Listener();
+        mSender.setOnTransferListener(mSenderListener);
+        mReceiver.setOnTransferListener(mReceiverListener);
+        mReceiveDirectory = mFolder.newFolder("received");
+        mReceiver.setReceiveDirectory(mReceiveDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        mSender.close();
+        mReceiver.close();
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void send_movesFileInsideTheWindow() throws IOException {
+        byte[] content = randomBytes(100 * 1024 + 17);
+        File file = this.writeFile("face.bin", content);
+
+        mSender.send(file);
+        int maxInFlight = 0;
+        while (!mToReceiver.isEmpty() || !mToSender.isEmpty()) {
+            maxInFlight = Math.max(maxInFlight, mToReceiver.size());
+            mToReceiver.deliverAll(mReceiver);
+            mToSender.deliverAll(mSender);
+        }
+
+        assertTrue(mSenderListener.complete);
+        assertTrue(mReceiverListener.complete);
+        assertArrayEquals(content, readFile(new File(mReceiveDirectory, "face.bin")));
+        assertFalse(new File(mReceiveDirectory, "face.bin.part").exists());
+        assertTrue(maxInFlight <= WINDOW);
+        assertEquals(101, mSender.getChunksSent());
+        assertEquals(0, mSender.getChunksResent());
+        assertEquals(0, mSender.getActiveTransferCount() + mReceiver.getActiveTransferCount());
+        assertEquals(FileTransfer.DIRECTION_OUT, mSenderListener.direction);
+        assertEquals(FileTransfer.DIRECTION_IN, mReceiverListener.direction);
+    }
+
+    @Test
+    public void resume_afterDisconnectSendsOnlyMissingChunks() throws IOException {
+        byte[] content = randomBytes(64 * 1024);
+        File file = this.writeFile("firmware.bin", content);
+
+        mSender.send(file);
+        for (int i = 0; i < 5; i++) {
+            mToReceiver.deliverAll(mReceiver);
+            mToSender.deliverAll(mSender);
+        }
+        // The link drops with a window of chunks and acks in flight
+        mToReceiver.disconnect();
+        mToSender.disconnect();
+        mReceiver.close();
+        assertFalse(mReceiverListener.complete);
+
+        // A fresh receiver, as after a restart, only has the part file to go by
+        mToReceiver.connect();
+        mToSender.connect();
+        mReceiver = this.newTransfer(mToSender);
+        mReceiver.setOnTransferListener(mReceiverListener);
+        mReceiver.setReceiveDirectory(mReceiveDirectory);
+        long sentBeforeResume = mSender.getChunksSent();
+        mSender.resume();
+        while (!mToReceiver.isEmpty() || !mToSender.isEmpty()) {
+            mToReceiver.deliverAll(mReceiver);
+            mToSender.deliverAll(mSender);
+        }
+
+        assertTrue(mSenderListener.complete);
+        assertArrayEquals(content, readFile(new File(mReceiveDirectory, "firmware.bin")));
+        long totalChunks = content.length / CHUNK_SIZE;
+        assertTrue(sentBeforeResume > 0);
+        assertEquals(totalChunks, mSender.getChunksSent());
+        assertTrue(mSender.getChunksResent() <= WINDOW);
+    }
+
+    @Test
+    public void corruptChunk_isNackedAndResent() throws IOException {
+        byte[] content = randomBytes(20 * 1024);
+        File file = this.writeFile("log.txt", content);
+        mToReceiver.corruptFrame(6);
+
+        mSender.send(file);
+        while (!mToReceiver.isEmpty() || !mToSender.isEmpty()) {
+            mToReceiver.deliverAll(mReceiver);
+            mToSender.deliverAll(mSender);
+        }
+
+        assertTrue(mReceiverListener.complete);
+        assertArrayEquals(content, readFile(new File(mReceiveDirectory, "log.txt")));
+        assertEquals(1, mReceiver.getCrcErrors());
+        assertTrue(mSender.getChunksResent() >= 1);
+    }
+
+    @Test
+    public void offer_withoutReceiveDirectoryIsRejected() throws IOException {
+        mReceiver.setReceiveDirectory(null);
+        mSender.send(this.writeFile("face.bin", randomBytes(100)));
+        mToReceiver.deliverAll(mReceiver);
+        mToSender.deliverAll(mSender);
+
+        assertTrue(mSenderListener.failed);
+        assertEquals(0, mSender.getActiveTransferCount());
+    }
+
+    @Test
+    public void refusedChunksAndAcks_areRetried() throws Exception {
+        // Long enough that only the retries can carry the transfer on
+        mSender = this.newTransfer(mToReceiver, FileTransfer.DEFAULT_TIMEOUT_MILLIS);
+        mReceiver = this.newTransfer(mToSender, FileTransfer.DEFAULT_TIMEOUT_MILLIS);
+        mSender.setOnTransferListener(mSenderListener);
+        mReceiver.setOnTransferListener(mReceiverListener);
+        mReceiver.setReceiveDirectory(mReceiveDirectory);
+        byte[] content = randomBytes(16 * 1024);
+        File file = this.writeFile("face.bin", content);
+        mSender.send(file);
+        mToReceiver.deliverAll(mReceiver);
+        mToSender.deliverAll(mSender);
+        // The writers are full for a while: chunks and acknowledgements are refused
+        mToReceiver.refuse(3);
+        mToSender.refuse(3);
+        mToReceiver.deliverAll(mReceiver);
+        mToSender.deliverAll(mSender);
+
+        this.deliverUntilComplete();
+        assertArrayEquals(content, readFile(new File(mReceiveDirectory, "face.bin")));
+        assertEquals(0, mSender.getTimeouts());
+    }
+
+    @Test
+    public void lostFrames_areRecoveredByTheTimeout() throws Exception {
+        byte[] content = randomBytes(16 * 1024);
+        File file = this.writeFile("log.txt", content);
+        // The offer and later a whole window of acknowledgements never arrive
+        mToReceiver.drop(1);
+        mSender.send(file);
+        Thread.sleep(TIMEOUT_MILLIS * 2);
+        mToReceiver.deliverAll(mReceiver);
+        mToSender.drop(WINDOW + 1);
+
+        this.deliverUntilComplete();
+        assertArrayEquals(content, readFile(new File(mReceiveDirectory, "log.txt")));
+        assertTrue(mSender.getTimeouts() >= 2);
+    }
+
+    @Test
+    public void offer_ofAnotherVersionStartsPartFileOver() throws Exception {
+        byte[] stale = randomBytes(32 * 1024);
+        File file = this.writeFile("face.bin", stale);
+        mSender.send(file);
+        for (int i = 0; i < 3; i++) {
+            mToReceiver.deliverAll(mReceiver);
+            mToSender.deliverAll(mSender);
+        }
+        assertTrue(new File(mReceiveDirectory, "face.bin.part").length() > 0);
+        mSender.close();
+        mToReceiver.disconnect();
+        mToSender.disconnect();
+        mToReceiver.connect();
+        mToSender.connect();
+
+        // Same name and length, other bytes: resuming from the part file would mix both versions
+        byte[] content = randomBytes(32 * 1024 + 1);
+        content = Arrays.copyOf(content, stale.length);
+        file = this.writeFile("face.bin", content);
+        assertTrue(file.setLastModified(file.lastModified() - 60 * 1000));
+        mSender = this.newTransfer(mToReceiver);
+        mSender.setOnTransferListener(mSenderListener);
+        mSender.send(file);
+
+        this.deliverUntilComplete();
+        assertArrayEquals(content, readFile(new File(mReceiveDirectory, "face.bin")));
+        assertFalse(new File(mReceiveDirectory, "face.bin.part.id").exists());
+    }
+
+    private FileTransfer newTransfer(Wire wire) {
+        return this.newTransfer(wire, TIMEOUT_MILLIS);
+    }
+
+    private FileTransfer newTransfer(Wire wire, long timeoutMillis) {
+        return new FileTransfer(wire, null, CHUNK_SIZE, WINDOW, mEventLoop.getScheduler(), timeoutMillis);
+    }
+
+    /**
+     * Deliver frames as they come, retries and timeouts write from the scheduler in between.
+     */
+    private void deliverUntilComplete() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!(mSenderListener.complete && mReceiverListener.complete)
+                && System.nanoTime() < deadline) {
+            mToReceiver.deliverAll(mReceiver);
+            mToSender.deliverAll(mSender);
+            Thread.sleep(1);
+        }
+        assertTrue(mSenderListener.complete);
+        assertTrue(mReceiverListener.complete);
+    }
+
+    private File writeFile(String name, byte[] content) throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(content);
+            return content;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class Listener implements OnTransferListener {
+        private volatile boolean complete;
+        private volatile boolean failed;
+        private volatile int direction = -1;
+
+        @Override
+        public void onTransferProgress(int transferId, int direction, long transferred, long total) {
+        }
+
+        @Override
+        public void onTransferComplete(int transferId, int direction, File file) {
+            this.direction = direction;
+            complete = true;
+        }
+
+        @Override
+        public void onTransferFailed(int transferId, int direction, String reason) {
+            this.direction = direction;
+            failed = true;
+        }
+    }
+}
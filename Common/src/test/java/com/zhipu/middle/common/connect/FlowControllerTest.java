@@ -0,0 +1,126 @@
+package com.zhipu.middle.common.connect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlowControllerTest {
+    private static final int WINDOW = 1024;
+    private static final int PAYLOAD = 100;
+
+    private EventLoop mEventLoop;
+    private Wire mToReceiver;
+    private Wire mToSender;
+    private FlowController mSender;
+    private FlowController mReceiver;
+    private final List<Integer> mReceived = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() {
+        mEventLoop = new EventLoop("test");
+        mToReceiver = new Wire();
+        mToSender = new Wire();
+        mSender = new FlowController(mToReceiver, null, WINDOW, 64, mEventLoop.getScheduler(), 5);
+        mReceiver = new FlowController(mToSender, new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mReceived.add(buffer[offset] & 0xFF);
+            }
+        }, WINDOW, 64, mEventLoop.getScheduler(), 5);
+    }
+
+    @After
+    public void tearDown() {
+        mSender.reset();
+        mReceiver.reset();
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void sender_staysInsideTheWindow() throws InterruptedException {
+        mReceiver.start();
+        mToSender.deliverAll(mSender);
+        assertEquals(WINDOW, mSender.getPeerWindow());
+        for (int i = 0; i < 30; i++) {
+            assertTrue(mSender.write(payload(i), null));
+        }
+        assertEquals(WINDOW / PAYLOAD, mToReceiver.size());
+
+        this.deliverUntilReceived(30);
+        assertInOrder(30);
+    }
+
+    @Test
+    public void fullWriter_isRetriedWithoutANewGrant() throws InterruptedException {
+        mReceiver.start();
+        mToSender.deliverAll(mSender);
+        // Credits for everything, but the writer is full for a while
+        mToReceiver.refuse(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mSender.write(payload(i), null));
+        }
+        assertEquals(5, mSender.getPendingCount());
+
+        this.deliverUntilReceived(5);
+        assertInOrder(5);
+        assertEquals(0, mSender.getPendingCount());
+    }
+
+    @Test
+    public void refusedGrant_isSentAgain() throws InterruptedException {
+        mToSender.refuse(1);
+        mReceiver.start();
+        assertEquals(0, mToSender.size());
+        assertTrue(mSender.write(payload(0), null));
+
+        this.deliverUntilReceived(1);
+        assertEquals(WINDOW, mSender.getPeerWindow());
+    }
+
+    @Test
+    public void lostGrant_isRecoveredByAProbe() throws InterruptedException {
+        mReceiver.start();
+        mToSender.deliverAll(mSender);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(mSender.write(payload(i), null));
+        }
+        // The grant for the first half of the window never arrives
+        mToSender.drop(1);
+        mToReceiver.deliverAll(mReceiver);
+        assertTrue(mSender.getPendingCount() > 0);
+
+        this.deliverUntilReceived(20);
+        assertInOrder(20);
+        assertTrue(mSender.getProbeCount() > 0);
+    }
+
+    private void deliverUntilReceived(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (mReceived.size() < count && System.nanoTime() < deadline) {
+            mToReceiver.deliverAll(mReceiver);
+            mToSender.deliverAll(mSender);
+            Thread.sleep(1);
+        }
+        assertEquals(count, mReceived.size());
+    }
+
+    private void assertInOrder(int count) {
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) mReceived.get(i));
+        }
+    }
+
+    private static byte[] payload(int index) {
+        byte[] payload = new byte[PAYLOAD];
+        payload[0] = (byte) index;
+        return payload;
+    }
+}
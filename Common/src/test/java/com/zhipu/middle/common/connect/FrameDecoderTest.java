@@ -0,0 +1,127 @@
+package com.zhipu.middle.common.connect;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FrameDecoderTest {
+
+    @Test
+    public void varInt_roundTrip() {
+        int[] values = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE};
+        for (int value : values) {
+            byte[] header = new byte[FrameCodec.MAX_HEADER_LENGTH];
+            int length = FrameCodec.writeVarInt(value, header, 0);
+            assertEquals(FrameCodec.varIntLength(value), length);
+
+            int decoded = 0;
+            for (int i = 0; i < length; i++) {
+                decoded |= (header[i] & 0x7F) << (7 * i);
+                assertEquals(i < length - 1, (header[i] & 0x80) != 0);
+            }
+            assertEquals(value, decoded);
+        }
+    }
+
+    @Test
+    public void decode_wholeFramesInOneChunk() throws IOException {
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(FrameCodec.encode("hello".getBytes()));
+        stream.write(FrameCodec.encode(new byte[0]));
+        stream.write(FrameCodec.encode("watch".getBytes()));
+        byte[] bytes = stream.toByteArray();
+
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertEquals(3, collector.frames.size());
+        assertArrayEquals("hello".getBytes(), collector.frames.get(0));
+        assertArrayEquals(new byte[0], collector.frames.get(1));
+        assertArrayEquals("watch".getBytes(), collector.frames.get(2));
+        assertFalse(decoder.hasPartialFrame());
+    }
+
+    @Test
+    public void decode_randomSplits() throws IOException {
+        Random random = new Random(20200424L);
+        for (int round = 0; round < 200; round++) {
+            List<byte[]> expected = new ArrayList<>();
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            int frames = 1 + random.nextInt(20);
+            for (int i = 0; i < frames; i++) {
+                byte[] payload = new byte[random.nextInt(random.nextBoolean() ? 64 : 20000)];
+                random.nextBytes(payload);
+                expected.add(payload);
+                stream.write(FrameCodec.encode(payload));
+            }
+            byte[] bytes = stream.toByteArray();
+
+            Collector collector = new Collector();
+            FrameDecoder decoder = new FrameDecoder(collector, FrameCodec.DEFAULT_MAX_FRAME_LENGTH, 512);
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = Math.min(bytes.length - offset, 1 + random.nextInt(3000));
+                decoder.feed(bytes, offset, count);
+                offset += count;
+            }
+
+            assertEquals(expected.size(), collector.frames.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), collector.frames.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void readFrom_inMemoryStream() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            stream.write(FrameCodec.encode(("message " + i).getBytes()));
+        }
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder(collector, 1024, 7);
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(stream.toByteArray());
+        while (decoder.readFrom(inputStream) >= 0) {
+            // keep reading until the end of the stream
+        }
+
+        assertEquals(100, collector.frames.size());
+        assertArrayEquals("message 99".getBytes(), collector.frames.get(99));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void decode_rejectsOversizedFrame() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(new Collector(), 16, 64);
+        byte[] frame = FrameCodec.encode(new byte[17]);
+        decoder.feed(frame, 0, frame.length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void decode_rejectsMalformedHeader() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(new Collector());
+        byte[] header = new byte[6];
+        Arrays.fill(header, (byte) 0xFF);
+        decoder.feed(header, 0, header.length);
+    }
+
+    private static class Collector implements FrameDecoder.OnFrameListener {
+        private final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    }
+}
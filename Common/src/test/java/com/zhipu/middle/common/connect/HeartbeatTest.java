@@ -0,0 +1,175 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnHeartbeatListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatTest {
+    private EventLoop mEventLoop;
+
+    @Before
+    public void setUp() {
+        mEventLoop = new EventLoop("test");
+    }
+
+    @After
+    public void tearDown() {
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void pingPong_recordsRoundTrips() throws InterruptedException {
+        DirectWire toB = new DirectWire();
+        DirectWire toA = new DirectWire();
+        final List<byte[]> received = new ArrayList<>();
+        Heartbeat a = new Heartbeat(toB, new Collector(received), mEventLoop.getScheduler(), 10, 3,
+                new IgnorePeerDead());
+        Heartbeat b = new Heartbeat(toA, new Collector(received), mEventLoop.getScheduler(), 1000, 3,
+                new IgnorePeerDead());
+        toB.mPeer = b;
+        toA.mPeer = a;
+        a.start();
+
+        a.write(new byte[]{7, 8}, null);
+        Thread.sleep(100);
+        a.stop();
+
+        assertTrue(a.getRttHistogram().getCount() >= 3);
+        assertTrue(a.getMissed() <= 1);
+        assertEquals(0, b.getRttHistogram().getCount());
+        assertEquals(1, received.size());
+        assertArrayEquals(new byte[]{7, 8}, received.get(0));
+    }
+
+    @Test
+    public void silentPeer_declaredDeadAfterMaxMissed() throws InterruptedException {
+        final CountDownLatch dead = new CountDownLatch(1);
+        final int[] missed = new int[1];
+        // Pings go nowhere, as on a half-open socket
+        Heartbeat heartbeat = new Heartbeat(new DirectWire(), new Collector(new ArrayList<byte[]>()),
+                mEventLoop.getScheduler(), 10, 3, new OnHeartbeatListener() {
+            @Override
+            public void onPeerDead(int missedPings) {
+                missed[0] = missedPings;
+                dead.countDown();
+            }
+        });
+        heartbeat.start();
+
+        assertTrue(dead.await(1, TimeUnit.SECONDS));
+        assertEquals(3, missed[0]);
+        assertEquals(0, heartbeat.getRttHistogram().getCount());
+    }
+
+    @Test
+    public void stalledWriter_stillDeclaresPeerDead() throws InterruptedException {
+        final CountDownLatch dead = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Every write hangs, as on a half-open socket whose send buffer is full
+        WriteQueue writeQueue = new WriteQueue(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, mEventLoop);
+        writeQueue.start();
+        final WriteQueue queue = writeQueue;
+        Heartbeat heartbeat = new Heartbeat(new FrameWriter() {
+            @Override
+            public boolean write(byte[] data, OnWriteListener listener) {
+                return queue.enqueue(FrameCodec.encode(data), listener);
+            }
+        }, new Collector(new ArrayList<byte[]>()), mEventLoop.getScheduler(), 10, 3, new OnHeartbeatListener() {
+            @Override
+            public void onPeerDead(int missedPings) {
+                dead.countDown();
+            }
+        });
+        heartbeat.start();
+
+        assertTrue(dead.await(1, TimeUnit.SECONDS));
+        release.countDown();
+        writeQueue.close();
+    }
+
+    @Test
+    public void negotiator_stripsTypeByteOnlyWhenPeerAnnouncedIt() {
+        List<byte[]> received = new ArrayList<>();
+        FramingNegotiator typedPeer = new FramingNegotiator(null, new Collector(received));
+        byte[] hello = FramingNegotiator.helloFrame(true);
+        typedPeer.onFrame(hello, 0, hello.length);
+        byte[] data = Heartbeat.dataFrame(new byte[]{7});
+        typedPeer.onFrame(data, 0, data.length);
+        assertTrue(typedPeer.isPeerTyped());
+
+        FramingNegotiator plainPeer = new FramingNegotiator(null, new Collector(received));
+        hello = FramingNegotiator.helloFrame(false);
+        plainPeer.onFrame(hello, 0, hello.length);
+        plainPeer.onFrame(new byte[]{0, 8}, 0, 2);
+
+        FramingNegotiator olderPeer = new FramingNegotiator(null, new Collector(received));
+        olderPeer.onFrame(new byte[]{9}, 0, 1);
+        assertTrue(olderPeer.isNegotiated());
+
+        assertEquals(3, received.size());
+        assertArrayEquals(new byte[]{7}, received.get(0));
+        assertArrayEquals(new byte[]{0, 8}, received.get(1));
+        assertArrayEquals(new byte[]{9}, received.get(2));
+    }
+
+    /**
+     * Hands every frame straight to the peer, unlike the {@link Wire} that holds them.
+     */
+    private static class DirectWire implements FrameWriter {
+        private volatile Heartbeat mPeer;
+
+        @Override
+        public boolean write(byte[] data, OnWriteListener listener) {
+            Heartbeat peer = mPeer;
+            if (peer != null) {
+                peer.onFrame(data, 0, data.length);
+            }
+            return true;
+        }
+    }
+
+    private static class Collector implements FrameDecoder.OnFrameListener {
+        private final List<byte[]> mFrames;
+
+        Collector(List<byte[]> frames) {
+            mFrames = frames;
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            byte[] frame = new byte[length];
+            System.arraycopy(buffer, offset, frame, 0, length);
+            mFrames.add(frame);
+        }
+    }
+
+    private static class IgnorePeerDead implements OnHeartbeatListener {
+
+        @Override
+        public void onPeerDead(int missedPings) {
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.zhipu.middle.common.connect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OutboundSchedulerTest {
+    @Test
+    public void poll_servesStarvedClassEveryLimitTurns() {
+        OutboundScheduler<String> scheduler = new OutboundScheduler<>(64);
+        scheduler.setStarvationLimit(4);
+        for (int i = 0; i < 8; i++) {
+            scheduler.offer("u" + i, OutboundScheduler.PRIORITY_URGENT);
+        }
+        scheduler.offer("b0", OutboundScheduler.PRIORITY_BULK);
+        scheduler.offer("b1", OutboundScheduler.PRIORITY_BULK);
+        scheduler.offer("n0", OutboundScheduler.PRIORITY_NORMAL);
+
+        StringBuilder order = new StringBuilder();
+        String message;
+        while ((message = scheduler.poll()) != null) {
+            order.append(message).append(' ');
+        }
+
+        // Normal and bulk both starve after 4 turns, normal goes first and bulk right after
+        assertEquals("u0 u1 u2 u3 n0 b0 u4 u5 u6 u7 b1 ", order.toString());
+        assertNull(scheduler.poll());
+    }
+}
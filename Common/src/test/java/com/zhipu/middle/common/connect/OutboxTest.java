@@ -0,0 +1,263 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private EventLoop mEventLoop;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mEventLoop = new EventLoop("test");
+        mFile = new File(mFolder.getRoot(), "outbox");
+    }
+
+    @After
+    public void tearDown() {
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void offlineWrites_surviveReopenAndDrainInOrder() throws Exception {
+        Outbox outbox = this.open(1000, 4, Outbox.DEFAULT_COMPACT_BYTES);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(outbox.write(("sms " + i).getBytes(), null));
+        }
+        outbox.close();
+        // A crash in the middle of the next append leaves a torn record behind
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(file.length());
+        file.write(new byte[]{1, 0, 0, 0});
+        file.close();
+
+        outbox = this.open(1000, 4, Outbox.DEFAULT_COMPACT_BYTES);
+        assertEquals(10, outbox.getPendingCount());
+        Link link = new Link();
+        outbox.attach(link);
+        // Only the in-flight window goes out until the writes complete
+        assertEquals(4, link.size());
+        link.completeAll(outbox, 10, 2000);
+
+        assertEquals(10, link.mWritten.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("sms " + i, link.mWritten.get(i));
+        }
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void failedWrite_isRetriedOnSameLinkWithBackoff() throws Exception {
+        Outbox outbox = this.open(1000, 8, Outbox.DEFAULT_COMPACT_BYTES);
+        for (int i = 0; i < 3; i++) {
+            outbox.write(("msg " + i).getBytes(), null);
+        }
+        Link link = new Link();
+        outbox.attach(link);
+        assertEquals(3, link.size());
+        link.complete(0);
+        link.fail(1);
+        assertTrue(outbox.isAttached());
+        long firstRetryMillis = outbox.getRetryMillis();
+        assertTrue(firstRetryMillis > 0);
+
+        link.awaitSize(5, 2000);
+        assertEquals("msg 1", link.mWritten.get(3));
+        assertEquals("msg 2", link.mWritten.get(4));
+        link.fail(3);
+        assertEquals(2 * firstRetryMillis, outbox.getRetryMillis());
+
+        link.awaitSize(7, 2000);
+        link.complete(5);
+        link.complete(6);
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(0, outbox.getRetryMillis());
+        outbox.close();
+    }
+
+    @Test
+    public void detachedLink_resendsUnacknowledgedOnNextAttach() throws Exception {
+        Outbox outbox = this.open(1000, 8, Outbox.DEFAULT_COMPACT_BYTES);
+        for (int i = 0; i < 3; i++) {
+            outbox.write(("msg " + i).getBytes(), null);
+        }
+        Link first = new Link();
+        outbox.attach(first);
+        assertEquals(3, first.size());
+        first.complete(0);
+        outbox.detach();
+        assertTrue(!outbox.isAttached());
+        outbox.close();
+
+        outbox = this.open(1000, 8, Outbox.DEFAULT_COMPACT_BYTES);
+        assertEquals(2, outbox.getPendingCount());
+        Link second = new Link();
+        outbox.attach(second);
+        assertEquals("msg 1", second.mWritten.get(0));
+        assertEquals("msg 2", second.mWritten.get(1));
+        outbox.close();
+    }
+
+    @Test
+    public void replay_isPaced() throws Exception {
+        // 40 per second with a burst of 10: 30 messages need at least half a second
+        Outbox outbox = this.open(40, 100, Outbox.DEFAULT_COMPACT_BYTES);
+        for (int i = 0; i < 30; i++) {
+            outbox.write(new byte[]{(byte) i}, null);
+        }
+        Link link = new Link();
+        long start = System.nanoTime();
+        outbox.attach(link);
+        assertEquals(10, link.size());
+        link.completeAll(outbox, 30, 5000);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("replayed in " + elapsedMillis + "ms", elapsedMillis >= 400);
+        outbox.close();
+    }
+
+    @Test
+    public void acknowledgedMessages_areCompactedAway() throws Exception {
+        Outbox outbox = this.open(1000, 100, 1024);
+        Link link = new Link();
+        outbox.attach(link);
+        for (int i = 0; i < 50; i++) {
+            outbox.write(new byte[100], null);
+        }
+        link.completeAll(outbox, 50, 2000);
+        assertTrue(outbox.getJournalBytes() < 1024);
+
+        outbox.detach();
+        outbox.write("left".getBytes(), null);
+        for (int i = 0; i < 20; i++) {
+            outbox.write(new byte[100], null);
+        }
+        outbox.attach(link);
+        link.complete(50);
+        link.completeAll(outbox, 70, 2000);
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+
+        outbox = this.open(1000, 100, 1024);
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    public void failureReportedInsideWrite_holdsTheRestBack() throws Exception {
+        Outbox outbox = this.open(1000, 100, Outbox.DEFAULT_COMPACT_BYTES);
+        for (int i = 0; i < 5; i++) {
+            outbox.write(("msg " + i).getBytes(), null);
+        }
+        Link link = new Link();
+        // Like a GATT write refused on the caller's thread
+        link.failInline(1);
+        outbox.attach(link);
+        assertEquals(1, link.size());
+        assertTrue(outbox.getRetryMillis() > 0);
+
+        link.awaitSize(6, 2000);
+        for (int i = 1; i < 6; i++) {
+            assertEquals("msg " + (i - 1), link.mWritten.get(i));
+            link.complete(i);
+        }
+        assertEquals(0, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    private Outbox open(int maxMessagesPerSecond, int maxInFlight, long compactBytes) throws IOException {
+        return new Outbox(mFile, mEventLoop.getScheduler(), maxMessagesPerSecond, maxInFlight, compactBytes);
+    }
+
+    /**
+     * Holds every write until the test completes or fails it.
+     */
+    private static class Link implements FrameWriter {
+        private final List<String> mWritten = new ArrayList<>();
+        private final List<OnWriteListener> mListeners = new ArrayList<>();
+        private int mCompleted;
+        private int mFailInline;
+
+        @Override
+        public synchronized boolean write(byte[] data, OnWriteListener listener) {
+            mWritten.add(new String(data));
+            mListeners.add(listener);
+            if (mFailInline > 0) {
+                mFailInline--;
+                listener.onWriteFailed(new IOException("refused"));
+            }
+            return true;
+        }
+
+        /**
+         * Fail the next writes before they return, and accept them all the same.
+         */
+        synchronized void failInline(int writes) {
+            mFailInline = writes;
+        }
+
+        synchronized int size() {
+            return mWritten.size();
+        }
+
+        void complete(int index) {
+            OnWriteListener listener;
+            synchronized (this) {
+                listener = mListeners.get(index);
+                mCompleted = Math.max(mCompleted, index + 1);
+            }
+            listener.onWriteComplete(1);
+        }
+
+        void fail(int index) {
+            OnWriteListener listener;
+            synchronized (this) {
+                listener = mListeners.get(index);
+            }
+            listener.onWriteFailed(new IOException("link lost"));
+        }
+
+        void awaitSize(int size, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (this.size() < size) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError("only " + this.size() + " of " + size + " written");
+                }
+                Thread.sleep(5);
+            }
+        }
+
+        /**
+         * Complete writes as they come in until count were written.
+         */
+        void completeAll(Outbox outbox, int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (mCompleted < count || outbox.getPendingCount() > 0) {
+                if (mCompleted < this.size()) {
+                    this.complete(mCompleted);
+                } else if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError("only " + mCompleted + " of " + count + " written");
+                } else {
+                    Thread.sleep(5);
+                }
+            }
+        }
+    }
+}
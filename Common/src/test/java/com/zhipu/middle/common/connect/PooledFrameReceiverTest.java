@@ -0,0 +1,112 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnReceiveBufferListener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PooledFrameReceiverTest {
+    private static final int MESSAGES_PER_ROUND = 1000;
+
+    @Test
+    public void receive_deliversEveryFrameAndReturnsBuffers() throws IOException {
+        BufferPool bufferPool = new BufferPool(4, 256);
+        CountingListener listener = new CountingListener();
+        FrameDecoder decoder = new FrameDecoder(new PooledFrameReceiver(bufferPool, listener));
+        LoopingInputStream inputStream = new LoopingInputStream(buildStream(), 300);
+
+        for (int i = 0; i < 100; i++) {
+            decoder.readFrom(inputStream);
+        }
+
+        assertTrue(listener.messages > 0);
+        assertEquals(4, bufferPool.getAvailableCount());
+    }
+
+    @Test
+    public void receive_allocatesNothingOnceWarm() throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        BufferPool bufferPool = new BufferPool();
+        CountingListener listener = new CountingListener();
+        FrameDecoder decoder = new FrameDecoder(new PooledFrameReceiver(bufferPool, listener));
+        // Odd read size so frames keep straddling reads and the assembly path is exercised too
+        LoopingInputStream inputStream = new LoopingInputStream(buildStream(), 1021);
+
+        // Warm up until the JIT has compiled the path
+        long warmUpEnd = listener.messages + 200 * MESSAGES_PER_ROUND;
+        while (listener.messages < warmUpEnd) {
+            decoder.readFrom(inputStream);
+        }
+
+        long messagesBefore = listener.messages;
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long end = messagesBefore + 50 * MESSAGES_PER_ROUND;
+        while (listener.messages < end) {
+            decoder.readFrom(inputStream);
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long messages = listener.messages - messagesBefore;
+
+        assertEquals("bytes allocated per message, " + allocated + " bytes over " + messages + " messages",
+                0, allocated / messages);
+    }
+
+    private static byte[] buildStream() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+            stream.write(FrameCodec.encode(new byte[1 + i % 1500]));
+        }
+        return stream.toByteArray();
+    }
+
+    private static class CountingListener implements OnReceiveBufferListener {
+        private long messages;
+        private long checksum;
+
+        @Override
+        public void onReceiveBuffer(PooledBuffer buffer) {
+            messages++;
+            checksum += buffer.length();
+            buffer.release();
+        }
+    }
+
+    /**
+     * Replays the same bytes forever, without allocating, in reads of at most readSize bytes.
+     */
+    private static class LoopingInputStream extends InputStream {
+        private final byte[] mData;
+        private final int mReadSize;
+        private int mPosition;
+
+        LoopingInputStream(byte[] data, int readSize) {
+            mData = data;
+            mReadSize = readSize;
+        }
+
+        @Override
+        public int read() {
+            int b = mData[mPosition] & 0xFF;
+            mPosition = (mPosition + 1) % mData.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = Math.min(Math.min(len, mReadSize), mData.length - mPosition);
+            System.arraycopy(mData, mPosition, b, off, count);
+            mPosition = (mPosition + count) % mData.length;
+            return count;
+        }
+    }
+}
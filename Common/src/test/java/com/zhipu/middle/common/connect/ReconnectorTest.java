@@ -0,0 +1,117 @@
+package com.zhipu.middle.common.connect;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectorTest {
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void policy_backsOffExponentiallyWithinJitter() {
+        ReconnectPolicy policy = new ReconnectPolicy(50, 1000, 8000, 2.0, 0.25, 0);
+        Random random = new Random(7);
+
+        assertEquals(50, policy.getDelayMillis(1, random));
+        for (int i = 0; i < 100; i++) {
+            long second = policy.getDelayMillis(2, random);
+            long fourth = policy.getDelayMillis(4, random);
+            long capped = policy.getDelayMillis(20, random);
+            assertTrue(second >= 750 && second <= 1250);
+            assertTrue(fourth >= 3000 && fourth <= 5000);
+            assertTrue(capped <= 8000);
+        }
+        assertTrue(policy.canRetry(1000));
+    }
+
+    @Test
+    public void reconnect_retriesUntilFactorySucceeds() throws InterruptedException {
+        final FakeSocketFactory factory = new FakeSocketFactory(3);
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        final AtomicInteger attemptsReported = new AtomicInteger();
+        Reconnector<FakeSocket> reconnector = new Reconnector<>(new ReconnectPolicy(0, 5, 20, 2.0, 0.5, 10),
+                factory, new Reconnector.Callback<FakeSocket>() {
+            @Override
+            public void onReconnected(FakeSocket socket, int attempts, long elapsedMillis) {
+                attemptsReported.set(attempts);
+                reconnected.countDown();
+            }
+
+            @Override
+            public void onGiveUp(int attempts, IOException lastError) {
+            }
+        }, mExecutor, new Random(1));
+
+        reconnector.start("00:11:22:33:44:55", false);
+
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+        assertEquals(4, attemptsReported.get());
+        assertEquals(4, factory.attempts.get());
+        assertEquals(3, reconnector.getFailedAttempts());
+        assertEquals(1, reconnector.getReconnectCount());
+        assertFalse(reconnector.isRunning());
+    }
+
+    @Test
+    public void reconnect_givesUpAfterMaxAttempts() throws InterruptedException {
+        FakeSocketFactory factory = new FakeSocketFactory(Integer.MAX_VALUE);
+        final CountDownLatch gaveUp = new CountDownLatch(1);
+        Reconnector<FakeSocket> reconnector = new Reconnector<>(new ReconnectPolicy(0, 1, 5, 2.0, 0, 3),
+                factory, new Reconnector.Callback<FakeSocket>() {
+            @Override
+            public void onReconnected(FakeSocket socket, int attempts, long elapsedMillis) {
+            }
+
+            @Override
+            public void onGiveUp(int attempts, IOException lastError) {
+                gaveUp.countDown();
+            }
+        }, mExecutor, new Random(1));
+
+        reconnector.start("00:11:22:33:44:55", true);
+
+        assertTrue(gaveUp.await(5, TimeUnit.SECONDS));
+        assertEquals(3, factory.attempts.get());
+        assertEquals(0, reconnector.getReconnectCount());
+    }
+
+    private static class FakeSocket implements Closeable {
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakeSocketFactory implements Reconnector.SocketFactory<FakeSocket> {
+        private final int mFailures;
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        FakeSocketFactory(int failures) {
+            mFailures = failures;
+        }
+
+        @Override
+        public FakeSocket connect(String address, boolean secure) throws IOException {
+            if (attempts.incrementAndGet() <= mFailures) {
+                throw new IOException("read failed, socket might closed or timeout");
+            }
+            return new FakeSocket();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.zhipu.middle.common.connect;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RpcEndpointTest {
+    private EventLoop mEventLoop;
+    private Wire mToServer;
+    private Wire mToClient;
+    private RpcEndpoint mClient;
+    private RpcEndpoint mServer;
+    private final List<String> mServerData = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mEventLoop = new EventLoop("test");
+        mToServer = new Wire();
+        mToClient = new Wire();
+        mClient = new RpcEndpoint(mToServer, null, mEventLoop.getScheduler(), 128);
+        mServer = new RpcEndpoint(mToClient, new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                mServerData.add(new String(buffer, offset, length));
+            }
+        }, mEventLoop.getScheduler(), 128);
+        mServer.registerHandler("echo", new RpcEndpoint.Handler() {
+            @Override
+            public byte[] handle(byte[] request) {
+                return ("echo:" + new String(request)).getBytes();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void pipelinedCalls_matchResponsesOutOfOrder() throws Exception {
+        int calls = 100;
+        List<RpcFuture> futures = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            futures.add(mClient.call("echo", String.valueOf(i).getBytes()));
+        }
+        assertEquals(calls, mClient.getInFlightCount());
+
+        mToServer.deliverAll(mServer);
+        mToClient.reverse();
+        mToClient.deliverAll(mClient);
+
+        for (int i = 0; i < calls; i++) {
+            assertArrayEquals(("echo:" + i).getBytes(), futures.get(i).get(1, TimeUnit.SECONDS));
+        }
+        assertEquals(0, mClient.getInFlightCount());
+    }
+
+    @Test
+    public void call_timesOutAndIgnoresLateResponse() throws Exception {
+        RpcFuture future = mClient.call("echo", "late".getBytes(), 50);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        mToServer.deliverAll(mServer);
+        mToClient.deliverAll(mClient);
+        assertEquals(0, mClient.getInFlightCount());
+    }
+
+    @Test
+    public void unknownMethod_failsWithStatusAndPlainDataPassesThrough() throws Exception {
+        RpcFuture future = mClient.call("sms", new byte[0]);
+        mClient.write("hello".getBytes(), null);
+        mClient.write(new byte[]{1, 2}, null);
+        mToServer.deliverAll(mServer);
+        mToClient.deliverAll(mClient);
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("expected an RpcException");
+        } catch (ExecutionException e) {
+            assertEquals(RpcException.STATUS_NO_SUCH_METHOD, ((RpcException) e.getCause()).getStatus());
+        }
+        // Text goes out as is, so peers without an RpcEndpoint can still read it
+        assertArrayEquals("hello".getBytes(), mToServer.getWritten().get(1));
+        assertEquals(Arrays.asList("hello", new String(new byte[]{1, 2})), mServerData);
+    }
+
+    @Test
+    public void cancel_freesTheSlotAndDropsTheLateResponse() throws Exception {
+        RpcEndpoint client = new RpcEndpoint(mToServer, null, mEventLoop.getScheduler(), 1);
+        RpcFuture cancelled = client.call("echo", "first".getBytes());
+        assertTrue(client.call("echo", "refused".getBytes()).isDone());
+
+        assertTrue(cancelled.cancel(false));
+        assertTrue(cancelled.isCancelled());
+        assertEquals(0, client.getInFlightCount());
+        RpcFuture next = client.call("echo", "second".getBytes());
+        assertFalse(next.isDone());
+
+        mToServer.deliverAll(mServer);
+        mToClient.deliverAll(client);
+        assertArrayEquals("echo:second".getBytes(), next.get(1, TimeUnit.SECONDS));
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    public void concurrentCalls_neverGoOverTheLimit() throws Exception {
+        final int limit = 8;
+        final RpcEndpoint client = new RpcEndpoint(mToServer, null, mEventLoop.getScheduler(), limit);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<RpcFuture> accepted = Collections.synchronizedList(new ArrayList<RpcFuture>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 50; j++) {
+                        RpcFuture future = client.call("echo", new byte[0]);
+                        if (!future.isDone()) {
+                            accepted.add(future);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(limit, accepted.size());
+        assertEquals(limit, client.getInFlightCount());
+        client.failPending("done");
+        assertEquals(0, client.getInFlightCount());
+    }
+}
@@ -0,0 +1,206 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.metrics.MetricGroup;
+import com.zhipu.middle.common.metrics.MetricsRegistry;
+import com.zhipu.middle.common.transport.LoopbackTransport;
+import com.zhipu.middle.common.transport.Transport;
+import com.zhipu.middle.common.transport.Transports;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTest {
+    private EventLoop mEventLoop;
+    private LoopbackTransport[] mPair;
+    private Recorder mLocalEvents;
+    private Recorder mPeerEvents;
+    private Session mLocal;
+    private Session mPeer;
+
+    @Before
+    public void setUp() {
+        mEventLoop = new EventLoop("test");
+        mPair = LoopbackTransport.createPair();
+        mLocalEvents = new Recorder();
+        mPeerEvents = new Recorder();
+        mLocal = new Session(mPair[0], mLocalEvents, mEventLoop);
+        mPeer = new Session(mPair[1], mPeerEvents, mEventLoop);
+    }
+
+    @After
+    public void tearDown() {
+        mLocal.close("done");
+        mPeer.close("done");
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void open_reportsOnce() throws InterruptedException {
+        assertEquals(Session.STATE_NEW, mLocal.getState());
+        assertFalse(mLocal.write("early".getBytes(), null));
+        mLocal.open();
+        mLocal.open();
+
+        assertTrue(mLocal.isOpen());
+        assertEquals("loopback-a", mLocal.getAddress());
+        assertEquals("opened", mLocalEvents.next());
+        assertNull(mLocalEvents.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void write_arrivesAsWholeFramesInOrder() throws InterruptedException {
+        mLocal.open();
+        mPeer.open();
+        // Larger than the loopback buffer, so it crosses in several reads
+        byte[] large = new byte[200 * 1024];
+        new Random(7).nextBytes(large);
+        assertTrue(mLocal.write("first".getBytes(), null));
+        assertTrue(mLocal.write(new byte[0], null));
+        assertTrue(mLocal.write(large, null));
+        assertTrue(mLocal.write("last".getBytes(), null));
+
+        assertArrayEquals("first".getBytes(), mPeerEvents.nextData());
+        assertArrayEquals(new byte[0], mPeerEvents.nextData());
+        assertArrayEquals(large, mPeerEvents.nextData());
+        assertArrayEquals("last".getBytes(), mPeerEvents.nextData());
+
+        assertTrue(mPeer.write("reply".getBytes(), null));
+        assertArrayEquals("reply".getBytes(), mLocalEvents.nextData());
+    }
+
+    @Test
+    public void close_reportsTheReasonAndDropsThePeer() throws InterruptedException {
+        mLocal.open();
+        mPeer.open();
+        assertEquals("opened", mLocalEvents.next());
+        assertEquals("opened", mPeerEvents.next());
+
+        mLocal.close("bye");
+        mLocal.close("again");
+        assertEquals(Session.STATE_CLOSED, mLocal.getState());
+        assertEquals("bye", mLocal.getCloseReason());
+        assertEquals("closed bye", mLocalEvents.next());
+        assertEquals(Transport.STATE_CLOSED, mPair[0].getState());
+        assertFalse(mLocal.write("late".getBytes(), null));
+
+        // The peer finds the link gone on its next read
+        assertTrue(mPeerEvents.next().startsWith("closed "));
+        assertFalse(mPeer.isOpen());
+        assertNotNull(mPeer.getCloseReason());
+        assertNull(mLocalEvents.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void close_beforeOpen_isNotReported() throws InterruptedException {
+        mLocal.close("never used");
+        mLocal.open();
+
+        assertEquals(Session.STATE_CLOSED, mLocal.getState());
+        assertEquals("never used", mLocal.getCloseReason());
+        assertNull(mLocalEvents.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void queueDepthGauge_belongsToTheOpenSession() throws Exception {
+        String address = "session-test-gauge";
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+        };
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        Session live = new Session(address, Transports.inputStream(pair[0]), stalled, pair[0],
+                new Recorder(), mEventLoop);
+        try {
+            live.open();
+            assertTrue(live.write(new byte[]{0}, null));
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            assertTrue(live.write(new byte[]{1}, null));
+            assertTrue(live.write(new byte[]{2}, null));
+            assertEquals(2, queueDepth(address));
+
+            // A second connection from the same device, rejected before it was opened
+            LoopbackTransport[] duplicatePair = LoopbackTransport.createPair();
+            Session rejected = new Session(address, Transports.inputStream(duplicatePair[0]),
+                    Transports.outputStream(duplicatePair[0]), duplicatePair[0], new Recorder(), mEventLoop);
+            rejected.close("duplicate");
+            assertEquals(2, queueDepth(address));
+
+            live.close("done");
+            assertEquals(0, queueDepth(address));
+        } finally {
+            release.countDown();
+            MetricsRegistry.getDefault().removeGroup(address);
+        }
+    }
+
+    private static long queueDepth(String address) {
+        return MetricsRegistry.getDefault().snapshot().getGauge(address, MetricGroup.QUEUE_DEPTH);
+    }
+
+    /**
+     * Turns the callbacks into events the test can wait for.
+     */
+    private static class Recorder implements OnSessionListener {
+        private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onSessionOpened(Session session) {
+            mEvents.add("opened");
+        }
+
+        @Override
+        public void onSessionClosed(Session session, String reason) {
+            mEvents.add("closed " + reason);
+        }
+
+        @Override
+        public void onSessionData(Session session, byte[] data) {
+            mEvents.add(data);
+        }
+
+        Object poll() throws InterruptedException {
+            Object event = mEvents.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no session event", event);
+            return event;
+        }
+
+        String next() throws InterruptedException {
+            return (String) this.poll();
+        }
+
+        byte[] nextData() throws InterruptedException {
+            Object event = this.poll();
+            while (!(event instanceof byte[])) {
+                // Skip the open event
+                event = this.poll();
+            }
+            return (byte[]) event;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * One direction of a link for tests: frames wait here until the test delivers them. It can refuse
+ * writes like a full writer, take them and lose them on the way, corrupt one, or be disconnected.
+ * Write listeners are never called.
+ */
+class Wire implements FrameWriter {
+    private final LinkedList<byte[]> mFrames = new LinkedList<>();
+    private final List<byte[]> mWritten = new ArrayList<>();
+    private boolean mConnected = true;
+    private int mWrites;
+    private int mCorruptFrame = -1;
+    private int mRefuse;
+    private int mDrop;
+
+    @Override
+    public synchronized boolean write(byte[] data, OnWriteListener listener) {
+        if (!mConnected) {
+            return false;
+        }
+        if (mRefuse > 0) {
+            mRefuse--;
+            return false;
+        }
+        byte[] frame = Arrays.copyOf(data, data.length);
+        mWritten.add(frame);
+        if (mDrop > 0) {
+            mDrop--;
+            return true;
+        }
+        if (mWrites++ == mCorruptFrame) {
+            frame = frame.clone();
+            frame[frame.length - 1] ^= 1;
+        }
+        mFrames.add(frame);
+        return true;
+    }
+
+    /**
+     * Deliver the frames waiting now, not those the receiver writes back meanwhile.
+     */
+    void deliverAll(FrameDecoder.OnFrameListener receiver) {
+        int count = this.size();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = this.poll();
+            receiver.onFrame(frame, 0, frame.length);
+        }
+    }
+
+    /**
+     * @return the oldest waiting frame, taken off the wire, null if none
+     */
+    synchronized byte[] poll() {
+        return mFrames.poll();
+    }
+
+    /**
+     * Swap the order of the waiting frames, as if they overtook each other.
+     */
+    synchronized void reverse() {
+        Collections.reverse(mFrames);
+    }
+
+    /**
+     * @return every frame accepted so far, delivered, waiting or dropped, as it was written
+     */
+    synchronized List<byte[]> getWritten() {
+        return new ArrayList<>(mWritten);
+    }
+
+    synchronized boolean isEmpty() {
+        return mFrames.isEmpty();
+    }
+
+    synchronized int size() {
+        return mFrames.size();
+    }
+
+    /**
+     * Flip a bit in the index-th frame that gets through.
+     */
+    synchronized void corruptFrame(int index) {
+        mCorruptFrame = index;
+    }
+
+    /**
+     * Refuse the next writes, as a full writer does.
+     */
+    synchronized void refuse(int writes) {
+        mRefuse = writes;
+    }
+
+    /**
+     * Take the next writes but lose them on the way.
+     */
+    synchronized void drop(int writes) {
+        mDrop = writes;
+    }
+
+    synchronized void disconnect() {
+        mConnected = false;
+        mFrames.clear();
+    }
+
+    synchronized void connect() {
+        mConnected = true;
+    }
+}
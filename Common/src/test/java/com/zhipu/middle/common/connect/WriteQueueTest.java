@@ -0,0 +1,263 @@
+package com.zhipu.middle.common.connect;
+
+import com.zhipu.middle.common.callback.OnWriteListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteQueueTest {
+    private EventLoop mEventLoop;
+    private GatedStream mStream;
+    private final BlockingQueue<String> mResults = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        mEventLoop = new EventLoop("test");
+        mStream = new GatedStream();
+    }
+
+    @After
+    public void tearDown() {
+        mStream.open();
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void writesQueuedWhileBusy_areCoalesced() throws Exception {
+        WriteQueue writeQueue = new WriteQueue(mStream, mEventLoop);
+        writeQueue.start();
+        mStream.hold();
+        assertTrue(writeQueue.enqueue(new byte[]{0}, this.listener("0")));
+        mStream.awaitBlocked();
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(writeQueue.enqueue(new byte[]{(byte) i}, this.listener(String.valueOf(i))));
+        }
+        mStream.open();
+
+        for (int i = 0; i <= 10; i++) {
+            assertEquals("complete " + i, this.nextResult());
+        }
+        assertEquals(11, writeQueue.getWriteCount());
+        assertEquals(2, writeQueue.getSocketWriteCount());
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, mStream.toByteArray());
+    }
+
+    @Test
+    public void batching_holdsWritesUntilTheDeadline() throws Exception {
+        WriteQueue writeQueue = new WriteQueue(mStream, mEventLoop);
+        writeQueue.setBatching(300, 1024);
+        writeQueue.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(writeQueue.enqueue(new byte[]{(byte) i}, this.listener(String.valueOf(i))));
+        }
+        assertNull(mResults.poll(100, TimeUnit.MILLISECONDS));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("complete " + i, this.nextResult());
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(1, writeQueue.getSocketWriteCount());
+        assertArrayEquals(new byte[]{0, 1, 2}, mStream.toByteArray());
+    }
+
+    @Test
+    public void batching_goesEarlyOnMaxBytesFlushAndUrgent() throws Exception {
+        WriteQueue writeQueue = new WriteQueue(mStream, mEventLoop);
+        writeQueue.setBatching(TimeUnit.MINUTES.toMillis(1), 64);
+        writeQueue.start();
+
+        assertTrue(writeQueue.enqueue(new byte[40], this.listener("a")));
+        assertTrue(writeQueue.enqueue(new byte[40], this.listener("b")));
+        assertEquals("complete a", this.nextResult());
+        assertEquals("complete b", this.nextResult());
+        assertEquals(1, writeQueue.getSocketWriteCount());
+
+        assertTrue(writeQueue.enqueue(new byte[1], this.listener("c")));
+        assertNull(mResults.poll(100, TimeUnit.MILLISECONDS));
+        writeQueue.flush();
+        assertEquals("complete c", this.nextResult());
+
+        assertTrue(writeQueue.enqueue(new byte[1], WriteQueue.PRIORITY_URGENT, this.listener("d")));
+        assertEquals("complete d", this.nextResult());
+    }
+
+    @Test
+    public void fullClass_refusesWithoutCallingTheListener() throws Exception {
+        WriteQueue writeQueue = new WriteQueue(mStream, 4, WriteQueue.DEFAULT_COALESCE_LIMIT,
+                mEventLoop.getScheduler(), mEventLoop.getBlockingExecutor());
+        writeQueue.start();
+        mStream.hold();
+        assertTrue(writeQueue.enqueue(new byte[1], this.listener("busy")));
+        mStream.awaitBlocked();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(writeQueue.enqueue(new byte[1], this.listener(String.valueOf(i))));
+        }
+        assertFalse(writeQueue.enqueue(new byte[1], this.listener("refused")));
+        // The other classes have their own room
+        assertTrue(writeQueue.enqueue(new byte[1], WriteQueue.PRIORITY_URGENT, this.listener("urgent")));
+        assertEquals(5, writeQueue.getQueueDepth());
+
+        mStream.open();
+        assertEquals("complete busy", this.nextResult());
+        assertEquals("complete urgent", this.nextResult());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("complete " + i, this.nextResult());
+        }
+        assertNull(mResults.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void close_failsQueuedWrites() throws Exception {
+        WriteQueue writeQueue = new WriteQueue(mStream, mEventLoop);
+        writeQueue.start();
+        mStream.hold();
+        assertTrue(writeQueue.enqueue(new byte[1], this.listener("busy")));
+        mStream.awaitBlocked();
+        assertTrue(writeQueue.enqueue(new byte[1], this.listener("a")));
+        assertTrue(writeQueue.enqueue(new byte[1], this.listener("b")));
+
+        writeQueue.close();
+        assertFalse(writeQueue.enqueue(new byte[1], this.listener("late")));
+        mStream.open();
+        // The write on the socket finishes, the queued ones never go out
+        assertEquals("complete busy", this.nextResult());
+        assertEquals("failed a: write queue closed", this.nextResult());
+        assertEquals("failed b: write queue closed", this.nextResult());
+        assertNull(mResults.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, writeQueue.getQueueDepth());
+    }
+
+    @Test
+    public void failedWrite_failsEverythingAndClosesTheStream() throws Exception {
+        final IOException broken = new IOException("broken pipe");
+        final CountDownLatch closed = new CountDownLatch(1);
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch breakNow = new CountDownLatch(1);
+        OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writing.countDown();
+                try {
+                    breakNow.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                throw broken;
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+            }
+        };
+        final BlockingQueue<IOException> errors = new LinkedBlockingQueue<>();
+        OnWriteListener listener = new OnWriteListener() {
+            @Override
+            public void onWriteComplete(int length) {
+                mResults.add("complete");
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+                errors.add(e);
+            }
+        };
+        WriteQueue writeQueue = new WriteQueue(stream, mEventLoop);
+        writeQueue.start();
+        assertTrue(writeQueue.enqueue(new byte[1], listener));
+        // Two more wait behind the write that is going to fail
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        assertTrue(writeQueue.enqueue(new byte[1], listener));
+        assertTrue(writeQueue.enqueue(new byte[1], listener));
+        breakNow.countDown();
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(broken, errors.poll(5, TimeUnit.SECONDS));
+        }
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertFalse(writeQueue.enqueue(new byte[1], listener));
+        assertTrue(mResults.isEmpty());
+    }
+
+    private String nextResult() throws InterruptedException {
+        String result = mResults.poll(5, TimeUnit.SECONDS);
+        assertTrue("no write result", result != null);
+        return result;
+    }
+
+    private OnWriteListener listener(final String name) {
+        return new OnWriteListener() {
+            @Override
+            public void onWriteComplete(int length) {
+                mResults.add("complete " + name);
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+                mResults.add("failed " + name + ": " + e.getMessage());
+            }
+        };
+    }
+
+    /**
+     * Collects what is written. While held, writes block as on a link whose send buffer is
+     * full.
+     */
+    private static class GatedStream extends OutputStream {
+        private final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        private final CountDownLatch mBlocked = new CountDownLatch(1);
+        private boolean mOpen = true;
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            while (!mOpen) {
+                mBlocked.countDown();
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            mWritten.write(buffer, offset, length);
+        }
+
+        synchronized void hold() {
+            mOpen = false;
+        }
+
+        synchronized void open() {
+            mOpen = true;
+            this.notifyAll();
+        }
+
+        void awaitBlocked() throws InterruptedException {
+            assertTrue(mBlocked.await(5, TimeUnit.SECONDS));
+        }
+
+        synchronized byte[] toByteArray() {
+            return mWritten.toByteArray();
+        }
+    }
+}
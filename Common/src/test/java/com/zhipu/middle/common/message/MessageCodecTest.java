@@ -0,0 +1,124 @@
+package com.zhipu.middle.common.message;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageCodecTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SMS_BODY = "晚上七点在公司楼下见，记得带上手表充电器 😀";
+
+    @Test
+    public void roundTrip_everyMessageType() throws ProtocolException {
+        WeatherMessage weather = (WeatherMessage) MessageCodec.decode(MessageCodec.encode(
+                new WeatherMessage("北京", -35, WeatherMessage.CONDITION_SNOW, 40, 1587708147000L)));
+        assertEquals("北京", weather.getCity());
+        assertEquals(-35, weather.getTemperature());
+        assertEquals(WeatherMessage.CONDITION_SNOW, weather.getCondition());
+        assertEquals(40, weather.getHumidity());
+        assertEquals(1587708147000L, weather.getUpdateTimeMillis());
+
+        SmsMessage sms = (SmsMessage) MessageCodec.decode(MessageCodec.encode(
+                new SmsMessage("13800138000", 1587708147000L, SMS_BODY)));
+        assertEquals("13800138000", sms.getFrom());
+        assertEquals(SMS_BODY, sms.getBody());
+
+        StatusMessage status = (StatusMessage) MessageCodec.decode(MessageCodec.encode(
+                new StatusMessage(StatusMessage.STATE_CONNECTED, 0, true)));
+        assertEquals(StatusMessage.STATE_CONNECTED, status.getState());
+        assertEquals(0, status.getBattery());
+        assertTrue(status.isCharging());
+    }
+
+    @Test
+    public void writeString_matchesStringGetBytes() {
+        String[] values = {"", "connected", SMS_BODY, "\uD83D", "a\uDE00b", "߿ࠀ￿"};
+        for (String value : values) {
+            MessageWriter writer = new MessageWriter(1);
+            writer.writeBytes(1, null);
+            writer.writeString(1, value);
+            byte[] expected = value.getBytes(UTF_8);
+            assertEquals(expected.length, MessageWriter.utf8Length(value));
+            byte[] encoded = writer.toByteArray();
+            assertEquals(value, Arrays.toString(expected),
+                    Arrays.toString(Arrays.copyOfRange(encoded, encoded.length - expected.length, encoded.length)));
+        }
+    }
+
+    @Test
+    public void decode_skipsFieldsFromNewerPeers() throws ProtocolException {
+        MessageWriter writer = new MessageWriter();
+        writer.writeRawByte(MessageCodec.TYPE_SMS);
+        writer.writeString(1, "10086");
+        writer.writeLong(9, Long.MIN_VALUE);
+        writer.writeBytes(10, new byte[]{1, 2, 3});
+        writer.writeString(3, "hi");
+
+        SmsMessage sms = (SmsMessage) MessageCodec.decode(writer.toByteArray());
+        assertEquals("10086", sms.getFrom());
+        assertEquals(0, sms.getTimeMillis());
+        assertEquals("hi", sms.getBody());
+    }
+
+    @Test
+    public void decode_rejectsTruncatedAndUnknownMessages() {
+        byte[] encoded = MessageCodec.encode(new SmsMessage("13800138000", 1587708147000L, SMS_BODY));
+        for (int length = 1; length < encoded.length; length++) {
+            try {
+                SmsMessage sms = (SmsMessage) MessageCodec.decode(encoded, 0, length);
+                // A cut between two fields reads as a shorter message, never as a wrong one
+                assertNull(sms.getBody());
+            } catch (ProtocolException expected) {
+                // Cut inside a field
+            }
+        }
+        try {
+            MessageCodec.decode("connected".getBytes(UTF_8));
+            fail("text is not a message");
+        } catch (ProtocolException expected) {
+            assertFalse(MessageCodec.isMessage("connected".getBytes(UTF_8), 0, 9));
+        }
+    }
+
+    @Test
+    public void decode_rejectsMalformedFieldLengths() {
+        byte[][] malformed = {
+                // Negative length: a 10 byte varint with the sign bit set
+                {0x11, 0x0A, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01},
+                // Longer than an int
+                {0x11, 0x0A, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10},
+                // Varint that never ends
+                {0x11, 0x0A, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01},
+        };
+        for (byte[] message : malformed) {
+            try {
+                MessageCodec.decode(message);
+                fail("decoded a malformed length");
+            } catch (ProtocolException expected) {
+                // Rejected before any value is read
+            }
+        }
+    }
+
+    @Test
+    public void encode_isSmallerThanText() {
+        String smsText = "from=13800138000;time=1587708147000;body=" + SMS_BODY;
+        byte[] sms = MessageCodec.encode(new SmsMessage("13800138000", 1587708147000L, SMS_BODY));
+        assertTrue(sms.length + " vs " + smsText.getBytes(UTF_8).length,
+                sms.length < smsText.getBytes(UTF_8).length * 9 / 10);
+
+        byte[] status = MessageCodec.encode(new StatusMessage(StatusMessage.STATE_CONNECTED, 85, false));
+        assertEquals(5, status.length);
+        assertTrue(status.length < "connected;battery=85".length());
+    }
+}
@@ -0,0 +1,132 @@
+package com.zhipu.middle.common.metrics;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.connect.EventLoop;
+import com.zhipu.middle.common.connect.Session;
+import com.zhipu.middle.common.transport.LoopbackTransport;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void counters_addUpAcrossThreads() throws InterruptedException {
+        MetricsRegistry registry = new MetricsRegistry();
+        final MetricGroup group = registry.getGroup("watch");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Counter counter = group.counter(MetricGroup.MESSAGES_OUT);
+                    for (int n = 0; n < 10000; n++) {
+                        counter.increment();
+                        group.counter(MetricGroup.BYTES_OUT).add(10);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertEquals(40000, snapshot.getCounter("watch", MetricGroup.MESSAGES_OUT));
+        assertEquals(400000, snapshot.getCounter("watch", MetricGroup.BYTES_OUT));
+        assertEquals(0, snapshot.getCounter("watch", MetricGroup.RECONNECTS));
+        assertEquals(0, snapshot.getCounter("phone", MetricGroup.MESSAGES_OUT));
+    }
+
+    @Test
+    public void histogram_percentilesFallInTheRightBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        // 100us lands in the 64-128us bucket, 50ms is the single slowest value
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(128), histogram.getPercentileNanos(0.5));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(128), histogram.getPercentileNanos(0.99));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getPercentileNanos(1.0));
+        assertEquals(100, histogram.getCount());
+    }
+
+    @Test
+    public void snapshot_readsGaugesAndComputesRates() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricGroup group = registry.getGroup("watch");
+        group.setGauge(MetricGroup.QUEUE_DEPTH, new Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        MetricsSnapshot before = registry.snapshot();
+        group.counter(MetricGroup.MESSAGES_IN).add(500);
+        // Stamped two seconds later, so the rate does not depend on the test's speed
+        MetricsSnapshot after = new MetricsSnapshot(before.getTimeMillis() + 2000, registry.getGroups());
+
+        assertEquals(7, after.getGauge("watch", MetricGroup.QUEUE_DEPTH));
+        assertEquals(250.0, after.getRatePerSecond(before, "watch", MetricGroup.MESSAGES_IN), 0.001);
+    }
+
+    @Test
+    public void session_reportsTrafficAndWriteLatency() throws InterruptedException {
+        EventLoop eventLoop = new EventLoop("test");
+        final CountDownLatch received = new CountDownLatch(50);
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        Session sender = new Session(pair[0], new Listener(null), eventLoop);
+        Session receiver = new Session(pair[1], new Listener(received), eventLoop);
+        sender.open();
+        receiver.open();
+
+        // Stays within the write queue capacity however late the loop starts draining
+        for (int i = 0; i < 50; i++) {
+            assertTrue(sender.write(new byte[20], null));
+        }
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+
+        MetricsSnapshot snapshot = MetricsRegistry.getDefault().snapshot();
+        String address = sender.getAddress();
+        assertTrue(snapshot.getCounter(address, MetricGroup.MESSAGES_OUT) >= 50);
+        assertTrue(snapshot.getCounter(receiver.getAddress(), MetricGroup.BYTES_IN) >= 1000);
+        MetricsSnapshot.HistogramSnapshot writeLatency = snapshot.getHistogram(address, MetricGroup.WRITE_LATENCY);
+        assertNotNull(writeLatency);
+        assertTrue(writeLatency.getCount() >= 50);
+        sender.close("done");
+        receiver.close("done");
+        eventLoop.shutdown();
+    }
+
+    private static class Listener implements OnSessionListener {
+        private final CountDownLatch mReceived;
+
+        Listener(CountDownLatch received) {
+            mReceived = received;
+        }
+
+        @Override
+        public void onSessionOpened(Session session) {
+        }
+
+        @Override
+        public void onSessionClosed(Session session, String reason) {
+        }
+
+        @Override
+        public void onSessionData(Session session, byte[] data) {
+            if (mReceived != null) {
+                mReceived.countDown();
+            }
+        }
+    }
+}
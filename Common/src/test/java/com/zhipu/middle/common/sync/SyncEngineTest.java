@@ -0,0 +1,165 @@
+package com.zhipu.middle.common.sync;
+
+import com.zhipu.middle.common.callback.OnSyncListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.connect.EventLoop;
+import com.zhipu.middle.common.connect.FrameWriter;
+import com.zhipu.middle.common.connect.RpcEndpoint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyncEngineTest {
+    private EventLoop mEventLoop;
+    private Link mToPhone;
+    private Link mToWatch;
+    private RpcEndpoint mWatchEndpoint;
+    private RpcEndpoint mPhoneEndpoint;
+    private SyncEngine mWatch;
+    private SyncEngine mPhone;
+    private final List<String> mPhoneChanges = new ArrayList<>();
+    private boolean mPhoneListenerThrows;
+
+    @Before
+    public void setUp() {
+        mEventLoop = new EventLoop("test");
+        mToPhone = new Link();
+        mToWatch = new Link();
+        mWatchEndpoint = new RpcEndpoint(mToPhone, null, mEventLoop.getScheduler(), 16);
+        mPhoneEndpoint = new RpcEndpoint(mToWatch, null, mEventLoop.getScheduler(), 16);
+        mToPhone.mPeer = mPhoneEndpoint;
+        mToWatch.mPeer = mWatchEndpoint;
+        mWatch = new SyncEngine(mWatchEndpoint, new SyncStore(1, 4), null);
+        mPhone = new SyncEngine(mPhoneEndpoint, new SyncStore(2, 4), new OnSyncListener() {
+            @Override
+            public void onRemoteChanged(String key, byte[] value) {
+                if (mPhoneListenerThrows) {
+                    throw new IllegalStateException("listener failed");
+                }
+                mPhoneChanges.add(key + "=" + (value == null ? null : new String(value)));
+            }
+
+            @Override
+            public void onRemoteReset() {
+                mPhoneChanges.add("reset");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mEventLoop.shutdown();
+    }
+
+    @Test
+    public void reconnect_pullsOnlyWhatChanged() {
+        mToPhone.mConnected = false;
+        for (int i = 0; i < 100; i++) {
+            mWatch.put("contact" + i, ("name of contact number " + i).getBytes());
+        }
+        mToPhone.mConnected = true;
+        mPhone.sync();
+        assertEquals(100, mPhone.getRemoteSize());
+        long fullBytes = mPhone.getDeltaBytes();
+
+        // A short drop: two entries change and one goes away while disconnected
+        mToPhone.mConnected = false;
+        mWatch.put("contact7", "renamed".getBytes());
+        mWatch.put("weather", "sunny 23".getBytes());
+        mWatch.remove("contact8");
+        mToPhone.mConnected = true;
+        mPhoneChanges.clear();
+        mPhone.sync();
+
+        long deltaBytes = mPhone.getDeltaBytes() - fullBytes;
+        assertTrue("delta " + deltaBytes + " of full " + fullBytes, deltaBytes * 20 < fullBytes);
+        assertEquals(3, mPhoneChanges.size());
+        assertTrue(mPhoneChanges.contains("contact8=null"));
+        assertArrayEquals("renamed".getBytes(), mPhone.getRemote("contact7"));
+        assertNull(mPhone.getRemote("contact8"));
+        assertEquals(100, mPhone.getRemoteSize());
+        assertEquals(mWatch.getLocalStore().getVersion(), mPhone.getRemoteVersion());
+    }
+
+    @Test
+    public void localChange_isPushedToConnectedPeer() {
+        mWatch.put("weather", "rain".getBytes());
+        assertArrayEquals("rain".getBytes(), mPhone.getRemote("weather"));
+        // Writing the same value again costs nothing
+        long bytes = mPhone.getDeltaBytes();
+        mWatch.put("weather", "rain".getBytes());
+        assertEquals(bytes, mPhone.getDeltaBytes());
+    }
+
+    @Test
+    public void restartedPeerOrTrimmedTombstones_sendFullSnapshot() {
+        mWatch.put("a", "1".getBytes());
+        mWatch.put("b", "2".getBytes());
+        assertEquals(2, mPhone.getRemoteSize());
+
+        mToPhone.mConnected = false;
+        for (int i = 0; i < 6; i++) {
+            mWatch.put("tmp" + i, new byte[]{1});
+            mWatch.remove("tmp" + i);
+        }
+        mWatch.remove("a");
+        mToPhone.mConnected = true;
+        mPhoneChanges.clear();
+        mPhone.sync();
+        assertEquals("reset", mPhoneChanges.get(0));
+        assertNull(mPhone.getRemote("a"));
+        assertEquals(1, mPhone.getRemoteSize());
+
+        // The watch restarts with an empty store of a new epoch
+        SyncEngine restarted = new SyncEngine(mWatchEndpoint, new SyncStore(3, 4), null);
+        restarted.put("c", "3".getBytes());
+        assertNull(mPhone.getRemote("b"));
+        assertArrayEquals("3".getBytes(), mPhone.getRemote("c"));
+    }
+
+    @Test
+    public void throwingListener_doesNotBlockLaterPulls() {
+        mToPhone.mConnected = false;
+        mWatch.put("weather", "sunny".getBytes());
+        mToPhone.mConnected = true;
+        mPhoneListenerThrows = true;
+        try {
+            mPhone.sync();
+        } catch (IllegalStateException e) {
+            // Thrown through the synchronous link, the pull is over all the same
+        }
+
+        mPhoneListenerThrows = false;
+        mToPhone.mConnected = false;
+        mWatch.put("weather", "rain".getBytes());
+        mToPhone.mConnected = true;
+        mPhone.sync();
+        assertArrayEquals("rain".getBytes(), mPhone.getRemote("weather"));
+    }
+
+    /**
+     * Delivers every frame to the peer right away while connected, drops it otherwise.
+     */
+    private static class Link implements FrameWriter {
+        private RpcEndpoint mPeer;
+        private boolean mConnected = true;
+
+        @Override
+        public boolean write(byte[] data, OnWriteListener listener) {
+            if (!mConnected) {
+                return false;
+            }
+            mPeer.onFrame(data, 0, data.length);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.zhipu.middle.common.transport;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.connect.Session;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FaultInjectingTransportTest {
+
+    @Test
+    public void sameSeed_injectsSameLossAndTruncation() throws Exception {
+        byte[] first = this.sendLossy(42);
+        byte[] second = this.sendLossy(42);
+        assertArrayEquals(first, second);
+        assertTrue(first.length < 200 * 8);
+    }
+
+    @Test
+    public void bandwidthCap_pushesBackOnWriter() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        FaultInjectingTransport link = new FaultInjectingTransport(pair[0], 1, 1024);
+        link.setBandwidth(10 * 1024);
+        link.setDelay(50, 0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            link.write(new byte[512], 0, 512);
+        }
+        readFully(pair[1], 10 * 512);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        // 5kB at 10kB/s plus the delay of the last packet
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 500);
+        link.close();
+    }
+
+    @Test
+    public void reordering_letsLaterPacketsOvertake() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        FaultInjectingTransport link = new FaultInjectingTransport(pair[0], 7);
+        link.setReordering(0.3, 30);
+        for (int i = 0; i < 50; i++) {
+            link.write(new byte[]{(byte) i}, 0, 1);
+        }
+        byte[] received = readFully(pair[1], 50);
+        List<Integer> order = new ArrayList<>();
+        for (byte b : received) {
+            order.add((int) b);
+        }
+        List<Integer> sorted = new ArrayList<>(order);
+        Collections.sort(sorted);
+        assertTrue(link.getReorderedCount() > 0);
+        assertTrue(!order.equals(sorted));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) sorted.get(i));
+        }
+        link.close();
+    }
+
+    @Test
+    public void sessions_keepFramesInOrderUnderDelayJitterAndSpikes() throws InterruptedException {
+        final int messages = 200;
+        final CountDownLatch received = new CountDownLatch(messages);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        FaultInjectingTransport link = new FaultInjectingTransport(pair[0], 3);
+        link.setDelay(5, 20);
+        link.setLatencySpikes(0.02, 100);
+        link.setBandwidth(200 * 1024);
+        Session sender = new Session(link, new SessionAdapter());
+        Session receiver = new Session(pair[1], new SessionAdapter() {
+            @Override
+            public void onSessionData(Session session, byte[] data) {
+                order.add(data[0] & 0xFF);
+                received.countDown();
+            }
+        });
+        sender.open();
+        receiver.open();
+
+        for (int i = 0; i < messages; i++) {
+            byte[] payload = new byte[100];
+            payload[0] = (byte) i;
+            while (!sender.write(payload, null)) {
+                Thread.sleep(1);
+            }
+        }
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < messages; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+        sender.close("done");
+        receiver.close("done");
+    }
+
+    private byte[] sendLossy(long seed) throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        FaultInjectingTransport link = new FaultInjectingTransport(pair[0], seed);
+        link.setLoss(0.2);
+        link.setTruncation(0.1);
+        for (int i = 0; i < 200; i++) {
+            byte[] packet = ("packet" + (char) ('A' + i % 26) + (i % 10)).getBytes();
+            link.write(packet, 0, packet.length);
+        }
+        while (link.getPendingCount() > 0) {
+            Thread.sleep(5);
+        }
+        assertTrue(link.getDroppedCount() > 0);
+        assertTrue(link.getTruncatedCount() > 0);
+        byte[] received = readFully(pair[1], (int) link.getDeliveredBytes());
+        link.close();
+        return received;
+    }
+
+    private static byte[] readFully(Transport transport, int length) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (stream.size() < length) {
+            int count = transport.read(buffer, 0, Math.min(buffer.length, length - stream.size()));
+            if (count < 0) {
+                break;
+            }
+            stream.write(buffer, 0, count);
+        }
+        return stream.toByteArray();
+    }
+
+    private static class SessionAdapter implements OnSessionListener {
+        @Override
+        public void onSessionOpened(Session session) {
+        }
+
+        @Override
+        public void onSessionClosed(Session session, String reason) {
+        }
+
+        @Override
+        public void onSessionData(Session session, byte[] data) {
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.zhipu.middle.common.transport;
+
+import com.zhipu.middle.common.callback.OnSessionListener;
+import com.zhipu.middle.common.callback.OnTransportStateListener;
+import com.zhipu.middle.common.connect.Session;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoopbackTransportTest {
+
+    @Test
+    public void readWrite_wrapsAroundRingBuffer() throws IOException {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(16);
+        byte[] buffer = new byte[16];
+        for (int i = 0; i < 10; i++) {
+            byte[] data = ("message-" + i).getBytes();
+            pair[0].write(data, 0, data.length);
+            int count = pair[1].read(buffer, 0, buffer.length);
+            assertEquals(data.length, count);
+            assertArrayEquals(data, Arrays.copyOf(buffer, count));
+        }
+    }
+
+    @Test
+    public void close_endsPeerStreamAndNotifies() throws IOException {
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        final AtomicInteger closed = new AtomicInteger();
+        pair[1].setOnTransportStateListener(new OnTransportStateListener() {
+            @Override
+            public void onStateChanged(Transport transport, int state, String reason) {
+                if (state == Transport.STATE_CLOSED) {
+                    closed.incrementAndGet();
+                }
+            }
+        });
+
+        pair[0].close();
+
+        assertEquals(-1, pair[1].read(new byte[4], 0, 4));
+        assertEquals(Transport.STATE_CLOSED, pair[1].getState());
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void sessions_exchangeFramesOverLoopback() throws InterruptedException {
+        final int messages = 10000;
+        final CountDownLatch received = new CountDownLatch(messages);
+        LoopbackTransport[] pair = LoopbackTransport.createPair();
+        Session sender = new Session(pair[0], new SessionAdapter());
+        Session receiver = new Session(pair[1], new SessionAdapter() {
+            @Override
+            public void onSessionData(Session session, byte[] data) {
+                received.countDown();
+            }
+        });
+        sender.open();
+        receiver.open();
+
+        byte[] payload = new byte[100];
+        for (int i = 0; i < messages; i++) {
+            while (!sender.write(payload, null)) {
+                Thread.yield();
+            }
+        }
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(messages, receiver.getMetrics().getFramesIn());
+        sender.close("done");
+        receiver.close("done");
+    }
+
+    private static class SessionAdapter implements OnSessionListener {
+        @Override
+        public void onSessionOpened(Session session) {
+        }
+
+        @Override
+        public void onSessionClosed(Session session, String reason) {
+        }
+
+        @Override
+        public void onSessionData(Session session, byte[] data) {
+        }
+    }
+}
@@ -17,9 +17,23 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.zhipu.middle.common.SampleGattAttributes;
+import com.zhipu.middle.common.callback.OnReceiveByteBufferListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
+import com.zhipu.middle.common.capture.TrafficRecorder;
+import com.zhipu.middle.common.connect.FrameWriter;
+import com.zhipu.middle.common.connect.Outbox;
+import com.zhipu.middle.common.connect.OutboundScheduler;
+import com.zhipu.middle.common.connect.WriteQueue;
+import com.zhipu.middle.common.message.WireMessage;
+import com.zhipu.middle.common.message.MessageCodec;
+import com.zhipu.middle.common.metrics.MetricGroup;
+import com.zhipu.middle.common.metrics.MetricsRegistry;
 import com.zhipu.middleground.communication.callback.OnConnectBleListener;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -34,11 +48,30 @@ public class BleConnectHelper {
 
     private Context mContext;
     private OnConnectBleListener mConnectBleListener;
+    private volatile OnReceiveByteBufferListener mOnReceiveByteBufferListener;
     private UiHandler mUiHandler;
 
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothGatt mBluetoothGatt;
     private int mConnectionState = STATE_DISCONNECTED;
+    private volatile MetricGroup mMetricGroup;
+    private volatile long mGattOpStartNanos;
+    /**
+     * GATT takes one write at a time, the rest wait here by priority until onCharacteristicWrite
+     */
+    private final OutboundScheduler<GattWrite> mOutbound = new OutboundScheduler<>(WriteQueue.DEFAULT_CAPACITY);
+    private GattWrite mGattWriteInFlight;
+    private volatile Outbox mOutbox;
+    private volatile TrafficRecorder mTrafficRecorder;
+    /**
+     * Replays the outbox at bulk priority, so live writes go first
+     */
+    private final FrameWriter mOutboxLink = new FrameWriter() {
+        @Override
+        public boolean write(byte[] data, OnWriteListener listener) {
+            return BleConnectHelper.this.write(data, WriteQueue.PRIORITY_BULK, listener);
+        }
+    };
 
     public void initialize(Context context) {
         mContext = context;
@@ -73,6 +106,7 @@ public class BleConnectHelper {
             return;
         }
 
+        mMetricGroup = MetricsRegistry.getDefault().getGroup("ble:" + address);
         device.connectGatt(mContext, false, mGattCallback);
         Log.d(TAG, "Trying to create a new connection.");
         mConnectionState = STATE_CONNECTING;
@@ -101,34 +135,238 @@ public class BleConnectHelper {
         mUiHandler.removeMessages(MSG_ON_DISCONNECT);
     }
 
-    private void write(byte[] cmd, BluetoothGattCharacteristic characteristic) {
+    private boolean write(byte[] cmd, BluetoothGattCharacteristic characteristic) {
         if (characteristic == null) {
-            return;
+            return false;
         }
         characteristic.setValue(cmd);
         characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         mBluetoothGatt.setCharacteristicNotification(characteristic, true);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        // GATT runs one operation at a time, so one start time is enough
+        mGattOpStartNanos = System.nanoTime();
+        if (mBluetoothGatt.writeCharacteristic(characteristic)) {
+            MetricGroup metricGroup = mMetricGroup;
+            if (metricGroup != null) {
+                metricGroup.counter(MetricGroup.MESSAGES_OUT).increment();
+                metricGroup.counter(MetricGroup.BYTES_OUT).add(cmd.length);
+            }
+            return true;
+        }
+        mGattOpStartNanos = 0;
+        this.countGattFailure();
+        return false;
     }
 
     public void write(byte[] data) {
+        this.write(data, WriteQueue.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queue data for the GATT server. An urgent write goes out right after the write in flight,
+     * ahead of queued bulk writes.
+     *
+     * @param priority one of {@link WriteQueue#PRIORITY_URGENT}, {@link WriteQueue#PRIORITY_NORMAL}
+     *                 and {@link WriteQueue#PRIORITY_BULK}
+     * @return false if not connected and without outbox, the class is full or GATT refused the
+     * write right away
+     */
+    public boolean write(byte[] data, int priority) {
         if (mBluetoothGatt == null) {
-            return;
+            Outbox outbox = mOutbox;
+            return outbox != null && outbox.write(data, null);
+        }
+        return this.write(data, priority, null);
+    }
+
+    /**
+     * @return false if the write could not be queued or GATT refused it right away, the listener
+     * is not called in that case
+     */
+    private boolean write(byte[] data, int priority, OnWriteListener listener) {
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        GattWrite write = new GattWrite(data, listener);
+        if (!mOutbound.offer(write, priority)) {
+            Log.w(TAG, "ble write queue full, priority: " + priority);
+            return false;
+        }
+        return this.writeNext(write);
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer, e.g. one the caller reuses for every message. GATT
+     * needs an array, so the bytes are copied once before this returns and the buffer may be
+     * refilled right away. On success its position is moved to its limit.
+     */
+    public boolean write(ByteBuffer data, int priority) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        if (!this.write(bytes, priority)) {
+            return false;
+        }
+        data.position(data.limit());
+        return true;
+    }
+
+    /**
+     * Keep what is written while not connected in a durable outbox instead of refusing it. The
+     * outbox replays it, in order and paced, once the services of the next connection are
+     * discovered. Null turns it off, the outbox itself is closed by the caller.
+     */
+    public void setOutbox(Outbox outbox) {
+        Outbox old = mOutbox;
+        mOutbox = outbox;
+        if (old != null) {
+            old.detach();
+        }
+        if (outbox != null && mBluetoothGatt != null) {
+            outbox.attach(mOutboxLink);
         }
-        BluetoothGattService service = mBluetoothGatt.getService(UUID.fromString(SampleGattAttributes.UUID_SERVER));
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(UUID.fromString(SampleGattAttributes.CHAR_WRITE_SMS));
-        this.write(data, characteristic);
+    }
+
+    /**
+     * Record every value written to and notified by the GATT server, for replay with
+     * {@link com.zhipu.middle.common.capture.TrafficReplayer}. Null stops recording, the recorder
+     * itself is closed by the caller.
+     */
+    public void setTrafficRecorder(TrafficRecorder trafficRecorder) {
+        mTrafficRecorder = trafficRecorder;
+    }
+
+    private void writeNext() {
+        this.writeNext(null);
+    }
+
+    /**
+     * Start the next queued write unless one is in flight. A write GATT refuses is dropped and
+     * failed, except the caller's own, which is reported by the return value instead.
+     *
+     * @param caller the write just queued by the calling thread, may be null
+     * @return false if GATT refused the caller's write
+     */
+    private boolean writeNext(GattWrite caller) {
+        while (true) {
+            BluetoothGatt gatt = mBluetoothGatt;
+            GattWrite write;
+            synchronized (mOutbound) {
+                if (mGattWriteInFlight != null || gatt == null) {
+                    return true;
+                }
+                write = mOutbound.poll();
+                if (write == null) {
+                    return true;
+                }
+                mGattWriteInFlight = write;
+            }
+            if (this.write(write.data, this.getWriteCharacteristic(gatt))) {
+                TrafficRecorder trafficRecorder = mTrafficRecorder;
+                if (trafficRecorder != null) {
+                    trafficRecorder.record(TrafficRecorder.LINK_BLE, TrafficRecorder.DIRECTION_OUT, write.data);
+                }
+                return true;
+            }
+            synchronized (mOutbound) {
+                mGattWriteInFlight = null;
+            }
+            if (write == caller) {
+                return false;
+            }
+            write.fail(new IOException("gatt refused the write"));
+        }
+    }
+
+    private void onGattWriteDone(int status) {
+        GattWrite write;
+        synchronized (mOutbound) {
+            write = mGattWriteInFlight;
+            mGattWriteInFlight = null;
+        }
+        if (write != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                write.complete();
+            } else {
+                write.fail(new IOException("gatt write failed, status: " + status));
+            }
+        }
+        this.writeNext();
+    }
+
+    private void clearOutbound() {
+        List<GattWrite> dropped = new ArrayList<>();
+        synchronized (mOutbound) {
+            GattWrite write;
+            while ((write = mOutbound.poll()) != null) {
+                // Nothing can be written to a disconnected device
+                dropped.add(write);
+            }
+            if (mGattWriteInFlight != null) {
+                dropped.add(0, mGattWriteInFlight);
+                mGattWriteInFlight = null;
+            }
+        }
+        for (GattWrite write : dropped) {
+            write.fail(new IOException("disconnected"));
+        }
+    }
+
+    private BluetoothGattCharacteristic getWriteCharacteristic(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(UUID.fromString(SampleGattAttributes.UUID_SERVER));
+        if (service == null) {
+            return null;
+        }
+        return service.getCharacteristic(UUID.fromString(SampleGattAttributes.CHAR_WRITE_SMS));
     }
 
     public void write(String msg) {
         this.write(msg.getBytes());
     }
 
+    /**
+     * Queue a typed message in its compact binary encoding, see {@link MessageCodec}.
+     */
+    public boolean write(WireMessage message, int priority) {
+        return this.write(MessageCodec.encode(message), priority);
+    }
+
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
         if (mBluetoothGatt == null) {
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        mGattOpStartNanos = System.nanoTime();
+        if (!mBluetoothGatt.readCharacteristic(characteristic)) {
+            mGattOpStartNanos = 0;
+            this.countGattFailure();
+        }
+    }
+
+    /**
+     * @return GATT op durations and traffic of the current device, null before the first connect
+     */
+    public MetricGroup getMetricGroup() {
+        return mMetricGroup;
+    }
+
+    private void recordGattOp(String name, int status) {
+        MetricGroup metricGroup = mMetricGroup;
+        long startNanos = mGattOpStartNanos;
+        if (metricGroup == null) {
+            return;
+        }
+        if (startNanos != 0) {
+            mGattOpStartNanos = 0;
+            metricGroup.histogram(name).record(System.nanoTime() - startNanos);
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            metricGroup.counter(MetricGroup.GATT_FAILURES).increment();
+        }
+    }
+
+    private void countGattFailure() {
+        MetricGroup metricGroup = mMetricGroup;
+        if (metricGroup != null) {
+            metricGroup.counter(MetricGroup.GATT_FAILURES).increment();
+        }
     }
 
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
@@ -142,6 +380,15 @@ public class BleConnectHelper {
         mConnectBleListener = onConnectBleListener;
     }
 
+    /**
+     * Deliver received data as a read-only view of the characteristic value instead of
+     * {@link OnConnectBleListener#onReceiveDataBle(byte[])}. The view is only valid during the
+     * callback.
+     */
+    public void setOnReceiveByteBufferListener(OnReceiveByteBufferListener onReceiveByteBufferListener) {
+        mOnReceiveByteBufferListener = onReceiveByteBufferListener;
+    }
+
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
         /**
@@ -162,6 +409,18 @@ public class BleConnectHelper {
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.d(TAG, "Disconnected from GATT server.");
                 mConnectionState = STATE_DISCONNECTED;
+                // Writes from now on go to the outbox instead of the dead connection
+                mBluetoothGatt = null;
+                Outbox outbox = mOutbox;
+                if (outbox != null) {
+                    outbox.detach();
+                }
+                clearOutbound();
+                gatt.close();
+                MetricGroup metricGroup = mMetricGroup;
+                if (metricGroup != null) {
+                    metricGroup.counter(MetricGroup.DISCONNECTS).increment();
+                }
                 msg.what = MSG_ON_DISCONNECT;
             }
             mUiHandler.sendMessage(msg);
@@ -180,6 +439,10 @@ public class BleConnectHelper {
                 return;
             }
             mBluetoothGatt = gatt;
+            Outbox outbox = mOutbox;
+            if (outbox != null) {
+                outbox.attach(mOutboxLink);
+            }
         }
 
         /**
@@ -189,9 +452,23 @@ public class BleConnectHelper {
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicChanged(gatt, characteristic);
             byte[] data = characteristic.getValue();
-            Log.d(TAG, "onCharacteristicChanged data: " + data.length);
+            MetricGroup metricGroup = mMetricGroup;
+            if (metricGroup != null) {
+                metricGroup.counter(MetricGroup.MESSAGES_IN).increment();
+                metricGroup.counter(MetricGroup.BYTES_IN).add(data.length);
+            }
+            TrafficRecorder trafficRecorder = mTrafficRecorder;
+            if (trafficRecorder != null) {
+                trafficRecorder.record(TrafficRecorder.LINK_BLE, TrafficRecorder.DIRECTION_IN, data);
+            }
             if (SampleGattAttributes.CHAR_WRITE_SMS.equals(characteristic.getUuid().toString())) {
-                onReceiveDataResponse(data);
+                OnReceiveByteBufferListener onReceiveByteBufferListener = mOnReceiveByteBufferListener;
+                if (onReceiveByteBufferListener != null) {
+                    // The characteristic's own value, handed over without a copy
+                    onReceiveByteBufferListener.onReceiveData(ByteBuffer.wrap(data).asReadOnlyBuffer());
+                } else {
+                    onReceiveDataResponse(data);
+                }
             }
         }
 
@@ -202,6 +479,7 @@ public class BleConnectHelper {
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             super.onCharacteristicRead(gatt, characteristic, status);
             Log.d(TAG, "onCharacteristicRead status: " + status);
+            recordGattOp(MetricGroup.GATT_READ, status);
             if (status == BluetoothGatt.GATT_SUCCESS) {//接收到蓝牙发送的数据
             }
         }
@@ -212,7 +490,8 @@ public class BleConnectHelper {
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             super.onCharacteristicWrite(gatt, characteristic, status);
-            Log.d(TAG, "onCharacteristicWrite status: " + status);
+            recordGattOp(MetricGroup.GATT_WRITE, status);
+            onGattWriteDone(status);
         }
 
         @Override
@@ -246,6 +525,28 @@ public class BleConnectHelper {
         }
     }
 
+    private static class GattWrite {
+        private final byte[] data;
+        private final OnWriteListener listener;
+
+        GattWrite(byte[] data, OnWriteListener listener) {
+            this.data = data;
+            this.listener = listener;
+        }
+
+        void complete() {
+            if (listener != null) {
+                listener.onWriteComplete(data.length);
+            }
+        }
+
+        void fail(IOException e) {
+            if (listener != null) {
+                listener.onWriteFailed(e);
+            }
+        }
+    }
+
     private static class UiHandler extends Handler {
         private WeakReference<BleConnectHelper> mWeakReference;
 
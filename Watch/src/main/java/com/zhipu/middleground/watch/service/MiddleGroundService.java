@@ -25,8 +25,17 @@ import androidx.annotation.Nullable;
 
 import com.zhipu.middle.common.SampleGattAttributes;
 import com.zhipu.middle.common.callback.OnConnectListener;
+import com.zhipu.middle.common.callback.OnWriteListener;
 import com.zhipu.middle.common.connect.ConnectHelper;
-
+import com.zhipu.middle.common.connect.FrameDecoder;
+import com.zhipu.middle.common.connect.FrameWriter;
+import com.zhipu.middle.common.connect.RpcEndpoint;
+import com.zhipu.middle.common.message.MessageCodec;
+import com.zhipu.middle.common.message.WeatherMessage;
+import com.zhipu.middle.common.sync.SyncEngine;
+import com.zhipu.middle.common.sync.SyncStore;
+
+import java.net.ProtocolException;
 import java.util.UUID;
 
 public class MiddleGroundService extends Service implements OnConnectListener {
@@ -37,15 +46,50 @@ public class MiddleGroundService extends Service implements OnConnectListener {
     private final static UUID UUID_WRITE_SMS = UUID.fromString(SampleGattAttributes.CHAR_WRITE_SMS);
     private final static UUID UUID_DESCRIPTOR = UUID.fromString(SampleGattAttributes.UUID_NOTIFY);
 
+    private static final String METHOD_WEATHER = "weather";
+    private static final String WEATHER_INFO = "从设备返回的天气信息";
+
     private BluetoothManager mBluetoothManager;
     private BluetoothGattServer mBluetoothGattServer;
     private BluetoothDevice mBluetoothDevice;
     private ConnectHelper mConnectHelper = new ConnectHelper();
+    private RpcEndpoint mRpcEndpoint;
+    private RpcEndpoint mGattRpcEndpoint;
+    private SyncEngine mSyncEngine;
 
     @Override
     public void onCreate() {
         super.onCreate();
         mConnectHelper.setOnConnectListener(this);
+        mRpcEndpoint = new RpcEndpoint(mConnectHelper, new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                if (!MessageCodec.isMessage(buffer, offset, length)) {
+                    Log.d(TAG, TAG + ", data: " + new String(buffer, offset, length));
+                    return;
+                }
+                try {
+                    Log.d(TAG, TAG + ", message: " + MessageCodec.decode(buffer, offset, length));
+                } catch (ProtocolException e) {
+                    Log.w(TAG, TAG + ", malformed message", e);
+                }
+            }
+        });
+        mGattRpcEndpoint = new RpcEndpoint(mGattNotifyWriter, new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                // Plain writes from clients without an RpcEndpoint still get the old acknowledgement
+                BluetoothGattCharacteristic characteristic = getWriteCharacteristic();
+                if (characteristic != null) {
+                    sendMessage(characteristic, "CCCCC");
+                }
+            }
+        });
+        this.registerRpcHandlers(mRpcEndpoint);
+        this.registerRpcHandlers(mGattRpcEndpoint);
+        // The phone mirrors the weather and pulls only what changed after a reconnect
+        mSyncEngine = new SyncEngine(mRpcEndpoint, new SyncStore(), null);
+        mSyncEngine.put(WeatherMessage.SYNC_KEY, MessageCodec.encode(currentWeather()));
         this.initGATTServer();
         this.initServices();
     }
@@ -69,6 +113,22 @@ public class MiddleGroundService extends Service implements OnConnectListener {
         super.onDestroy();
         Log.d(TAG, TAG + ", onDestroy");
         mConnectHelper.stop();
+        mRpcEndpoint.failPending("service destroyed");
+        mGattRpcEndpoint.failPending("service destroyed");
+    }
+
+    private void registerRpcHandlers(RpcEndpoint rpcEndpoint) {
+        rpcEndpoint.registerHandler(METHOD_WEATHER, new RpcEndpoint.Handler() {
+            @Override
+            public byte[] handle(byte[] request) {
+                return MessageCodec.encode(currentWeather());
+            }
+        });
+    }
+
+    private static WeatherMessage currentWeather() {
+        return new WeatherMessage("北京", 235, WeatherMessage.CONDITION_SUNNY, 40,
+                System.currentTimeMillis());
     }
 
     private void initGATTServer() {
@@ -183,7 +243,7 @@ public class MiddleGroundService extends Service implements OnConnectListener {
             }
 
             if (characteristic.getUuid() == UUID_READ_WEATHER) {
-                sendMessage(characteristic, "从设备返回的天气信息");
+                sendMessage(characteristic, WEATHER_INFO);
             }
         }
 
@@ -249,9 +309,38 @@ public class MiddleGroundService extends Service implements OnConnectListener {
                 " data = %s", device.getName(), device.getAddress(), requestId, data));
         mBluetoothDevice = device;
 
-        sendMessage(characteristic, "CCCCC");
+        // Calls are answered with their call id, so the client can match each response
+        mGattRpcEndpoint.onFrame(value, 0, value.length);
     }
 
+    private BluetoothGattCharacteristic getWriteCharacteristic() {
+        BluetoothGattService service = mBluetoothGattServer.getService(UUID_SERVER);
+        return service == null ? null : service.getCharacteristic(UUID_WRITE_SMS);
+    }
+
+    /**
+     * Sends RPC responses as notifications of the write characteristic. A notification carries at
+     * most MTU - 3 bytes, larger responses need a bigger MTU or the RFCOMM link.
+     */
+    private final FrameWriter mGattNotifyWriter = new FrameWriter() {
+        @Override
+        public boolean write(byte[] data, OnWriteListener listener) {
+            BluetoothGattCharacteristic characteristic = getWriteCharacteristic();
+            BluetoothDevice device = mBluetoothDevice;
+            if (characteristic == null || device == null) {
+                return false;
+            }
+            characteristic.setValue(data);
+            if (!mBluetoothGattServer.notifyCharacteristicChanged(device, characteristic, false)) {
+                return false;
+            }
+            if (listener != null) {
+                listener.onWriteComplete(data.length);
+            }
+            return true;
+        }
+    };
+
     private void sendMessage(BluetoothGattCharacteristic characteristic, String message) {
         characteristic.setValue(message.getBytes());
         if (mBluetoothDevice != null) {
@@ -263,15 +352,17 @@ public class MiddleGroundService extends Service implements OnConnectListener {
     @Override
     public void onConnect(BluetoothDevice device) {
         Log.d(TAG, TAG + ", onConnect: " + device);
+        mSyncEngine.sync();
     }
 
     @Override
     public void onDisconnect(BluetoothDevice device, String error) {
         Log.d(TAG, TAG + ", onDisconnect: " + device + ", error: " + error);
+        mRpcEndpoint.failPending(error);
     }
 
     @Override
     public void onReceiveData(byte[] data) {
-        Log.d(TAG, TAG + ", data: " + new String(data));
+        mRpcEndpoint.onFrame(data, 0, data.length);
     }
 }